@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the {@code K} best scoring frames of a burst as they arrive. The frames are held in a
+ * min-heap, so a new frame is only compared against the worst one kept, and every frame that falls
+ * out is handed back to the caller to release straight away. However long the burst, no more than
+ * {@code K} frames are held.
+ *
+ * Frames are offered from the thread their images arrive on, but the selector may be drained
+ * from another when the camera closes.
+ *
+ * @param <T> The type of the frames, such as {@link android.media.Image}
+ */
+class BestShotSelector<T> {
+
+    /**
+     * A kept frame and its score.
+     */
+    static final class Candidate<T> {
+
+        private final T mFrame;
+
+        private final double mScore;
+
+        /**
+         * The order the frame was offered in, so that ties go to the earlier frame
+         */
+        private final long mSequence;
+
+        Candidate(T frame, double score, long sequence) {
+            mFrame = frame;
+            mScore = score;
+            mSequence = sequence;
+        }
+
+        public T getFrame() {
+            return mFrame;
+        }
+
+        public double getScore() {
+            return mScore;
+        }
+
+    }
+
+    /**
+     * Orders candidates from the worst to the best.
+     */
+    private static final Comparator<Candidate<?>> WORST_FIRST = new Comparator<Candidate<?>>() {
+        @Override
+        public int compare(Candidate<?> lhs, Candidate<?> rhs) {
+            int byScore = Double.compare(lhs.mScore, rhs.mScore);
+            return byScore != 0 ? byScore : Long.compare(rhs.mSequence, lhs.mSequence);
+        }
+    };
+
+    private final int mCapacity;
+
+    private final PriorityQueue<Candidate<T>> mHeap;
+
+    private long mOffered;
+
+    /**
+     * @param capacity The number of frames kept
+     */
+    public BestShotSelector(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        mCapacity = capacity;
+        mHeap = new PriorityQueue<>(capacity + 1, WORST_FIRST);
+    }
+
+    /**
+     * Offers a frame to the selector.
+     *
+     * @param frame The frame
+     * @param score How good the frame is; higher is better
+     * @return The frame that is no longer kept and should be released, which is either the
+     * offered frame or one kept before it, or null if every frame is still kept
+     */
+    public synchronized T offer(T frame, double score) {
+        mOffered++;
+        Candidate<T> candidate = new Candidate<>(frame, score, mOffered);
+        if (mHeap.size() < mCapacity) {
+            mHeap.add(candidate);
+            return null;
+        }
+        if (WORST_FIRST.compare(candidate, mHeap.peek()) <= 0) {
+            return frame;
+        }
+        mHeap.add(candidate);
+        return mHeap.poll().mFrame;
+    }
+
+    /**
+     * Returns the number of frames offered since the selector was created or last drained.
+     */
+    public synchronized long getOfferedCount() {
+        return mOffered;
+    }
+
+    public synchronized int size() {
+        return mHeap.size();
+    }
+
+    /**
+     * Removes the kept frames, best first. The caller takes over releasing them.
+     */
+    public synchronized List<Candidate<T>> drain() {
+        List<Candidate<T>> candidates = new ArrayList<>(mHeap);
+        mHeap.clear();
+        mOffered = 0;
+        Collections.sort(candidates, Collections.reverseOrder(WORST_FIRST));
+        return candidates;
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Scores the frames of a burst for {@link BestShotSelector}. Each luma plane is box-filtered down
+ * to at most {@link #mTargetWidth} pixels wide, then scored by the variance of its Laplacian, which
+ * drops as the frame gets blurrier, and penalized by how much it differs from the frame before,
+ * which is where camera shake and moving subjects show up.
+ *
+ * The kernels work on plain arrays in straight loops without branches, so the JIT can vectorize
+ * them, and every array is reused from one frame to the next.
+ */
+class BurstFrameScorer {
+
+    /**
+     * The mean absolute difference to the previous frame, in luma levels, that halves the score
+     */
+    static final double MOTION_SCALE = 4;
+
+    private final int mTargetWidth;
+
+    private byte[] mFrame = new byte[0];
+
+    private byte[] mPrevious = new byte[0];
+
+    private byte[] mRow = new byte[0];
+
+    private int[] mSums = new int[0];
+
+    private int mWidth;
+
+    private int mHeight;
+
+    private boolean mHasPrevious;
+
+    private double mSharpness;
+
+    private double mMotion;
+
+    /**
+     * @param targetWidth The largest width frames are scored at
+     */
+    public BurstFrameScorer(int targetWidth) {
+        mTargetWidth = targetWidth;
+    }
+
+    /**
+     * Scores a frame. Frames of one burst must be scored in the order they were captured.
+     *
+     * @param plane       The luma samples, from the position of the buffer
+     * @param rowStride   The distance between two rows, in bytes
+     * @param pixelStride The distance between two samples of a row, in bytes
+     * @return The score; higher is better
+     */
+    public double score(ByteBuffer plane, int width, int height, int rowStride,
+                        int pixelStride) {
+        int factor = Math.max(1, (width + mTargetWidth - 1) / mTargetWidth);
+        int scaledWidth = width / factor;
+        int scaledHeight = height / factor;
+        if (scaledWidth != mWidth || scaledHeight != mHeight) {
+            mWidth = scaledWidth;
+            mHeight = scaledHeight;
+            mFrame = new byte[scaledWidth * scaledHeight];
+            mPrevious = new byte[scaledWidth * scaledHeight];
+            mHasPrevious = false;
+        }
+        int rowLength = (scaledWidth * factor - 1) * pixelStride + 1;
+        if (mRow.length < rowLength) {
+            mRow = new byte[rowLength];
+        }
+        if (mSums.length < scaledWidth) {
+            mSums = new int[scaledWidth];
+        }
+        downscale(plane, rowStride, pixelStride, factor, scaledWidth, scaledHeight, mRow, mSums,
+                mFrame);
+        mSharpness = laplacianVariance(mFrame, scaledWidth, scaledHeight);
+        mMotion = mHasPrevious ? meanAbsoluteDifference(mFrame, mPrevious, mFrame.length) : 0;
+        byte[] previous = mPrevious;
+        mPrevious = mFrame;
+        mFrame = previous;
+        mHasPrevious = true;
+        return mSharpness / (1 + mMotion / MOTION_SCALE);
+    }
+
+    /**
+     * Forgets the previous frame, so that the next frame scored starts a new burst.
+     */
+    public void reset() {
+        mHasPrevious = false;
+    }
+
+    /**
+     * Returns the Laplacian variance of the last frame scored.
+     */
+    public double getSharpness() {
+        return mSharpness;
+    }
+
+    /**
+     * Returns the mean absolute difference between the last two frames scored, or 0 if the last
+     * frame was the first of its burst.
+     */
+    public double getMotion() {
+        return mMotion;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "sharpness=%.1f motion=%.2f", mSharpness, mMotion);
+    }
+
+    /**
+     * Averages every {@code factor} by {@code factor} block of a plane into one pixel.
+     *
+     * @param row  Holds one row of the plane
+     * @param sums Holds {@code width} column sums
+     * @param out  Receives {@code width * height} pixels
+     */
+    static void downscale(ByteBuffer plane, int rowStride, int pixelStride, int factor,
+                          int width, int height, byte[] row, int[] sums, byte[] out) {
+        ByteBuffer source = plane.duplicate();
+        int base = plane.position();
+        int rowLength = (width * factor - 1) * pixelStride + 1;
+        int step = factor * pixelStride;
+        int area = factor * factor;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                sums[x] = 0;
+            }
+            for (int i = 0; i < factor; i++) {
+                // One bulk copy per row keeps the per-pixel loops on a plain array.
+                source.position(base + (y * factor + i) * rowStride);
+                source.get(row, 0, rowLength);
+                for (int j = 0; j < factor; j++) {
+                    int offset = j * pixelStride;
+                    for (int x = 0; x < width; x++) {
+                        sums[x] += row[offset + x * step] & 0xff;
+                    }
+                }
+            }
+            int outRow = y * width;
+            for (int x = 0; x < width; x++) {
+                out[outRow + x] = (byte) (sums[x] / area);
+            }
+        }
+    }
+
+    /**
+     * Computes the variance of the 4-neighbour Laplacian over the inner pixels of a packed plane.
+     */
+    static double laplacianVariance(byte[] pixels, int width, int height) {
+        long sum = 0;
+        long sumOfSquares = 0;
+        for (int y = 1; y < height - 1; y++) {
+            int row = y * width;
+            for (int x = row + 1; x < row + width - 1; x++) {
+                int laplacian = (pixels[x - 1] & 0xff) + (pixels[x + 1] & 0xff)
+                        + (pixels[x - width] & 0xff) + (pixels[x + width] & 0xff)
+                        - 4 * (pixels[x] & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+            }
+        }
+        long count = (long) Math.max(0, width - 2) * Math.max(0, height - 2);
+        if (count == 0) {
+            return 0;
+        }
+        double mean = (double) sum / count;
+        return (double) sumOfSquares / count - mean * mean;
+    }
+
+    /**
+     * Returns the mean absolute difference between the first {@code length} pixels of two planes.
+     */
+    static double meanAbsoluteDifference(byte[] a, byte[] b, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        }
+        return (double) sum / length;
+    }
+
+}
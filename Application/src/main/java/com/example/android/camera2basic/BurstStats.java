@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * Keeps track of the frames of a single burst capture: how many were requested, how many made it
+ * to the {@link android.media.ImageReader}, and the frame rate the sensor actually delivered.
+ */
+class BurstStats {
+
+    /**
+     * Number of frames requested in the burst
+     */
+    private final int mRequested;
+
+    private int mCompleted;
+
+    private int mFailed;
+
+    private int mBuffersLost;
+
+    private int mImages;
+
+    /**
+     * Sensor timestamps of the first and last completed frames, in nanoseconds
+     */
+    private long mFirstTimestampNs;
+
+    private long mLastTimestampNs;
+
+    public BurstStats(int requested) {
+        mRequested = requested;
+    }
+
+    public int getRequested() {
+        return mRequested;
+    }
+
+    /**
+     * Called when a frame of the burst completes, with its sensor timestamp.
+     */
+    public synchronized void onCaptureCompleted(long timestampNs) {
+        if (mCompleted == 0 || timestampNs < mFirstTimestampNs) {
+            mFirstTimestampNs = timestampNs;
+        }
+        if (mCompleted == 0 || timestampNs > mLastTimestampNs) {
+            mLastTimestampNs = timestampNs;
+        }
+        mCompleted++;
+    }
+
+    /**
+     * Called when the camera failed to capture a frame of the burst.
+     */
+    public synchronized void onCaptureFailed() {
+        mFailed++;
+    }
+
+    /**
+     * Called when a frame was captured but its image never reached the reader.
+     */
+    public synchronized void onBufferLost() {
+        mBuffersLost++;
+    }
+
+    /**
+     * Called when an image of the burst is available from the reader.
+     */
+    public synchronized void onImageAvailable() {
+        mImages++;
+    }
+
+    public synchronized int getImageCount() {
+        return mImages;
+    }
+
+    /**
+     * Returns the number of requested frames that did not produce an image.
+     */
+    public synchronized int getDroppedFrames() {
+        return mFailed + mBuffersLost + Math.max(0, mRequested - mFailed - mCompleted);
+    }
+
+    /**
+     * Returns whether every requested frame has either failed or produced its image, so that no
+     * more images of the burst are coming.
+     */
+    public synchronized boolean isSettled() {
+        return mCompleted + mFailed >= mRequested && mImages + mBuffersLost >= mCompleted;
+    }
+
+    /**
+     * Returns the frame rate between the first and last completed frames, or 0 if there are
+     * fewer than two.
+     */
+    public synchronized double getAchievedFps() {
+        if (mCompleted < 2 || mLastTimestampNs == mFirstTimestampNs) {
+            return 0;
+        }
+        return (mCompleted - 1) * 1e9 / (mLastTimestampNs - mFirstTimestampNs);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Burst: %d/%d frames at %.1f fps, %d dropped",
+                mCompleted - mBuffersLost, mRequested, getAchievedFps(), getDroppedFrames());
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of equally sized direct {@link ByteBuffer}s. Buffers are allocated lazily up to
+ * the capacity of the pool, after which {@link #acquire()} waits for one to be released.
+ */
+class ByteBufferPool {
+
+    /**
+     * The size in bytes of every buffer handed out by this pool.
+     */
+    private final int mBufferSize;
+
+    /**
+     * The maximum number of buffers this pool will ever allocate.
+     */
+    private final int mCapacity;
+
+    /**
+     * Buffers that have been released and are ready to be reused. This is array backed so that
+     * moving buffers in and out of it does not allocate.
+     */
+    private final BlockingQueue<ByteBuffer> mFreeBuffers;
+
+    /**
+     * The number of buffers allocated so far.
+     */
+    private final AtomicInteger mAllocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize The size in bytes of each buffer
+     * @param capacity   The maximum number of buffers to allocate
+     */
+    public ByteBufferPool(int bufferSize, int capacity) {
+        if (bufferSize <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Buffer size and capacity must be positive.");
+        }
+        mBufferSize = bufferSize;
+        mCapacity = capacity;
+        mFreeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Returns a cleared buffer, allocating a new one if the pool has not reached its capacity yet,
+     * or waiting for one to be released otherwise.
+     */
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = mFreeBuffers.poll();
+        if (null != buffer) {
+            return buffer;
+        }
+        if (mAllocated.incrementAndGet() <= mCapacity) {
+            return ByteBuffer.allocateDirect(mBufferSize);
+        }
+        mAllocated.decrementAndGet();
+        return mFreeBuffers.take();
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()} to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != mBufferSize) {
+            throw new IllegalArgumentException("Buffer does not belong to this pool.");
+        }
+        buffer.clear();
+        mFreeBuffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * Returns the number of buffers allocated so far.
+     */
+    public int getAllocatedCount() {
+        return Math.min(mAllocated.get(), mCapacity);
+    }
+
+}
@@ -24,12 +24,13 @@ import android.app.DialogFragment;
 import android.app.Fragment;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
-import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
@@ -37,19 +38,31 @@ import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.params.BlackLevelPattern;
+import android.hardware.camera2.params.ColorSpaceTransform;
+import android.location.Location;
+import android.location.LocationManager;
 import android.media.Image;
 import android.media.ImageReader;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.v13.app.FragmentCompat;
 import android.support.v4.content.ContextCompat;
+import android.system.ErrnoException;
+import android.system.Os;
 import android.util.Log;
+import android.util.Range;
+import android.util.Rational;
 import android.util.Size;
 import android.util.SparseIntArray;
 import android.view.LayoutInflater;
@@ -57,22 +70,33 @@ import android.view.Surface;
 import android.view.TextureView;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Camera2BasicFragment extends Fragment
-        implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
+        implements View.OnClickListener, View.OnLongClickListener,
+        FragmentCompat.OnRequestPermissionsResultCallback {
 
     /**
      * Conversion from screen rotation to JPEG orientation.
@@ -94,39 +118,215 @@ public class Camera2BasicFragment extends Fragment
     private static final String TAG = "Camera2BasicFragment";
 
     /**
-     * Camera state: Showing camera preview.
+     * Intent extra naming who operates the camera, written into the XMP of every still
      */
-    private static final int STATE_PREVIEW = 0;
+    public static final String EXTRA_OPERATOR_ID =
+            "com.example.android.camera2basic.extra.OPERATOR_ID";
 
     /**
-     * Camera state: Waiting for the focus to be locked.
+     * Location fixes older than this are not written into stills.
      */
-    private static final int STATE_WAITING_LOCK = 1;
+    private static final long LOCATION_MAX_AGE_MS = 10 * 60 * 1000;
 
     /**
-     * Camera state: Waiting for the exposure to be precapture state.
+     * Max preview width that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_PRECAPTURE = 2;
+    private static final int MAX_PREVIEW_WIDTH = 1920;
 
     /**
-     * Camera state: Waiting for the exposure state to be something other than precapture.
+     * Max preview height that is guaranteed by Camera2 API
      */
-    private static final int STATE_WAITING_NON_PRECAPTURE = 3;
+    private static final int MAX_PREVIEW_HEIGHT = 1080;
 
     /**
-     * Camera state: Picture was taken.
+     * Size of each buffer used to stage image bytes on their way to disk
      */
-    private static final int STATE_PICTURE_TAKEN = 4;
+    private static final int STAGING_BUFFER_SIZE = 256 * 1024;
 
     /**
-     * Max preview width that is guaranteed by Camera2 API
+     * Maximum number of staging buffers
      */
-    private static final int MAX_PREVIEW_WIDTH = 1920;
+    private static final int STAGING_BUFFER_COUNT = 2;
 
     /**
-     * Max preview height that is guaranteed by Camera2 API
+     * Number of threads saving images concurrently
      */
-    private static final int MAX_PREVIEW_HEIGHT = 1080;
+    private static final int SAVE_WORKER_COUNT = 2;
+
+    /**
+     * Maximum number of images waiting to be saved. Room for a whole burst, so that the queue only
+     * turns images away when saving falls behind by more than the still reader can hold.
+     */
+    private static final int SAVE_QUEUE_CAPACITY = 10;
+
+    /**
+     * Size of each file of {@link #mJournal}, enough for about 20 minutes at 60 frames per second
+     */
+    private static final int JOURNAL_FILE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Number of files of {@link #mJournal} kept
+     */
+    private static final int JOURNAL_FILE_COUNT = 8;
+
+    /**
+     * Bytes of thumbnails kept on disk, enough for a few thousand captures
+     */
+    private static final long THUMBNAIL_DISK_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Bytes of thumbnails kept in memory
+     */
+    private static final long THUMBNAIL_MEMORY_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * How long to wait for pending images to be saved when the camera is closed
+     */
+    private static final long SAVE_DRAIN_TIMEOUT_MS = 2500;
+
+    /**
+     * Number of captures synced and moved into place together, a whole regular burst
+     */
+    private static final int GROUP_COMMIT_FILES = 10;
+
+    /**
+     * Longest a saved capture waits for the rest of its group before it is committed anyway
+     */
+    private static final long GROUP_COMMIT_DELAY_MS = 200;
+
+    /**
+     * Number of still images captured by a single press of the burst button
+     */
+    private static final int BURST_SIZE = 10;
+
+    /**
+     * Number of frames captured by a burst with YUV capture on. Only the best
+     * {@link #BEST_SHOT_COUNT} of them are kept, so the burst can be longer.
+     */
+    private static final int BEST_SHOT_BURST_SIZE = 30;
+
+    /**
+     * Number of frames of a YUV burst that are saved
+     */
+    private static final int BEST_SHOT_COUNT = 3;
+
+    /**
+     * Largest width burst frames are scored at
+     */
+    private static final int BEST_SHOT_SCORING_WIDTH = 320;
+
+    /**
+     * The exposures of the frames of a night shot, relative to the metered exposure. The first
+     * frame is the reference; the frames exposed like it average out noise, and the shorter and
+     * longer ones extend the highlights and shadows.
+     */
+    private static final double[] NIGHT_BRACKET = {1, 1, 1, 1, 1, 1, 0.25, 2};
+
+    /**
+     * Merges the frames of night shots, one tile per task.
+     */
+    private static final ForkJoinPool NIGHT_MERGE_POOL =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Rough size of a JPEG still, used to preallocate the files of a burst
+     */
+    private static final int ESTIMATED_JPEG_BITS_PER_PIXEL = 4;
+
+    /**
+     * Number of recent frames kept for zero shutter lag capture
+     */
+    private static final int ZSL_BUFFER_SIZE = 5;
+
+    /**
+     * Maximum number of zero shutter lag frames being saved at once. Each one keeps its
+     * {@link Image} until it is encoded, so the ZSL reader has room for these on top of the buffer.
+     */
+    private static final int ZSL_MAX_SAVES = 2;
+
+    /**
+     * JPEG quality used when encoding YUV frames in software
+     */
+    private static final int SOFTWARE_JPEG_QUALITY = 95;
+
+    /**
+     * Number of strips a YUV frame is cut into and encoded in parallel
+     */
+    private static final int JPEG_STRIP_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Encodes the strips of YUV frames. The thread saving an image encodes one strip itself, so
+     * this needs one thread less than there are strips.
+     */
+    private static final ThreadPoolExecutor JPEG_ENCODER_EXECUTOR
+            = newExecutor("JpegEncoder", Math.max(1, JPEG_STRIP_COUNT - 1));
+
+    /**
+     * Runs slow file system work of {@link #mStorage}, such as reserving the files of a burst, so
+     * that it never holds up the camera thread. A single thread, so recovery finishes before the
+     * first reservation.
+     */
+    private static final ThreadPoolExecutor STORAGE_EXECUTOR = newExecutor("StorageIO", 1);
+
+    /**
+     * Maximum number of RAW frames waiting to be written as DNG files
+     */
+    private static final int RAW_QUEUE_CAPACITY = 2;
+
+    /**
+     * Maximum number of RAW frames, and of capture results, waiting for their other half
+     */
+    private static final int RAW_PENDING_COUNT = 1;
+
+    /**
+     * Frame rate videos are recorded at
+     */
+    private static final int VIDEO_FRAME_RATE = 30;
+
+    /**
+     * Bits of H.264 per recorded pixel, which gives about 12 Mbit/s at 1080p
+     */
+    private static final float VIDEO_BITS_PER_PIXEL = 0.2f;
+
+    /**
+     * How long closing the camera waits for a recording to be flushed to disk
+     */
+    private static final long VIDEO_STOP_TIMEOUT_MS = 3000;
+
+    /**
+     * Number of preview frame intervals after a video snapshot that are counted as disturbed by it
+     */
+    private static final int SNAPSHOT_JITTER_WINDOW = 5;
+
+    /**
+     * Largest size of the preview frames handed to the analyzers
+     */
+    private static final int ANALYSIS_WIDTH = 640;
+
+    private static final int ANALYSIS_HEIGHT = 480;
+
+    /**
+     * How often the latency overlay is refreshed while it is shown
+     */
+    private static final long METRICS_REFRESH_MS = 500;
+
+    /**
+     * Preallocates files with fallocate, so a burst doesn't grow files block by block.
+     */
+    private static final CaptureStorage.Preallocator FALLOCATE
+            = new CaptureStorage.Preallocator() {
+
+        @Override
+        public void preallocate(RandomAccessFile file, long length) throws IOException {
+            try {
+                Os.posix_fallocate(file.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                // Not every file system supports it.
+                CaptureStorage.SET_LENGTH.preallocate(file, length);
+            }
+        }
+
+    };
 
     /**
      * {@link TextureView.SurfaceTextureListener} handles several lifecycle events on a
@@ -137,7 +337,7 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture texture, int width, int height) {
-            openCamera(width, height);
+            mCameraLifecycle.requestOpen();
         }
 
         @Override
@@ -147,6 +347,11 @@ public class Camera2BasicFragment extends Fragment
 
         @Override
         public boolean onSurfaceTextureDestroyed(SurfaceTexture texture) {
+            if (mRetainingSession) {
+                // The session keeps drawing into the texture until the next view takes it over.
+                mRetainedTexture = texture;
+                return false;
+            }
             return true;
         }
 
@@ -166,6 +371,161 @@ public class Camera2BasicFragment extends Fragment
      */
     private AutoFitTextureView mTextureView;
 
+    /**
+     * Whether the camera is kept open while the activity is recreated for a configuration change.
+     */
+    private boolean mRetainingSession;
+
+    /**
+     * The {@link SurfaceTexture} of the previous {@link #mTextureView}, kept across a
+     * configuration change so that the capture session does not need to be rebuilt.
+     */
+    private SurfaceTexture mRetainedTexture;
+
+    /**
+     * Applies the preview transform once the new {@link #mTextureView} has been laid out after a
+     * configuration change.
+     */
+    private final View.OnLayoutChangeListener mRetainedLayoutListener
+            = new View.OnLayoutChangeListener() {
+
+        @Override
+        public void onLayoutChange(View view, int left, int top, int right, int bottom,
+                                   int oldLeft, int oldTop, int oldRight, int oldBottom) {
+            view.removeOnLayoutChangeListener(this);
+            configureTransform(right - left, bottom - top);
+        }
+
+    };
+
+    /**
+     * An overlay showing {@link #mMetrics}, toggled by long pressing the info button.
+     */
+    private TextView mMetricsView;
+
+    /**
+     * Starts and stops recording; it reads "Stop" while recording.
+     */
+    private Button mRecordButton;
+
+    /**
+     * The size videos are recorded at, or null if the camera can't record
+     */
+    private Size mVideoSize;
+
+    /**
+     * The recording in progress, or null. Its input surface is an output of the capture session
+     * and a target of the repeating request while it is set.
+     */
+    private volatile VideoRecorder mRecorder;
+
+    /**
+     * The regularity of preview frames, and how much video snapshots disturb it
+     */
+    private final FrameIntervalMonitor mFrameIntervals =
+            new FrameIntervalMonitor(SNAPSHOT_JITTER_WINDOW);
+
+    /**
+     * Steps the preview size and frame rate down while the device is struggling, or null before
+     * the outputs are set up.
+     */
+    private volatile PreviewGovernor mGovernor;
+
+    /**
+     * The load {@link #mGovernor} reacts to: the pictures waiting to be saved and the battery
+     * temperature, which is the one reading of how hot the device is on every API level.
+     */
+    private final PreviewGovernor.Signals mGovernorSignals = new PreviewGovernor.Signals() {
+
+        @Override
+        public int getQueueDepth() {
+            ImageSaveQueue queue = mSaveQueue;
+            return null == queue ? 0 : queue.getQueueDepth();
+        }
+
+        @Override
+        public int getTemperature() {
+            Activity activity = getActivity();
+            if (null == activity) {
+                return PreviewGovernor.NO_TEMPERATURE;
+            }
+            // The battery status is sticky, so it is read without registering a receiver.
+            Intent battery = activity.getApplicationContext().registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            return null == battery ? PreviewGovernor.NO_TEMPERATURE
+                    : battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE,
+                    PreviewGovernor.NO_TEMPERATURE);
+        }
+
+    };
+
+    /**
+     * Moves the preview to the level {@link #mGovernor} asked for.
+     */
+    private final Runnable mApplyPreviewLevel = new Runnable() {
+        @Override
+        public void run() {
+            applyPreviewLevel();
+        }
+    };
+
+    /**
+     * Reports a recording once it is on disk, or when it failed.
+     */
+    private final VideoRecorder.Callback mRecordingCallback = new VideoRecorder.Callback() {
+
+        @Override
+        public void onRecordingFinished(CaptureStorage.Output output, VideoEncoderStats stats) {
+            showToast("Saved: " + output);
+            Log.d(TAG, output + ": " + stats);
+        }
+
+        @Override
+        public void onRecordingFailed(CaptureStorage.Output output, Exception e) {
+            showToast("Recording failed");
+            Log.e(TAG, "Failed to record " + output, e);
+        }
+
+    };
+
+    /**
+     * Latencies of the stages of taking a picture
+     */
+    private final CaptureMetrics mMetrics = new CaptureMetrics();
+
+    /**
+     * Marks {@link CaptureMetrics.Stage#IMAGE_SAVED} as images reach the disk.
+     */
+    private final ImageSaver.Callback mImageSavedCallback = new ImageSaver.Callback() {
+        @Override
+        public void onImageSaved(CaptureStorage.Output output, long length) {
+            mark(CaptureMetrics.Stage.IMAGE_SAVED);
+            Thumbnailer thumbnailer = mThumbnailer;
+            if (null != thumbnailer) {
+                thumbnailer.onImageSaved(output, length);
+            }
+        }
+    };
+
+    /**
+     * Updates {@link #mMetricsView} for as long as it is shown.
+     */
+    private final Runnable mMetricsRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (null != mMetricsView && mMetricsView.getVisibility() == View.VISIBLE) {
+                StartupTrace startup = mStartupTrace;
+                VideoRecorder recorder = mRecorder;
+                PreviewGovernor governor = mGovernor;
+                mMetricsView.setText(mMetrics.toString() + mFrameIntervals
+                        + (null == governor ? "" : governor)
+                        + (null == startup ? "" : startup) + mAnalysisPipeline
+                        + (null == recorder ? "" : "\n" + recorder));
+                mMetricsView.postDelayed(this, METRICS_REFRESH_MS);
+            }
+        }
+    };
+
     /**
      * A {@link CameraCaptureSession } for camera preview.
      */
@@ -181,6 +541,28 @@ public class Camera2BasicFragment extends Fragment
      */
     private Size mPreviewSize;
 
+    /**
+     * The output {@link Surface} of the preview, made from the {@link SurfaceTexture} of
+     * {@link #mTextureView} before the camera is open.
+     */
+    private Surface mPreviewSurface;
+
+    /**
+     * The trace of the latest camera startup
+     */
+    private volatile StartupTrace mStartupTrace;
+
+    /**
+     * Number of steps that must finish before the preview session is created. See
+     * {@link #onStartupStepDone()}.
+     */
+    private final AtomicInteger mPendingStartupSteps = new AtomicInteger();
+
+    /**
+     * The values of the preview transformation, reused by {@link #configureTransform(int, int)}
+     */
+    private final float[] mTransformValues = new float[9];
+
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
      */
@@ -189,23 +571,26 @@ public class Camera2BasicFragment extends Fragment
         @Override
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
-            createCameraPreviewSession();
+            mCaptureStateMachine.reset(SystemClock.elapsedRealtimeNanos());
+            mPerformedState = CaptureStateMachine.State.PREVIEW;
+            markStartup(StartupTrace.Step.CAMERA_OPENED);
+            mCameraLifecycle.onOpened();
+            onStartupStepDone();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
+            mCameraLifecycle.onLost(new IllegalStateException("Camera disconnected"));
         }
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
             cameraDevice.close();
             mCameraDevice = null;
+            mCameraLifecycle.onLost(new IllegalStateException("Camera error " + error));
             Activity activity = getActivity();
             if (null != activity) {
                 activity.finish();
@@ -220,553 +605,1988 @@ public class Camera2BasicFragment extends Fragment
     private HandlerThread mBackgroundThread;
 
     /**
-     * A {@link Handler} for running tasks in the background.
+     * A {@link Handler} for running tasks in the background. The camera, its session and their
+     * outputs are only touched on its thread; see {@link #postCameraAction}.
      */
-    private Handler mBackgroundHandler;
+    private volatile Handler mBackgroundHandler;
 
     /**
-     * An {@link ImageReader} that handles still image capture.
+     * Saves images off {@link #mBackgroundThread}, so slow storage doesn't hold up capture results.
      */
-    private ImageReader mImageReader;
+    private volatile ImageSaveQueue mSaveQueue;
 
     /**
-     * This is the output file for our picture.
+     * Saves stills through {@link #mSaveQueue} and analyzes preview frames. Made along with the
+     * queue.
      */
-    private File mFile;
+    private volatile CapturePipeline mCapturePipeline;
 
     /**
-     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
-     * still image is ready to be saved.
+     * Records the metadata of every frame, or null while it is opened or if it couldn't be
      */
-    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
-            = new ImageReader.OnImageAvailableListener() {
+    private volatile CaptureJournal mJournal;
 
-        @Override
-        public void onImageAvailable(ImageReader reader) {
-            mBackgroundHandler.post(new ImageSaver(reader.acquireNextImage(), mFile));
-        }
+    /**
+     * Opens {@link #mJournal} on {@link #STORAGE_EXECUTOR}, or null once it has been waited for
+     */
+    private volatile Future<?> mJournalOpen;
 
-    };
+    /**
+     * Remembers the metadata of recent frames, written as XMP into the stills they belong to
+     */
+    private final CaptureMetadata mCaptureMetadata = new CaptureMetadata();
 
     /**
-     * {@link CaptureRequest.Builder} for the camera preview
+     * Gives the location written into stills, or null without the location permission
      */
-    private CaptureRequest.Builder mPreviewRequestBuilder;
+    private volatile LocationManager mLocationManager;
 
     /**
-     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     * An {@link ImageReader} that handles still image capture.
      */
-    private CaptureRequest mPreviewRequest;
+    private ImageReader mImageReader;
 
     /**
-     * The current state of camera state for taking pictures.
-     *
-     * @see #mCaptureCallback
+     * Decides where our pictures are saved.
      */
-    private int mState = STATE_PREVIEW;
+    private CaptureStorage mStorage;
 
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Caches a thumbnail of every saved JPEG, or null if the cache couldn't be opened
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private Thumbnailer mThumbnailer;
 
     /**
-     * Whether the current camera device supports Flash or not.
+     * The size of the YUV frames buffered for zero shutter lag capture.
      */
-    private boolean mFlashSupported;
+    private Size mZslSize;
 
     /**
-     * Orientation of the camera sensor
+     * An {@link ImageReader} that receives every preview frame at full resolution while zero
+     * shutter lag capture is enabled.
      */
-    private int mSensorOrientation;
+    private ImageReader mZslImageReader;
 
     /**
-     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     * The most recent frames from {@link #mZslImageReader}, paired with their capture results.
      */
-    private CameraCaptureSession.CaptureCallback mCaptureCallback
-            = new CameraCaptureSession.CaptureCallback() {
+    private final ZslRingBuffer<HeldImage> mZslBuffer = new ZslRingBuffer<>(ZSL_BUFFER_SIZE);
 
-        private void process(CaptureResult result) {
-            switch (mState) {
-                case STATE_PREVIEW: {
-                    // We have nothing to do when the camera preview is working normally.
-                    break;
-                }
-                case STATE_WAITING_LOCK: {
-                    Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-                    if (afState == null) {
-                        captureStillPicture();
-                    } else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-                            CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-                        // CONTROL_AE_STATE can be null on some devices
-                        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                        if (aeState == null ||
-                                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-                            mState = STATE_PICTURE_TAKEN;
-                            captureStillPicture();
-                        } else {
-                            runPrecaptureSequence();
-                        }
-                    }
-                    break;
-                }
-                case STATE_WAITING_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null ||
-                            aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-                            aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-                        mState = STATE_WAITING_NON_PRECAPTURE;
-                    }
-                    break;
-                }
-                case STATE_WAITING_NON_PRECAPTURE: {
-                    // CONTROL_AE_STATE can be null on some devices
-                    Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-                    if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-                        mState = STATE_PICTURE_TAKEN;
-                        captureStillPicture();
-                    }
-                    break;
-                }
-            }
-        }
+    /**
+     * Permits for zero shutter lag frames taken out of {@link #mZslBuffer} to be saved.
+     */
+    private final Semaphore mZslSaves = new Semaphore(ZSL_MAX_SAVES);
 
-        @Override
-        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
-                                        @NonNull CaptureRequest request,
-                                        @NonNull CaptureResult partialResult) {
-            process(partialResult);
-        }
+    /**
+     * Encodes YUV stills and zero shutter lag frames.
+     */
+    private final JpegEncoder mJpegEncoder = new JpegEncoder(SOFTWARE_JPEG_QUALITY,
+            JPEG_STRIP_COUNT, JPEG_ENCODER_EXECUTOR);
 
-        @Override
-        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-                                       @NonNull CaptureRequest request,
-                                       @NonNull TotalCaptureResult result) {
-            process(result);
+    /**
+     * The size of still images when the camera encodes them.
+     */
+    private Size mJpegSize;
+
+    /**
+     * The size of the thumbnail the camera embeds in its JPEGs, or null for none
+     */
+    private Size mThumbnailSize;
+
+    /**
+     * Whether still images are captured as YUV and encoded by {@link #mJpegEncoder} instead of
+     * the camera. Toggled by long pressing the burst button.
+     */
+    private volatile boolean mYuvCaptureEnabled;
+
+    /**
+     * The size of RAW frames, or null if the camera can't capture RAW.
+     */
+    private Size mRawSize;
+
+    /**
+     * An {@link ImageReader} for RAW frames, created once RAW capture is turned on.
+     */
+    private ImageReader mRawImageReader;
+
+    /**
+     * Whether single still captures also save the RAW frame as a DNG file. Toggled by the RAW
+     * button.
+     */
+    private volatile boolean mRawEnabled;
+
+    /**
+     * The characteristics of the camera, read when RAW capture is first turned on. DNG files
+     * take their color metadata from them.
+     */
+    private CameraCharacteristics mRawCharacteristics;
+
+    /**
+     * Writes DNG files on their own thread, so a RAW frame never holds up the JPEG taken with it.
+     */
+    private ImageSaveQueue mRawSaveQueue;
+
+    /**
+     * The JPEG orientation of the last still capture, for the DNG files and for YUV stills, which
+     * are encoded without rotation.
+     */
+    private int mStillOrientation;
+
+    /**
+     * RAW frames and capture results waiting for each other.
+     */
+    private final CapturePairer<HeldImage, CaptureResult> mRawPairer
+            = new CapturePairer<>(RAW_PENDING_COUNT);
+
+    /**
+     * Pairs RAW frames with their capture results.
+     */
+    private final ImageReader.OnImageAvailableListener mOnRawImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (null == image) {
+                return;
+            }
+            CaptureResult result = mRawPairer.addFrame(new HeldImage(image));
+            if (null != result) {
+                saveRaw(image, result);
+            }
+        }
+
+    };
+
+    /**
+     * Hands small YUV preview frames to the registered {@link FrameAnalyzer}s.
+     */
+    private final FrameAnalysisPipeline mAnalysisPipeline
+            = new FrameAnalysisPipeline(ANALYSIS_EXECUTOR);
+
+    private final LumaHistogramAnalyzer mLumaAnalyzer = new LumaHistogramAnalyzer();
+
+    private final SharpnessAnalyzer mSharpnessAnalyzer = new SharpnessAnalyzer();
+
+    /**
+     * The size of the frames analyzed, or null if the camera has no suitable YUV size.
+     */
+    private Size mAnalysisSize;
+
+    /**
+     * An {@link ImageReader} that receives every preview frame while there are analyzers.
+     */
+    private ImageReader mAnalysisImageReader;
+
+    /**
+     * Turned off for good if the session can't have the extra output.
+     */
+    private volatile boolean mAnalysisEnabled = true;
+
+    /**
+     * Hands the latest preview frame to {@link #mCapturePipeline} for analysis.
+     */
+    private final ImageReader.OnImageAvailableListener mOnAnalysisImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (null == image) {
+                return;
+            }
+            CapturePipeline pipeline = mCapturePipeline;
+            try {
+                if (null != pipeline) {
+                    pipeline.analyze(new ImageFrame(image));
+                }
+            } finally {
+                image.close();
+            }
+        }
+
+    };
+
+    /**
+     * Whether the shutter saves a frame from {@link #mZslBuffer} instead of running a new capture.
+     */
+    private volatile boolean mZslEnabled;
+
+    /**
+     * Feeds frames from {@link #mZslImageReader} into {@link #mZslBuffer}.
+     */
+    private final ImageReader.OnImageAvailableListener mOnZslImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireNextImage();
+            if (null != image) {
+                mZslBuffer.addFrame(new HeldImage(image));
+            }
+        }
+
+    };
+
+    /**
+     * Direct buffers used by {@link ImageSaver} for images that can't be written to disk as-is.
+     */
+    private final ByteBufferPool mStagingBufferPool
+            = new ByteBufferPool(STAGING_BUFFER_SIZE, STAGING_BUFFER_COUNT);
+
+    /**
+     * This a callback object for the {@link ImageReader}. "onImageAvailable" will be called when a
+     * still image is ready to be saved.
+     */
+    private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+            = new ImageReader.OnImageAvailableListener() {
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            mark(CaptureMetrics.Stage.IMAGE_AVAILABLE);
+            Image image = reader.acquireNextImage();
+            BurstStats burst = mBurst;
+            if (null != burst) {
+                burst.onImageAvailable();
+            }
+            MergedJpegSource night = mNightShot;
+            if (null != night && image.getFormat() == ImageFormat.YUV_420_888) {
+                if (night.addFrame(image)) {
+                    mNightShot = null;
+                    saveNightShot(night, image.getTimestamp());
+                }
+                return;
+            }
+            BestShotSelector<Image> bestShot = mBestShot;
+            if (null != bestShot && image.getFormat() == ImageFormat.YUV_420_888) {
+                Image.Plane luma = image.getPlanes()[0];
+                double score = mBurstScorer.score(luma.getBuffer(), image.getWidth(),
+                        image.getHeight(), luma.getRowStride(), luma.getPixelStride());
+                // Frames that won't be kept go back to the reader right away.
+                Image rejected = bestShot.offer(image, score);
+                if (null != rejected) {
+                    rejected.close();
+                }
+                if (null != burst && burst.isSettled()) {
+                    saveBestShots();
+                }
+                return;
+            }
+            saveImage(image, null == burst);
+        }
+
+    };
+
+    /**
+     * Keeps the best frames of a YUV burst while it is being captured, or null if no such burst
+     * is running.
+     */
+    private volatile BestShotSelector<Image> mBestShot;
+
+    /**
+     * Collects the frames of the night shot being captured, or null if none is.
+     */
+    private volatile MergedJpegSource mNightShot;
+
+    /**
+     * Whether a night shot is being captured, merged or saved. Its frames stay with the merger
+     * until it is saved, so the still reader has no room for another shot until then.
+     */
+    private final AtomicBoolean mNightShotPending = new AtomicBoolean();
+
+    /**
+     * Whether the shutter takes a night shot. It only does while YUV capture is on.
+     */
+    private volatile boolean mNightModeEnabled;
+
+    private final FrameMerger mFrameMerger = new FrameMerger(NIGHT_MERGE_POOL);
+
+    /**
+     * The exposure range of the sensor, or null until night mode is first turned on
+     */
+    private Range<Long> mExposureTimeRange;
+
+    private Range<Integer> mSensitivityRange;
+
+    /**
+     * The exposure time and sensitivity of the latest preview frame, which the frames of a night
+     * shot are exposed from
+     */
+    private long mMeteredExposureTimeNs;
+
+    private int mMeteredSensitivity;
+
+    /**
+     * Scores the frames offered to {@link #mBestShot}. It is only used on
+     * {@link #mBackgroundThread}.
+     */
+    private final BurstFrameScorer mBurstScorer = new BurstFrameScorer(BEST_SHOT_SCORING_WIDTH);
+
+    /**
+     * {@link CaptureRequest.Builder} for the camera preview
+     */
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+
+    /**
+     * {@link CaptureRequest} generated by {@link #mPreviewRequestBuilder}
+     */
+    private CaptureRequest mPreviewRequest;
+
+    /**
+     * The state of taking a picture. It is only accessed on {@link #mBackgroundThread}.
+     *
+     * @see #mCaptureCallback
+     */
+    private final CaptureStateMachine mCaptureStateMachine = new CaptureStateMachine();
+
+    /**
+     * The state of {@link #mCaptureStateMachine} when {@link #perform} last ran, to tell which
+     * stages of the capture were passed since.
+     */
+    private CaptureStateMachine.State mPerformedState = CaptureStateMachine.State.PREVIEW;
+
+    /**
+     * Gives {@link #mCaptureStateMachine} a chance to time out while no capture results arrive.
+     */
+    private final Runnable mCaptureTimeoutCheck = new Runnable() {
+        @Override
+        public void run() {
+            perform(mCaptureStateMachine.onTick(SystemClock.elapsedRealtimeNanos()));
+        }
+    };
+
+    /**
+     * Statistics of the burst being captured, or null if a single picture is being taken.
+     */
+    private volatile BurstStats mBurst;
+
+    /**
+     * Runs the closing of the camera for every {@link CameraLifecycle}, off the UI thread. The
+     * thread goes away when there is nothing to close.
+     */
+    private static final ThreadPoolExecutor CAMERA_CLOSE_EXECUTOR = new ThreadPoolExecutor(
+            0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    return new Thread(runnable, "CameraClose");
+                }
+            });
+
+    /**
+     * Runs the preview frame analyzers.
+     */
+    private static final ThreadPoolExecutor ANALYSIS_EXECUTOR = new ThreadPoolExecutor(
+            0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    return new Thread(runnable, "FrameAnalysis");
+                }
+            });
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Opens the camera on the UI thread and closes it on {@link #CAMERA_CLOSE_EXECUTOR}.
+     */
+    private final CameraLifecycle.Driver mCameraDriver = new CameraLifecycle.Driver() {
+
+        private final Runnable mOpen = new Runnable() {
+            @Override
+            public void run() {
+                if (null == getActivity() || null == mTextureView
+                        || !mTextureView.isAvailable()) {
+                    mCameraLifecycle.onOpenFailed(
+                            new IllegalStateException("The preview is gone"));
+                    return;
+                }
+                openCamera(mTextureView.getWidth(), mTextureView.getHeight());
+            }
+        };
+
+        @Override
+        public void open() {
+            // Reopening after a close is asked for on the closing thread.
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mOpen.run();
+            } else {
+                mMainHandler.post(mOpen);
+            }
+        }
+
+        @Override
+        public void close() {
+            // The camera is closed on the thread that receives its callbacks, so the two never
+            // interleave. Waiting for it here keeps the UI thread free.
+            Handler handler = mBackgroundHandler;
+            final CountDownLatch closed = new CountDownLatch(1);
+            Runnable close = new Runnable() {
+                @Override
+                public void run() {
+                    closeCamera();
+                    closed.countDown();
+                }
+            };
+            if (null == handler || !handler.post(close)) {
+                close.run();
+            }
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopBackgroundThread();
+        }
+
+    };
+
+    /**
+     * Whether the camera should be open, and whether it is
+     */
+    private final CameraLifecycle mCameraLifecycle
+            = new CameraLifecycle(mCameraDriver, CAMERA_CLOSE_EXECUTOR);
+
+    /**
+     * Whether the current camera device supports Flash or not.
+     */
+    private boolean mFlashSupported;
+
+    /**
+     * Orientation of the camera sensor
+     */
+    private int mSensorOrientation;
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that handles events related to JPEG capture.
+     */
+    private CameraCaptureSession.CaptureCallback mCaptureCallback
+            = new CameraCaptureSession.CaptureCallback() {
+
+        private void process(CaptureResult result) {
+            if (mCaptureStateMachine.getState() == CaptureStateMachine.State.PREVIEW) {
+                // We have nothing to do when the camera preview is working normally.
+                return;
+            }
+            // CONTROL_AF_STATE and CONTROL_AE_STATE can be null on some devices
+            Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+            Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+            perform(mCaptureStateMachine.onResult(
+                    afState == null ? CaptureStateMachine.UNKNOWN : afState,
+                    aeState == null ? CaptureStateMachine.UNKNOWN : aeState,
+                    SystemClock.elapsedRealtimeNanos()));
+        }
+
+        @Override
+        public void onCaptureProgressed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureResult partialResult) {
+            process(partialResult);
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            markStartup(StartupTrace.Step.FIRST_FRAME);
+            // While recording, every request made from mPreviewRequestBuilder targets the encoder.
+            VideoRecorder recorder = mRecorder;
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (null != timestamp) {
+                mFrameIntervals.onFrame(timestamp);
+                if (null != recorder) {
+                    recorder.onFrameCaptured(timestamp);
+                }
+                governPreview(timestamp, null == recorder);
+                recordMetadata(result, timestamp);
+            }
+            Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+            Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+            if (null != exposureTime && null != sensitivity) {
+                mMeteredExposureTimeNs = exposureTime;
+                mMeteredSensitivity = sensitivity;
+            }
+            if (mZslEnabled) {
+                addZslResult(result);
+            }
+            process(result);
+        }
+
+    };
+
+    /**
+     * Shows a {@link Toast} on the UI thread.
+     *
+     * @param text The message to show
+     */
+    private void showToast(final String text) {
+        final Activity activity = getActivity();
+        if (activity != null) {
+            activity.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+    }
+
+    public static Camera2BasicFragment newInstance() {
+        return new Camera2BasicFragment();
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // The fragment, and the camera session it owns, outlive configuration changes.
+        setRetainInstance(true);
+        mAnalysisPipeline.addAnalyzer("luma", mLumaAnalyzer);
+        mAnalysisPipeline.addAnalyzer("sharpness", mSharpnessAnalyzer);
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        return inflater.inflate(R.layout.fragment_camera2_basic, container, false);
+    }
+
+    @Override
+    public void onViewCreated(final View view, Bundle savedInstanceState) {
+        view.findViewById(R.id.picture).setOnClickListener(this);
+        view.findViewById(R.id.picture).setOnLongClickListener(this);
+        view.findViewById(R.id.burst).setOnClickListener(this);
+        view.findViewById(R.id.burst).setOnLongClickListener(this);
+        view.findViewById(R.id.raw).setOnClickListener(this);
+        view.findViewById(R.id.raw).setOnLongClickListener(this);
+        view.findViewById(R.id.info).setOnClickListener(this);
+        view.findViewById(R.id.info).setOnLongClickListener(this);
+        mMetricsView = (TextView) view.findViewById(R.id.metrics);
+        mRecordButton = (Button) view.findViewById(R.id.record);
+        mRecordButton.setOnClickListener(this);
+        mRecordButton.setText(null == mRecorder ? R.string.record : R.string.stop);
+        mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
+    }
+
+    @Override
+    public void onActivityCreated(Bundle savedInstanceState) {
+        super.onActivityCreated(savedInstanceState);
+        if (null == mStorage) {
+            mStorage = new CaptureStorage(getActivity().getExternalFilesDir(null), FALLOCATE);
+            mStorage.setCommitter(new FileCommitter(FileCommitter.Policy.GROUP,
+                    GROUP_COMMIT_FILES, GROUP_COMMIT_DELAY_MS));
+            final CaptureStorage storage = mStorage;
+            STORAGE_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    int deleted = storage.recover();
+                    if (deleted > 0) {
+                        Log.i(TAG, "Deleted " + deleted + " unfinished captures");
+                    }
+                }
+            });
+        }
+        if (null == mThumbnailer) {
+            try {
+                mThumbnailer = new Thumbnailer(new ThumbnailCache(
+                        new File(getActivity().getCacheDir(), "thumbnails"),
+                        THUMBNAIL_DISK_BYTES, THUMBNAIL_MEMORY_BYTES));
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to open the thumbnail cache", e);
+            }
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mRetainingSession = false;
+
+        // After a configuration change, the camera is still open and the previous view left its
+        // SurfaceTexture behind for this one.
+        // When the screen is turned off and turned back on, the SurfaceTexture is already
+        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
+        // a camera and start preview from here (otherwise, we wait until the surface is ready in
+        // the SurfaceTextureListener).
+        if (null != mRetainedTexture) {
+            reattachPreview();
+        } else if (mTextureView.isAvailable()) {
+            mCameraLifecycle.requestOpen();
+        } else {
+            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        }
+    }
+
+    @Override
+    public void onPause() {
+        // A rotation keeps the camera and its session; only the views are recreated.
+        mRetainingSession = getActivity().isChangingConfigurations();
+        if (!mRetainingSession) {
+            // The camera is closed in the background; resuming before it is done opens it again.
+            mCameraLifecycle.requestClose();
+        }
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroy() {
+        mRetainingSession = false;
+        mCameraLifecycle.requestClose();
+        if (null != mRetainedTexture) {
+            mRetainedTexture.release();
+            mRetainedTexture = null;
+        }
+        if (null != mThumbnailer) {
+            mThumbnailer.shutdown();
+            mThumbnailer = null;
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Hands the {@link SurfaceTexture} kept across a configuration change to the new
+     * {@link #mTextureView}. The capture session keeps its output surface, so only the aspect ratio
+     * and the transform of the view are updated.
+     */
+    private void reattachPreview() {
+        mTextureView.setSurfaceTexture(mRetainedTexture);
+        mRetainedTexture = null;
+        mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+        applyPreviewAspectRatio();
+        mTextureView.addOnLayoutChangeListener(mRetainedLayoutListener);
+        mCameraLifecycle.requestOpen();
+    }
+
+    private void requestCameraPermission() {
+        if (FragmentCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.CAMERA)) {
+            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        } else {
+            FragmentCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA},
+                    REQUEST_CAMERA_PERMISSION);
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
+                                           @NonNull int[] grantResults) {
+        if (requestCode == REQUEST_CAMERA_PERMISSION) {
+            if (grantResults.length != 1 || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
+                ErrorDialog.newInstance(getString(R.string.request_permission))
+                        .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+            }
+        } else {
+            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        }
+    }
+
+    /**
+     * Picks the camera to open.
+     *
+     * @return The capabilities of the camera, or null if there is no usable one
+     */
+    private CameraCapabilityIndex.Camera chooseCamera() {
+        try {
+            // The capabilities are read from a file saved on an earlier start rather than queried
+            // from the camera service every time the camera is opened.
+            CameraCapabilityIndex index = CameraCapabilityIndex.get(getActivity());
+            for (CameraCapabilityIndex.Camera camera : index.getCameras()) {
+                // We don't use a front facing camera in this sample.
+                if (camera.facing == CameraCharacteristics.LENS_FACING_FRONT) {
+                    continue;
+                }
+                if (camera.getOutputSizes(ImageFormat.JPEG).length == 0) {
+                    continue;
+                }
+                return camera;
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        } catch (NullPointerException e) {
+            // Currently an NPE is thrown when the Camera2API is used but not supported on the
+            // device this code runs.
+            ErrorDialog.newInstance(getString(R.string.camera_error))
+                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+        }
+        return null;
+    }
+
+    /**
+     * Sets up member variables related to camera, and allocates the outputs of the session.
+     *
+     * @param camera The camera being opened
+     * @param width  The width of available size for camera preview
+     * @param height The height of available size for camera preview
+     */
+    private void setUpCameraOutputs(CameraCapabilityIndex.Camera camera, int width, int height) {
+        Activity activity = getActivity();
+
+        // For still image captures, we use the largest available size.
+        Size largest = Collections.max(Arrays.asList(camera.getOutputSizes(ImageFormat.JPEG)),
+                new CompareSizesByArea());
+        mJpegSize = largest;
+        int thumbnail = camera.chooseThumbnailSize(largest.getWidth(), largest.getHeight(),
+                Thumbnailer.TARGET_WIDTH);
+        mThumbnailSize = thumbnail < 0 ? null : new Size(camera.thumbnailSizes[thumbnail],
+                camera.thumbnailSizes[thumbnail + 1]);
+
+        // Zero shutter lag frames and YUV stills are the largest YUV frames with the same aspect
+        // ratio.
+        mZslSize = PreviewGeometry.chooseLargestWithAspectRatio(
+                camera.getOutputSizes(ImageFormat.YUV_420_888), largest);
+        if (null == mZslSize) {
+            mYuvCaptureEnabled = false;
+        }
+        createStillImageReader();
+
+        // RAW frames come at the full size of the sensor.
+        Size[] rawSizes = camera.getOutputSizes(ImageFormat.RAW_SENSOR);
+        mRawSize = rawSizes.length == 0 ? null
+                : Collections.max(Arrays.asList(rawSizes), new CompareSizesByArea());
+        mRawCharacteristics = null;
+        mExposureTimeRange = null;
+        mSensitivityRange = null;
+        if (null == mRawSize) {
+            mRawEnabled = false;
+        }
+
+        // Videos are recorded next to the preview, so they are held to the same bandwidth.
+        Size[] videoSizes = camera.getOutputSizes(CameraCapabilityIndex.FORMAT_SURFACE_TEXTURE);
+        long[] videoFrameDurations = new long[videoSizes.length];
+        for (int i = 0; i < videoSizes.length; i++) {
+            videoFrameDurations[i] = camera.getMinFrameDurationNs(
+                    CameraCapabilityIndex.FORMAT_SURFACE_TEXTURE, videoSizes[i].getWidth(),
+                    videoSizes[i].getHeight());
+        }
+        mVideoSize = PreviewGeometry.chooseVideoSize(videoSizes, videoFrameDurations,
+                MAX_PREVIEW_WIDTH, MAX_PREVIEW_HEIGHT, VIDEO_FRAME_RATE, largest);
+
+        // Analyzers get small frames, so copying them out costs little.
+        mAnalysisSize = PreviewGeometry.chooseOptimalSize(
+                camera.getOutputSizes(ImageFormat.YUV_420_888), ANALYSIS_WIDTH, ANALYSIS_HEIGHT,
+                ANALYSIS_WIDTH, ANALYSIS_HEIGHT, largest);
+
+        // Find out if we need to swap dimension to get the preview size relative to sensor
+        // coordinate.
+        int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        mSensorOrientation = camera.sensorOrientation;
+        boolean swappedDimensions = false;
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                if (mSensorOrientation == 90 || mSensorOrientation == 270) {
+                    swappedDimensions = true;
+                }
+                break;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                if (mSensorOrientation == 0 || mSensorOrientation == 180) {
+                    swappedDimensions = true;
+                }
+                break;
+            default:
+                Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+        }
+
+        Point displaySize = new Point();
+        activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+        int rotatedPreviewWidth = width;
+        int rotatedPreviewHeight = height;
+        int maxPreviewWidth = displaySize.x;
+        int maxPreviewHeight = displaySize.y;
+
+        if (swappedDimensions) {
+            rotatedPreviewWidth = height;
+            rotatedPreviewHeight = width;
+            maxPreviewWidth = displaySize.y;
+            maxPreviewHeight = displaySize.x;
+        }
+
+        if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
+            maxPreviewWidth = MAX_PREVIEW_WIDTH;
+        }
+
+        if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
+            maxPreviewHeight = MAX_PREVIEW_HEIGHT;
+        }
+
+        // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+        // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+        // garbage capture data.
+        Size[] previewSizes = camera.getOutputSizes(CameraCapabilityIndex.FORMAT_SURFACE_TEXTURE);
+        mPreviewSize = PreviewGeometry.chooseOptimalSize(previewSizes, rotatedPreviewWidth,
+                rotatedPreviewHeight, maxPreviewWidth, maxPreviewHeight, largest);
+        if (null == mPreviewSize) {
+            Log.e(TAG, "Couldn't find any suitable preview size");
+            mPreviewSize = previewSizes[0];
+        }
+        mGovernor = createGovernor(camera, previewSizes);
+
+        applyPreviewAspectRatio();
+
+        // Check if the flash is supported.
+        mFlashSupported = camera.flashSupported;
+
+        // The preview surface is made now rather than once the camera is open.
+        SurfaceTexture texture = mTextureView.getSurfaceTexture();
+        texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        mPreviewSurface = new Surface(texture);
+    }
+
+    /**
+     * Appends the metadata of a frame to {@link #mJournal}, and keeps it in
+     * {@link #mCaptureMetadata} for the still it may belong to.
+     */
+    private void recordMetadata(CaptureResult result, long timestamp) {
+        Long exposureTime = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+        Integer sensitivity = result.get(CaptureResult.SENSOR_SENSITIVITY);
+        Float focusDistance = result.get(CaptureResult.LENS_FOCUS_DISTANCE);
+        mCaptureMetadata.record(timestamp, result.getFrameNumber(),
+                null == exposureTime ? 0 : exposureTime,
+                null == sensitivity ? 0 : sensitivity,
+                null == focusDistance ? Float.NaN : focusDistance);
+        CaptureJournal journal = mJournal;
+        if (null == journal) {
+            return;
+        }
+        Long frameDuration = result.get(CaptureResult.SENSOR_FRAME_DURATION);
+        journal.record(timestamp, result.getFrameNumber(),
+                null == exposureTime ? 0 : exposureTime,
+                null == frameDuration ? 0 : frameDuration,
+                null == sensitivity ? 0 : sensitivity,
+                null == focusDistance ? Float.NaN : focusDistance,
+                stateOf(result, CaptureResult.CONTROL_AF_STATE),
+                stateOf(result, CaptureResult.CONTROL_AE_STATE),
+                stateOf(result, CaptureResult.CONTROL_AWB_STATE),
+                stateOf(result, CaptureResult.LENS_STATE));
+    }
+
+    private static int stateOf(CaptureResult result, CaptureResult.Key<Integer> key) {
+        Integer state = result.get(key);
+        return null == state ? CaptureStateMachine.UNKNOWN : state;
+    }
+
+    /**
+     * Creates the {@link PreviewGovernor} for the preview chosen by {@link #setUpCameraOutputs}.
+     * It may step down to smaller sizes of the same aspect ratio, and to a lower frame rate.
+     */
+    private PreviewGovernor createGovernor(CameraCapabilityIndex.Camera camera,
+                                           Size[] previewSizes) {
+        List<Size> sizes = new ArrayList<>();
+        for (Size size : previewSizes) {
+            if (size.getWidth() <= mPreviewSize.getWidth()
+                    && size.getHeight() <= mPreviewSize.getHeight()
+                    && (long) size.getWidth() * mPreviewSize.getHeight()
+                    == (long) size.getHeight() * mPreviewSize.getWidth()) {
+                sizes.add(size);
+            }
+        }
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).getWidth();
+            heights[i] = sizes.get(i).getHeight();
+        }
+        return new PreviewGovernor(PreviewGovernor.buildLadder(widths, heights, camera.fpsRanges),
+                mGovernorSignals);
+    }
+
+    /**
+     * Feeds a preview frame to {@link #mGovernor}. Only the plain preview is governed; while a
+     * capture or a recording runs, the frames are not counted.
+     *
+     * @param timestamp The sensor timestamp of the frame
+     * @param governed  Whether the frame belongs to a preview the governor may change
+     */
+    private void governPreview(long timestamp, boolean governed) {
+        PreviewGovernor governor = mGovernor;
+        if (null == governor) {
+            return;
+        }
+        if (!governed
+                || mCaptureStateMachine.getState() != CaptureStateMachine.State.PREVIEW) {
+            governor.restart();
+        } else if (governor.onFrame(timestamp)) {
+            // The session is rebuilt outside of the capture callback, like when the user changes
+            // a mode.
+            mBackgroundHandler.post(mApplyPreviewLevel);
+        }
+    }
+
+    /**
+     * Moves the preview to the level of {@link #mGovernor}. A new frame rate only replaces the
+     * repeating request, while a new size rebuilds the session around a resized preview surface.
+     * The aspect ratio stays the same, so the transform of {@link #mTextureView} does not change.
+     */
+    private void applyPreviewLevel() {
+        PreviewGovernor governor = mGovernor;
+        if (null == governor || null == mCameraDevice || null == mCaptureSession
+                || null != mRecorder
+                || mCaptureStateMachine.getState() != CaptureStateMachine.State.PREVIEW) {
+            return;
+        }
+        PreviewGovernor.Level level = governor.getLevel();
+        Log.i(TAG, "Preview level " + level);
+        try {
+            if (level.width == mPreviewSize.getWidth()
+                    && level.height == mPreviewSize.getHeight()) {
+                setPreviewFrameRate(mPreviewRequestBuilder);
+                mPreviewRequest = mPreviewRequestBuilder.build();
+                mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
+                        mBackgroundHandler);
+                return;
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            return;
+        }
+        mCaptureSession.close();
+        mCaptureSession = null;
+        mPreviewSize = new Size(level.width, level.height);
+        SurfaceTexture texture = mTextureView.getSurfaceTexture();
+        texture.setDefaultBufferSize(level.width, level.height);
+        mPreviewSurface.release();
+        mPreviewSurface = new Surface(texture);
+        createCameraPreviewSession();
+    }
+
+    /**
+     * Sets the target frame rate range of the current level of {@link #mGovernor}, if it has one.
+     */
+    private void setPreviewFrameRate(CaptureRequest.Builder builder) {
+        PreviewGovernor governor = mGovernor;
+        PreviewGovernor.Level level = null == governor ? null : governor.getLevel();
+        if (null != level && level.maxFps > 0) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                    Range.create(level.minFps, level.maxFps));
+        }
+    }
+
+    /**
+     * Opens the back camera and starts the preview.
+     *
+     * The camera is asked to open as soon as it is known which one to use. The outputs of the
+     * session are then set up while the camera service opens the device, and the session is
+     * created once both are done.
+     */
+    private void openCamera(int width, int height) {
+        if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
+                != PackageManager.PERMISSION_GRANTED) {
+            requestCameraPermission();
+            mCameraLifecycle.onOpenFailed(new SecurityException("No camera permission"));
+            return;
+        }
+        mStartupTrace = StartupTrace.begin(SystemClock.elapsedRealtimeNanos());
+        CameraCapabilityIndex.Camera camera = chooseCamera();
+        if (null == camera) {
+            mCameraLifecycle.onOpenFailed(new IllegalStateException("No usable camera"));
+            return;
+        }
+        startBackgroundThread();
+        mCameraId = camera.id;
+        markStartup(StartupTrace.Step.CAMERA_CHOSEN);
+        mPendingStartupSteps.set(2);
+        Activity activity = getActivity();
+        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+            markStartup(StartupTrace.Step.OPEN_REQUESTED);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            mCameraLifecycle.onOpenFailed(e);
+            return;
+        }
+        setUpCameraOutputs(camera, width, height);
+        configureTransform(width, height);
+        markStartup(StartupTrace.Step.OUTPUTS_READY);
+        onStartupStepDone();
+    }
+
+    /**
+     * Called once the outputs are set up and once the camera is open, in either order. The
+     * preview session is created after the second call.
+     */
+    private void onStartupStepDone() {
+        if (mPendingStartupSteps.decrementAndGet() == 0) {
+            mBackgroundHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (null != mCameraDevice) {
+                        createCameraPreviewSession();
+                    }
+                }
+            });
+        }
+    }
+
+    private void markStartup(StartupTrace.Step step) {
+        StartupTrace trace = mStartupTrace;
+        if (null != trace && trace.mark(step, SystemClock.elapsedRealtimeNanos())
+                && step == StartupTrace.Step.FIRST_FRAME) {
+            Log.i(TAG, trace.toString());
+        }
+    }
+
+    /**
+     * Returns the pipeline that preview frames are analyzed by. Analyzers added to it take effect
+     * with the next capture session.
+     */
+    public FrameAnalysisPipeline getAnalysisPipeline() {
+        return mAnalysisPipeline;
+    }
+
+    /**
+     * Returns the trace of the latest camera startup, or null if the camera hasn't been opened.
+     */
+    public StartupTrace getStartupTrace() {
+        return mStartupTrace;
+    }
+
+    /**
+     * Closes the current {@link CameraDevice} and releases its outputs. It runs on
+     * {@link #mBackgroundThread}, called by {@link #mCameraDriver}.
+     */
+    private void closeCamera() {
+        if (null != mCaptureSession) {
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (null != mCameraDevice) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        // The camera no longer renders into the encoder, so the recording can be wrapped up.
+        VideoRecorder recorder = mRecorder;
+        if (null != recorder) {
+            mRecorder = null;
+            recorder.stop();
+            try {
+                if (!recorder.awaitTermination(VIDEO_STOP_TIMEOUT_MS)) {
+                    Log.w(TAG, "Timed out saving the recording: " + recorder);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            updateRecordButton();
+        }
+        // The queue holds images acquired from the reader, so let it drain before closing it.
+        if (null != mSaveQueue) {
+            mSaveQueue.shutdown();
+            try {
+                if (!mSaveQueue.awaitTermination(SAVE_DRAIN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out saving images: " + mSaveQueue);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mSaveQueue = null;
+            mCapturePipeline = null;
+        }
+        if (null != mRawSaveQueue) {
+            mRawSaveQueue.shutdown();
+            try {
+                if (!mRawSaveQueue.awaitTermination(SAVE_DRAIN_TIMEOUT_MS,
+                        TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Timed out saving RAW images: " + mRawSaveQueue);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mRawSaveQueue = null;
+        }
+        // Everything is saved, so the last group doesn't have to wait for its delay.
+        mStorage.getCommitter().flush();
+        // The camera is closed, so no more results are coming.
+        Future<?> journalOpen = mJournalOpen;
+        if (null != journalOpen) {
+            mJournalOpen = null;
+            try {
+                journalOpen.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Failed to open the capture journal", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        CaptureJournal journal = mJournal;
+        if (null != journal) {
+            mJournal = null;
+            journal.close();
+        }
+        mRawPairer.clear();
+        if (null != mRawImageReader) {
+            mRawImageReader.close();
+            mRawImageReader = null;
+        }
+        if (null != mAnalysisImageReader) {
+            mAnalysisImageReader.close();
+            mAnalysisImageReader = null;
+        }
+        mAnalysisPipeline.clear();
+        mStorage.releaseReservations();
+        discardBestShots();
+        MergedJpegSource night = mNightShot;
+        if (null != night) {
+            mNightShot = null;
+            night.abandon();
+        }
+        if (null != mImageReader) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        mZslBuffer.clear();
+        if (null != mZslImageReader) {
+            mZslImageReader.close();
+            mZslImageReader = null;
+        }
+        if (null != mPreviewSurface) {
+            mPreviewSurface.release();
+            mPreviewSurface = null;
+        }
+    }
+
+    /**
+     * Encodes and saves a still image on {@link #mSaveQueue}, which closes it.
+     *
+     * @param announce Whether to tell the user where the image is saved
+     */
+    private void saveImage(Image image, boolean announce) {
+        CaptureStorage.Output output = mCapturePipeline.save(new ImageFrame(image),
+                mStillOrientation);
+        if (null == output) {
+            Log.w(TAG, "Dropped image: " + mSaveQueue);
+        } else if (announce) {
+            showToast("Saved: " + output);
+            Log.d(TAG, output.toString());
+        }
+    }
+
+    /**
+     * Queues the frames of a night shot to be merged and saved as a single JPEG.
+     */
+    private void saveNightShot(final MergedJpegSource night, long timestampNs) {
+        CaptureStorage.Output output;
+        try {
+            output = mStorage.newOutput(timestampNs, "jpg");
+        } catch (IOException e) {
+            e.printStackTrace();
+            night.close();
+            return;
+        }
+        showToast("Saved: " + output);
+        ImageSaver saver = new ImageSaver(night, output, mStagingBufferPool);
+        saver.setCallback(mImageSavedCallback);
+        // The merged frame is encoded without rotation, and its thumbnail along with it.
+        final int orientation = mStillOrientation;
+        saver.setSegments(new ImageSaver.Segments() {
+            @Override
+            public ByteBuffer[] get() {
+                return new ByteBuffer[]{JpegSplicer.exifSegment(orientation,
+                        night.getThumbnail())};
+            }
+        });
+        if (!mSaveQueue.submit(saver)) {
+            Log.w(TAG, "Dropped night shot: " + mSaveQueue);
+        }
+    }
+
+    /**
+     * Saves the frames kept by {@link #mBestShot}, best first, and ends the selection. Called on
+     * {@link #mBackgroundThread} once no more frames of the burst are coming.
+     */
+    private void saveBestShots() {
+        BestShotSelector<Image> bestShot = mBestShot;
+        if (null == bestShot) {
+            return;
+        }
+        mBestShot = null;
+        long offered = bestShot.getOfferedCount();
+        List<BestShotSelector.Candidate<Image>> shots = bestShot.drain();
+        mBurstScorer.reset();
+        Log.d(TAG, "Saving the best " + shots.size() + " of " + offered + " burst frames");
+        for (BestShotSelector.Candidate<Image> shot : shots) {
+            saveImage(shot.getFrame(), false);
+        }
+    }
+
+    /**
+     * Releases the frames kept by {@link #mBestShot} without saving them.
+     */
+    private void discardBestShots() {
+        BestShotSelector<Image> bestShot = mBestShot;
+        if (null == bestShot) {
+            return;
+        }
+        mBestShot = null;
+        for (BestShotSelector.Candidate<Image> shot : bestShot.drain()) {
+            shot.getFrame().close();
+        }
+    }
+
+    /**
+     * Creates {@link #mImageReader} for JPEG or YUV stills, as {@link #mYuvCaptureEnabled} says.
+     * The reader holds enough images for a whole burst while they are being saved.
+     */
+    private void createStillImageReader() {
+        if (null != mImageReader) {
+            mImageReader.close();
+        }
+        Size size = mYuvCaptureEnabled ? mZslSize : mJpegSize;
+        mImageReader = ImageReader.newInstance(size.getWidth(), size.getHeight(),
+                mYuvCaptureEnabled ? ImageFormat.YUV_420_888 : ImageFormat.JPEG,
+                /*maxImages*/BURST_SIZE);
+        mImageReader.setOnImageAvailableListener(mOnImageAvailableListener, mBackgroundHandler);
+    }
+
+    private static ThreadPoolExecutor newExecutor(final String name, int threadCount) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount,
+                1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(@NonNull Runnable runnable) {
+                        return new Thread(runnable, name + "-" + mCount.incrementAndGet());
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Starts a background thread and its {@link Handler}.
+     */
+    private void startBackgroundThread() {
+        mBackgroundThread = new HandlerThread("CameraBackground");
+        mBackgroundThread.start();
+        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+        // Images are submitted on the camera thread, which must never wait for a save to finish.
+        mSaveQueue = new ImageSaveQueue(SAVE_WORKER_COUNT, SAVE_QUEUE_CAPACITY,
+                ImageSaveQueue.Backpressure.FAIL_FAST);
+        mCapturePipeline = new CapturePipeline(mStorage, mSaveQueue, mJpegEncoder,
+                mStagingBufferPool, mAnalysisPipeline);
+        mCapturePipeline.setCallback(mImageSavedCallback);
+        mCapturePipeline.setMetadata(mCaptureMetadata);
+        mCaptureMetadata.setOperatorId(getActivity().getIntent().getStringExtra(EXTRA_OPERATOR_ID));
+        final Context context = getActivity().getApplicationContext();
+        // The location is only used if the user granted it; it is not worth asking for.
+        mLocationManager = ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                ? (LocationManager) context.getSystemService(Context.LOCATION_SERVICE) : null;
+        // Frames are not journaled until the file is mapped, which takes disk access.
+        mJournalOpen = STORAGE_EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mJournal = new CaptureJournal(new File(context.getFilesDir(), "journal"),
+                            JOURNAL_FILE_BYTES, JOURNAL_FILE_COUNT);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to open the capture journal", e);
+                }
+            }
+        });
+        mRawSaveQueue = new ImageSaveQueue("DngSaver", 1, RAW_QUEUE_CAPACITY,
+                ImageSaveQueue.Backpressure.FAIL_FAST);
+    }
+
+    /**
+     * Stops the background thread and its {@link Handler}.
+     */
+    private void stopBackgroundThread() {
+        if (null == mBackgroundThread) {
+            return;
+        }
+        mBackgroundThread.quitSafely();
+        try {
+            mBackgroundThread.join();
+            mBackgroundThread = null;
+            mBackgroundHandler = null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Creates a new {@link CameraCaptureSession} for camera preview.
+     */
+    private void createCameraPreviewSession() {
+        try {
+            // This is the output Surface we need to start preview, made by setUpCameraOutputs.
+            Surface surface = mPreviewSurface;
+
+            // We set up a CaptureRequest.Builder with the output Surface.
+            final VideoRecorder recorder = mRecorder;
+            mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(null == recorder
+                    ? CameraDevice.TEMPLATE_PREVIEW : CameraDevice.TEMPLATE_RECORD);
+            mPreviewRequestBuilder.addTarget(surface);
+
+            List<Surface> outputs = new ArrayList<>(Arrays.asList(surface,
+                    mImageReader.getSurface()));
+            if (null != recorder) {
+                // The camera renders into the encoder without any copy on the way.
+                outputs.add(recorder.getInputSurface());
+                mPreviewRequestBuilder.addTarget(recorder.getInputSurface());
+            }
+            final boolean zsl = mZslEnabled;
+            if (zsl) {
+                // Every preview frame also goes to the zero shutter lag buffer.
+                if (null == mZslImageReader) {
+                    mZslImageReader = ImageReader.newInstance(mZslSize.getWidth(),
+                            mZslSize.getHeight(), ImageFormat.YUV_420_888,
+                            /*maxImages*/ZSL_BUFFER_SIZE + ZSL_MAX_SAVES + 1);
+                    mZslImageReader.setOnImageAvailableListener(
+                            mOnZslImageAvailableListener, mBackgroundHandler);
+                }
+                outputs.add(mZslImageReader.getSurface());
+                mPreviewRequestBuilder.addTarget(mZslImageReader.getSurface());
+            }
+            final boolean analysis = mAnalysisEnabled && null != mAnalysisSize
+                    && mAnalysisPipeline.hasAnalyzers();
+            if (analysis) {
+                if (null == mAnalysisImageReader) {
+                    mAnalysisImageReader = ImageReader.newInstance(mAnalysisSize.getWidth(),
+                            mAnalysisSize.getHeight(), ImageFormat.YUV_420_888, /*maxImages*/2);
+                    mAnalysisImageReader.setOnImageAvailableListener(
+                            mOnAnalysisImageAvailableListener, mBackgroundHandler);
+                }
+                outputs.add(mAnalysisImageReader.getSurface());
+                mPreviewRequestBuilder.addTarget(mAnalysisImageReader.getSurface());
+            }
+            final boolean raw = mRawEnabled;
+            if (raw) {
+                if (null == mRawImageReader) {
+                    mRawImageReader = ImageReader.newInstance(mRawSize.getWidth(),
+                            mRawSize.getHeight(), ImageFormat.RAW_SENSOR,
+                            /*maxImages*/RAW_QUEUE_CAPACITY + 1 + RAW_PENDING_COUNT);
+                    mRawImageReader.setOnImageAvailableListener(
+                            mOnRawImageAvailableListener, mBackgroundHandler);
+                }
+                outputs.add(mRawImageReader.getSurface());
+            }
+
+            // Here, we create a CameraCaptureSession for camera preview.
+            mCameraDevice.createCaptureSession(outputs,
+                    new CameraCaptureSession.StateCallback() {
+
+                        @Override
+                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            // The camera is already closed
+                            if (null == mCameraDevice) {
+                                return;
+                            }
+
+                            // When the session is ready, we start displaying the preview.
+                            mCaptureSession = cameraCaptureSession;
+                            mFrameIntervals.restart();
+                            PreviewGovernor governor = mGovernor;
+                            if (null != governor) {
+                                governor.restart();
+                            }
+                            try {
+                                // Auto focus should be continuous for camera preview.
+                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                                // Flash is automatically enabled when necessary.
+                                setAutoFlash(mPreviewRequestBuilder);
+                                // Videos keep the frame rate of the template.
+                                if (null == recorder) {
+                                    setPreviewFrameRate(mPreviewRequestBuilder);
+                                }
+
+                                // Finally, we start displaying the camera preview.
+                                mPreviewRequest = mPreviewRequestBuilder.build();
+                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                        mCaptureCallback, mBackgroundHandler);
+                                markStartup(StartupTrace.Step.SESSION_CONFIGURED);
+                            } catch (CameraAccessException e) {
+                                e.printStackTrace();
+                            }
+                        }
+
+                        @Override
+                        public void onConfigureFailed(
+                                @NonNull CameraCaptureSession cameraCaptureSession) {
+                            // Frame analysis is given up first, so the modes picked by the user
+                            // are kept where possible.
+                            if (analysis) {
+                                Log.w(TAG, "Frame analysis is not supported with this session");
+                                mAnalysisEnabled = false;
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            if (zsl) {
+                                // Not every device can stream full resolution YUV next to JPEG.
+                                showToast("Zero shutter lag is not supported");
+                                mZslEnabled = false;
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            if (raw) {
+                                showToast("RAW is not supported with this configuration");
+                                mRawEnabled = false;
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            if (null != recorder && mRecorder == recorder) {
+                                showToast("Recording is not supported with this configuration");
+                                mRecorder = null;
+                                recorder.stop();
+                                updateRecordButton();
+                                createCameraPreviewSession();
+                                return;
+                            }
+                            showToast("Failed");
+                        }
+
+                        @Override
+                        public void onClosed(@NonNull CameraCaptureSession cameraCaptureSession) {
+                            // Once a session that rendered into a stopped recording is closed,
+                            // no more frames reach the encoder and the stream can end. Sessions
+                            // rebuilt while still recording leave the recorder running.
+                            if (null != recorder && mRecorder != recorder) {
+                                recorder.stop();
+                            }
+                        }
+                    }, null
+            );
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
         }
+    }
 
-    };
+    /**
+     * Fits the aspect ratio of `mTextureView` to the size of preview we picked.
+     */
+    private void applyPreviewAspectRatio() {
+        if (null == mPreviewSize) {
+            return;
+        }
+        int orientation = getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
+    }
 
     /**
-     * Shows a {@link Toast} on the UI thread.
+     * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
+     * This method should be called after the camera preview size is determined in
+     * setUpCameraOutputs and also the size of `mTextureView` is fixed.
      *
-     * @param text The message to show
+     * @param viewWidth  The width of `mTextureView`
+     * @param viewHeight The height of `mTextureView`
      */
-    private void showToast(final String text) {
-        final Activity activity = getActivity();
-        if (activity != null) {
-            activity.runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Toast.makeText(activity, text, Toast.LENGTH_SHORT).show();
-                }
-            });
+    private void configureTransform(int viewWidth, int viewHeight) {
+        Activity activity = getActivity();
+        if (null == mTextureView || null == mPreviewSize || null == activity) {
+            return;
         }
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        PreviewGeometry.getTransform(viewWidth, viewHeight, mPreviewSize.getWidth(),
+                mPreviewSize.getHeight(), rotation, mTransformValues);
+        Matrix matrix = new Matrix();
+        matrix.setValues(mTransformValues);
+        mTextureView.setTransform(matrix);
     }
 
     /**
-     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
-     * is at least as large as the respective texture view size, and that is at most as large as the
-     * respective max size, and whose aspect ratio matches with the specified value. If such size
-     * doesn't exist, choose the largest one that is at most as large as the respective max size,
-     * and whose aspect ratio matches with the specified value.
-     *
-     * @param choices           The list of sizes that the camera supports for the intended output
-     *                          class
-     * @param textureViewWidth  The width of the texture view relative to sensor coordinate
-     * @param textureViewHeight The height of the texture view relative to sensor coordinate
-     * @param maxWidth          The maximum width that can be chosen
-     * @param maxHeight         The maximum height that can be chosen
-     * @param aspectRatio       The aspect ratio
-     * @return The optimal {@code Size}, or an arbitrary one if none were big enough
-     */
-    private static Size chooseOptimalSize(Size[] choices, int textureViewWidth,
-            int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth &&
-                    option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
+     * Sets the location written into the next stills to the last known one, if it is recent.
+     */
+    private void updateLocation() {
+        LocationManager locationManager = mLocationManager;
+        Location location = null;
+        if (null != locationManager) {
+            try {
+                location = locationManager.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+            } catch (SecurityException e) {
+                // The permission was revoked while the camera was open.
+                mLocationManager = null;
             }
         }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
+        if (null != location && SystemClock.elapsedRealtimeNanos()
+                - location.getElapsedRealtimeNanos() < LOCATION_MAX_AGE_MS * 1000000L) {
+            mCaptureMetadata.setLocation(location.getLatitude(), location.getLongitude());
         } else {
-            Log.e(TAG, "Couldn't find any suitable preview size");
-            return choices[0];
+            mCaptureMetadata.clearLocation();
         }
     }
 
-    public static Camera2BasicFragment newInstance() {
-        return new Camera2BasicFragment();
+    /**
+     * Initiate a still image capture.
+     */
+    private void takePicture() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        if (null != mRecorder) {
+            takeVideoSnapshot();
+            return;
+        }
+        if (mNightShotPending.get()) {
+            showToast("Still saving the night shot");
+            return;
+        }
+        mBurst = null;
+        updateLocation();
+        if (mZslEnabled && !isNightShot() && takeZslPicture()) {
+            return;
+        }
+        startCaptureSequence();
     }
 
-    @Override
-    public View onCreateView(LayoutInflater inflater, ViewGroup container,
-                             Bundle savedInstanceState) {
-        return inflater.inflate(R.layout.fragment_camera2_basic, container, false);
-    }
+    /**
+     * Captures a still while recording, without stopping the repeating request or locking
+     * focus. The still request also targets the preview and the encoder, so the frame it uses is
+     * not missing from either; {@link #mFrameIntervals} measures whatever gap remains.
+     */
+    private void takeVideoSnapshot() {
+        VideoRecorder recorder = mRecorder;
+        Activity activity = getActivity();
+        if (null == recorder || null == activity || null == mCameraDevice
+                || null == mCaptureSession) {
+            return;
+        }
+        mBurst = null;
+        try {
+            CaptureRequest.Builder builder =
+                    mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_VIDEO_SNAPSHOT);
+            builder.addTarget(mImageReader.getSurface());
+            builder.addTarget(mPreviewSurface);
+            builder.addTarget(recorder.getInputSurface());
+            // The same focus mode as the repeating request, so focus does not restart.
+            builder.set(CaptureRequest.CONTROL_AF_MODE,
+                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+            builder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            setThumbnailSize(builder);
+            mFrameIntervals.onSnapshot();
+            mCaptureSession.capture(builder.build(), new CameraCaptureSession.CaptureCallback() {
 
-    @Override
-    public void onViewCreated(final View view, Bundle savedInstanceState) {
-        view.findViewById(R.id.picture).setOnClickListener(this);
-        view.findViewById(R.id.info).setOnClickListener(this);
-        mTextureView = (AutoFitTextureView) view.findViewById(R.id.texture);
-    }
+                @Override
+                public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                               @NonNull CaptureRequest request,
+                                               @NonNull TotalCaptureResult result) {
+                    mark(CaptureMetrics.Stage.CAPTURE_COMPLETED);
+                    // The frame went to the preview and the encoder like a repeating one.
+                    mCaptureCallback.onCaptureCompleted(session, request, result);
+                }
 
-    @Override
-    public void onActivityCreated(Bundle savedInstanceState) {
-        super.onActivityCreated(savedInstanceState);
-        mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
+            }, mBackgroundHandler);
+            mark(CaptureMetrics.Stage.CAPTURE_SUBMITTED);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
     }
 
-    @Override
-    public void onResume() {
-        super.onResume();
-        startBackgroundThread();
+    /**
+     * Saves the best recent frame from {@link #mZslBuffer} without running a new capture.
+     *
+     * The shutter is refused while {@link #ZSL_MAX_SAVES} frames are still being saved, since
+     * the ZSL reader would run out of images for the buffer.
+     *
+     * @return false if there was no frame to save yet
+     */
+    private boolean takeZslPicture() {
+        Activity activity = getActivity();
+        if (null == activity) {
+            return false;
+        }
+        if (!mZslSaves.tryAcquire()) {
+            showToast("Still saving");
+            return true;
+        }
+        HeldImage frame = mZslBuffer.select();
+        if (null == frame) {
+            mZslSaves.release();
+            return false;
+        }
+        // The frame is encoded without rotation; JPEG_ORIENTATION only applies to HAL encoding,
+        // so the orientation is recorded in Exif instead.
+        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+        CaptureStorage.Output output = mCapturePipeline.save(new ImageFrame(frame.mImage) {
 
-        // When the screen is turned off and turned back on, the SurfaceTexture is already
-        // available, and "onSurfaceTextureAvailable" will not be called. In that case, we can open
-        // a camera and start preview from here (otherwise, we wait until the surface is ready in
-        // the SurfaceTextureListener).
-        if (mTextureView.isAvailable()) {
-            openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-        } else {
-            mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+            @Override
+            public void close() {
+                super.close();
+                mZslSaves.release();
+            }
+
+        }, getOrientation(rotation));
+        if (null != output) {
+            showToast("Saved: " + output);
         }
+        return true;
     }
 
-    @Override
-    public void onPause() {
-        closeCamera();
-        stopBackgroundThread();
-        super.onPause();
+    /**
+     * Turns zero shutter lag capture on or off. The session is rebuilt so that the preview
+     * request targets {@link #mZslImageReader} only while it is on.
+     */
+    private void toggleZsl() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        mZslEnabled = !mZslEnabled;
+        showToast(mZslEnabled ? "Zero shutter lag on" : "Zero shutter lag off");
+        mCaptureSession.close();
+        mCaptureSession = null;
+        mZslBuffer.clear();
+        createCameraPreviewSession();
     }
 
-    private void requestCameraPermission() {
-        if (FragmentCompat.shouldShowRequestPermissionRationale(this, Manifest.permission.CAMERA)) {
-            new ConfirmationDialog().show(getChildFragmentManager(), FRAGMENT_DIALOG);
-        } else {
-            FragmentCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA},
-                    REQUEST_CAMERA_PERMISSION);
+    /**
+     * Turns saving a DNG file next to each single still on or off. The session is rebuilt so that
+     * it has a RAW output only while this is on.
+     */
+    private void toggleRaw() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        if (null == mRawSize) {
+            showToast("RAW capture is not supported");
+            return;
+        }
+        if (null == mRawCharacteristics) {
+            CameraManager manager =
+                    (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
+            try {
+                mRawCharacteristics = manager.getCameraCharacteristics(mCameraId);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+                return;
+            }
         }
+        mRawEnabled = !mRawEnabled;
+        showToast(mRawEnabled ? "RAW + JPEG on" : "RAW + JPEG off");
+        mCaptureSession.close();
+        mCaptureSession = null;
+        createCameraPreviewSession();
     }
 
-    @Override
-    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
-                                           @NonNull int[] grantResults) {
-        if (requestCode == REQUEST_CAMERA_PERMISSION) {
-            if (grantResults.length != 1 || grantResults[0] != PackageManager.PERMISSION_GRANTED) {
-                ErrorDialog.newInstance(getString(R.string.request_permission))
-                        .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+    /**
+     * Turns night mode on or off. Night shots are merged from YUV frames, so YUV capture is
+     * turned on along with it.
+     */
+    private void toggleNight() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        if (null == mExposureTimeRange) {
+            CameraManager manager =
+                    (CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE);
+            try {
+                CameraCharacteristics characteristics =
+                        manager.getCameraCharacteristics(mCameraId);
+                mExposureTimeRange = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_EXPOSURE_TIME_RANGE);
+                mSensitivityRange = characteristics.get(
+                        CameraCharacteristics.SENSOR_INFO_SENSITIVITY_RANGE);
+            } catch (CameraAccessException e) {
+                e.printStackTrace();
+                return;
             }
-        } else {
-            super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        }
+        // Without manual exposure the frames can't be bracketed.
+        if (null == mZslSize || null == mExposureTimeRange || null == mSensitivityRange) {
+            showToast("Night mode is not supported");
+            return;
+        }
+        mNightModeEnabled = !mNightModeEnabled;
+        showToast(mNightModeEnabled ? "Night mode on" : "Night mode off");
+        if (mNightModeEnabled && !mYuvCaptureEnabled) {
+            toggleYuvCapture();
         }
     }
 
     /**
-     * Sets up member variables related to camera.
-     *
-     * @param width  The width of available size for camera preview
-     * @param height The height of available size for camera preview
+     * Starts or stops recording video. The session is rebuilt either way, so that the encoder's
+     * input surface is an output of it only while recording.
      */
-    private void setUpCameraOutputs(int width, int height) {
-        Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+    private void toggleRecording() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        VideoRecorder recorder = mRecorder;
+        if (null != recorder) {
+            // The recorder is stopped once the session rendering into it is closed. Frames
+            // already rendered are still encoded; the muxer thread saves the file.
+            mRecorder = null;
+            mCaptureSession.close();
+            mCaptureSession = null;
+            createCameraPreviewSession();
+            updateRecordButton();
+            return;
+        }
+        if (null == mVideoSize) {
+            showToast("Recording is not supported");
+            return;
+        }
+        int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
+        CaptureStorage.Output output;
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics
-                        = manager.getCameraCharacteristics(cameraId);
-
-                // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
-                    continue;
-                }
-
-                StreamConfigurationMap map = characteristics.get(
-                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
-                    continue;
-                }
-
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new CompareSizesByArea());
-                mImageReader = ImageReader.newInstance(largest.getWidth(), largest.getHeight(),
-                        ImageFormat.JPEG, /*maxImages*/2);
-                mImageReader.setOnImageAvailableListener(
-                        mOnImageAvailableListener, mBackgroundHandler);
-
-                // Find out if we need to swap dimension to get the preview size relative to sensor
-                // coordinate.
-                int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                boolean swappedDimensions = false;
-                switch (displayRotation) {
-                    case Surface.ROTATION_0:
-                    case Surface.ROTATION_180:
-                        if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    case Surface.ROTATION_90:
-                    case Surface.ROTATION_270:
-                        if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                }
-
-                Point displaySize = new Point();
-                activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-                int rotatedPreviewWidth = width;
-                int rotatedPreviewHeight = height;
-                int maxPreviewWidth = displaySize.x;
-                int maxPreviewHeight = displaySize.y;
-
-                if (swappedDimensions) {
-                    rotatedPreviewWidth = height;
-                    rotatedPreviewHeight = width;
-                    maxPreviewWidth = displaySize.y;
-                    maxPreviewHeight = displaySize.x;
-                }
-
-                if (maxPreviewWidth > MAX_PREVIEW_WIDTH) {
-                    maxPreviewWidth = MAX_PREVIEW_WIDTH;
-                }
-
-                if (maxPreviewHeight > MAX_PREVIEW_HEIGHT) {
-                    maxPreviewHeight = MAX_PREVIEW_HEIGHT;
-                }
+            output = mStorage.newOutput(SystemClock.elapsedRealtimeNanos(), "mp4");
+        } catch (IOException e) {
+            e.printStackTrace();
+            showToast("Recording failed");
+            return;
+        }
+        try {
+            int bitRate = Math.round(mVideoSize.getWidth() * mVideoSize.getHeight()
+                    * VIDEO_FRAME_RATE * VIDEO_BITS_PER_PIXEL);
+            recorder = new VideoRecorder(output, mVideoSize, VIDEO_FRAME_RATE, bitRate,
+                    getOrientation(rotation));
+        } catch (IOException | RuntimeException e) {
+            // Codecs report an unsupported configuration with a CodecException.
+            e.printStackTrace();
+            output.abort();
+            showToast("Recording failed");
+            return;
+        }
+        recorder.setCallback(mRecordingCallback);
+        recorder.start();
+        mRecorder = recorder;
+        mCaptureSession.close();
+        mCaptureSession = null;
+        createCameraPreviewSession();
+        updateRecordButton();
+    }
 
-                // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                int orientation = getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                } else {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getHeight(), mPreviewSize.getWidth());
+    /**
+     * Shows whether a recording is in progress on {@link #mRecordButton}.
+     */
+    private void updateRecordButton() {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mRecordButton) {
+                    mRecordButton.setText(null == mRecorder ? R.string.record : R.string.stop);
                 }
+            }
+        });
+    }
 
-                // Check if the flash is supported.
-                Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-                mFlashSupported = available == null ? false : available;
+    /**
+     * Returns whether the next single still is a night shot.
+     */
+    private boolean isNightShot() {
+        return mNightModeEnabled && mYuvCaptureEnabled && null != mExposureTimeRange
+                && mMeteredExposureTimeNs > 0;
+    }
 
-                mCameraId = cameraId;
-                return;
-            }
-        } catch (CameraAccessException e) {
+    /**
+     * Queues a RAW frame to be written as a DNG file.
+     */
+    private void saveRaw(Image image, CaptureResult result) {
+        CaptureStorage.Output output;
+        try {
+            output = mStorage.newOutput(image.getTimestamp(), "dng");
+        } catch (IOException e) {
             e.printStackTrace();
-        } catch (NullPointerException e) {
-            // Currently an NPE is thrown when the Camera2API is used but not supported on the
-            // device this code runs.
-            ErrorDialog.newInstance(getString(R.string.camera_error))
-                    .show(getChildFragmentManager(), FRAGMENT_DIALOG);
+            image.close();
+            return;
+        }
+        DngSaver saver = new DngSaver(createDngWriter(image, result),
+                new SinglePlaneSource(image), image.getPlanes()[0].getRowStride(), output);
+        if (!mRawSaveQueue.submit(saver)) {
+            Log.w(TAG, "Dropped RAW image: " + mRawSaveQueue);
         }
     }
 
     /**
-     * Opens the camera specified by {@link Camera2BasicFragment#mCameraId}.
+     * Describes a RAW frame with the color metadata of the camera and of its capture result.
      */
-    private void openCamera(int width, int height) {
-        if (ContextCompat.checkSelfPermission(getActivity(), Manifest.permission.CAMERA)
-                != PackageManager.PERMISSION_GRANTED) {
-            requestCameraPermission();
-            return;
+    private DngWriter createDngWriter(Image image, CaptureResult result) {
+        DngWriter writer = new DngWriter(image.getWidth(), image.getHeight());
+        writer.setCamera(Build.MANUFACTURER, Build.MODEL);
+        writer.setOrientation(mStillOrientation);
+        CameraCharacteristics characteristics = mRawCharacteristics;
+        Integer arrangement = characteristics.get(
+                CameraCharacteristics.SENSOR_INFO_COLOR_FILTER_ARRANGEMENT);
+        if (null != arrangement && arrangement <= DngWriter.CFA_BGGR) {
+            writer.setCfaArrangement(arrangement);
         }
-        setUpCameraOutputs(width, height);
-        configureTransform(width, height);
-        Activity activity = getActivity();
-        CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-        try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
-            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+        BlackLevelPattern blackLevel = characteristics.get(
+                CameraCharacteristics.SENSOR_BLACK_LEVEL_PATTERN);
+        if (null != blackLevel) {
+            writer.setBlackLevel(blackLevel.getOffsetForIndex(0, 0),
+                    blackLevel.getOffsetForIndex(1, 0), blackLevel.getOffsetForIndex(0, 1),
+                    blackLevel.getOffsetForIndex(1, 1));
+        }
+        Integer whiteLevel = characteristics.get(CameraCharacteristics.SENSOR_INFO_WHITE_LEVEL);
+        if (null != whiteLevel) {
+            writer.setWhiteLevel(whiteLevel);
+        }
+        ColorSpaceTransform transform = characteristics.get(
+                CameraCharacteristics.SENSOR_COLOR_TRANSFORM1);
+        Integer illuminant = characteristics.get(
+                CameraCharacteristics.SENSOR_REFERENCE_ILLUMINANT1);
+        if (null != transform && null != illuminant) {
+            float[] matrix = new float[9];
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 3; column++) {
+                    matrix[row * 3 + column] = transform.getElement(column, row).floatValue();
+                }
+            }
+            writer.setColorMatrix(matrix, illuminant);
         }
+        Rational[] neutral = result.get(CaptureResult.SENSOR_NEUTRAL_COLOR_POINT);
+        if (null != neutral && neutral.length == 3) {
+            writer.setAsShotNeutral(neutral[0].floatValue(), neutral[1].floatValue(),
+                    neutral[2].floatValue());
+        }
+        return writer;
     }
 
     /**
-     * Closes the current {@link CameraDevice}.
+     * Switches still images between camera JPEG and YUV encoded by {@link #mJpegEncoder}. The
+     * reader is replaced, so this waits until every image taken from it has been saved.
      */
-    private void closeCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-            if (null != mCaptureSession) {
-                mCaptureSession.close();
-                mCaptureSession = null;
-            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
-                mCameraDevice = null;
-            }
-            if (null != mImageReader) {
-                mImageReader.close();
-                mImageReader = null;
-            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
+    private void toggleYuvCapture() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        if (null == mZslSize) {
+            showToast("YUV capture is not supported");
+            return;
         }
+        if (mSaveQueue.getPendingCount() > 0) {
+            showToast("Still saving pictures");
+            return;
+        }
+        mYuvCaptureEnabled = !mYuvCaptureEnabled;
+        showToast(mYuvCaptureEnabled ? "YUV capture on" : "YUV capture off");
+        mCaptureSession.close();
+        mCaptureSession = null;
+        createStillImageReader();
+        createCameraPreviewSession();
     }
 
     /**
-     * Starts a background thread and its {@link Handler}.
+     * Records what {@code result} says about the focus and exposure of its frame, so the frame
+     * can be picked from {@link #mZslBuffer}.
      */
-    private void startBackgroundThread() {
-        mBackgroundThread = new HandlerThread("CameraBackground");
-        mBackgroundThread.start();
-        mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+    private void addZslResult(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (null == timestamp) {
+            return;
+        }
+        Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+        Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+        // Either state can be null on devices that don't support AF or report AE.
+        boolean focused = afState == null ||
+                afState == CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED ||
+                afState == CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+        boolean exposed = aeState == null ||
+                aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED ||
+                aeState == CaptureResult.CONTROL_AE_STATE_LOCKED;
+        mZslBuffer.addResult(timestamp, focused, exposed);
     }
 
     /**
-     * Stops the background thread and its {@link Handler}.
+     * Initiate a burst of {@link #BURST_SIZE} still image captures. Focus and exposure are locked
+     * once for the whole burst. With YUV capture on, the burst is {@link #BEST_SHOT_BURST_SIZE}
+     * frames long and only the {@link #BEST_SHOT_COUNT} sharpest of them are saved.
      */
-    private void stopBackgroundThread() {
-        mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+    private void takeBurst() {
+        if (null == mCameraDevice || null == mCaptureSession) {
+            return;
+        }
+        if (null != mRecorder) {
+            // A burst pauses the repeating request, which would cut into the recording.
+            showToast("Bursts are not available while recording");
+            return;
+        }
+        if (mNightShotPending.get()) {
+            showToast("Still saving the night shot");
+            return;
+        }
+        // Images stay open until they are saved, and the still reader only has room for one
+        // burst, so a burst can't start while images of an earlier capture are still out.
+        if (mSaveQueue.getPendingCount() > 0
+                || mCaptureStateMachine.getState() != CaptureStateMachine.State.PREVIEW) {
+            showToast("Still saving pictures");
+            return;
         }
+        updateLocation();
+        boolean bestShot = mYuvCaptureEnabled;
+        mBurst = new BurstStats(bestShot ? BEST_SHOT_BURST_SIZE : BURST_SIZE);
+        mBestShot = bestShot ? new BestShotSelector<Image>(BEST_SHOT_COUNT) : null;
+        final int saved = bestShot ? BEST_SHOT_COUNT : BURST_SIZE;
+        // Create the files while focus is locking, before the first frame arrives.
+        final long length = (long) mImageReader.getWidth() * mImageReader.getHeight()
+                * ESTIMATED_JPEG_BITS_PER_PIXEL / 8;
+        final CaptureStorage storage = mStorage;
+        STORAGE_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.reserve(saved, length);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        startCaptureSequence();
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * Starts {@link #mCaptureStateMachine} on {@link #mBackgroundThread}, which receives the
+     * capture results it reacts to.
      */
-    private void createCameraPreviewSession() {
-        try {
-            SurfaceTexture texture = mTextureView.getSurfaceTexture();
-            assert texture != null;
-
-            // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-
-            // This is the output Surface we need to start preview.
-            Surface surface = new Surface(texture);
-
-            // We set up a CaptureRequest.Builder with the output Surface.
-            mPreviewRequestBuilder
-                    = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            mPreviewRequestBuilder.addTarget(surface);
-
-            // Here, we create a CameraCaptureSession for camera preview.
-            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
-                    new CameraCaptureSession.StateCallback() {
-
-                        @Override
-                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-                            // The camera is already closed
-                            if (null == mCameraDevice) {
-                                return;
-                            }
-
-                            // When the session is ready, we start displaying the preview.
-                            mCaptureSession = cameraCaptureSession;
-                            try {
-                                // Auto focus should be continuous for camera preview.
-                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-                                // Flash is automatically enabled when necessary.
-                                setAutoFlash(mPreviewRequestBuilder);
-
-                                // Finally, we start displaying the camera preview.
-                                mPreviewRequest = mPreviewRequestBuilder.build();
-                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-                                        mCaptureCallback, mBackgroundHandler);
-                            } catch (CameraAccessException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        @Override
-                        public void onConfigureFailed(
-                                @NonNull CameraCaptureSession cameraCaptureSession) {
-                            showToast("Failed");
-                        }
-                    }, null
-            );
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+    private void startCaptureSequence() {
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                perform(mCaptureStateMachine.start(SystemClock.elapsedRealtimeNanos()));
+            }
+        });
     }
 
     /**
-     * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
-     * This method should be called after the camera preview size is determined in
-     * setUpCameraOutputs and also the size of `mTextureView` is fixed.
-     *
-     * @param viewWidth  The width of `mTextureView`
-     * @param viewHeight The height of `mTextureView`
+     * Tells {@link #mCaptureStateMachine} that the still capture is over, from
+     * {@link #mBackgroundThread}.
      */
-    private void configureTransform(int viewWidth, int viewHeight) {
-        Activity activity = getActivity();
-        if (null == mTextureView || null == mPreviewSize || null == activity) {
-            return;
-        }
-        int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-        Matrix matrix = new Matrix();
-        RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
-        float centerX = viewRect.centerX();
-        float centerY = viewRect.centerY();
-        if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
-            bufferRect.offset(centerX - bufferRect.centerX(), centerY - bufferRect.centerY());
-            matrix.setRectToRect(viewRect, bufferRect, Matrix.ScaleToFit.FILL);
-            float scale = Math.max(
-                    (float) viewHeight / mPreviewSize.getHeight(),
-                    (float) viewWidth / mPreviewSize.getWidth());
-            matrix.postScale(scale, scale, centerX, centerY);
-            matrix.postRotate(90 * (rotation - 2), centerX, centerY);
-        } else if (Surface.ROTATION_180 == rotation) {
-            matrix.postRotate(180, centerX, centerY);
-        }
-        mTextureView.setTransform(matrix);
+    private void onStillCaptureDone() {
+        perform(mCaptureStateMachine.onCaptureDone(SystemClock.elapsedRealtimeNanos()));
+        Log.d(TAG, mCaptureStateMachine.toString());
     }
 
     /**
-     * Initiate a still image capture.
+     * Carries out an action requested by {@link #mCaptureStateMachine}, and makes sure the
+     * machine gets to time out of the state it is in now.
      */
-    private void takePicture() {
-        lockFocus();
+    private void perform(CaptureStateMachine.Action action) {
+        CaptureStateMachine.State state = mCaptureStateMachine.getState();
+        if (state != mPerformedState) {
+            if (mPerformedState == CaptureStateMachine.State.WAITING_LOCK) {
+                mark(CaptureMetrics.Stage.AF_LOCKED);
+            }
+            if (state == CaptureStateMachine.State.PICTURE_TAKEN) {
+                mark(CaptureMetrics.Stage.AE_CONVERGED);
+            }
+            mPerformedState = state;
+        }
+        switch (action) {
+            case LOCK_FOCUS: {
+                lockFocus();
+                mark(CaptureMetrics.Stage.AF_TRIGGERED);
+                break;
+            }
+            case RUN_PRECAPTURE: {
+                runPrecaptureSequence();
+                mark(CaptureMetrics.Stage.PRECAPTURE_STARTED);
+                break;
+            }
+            case CAPTURE: {
+                captureStillPicture();
+                break;
+            }
+            case UNLOCK: {
+                unlockFocus();
+                break;
+            }
+        }
+        mBackgroundHandler.removeCallbacks(mCaptureTimeoutCheck);
+        long timeoutMs = mCaptureStateMachine.getTimeoutMs(mCaptureStateMachine.getState());
+        if (timeoutMs > 0) {
+            mBackgroundHandler.postDelayed(mCaptureTimeoutCheck, timeoutMs);
+        }
     }
 
     /**
@@ -777,8 +2597,6 @@ public class Camera2BasicFragment extends Fragment
             // This is how to tell the camera to lock focus.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER,
                     CameraMetadata.CONTROL_AF_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the lock.
-            mState = STATE_WAITING_LOCK;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -795,8 +2613,6 @@ public class Camera2BasicFragment extends Fragment
             // This is how to tell the camera to trigger.
             mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-            // Tell #mCaptureCallback to wait for the precapture sequence to be set.
-            mState = STATE_WAITING_PRECAPTURE;
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -805,8 +2621,9 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Capture a still picture. This method should be called when we get a response in
-     * {@link #mCaptureCallback} from both {@link #lockFocus()}.
+     * Capture a still picture, or a burst of them if {@link #takeBurst()} started the sequence.
+     * This method should be called when we get a response in {@link #mCaptureCallback} from both
+     * {@link #lockFocus()}.
      */
     private void captureStillPicture() {
         try {
@@ -818,6 +2635,13 @@ public class Camera2BasicFragment extends Fragment
             final CaptureRequest.Builder captureBuilder =
                     mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
             captureBuilder.addTarget(mImageReader.getSurface());
+            final boolean night = null == mBurst && isNightShot();
+            // Bursts are JPEG only; a RAW frame is several times larger.
+            final boolean raw = mRawEnabled && null != mRawImageReader && null == mBurst
+                    && !night;
+            if (raw) {
+                captureBuilder.addTarget(mRawImageReader.getSurface());
+            }
 
             // Use the same AE and AF modes as the preview.
             captureBuilder.set(CaptureRequest.CONTROL_AF_MODE,
@@ -826,7 +2650,9 @@ public class Camera2BasicFragment extends Fragment
 
             // Orientation
             int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, getOrientation(rotation));
+            mStillOrientation = getOrientation(rotation);
+            captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, mStillOrientation);
+            setThumbnailSize(captureBuilder);
 
             CameraCaptureSession.CaptureCallback CaptureCallback
                     = new CameraCaptureSession.CaptureCallback() {
@@ -835,19 +2661,147 @@ public class Camera2BasicFragment extends Fragment
                 public void onCaptureCompleted(@NonNull CameraCaptureSession session,
                                                @NonNull CaptureRequest request,
                                                @NonNull TotalCaptureResult result) {
-                    showToast("Saved: " + mFile);
-                    Log.d(TAG, mFile.toString());
-                    unlockFocus();
+                    mark(CaptureMetrics.Stage.CAPTURE_COMPLETED);
+                    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                    if (null != timestamp) {
+                        recordMetadata(result, timestamp);
+                    }
+                    if (raw) {
+                        HeldImage image = null == timestamp ? null
+                                : mRawPairer.addResult(timestamp, result);
+                        if (null != image) {
+                            saveRaw(image.mImage, result);
+                        }
+                    }
+                    onStillCaptureDone();
+                }
+
+                @Override
+                public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                            @NonNull CaptureRequest request,
+                                            @NonNull CaptureFailure failure) {
+                    Log.w(TAG, "Still capture failed: " + failure.getReason());
+                    if (raw) {
+                        // A RAW frame of the failed capture would never be matched.
+                        mRawPairer.clear();
+                    }
+                    onStillCaptureDone();
+                }
+
+                @Override
+                public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                                @NonNull CaptureRequest request,
+                                                @NonNull Surface target, long frameNumber) {
+                    ImageReader rawReader = mRawImageReader;
+                    if (null != rawReader && target == rawReader.getSurface()) {
+                        // The result of the capture has no frame coming.
+                        mRawPairer.clear();
+                    }
                 }
             };
 
             mCaptureSession.stopRepeating();
-            mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
+            BurstStats burst = mBurst;
+            if (night) {
+                captureNightShot(captureBuilder);
+            } else if (null != burst) {
+                CaptureRequest request = captureBuilder.build();
+                List<CaptureRequest> requests = new ArrayList<>(burst.getRequested());
+                for (int i = 0; i < burst.getRequested(); i++) {
+                    requests.add(request);
+                }
+                mCaptureSession.captureBurst(requests, new BurstCaptureCallback(burst),
+                        mBackgroundHandler);
+            } else {
+                mCaptureSession.capture(captureBuilder.build(), CaptureCallback,
+                        mBackgroundHandler);
+            }
+            mark(CaptureMetrics.Stage.CAPTURE_SUBMITTED);
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Captures the bracketed frames of a night shot with manual exposure, starting from the
+     * exposure metered by the preview. The frames are collected by {@link #mNightShot}.
+     */
+    private void captureNightShot(CaptureRequest.Builder captureBuilder)
+            throws CameraAccessException {
+        captureBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
+        int sensitivity = mSensitivityRange.clamp(mMeteredSensitivity);
+        captureBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, sensitivity);
+        List<CaptureRequest> requests = new ArrayList<>(NIGHT_BRACKET.length);
+        double[] exposures = new double[NIGHT_BRACKET.length];
+        for (int i = 0; i < NIGHT_BRACKET.length; i++) {
+            long exposureTime = mExposureTimeRange.clamp(
+                    Math.round(mMeteredExposureTimeNs * NIGHT_BRACKET[i]));
+            captureBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureTime);
+            requests.add(captureBuilder.build());
+            // The frames are merged relative to each other, so the exposures the camera was
+            // actually asked for are what counts, after clamping.
+            exposures[i] = (double) exposureTime * sensitivity;
+        }
+        final MergedJpegSource shot = new MergedJpegSource(mFrameMerger, mJpegEncoder,
+                exposures) {
+
+            @Override
+            public synchronized void close() {
+                super.close();
+                mNightShotPending.set(false);
+            }
+
+        };
+        mNightShotPending.set(true);
+        mNightShot = shot;
+        mCaptureSession.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+
+            private boolean mFailed;
+
+            @Override
+            public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                           @NonNull CaptureRequest request,
+                                           @NonNull TotalCaptureResult result) {
+                mark(CaptureMetrics.Stage.CAPTURE_COMPLETED);
+                Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                if (null != timestamp) {
+                    recordMetadata(result, timestamp);
+                }
+            }
+
+            @Override
+            public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull CaptureFailure failure) {
+                mFailed = true;
+            }
+
+            @Override
+            public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                                   int sequenceId, long frameNumber) {
+                onNightShotFinished();
+            }
+
+            @Override
+            public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                                 int sequenceId) {
+                mFailed = true;
+                onNightShotFinished();
+            }
+
+            private void onNightShotFinished() {
+                // A frame short, the others can't be merged as planned.
+                if (mFailed && mNightShot == shot) {
+                    mNightShot = null;
+                    shot.abandon();
+                    showToast("Night shot failed");
+                }
+                onStillCaptureDone();
+            }
+
+        }, mBackgroundHandler);
+    }
+
     /**
      * Retrieves the JPEG orientation from the specified screen rotation.
      *
@@ -875,7 +2829,6 @@ public class Camera2BasicFragment extends Fragment
             mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
                     mBackgroundHandler);
             // After this, the camera will go back to the normal state of preview.
-            mState = STATE_PREVIEW;
             mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback,
                     mBackgroundHandler);
         } catch (CameraAccessException e) {
@@ -887,7 +2840,41 @@ public class Camera2BasicFragment extends Fragment
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.picture: {
-                takePicture();
+                mark(CaptureMetrics.Stage.SHUTTER);
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        takePicture();
+                    }
+                });
+                break;
+            }
+            case R.id.burst: {
+                mark(CaptureMetrics.Stage.SHUTTER);
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        takeBurst();
+                    }
+                });
+                break;
+            }
+            case R.id.raw: {
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        toggleRaw();
+                    }
+                });
+                break;
+            }
+            case R.id.record: {
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        toggleRecording();
+                    }
+                });
                 break;
             }
             case R.id.info: {
@@ -903,6 +2890,84 @@ public class Camera2BasicFragment extends Fragment
         }
     }
 
+    @Override
+    public boolean onLongClick(View view) {
+        switch (view.getId()) {
+            case R.id.picture: {
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        toggleZsl();
+                    }
+                });
+                return true;
+            }
+            case R.id.burst: {
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        toggleYuvCapture();
+                    }
+                });
+                return true;
+            }
+            case R.id.raw: {
+                postCameraAction(new Runnable() {
+                    @Override
+                    public void run() {
+                        toggleNight();
+                    }
+                });
+                return true;
+            }
+            case R.id.info: {
+                toggleMetrics();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a user action on {@link #mBackgroundThread}, where {@link #closeCamera()} also runs, so
+     * the action finds the camera and its outputs either all there or all gone. Actions are
+     * dropped while no camera is open.
+     */
+    private void postCameraAction(Runnable action) {
+        Handler handler = mBackgroundHandler;
+        if (null != handler) {
+            handler.post(action);
+        }
+    }
+
+    /**
+     * Returns the latencies of the stages of taking a picture, measured since the shutter was
+     * pressed.
+     */
+    public CaptureMetrics getCaptureMetrics() {
+        return mMetrics;
+    }
+
+    private void mark(CaptureMetrics.Stage stage) {
+        mMetrics.mark(stage, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /**
+     * Shows or hides the latency overlay.
+     */
+    private void toggleMetrics() {
+        if (null == mMetricsView) {
+            return;
+        }
+        mMetricsView.removeCallbacks(mMetricsRefresh);
+        if (mMetricsView.getVisibility() == View.VISIBLE) {
+            mMetricsView.setVisibility(View.GONE);
+        } else {
+            mMetricsView.setVisibility(View.VISIBLE);
+            mMetricsRefresh.run();
+        }
+    }
+
     private void setAutoFlash(CaptureRequest.Builder requestBuilder) {
         if (mFlashSupported) {
             requestBuilder.set(CaptureRequest.CONTROL_AE_MODE,
@@ -911,59 +2976,123 @@ public class Camera2BasicFragment extends Fragment
     }
 
     /**
-     * Saves a JPEG {@link Image} into the specified {@link File}.
+     * Has the camera embed a thumbnail in the JPEG, so {@link #mThumbnailer} doesn't have to
+     * decode it. JPEGs encoded from YUV get theirs from the encoder.
      */
-    private static class ImageSaver implements Runnable {
+    private void setThumbnailSize(CaptureRequest.Builder requestBuilder) {
+        if (null != mThumbnailSize) {
+            requestBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mThumbnailSize);
+        }
+    }
+
+    /**
+     * A {@link CameraCaptureSession.CaptureCallback} that accounts for the frames of a burst and
+     * resumes the preview once the whole burst is done.
+     */
+    private class BurstCaptureCallback extends CameraCaptureSession.CaptureCallback {
+
+        private final BurstStats mStats;
+
+        BurstCaptureCallback(BurstStats stats) {
+            mStats = stats;
+        }
+
+        @Override
+        public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+                                       @NonNull CaptureRequest request,
+                                       @NonNull TotalCaptureResult result) {
+            mark(CaptureMetrics.Stage.CAPTURE_COMPLETED);
+            Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            mStats.onCaptureCompleted(timestamp == null ? 0 : timestamp);
+            if (null != timestamp) {
+                recordMetadata(result, timestamp);
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(@NonNull CameraCaptureSession session,
+                                    @NonNull CaptureRequest request,
+                                    @NonNull CaptureFailure failure) {
+            mStats.onCaptureFailed();
+        }
+
+        @Override
+        public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+                                        @NonNull CaptureRequest request,
+                                        @NonNull Surface target, long frameNumber) {
+            mStats.onBufferLost();
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(@NonNull CameraCaptureSession session,
+                                               int sequenceId, long frameNumber) {
+            // Otherwise the last image to arrive saves the best shots.
+            if (mStats.isSettled()) {
+                saveBestShots();
+            }
+            onBurstFinished();
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(@NonNull CameraCaptureSession session,
+                                             int sequenceId) {
+            saveBestShots();
+            onBurstFinished();
+        }
+
+        private void onBurstFinished() {
+            showToast(mStats.toString());
+            Log.d(TAG, mStats.toString());
+            onStillCaptureDone();
+        }
+
+    }
+
+    /**
+     * An {@link Image} held in {@link #mZslBuffer} or {@link #mRawPairer}.
+     */
+    private static class HeldImage implements ZslRingBuffer.Frame, CapturePairer.Frame {
 
-        /**
-         * The JPEG image
-         */
         private final Image mImage;
-        /**
-         * The file we save the image into.
-         */
-        private final File mFile;
 
-        public ImageSaver(Image image, File file) {
+        HeldImage(Image image) {
             mImage = image;
-            mFile = file;
         }
 
         @Override
-        public void run() {
-            ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-            byte[] bytes = new byte[buffer.remaining()];
-            buffer.get(bytes);
-            FileOutputStream output = null;
-            try {
-                output = new FileOutputStream(mFile);
-                output.write(bytes);
-            } catch (IOException e) {
-                e.printStackTrace();
-            } finally {
-                mImage.close();
-                if (null != output) {
-                    try {
-                        output.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
+        public long getTimestamp() {
+            return mImage.getTimestamp();
+        }
+
+        @Override
+        public void close() {
+            mImage.close();
         }
 
     }
 
     /**
-     * Compares two {@code Size}s based on their areas.
+     * Exposes the single plane of a RAW {@link Image} to a {@link DngSaver}.
      */
-    static class CompareSizesByArea implements Comparator<Size> {
+    private static class SinglePlaneSource implements ImageSaver.Source {
+
+        /**
+         * The RAW image
+         */
+        private final Image mImage;
+
+        public SinglePlaneSource(Image image) {
+            mImage = image;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mImage.getPlanes()[0].getBuffer();
+        }
 
         @Override
-        public int compare(Size lhs, Size rhs) {
-            // We cast here to ensure the multiplications won't overflow
-            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
-                    (long) rhs.getWidth() * rhs.getHeight());
+        public void close() {
+            mImage.close();
         }
 
     }
@@ -0,0 +1,403 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the app needs to know about each camera to open it, kept in a small binary file.
+ *
+ * Querying {@link CameraCharacteristics} goes through the camera service for every camera, and
+ * the answers only change with the OS build. The index is built once per
+ * {@link Build#FINGERPRINT}, saved, and loaded from the file on later starts.
+ */
+class CameraCapabilityIndex {
+
+    private static final String TAG = "CameraCapabilityIndex";
+
+    /**
+     * The format under which the sizes for {@link SurfaceTexture} are kept. This is the value of
+     * ImageFormat.PRIVATE, which SurfaceTexture outputs map to.
+     */
+    static final int FORMAT_SURFACE_TEXTURE = 0x22;
+
+    /**
+     * The formats whose stream configurations are kept
+     */
+    private static final int[] FORMATS = {
+            ImageFormat.JPEG, ImageFormat.YUV_420_888, ImageFormat.RAW_SENSOR,
+            FORMAT_SURFACE_TEXTURE};
+
+    private static final String FILE_NAME = "camera_capabilities.bin";
+
+    /**
+     * "CAPI", the first bytes of the file
+     */
+    private static final int MAGIC = 0x43415049;
+
+    /**
+     * Bumped whenever the layout of the file or the set of {@link #FORMATS} changes.
+     */
+    private static final int VERSION = 4;
+
+    /**
+     * A size a camera can output in a given format.
+     */
+    static class Stream {
+
+        final int format;
+
+        final int width;
+
+        final int height;
+
+        /**
+         * The minimum frame duration of the stream, in nanoseconds
+         */
+        final long minFrameDurationNs;
+
+        Stream(int format, int width, int height, long minFrameDurationNs) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.minFrameDurationNs = minFrameDurationNs;
+        }
+
+    }
+
+    /**
+     * The capabilities of a single camera.
+     */
+    static class Camera {
+
+        final String id;
+
+        /**
+         * The LENS_FACING of the camera, or -1 if unknown
+         */
+        final int facing;
+
+        final int sensorOrientation;
+
+        final boolean flashSupported;
+
+        final List<Stream> streams;
+
+        /**
+         * The CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES, as pairs of lower and upper bounds
+         */
+        final int[] fpsRanges;
+
+        /**
+         * The JPEG_AVAILABLE_THUMBNAIL_SIZES, as pairs of width and height. These include 0x0,
+         * which means no thumbnail.
+         */
+        final int[] thumbnailSizes;
+
+        Camera(String id, int facing, int sensorOrientation, boolean flashSupported,
+               List<Stream> streams, int[] fpsRanges, int[] thumbnailSizes) {
+            this.id = id;
+            this.facing = facing;
+            this.sensorOrientation = sensorOrientation;
+            this.flashSupported = flashSupported;
+            this.streams = Collections.unmodifiableList(streams);
+            this.fpsRanges = fpsRanges;
+            this.thumbnailSizes = thumbnailSizes;
+        }
+
+        /**
+         * Returns the sizes the camera can output in {@code format}, or an empty array.
+         */
+        Size[] getOutputSizes(int format) {
+            List<Size> sizes = new ArrayList<>();
+            for (Stream stream : streams) {
+                if (stream.format == format) {
+                    sizes.add(new Size(stream.width, stream.height));
+                }
+            }
+            return sizes.toArray(new Size[sizes.size()]);
+        }
+
+        /**
+         * Returns the minimum frame duration of a stream in nanoseconds, or 0 if the camera
+         * doesn't support it.
+         */
+        long getMinFrameDurationNs(int format, int width, int height) {
+            for (Stream stream : streams) {
+                if (stream.format == format && stream.width == width && stream.height == height) {
+                    return stream.minFrameDurationNs;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Returns the index in {@link #thumbnailSizes} of the smallest thumbnail that is at least
+         * {@code minWidth} wide, preferring the aspect ratio of a {@code width} x {@code height}
+         * image. Falls back to the largest thumbnail. Returns -1 if the camera can't embed one.
+         */
+        int chooseThumbnailSize(int width, int height, int minWidth) {
+            int best = -1;
+            boolean bestMatches = false;
+            for (int i = 0; i + 1 < thumbnailSizes.length; i += 2) {
+                int w = thumbnailSizes[i];
+                int h = thumbnailSizes[i + 1];
+                if (w == 0 || h == 0) {
+                    continue;
+                }
+                // Within 1% of the aspect ratio of the image
+                boolean matches = Math.abs((long) w * height - (long) h * width) * 100
+                        <= (long) h * width;
+                if (-1 == best || (matches && !bestMatches)) {
+                    best = i;
+                    bestMatches = matches;
+                    continue;
+                }
+                if (matches != bestMatches) {
+                    continue;
+                }
+                int bestWidth = thumbnailSizes[best];
+                boolean better = bestWidth < minWidth ? w > bestWidth
+                        : w >= minWidth && w < bestWidth;
+                if (better) {
+                    best = i;
+                }
+            }
+            return best;
+        }
+
+    }
+
+    /**
+     * The index of this process, loaded by {@link #get(Context)}
+     */
+    private static CameraCapabilityIndex sInstance;
+
+    private final String mFingerprint;
+
+    private final List<Camera> mCameras;
+
+    CameraCapabilityIndex(String fingerprint, List<Camera> cameras) {
+        mFingerprint = fingerprint;
+        mCameras = Collections.unmodifiableList(cameras);
+    }
+
+    /**
+     * Returns the index for this device, reading it from the app's files or building it on the
+     * first call of the process.
+     */
+    public static synchronized CameraCapabilityIndex get(Context context)
+            throws CameraAccessException {
+        if (null != sInstance) {
+            return sInstance;
+        }
+        File file = new File(context.getFilesDir(), FILE_NAME);
+        sInstance = read(file, Build.FINGERPRINT);
+        if (null == sInstance) {
+            CameraManager manager =
+                    (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            sInstance = query(manager, Build.FINGERPRINT);
+            try {
+                sInstance.write(file);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to save " + file, e);
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Builds an index by querying the characteristics of every camera.
+     */
+    static CameraCapabilityIndex query(CameraManager manager, String fingerprint)
+            throws CameraAccessException {
+        List<Camera> cameras = new ArrayList<>();
+        for (String cameraId : manager.getCameraIdList()) {
+            CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+            Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+            Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+            Boolean flash = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+            StreamConfigurationMap map = characteristics.get(
+                    CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            Range<Integer>[] ranges = characteristics.get(
+                    CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+            int[] fpsRanges = new int[null == ranges ? 0 : ranges.length * 2];
+            for (int i = 0; i < fpsRanges.length / 2; i++) {
+                fpsRanges[2 * i] = ranges[i].getLower();
+                fpsRanges[2 * i + 1] = ranges[i].getUpper();
+            }
+            Size[] thumbnails = characteristics.get(
+                    CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
+            int[] thumbnailSizes = new int[null == thumbnails ? 0 : thumbnails.length * 2];
+            for (int i = 0; i < thumbnailSizes.length / 2; i++) {
+                thumbnailSizes[2 * i] = thumbnails[i].getWidth();
+                thumbnailSizes[2 * i + 1] = thumbnails[i].getHeight();
+            }
+            List<Stream> streams = new ArrayList<>();
+            if (null != map) {
+                for (int format : FORMATS) {
+                    Size[] sizes = format == FORMAT_SURFACE_TEXTURE
+                            ? map.getOutputSizes(SurfaceTexture.class)
+                            : map.getOutputSizes(format);
+                    if (null == sizes) {
+                        continue;
+                    }
+                    for (Size size : sizes) {
+                        long duration = format == FORMAT_SURFACE_TEXTURE
+                                ? map.getOutputMinFrameDuration(SurfaceTexture.class, size)
+                                : map.getOutputMinFrameDuration(format, size);
+                        streams.add(new Stream(format, size.getWidth(), size.getHeight(),
+                                duration));
+                    }
+                }
+            }
+            cameras.add(new Camera(cameraId, null == facing ? -1 : facing,
+                    null == orientation ? 0 : orientation, null != flash && flash, streams,
+                    fpsRanges, thumbnailSizes));
+        }
+        return new CameraCapabilityIndex(fingerprint, cameras);
+    }
+
+    /**
+     * Reads an index saved by {@link #write(File)}.
+     *
+     * @param fingerprint The build the index must have been made on
+     * @return The index, or null if there is none, it is damaged, or it was made on another build
+     */
+    static CameraCapabilityIndex read(File file, String fingerprint) {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(fingerprint)) {
+                return null;
+            }
+            int cameraCount = in.readInt();
+            List<Camera> cameras = new ArrayList<>();
+            for (int i = 0; i < cameraCount; i++) {
+                String id = in.readUTF();
+                int facing = in.readInt();
+                int sensorOrientation = in.readInt();
+                boolean flashSupported = in.readBoolean();
+                int streamCount = in.readInt();
+                List<Stream> streams = new ArrayList<>();
+                for (int j = 0; j < streamCount; j++) {
+                    streams.add(new Stream(in.readInt(), in.readInt(), in.readInt(),
+                            in.readLong()));
+                }
+                int[] fpsRanges = new int[in.readInt()];
+                for (int j = 0; j < fpsRanges.length; j++) {
+                    fpsRanges[j] = in.readInt();
+                }
+                int[] thumbnailSizes = new int[in.readInt()];
+                for (int j = 0; j < thumbnailSizes.length; j++) {
+                    thumbnailSizes[j] = in.readInt();
+                }
+                cameras.add(new Camera(id, facing, sensorOrientation, flashSupported, streams,
+                        fpsRanges, thumbnailSizes));
+            }
+            return new CameraCapabilityIndex(fingerprint, cameras);
+        } catch (IOException e) {
+            // The file is truncated or damaged, so the index is rebuilt.
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Saves the index. The file is replaced in a single rename, so a reader never sees it half
+     * written.
+     */
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mCameras.size());
+            for (Camera camera : mCameras) {
+                out.writeUTF(camera.id);
+                out.writeInt(camera.facing);
+                out.writeInt(camera.sensorOrientation);
+                out.writeBoolean(camera.flashSupported);
+                out.writeInt(camera.streams.size());
+                for (Stream stream : camera.streams) {
+                    out.writeInt(stream.format);
+                    out.writeInt(stream.width);
+                    out.writeInt(stream.height);
+                    out.writeLong(stream.minFrameDurationNs);
+                }
+                out.writeInt(camera.fpsRanges.length);
+                for (int bound : camera.fpsRanges) {
+                    out.writeInt(bound);
+                }
+                out.writeInt(camera.thumbnailSizes.length);
+                for (int dimension : camera.thumbnailSizes) {
+                    out.writeInt(dimension);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public List<Camera> getCameras() {
+        return mCameras;
+    }
+
+}
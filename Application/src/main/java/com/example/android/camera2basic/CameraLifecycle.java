@@ -0,0 +1,373 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens and closes the camera without blocking the thread asking for it.
+ *
+ * Requests only say whether the camera should be open. They return at once with a
+ * {@link Future} that completes when the camera gets there, and they can be repeated freely: a
+ * second open while opening is the same request, and a pause and resume that arrive while the
+ * camera is still opening cancel each other out. A request that is withdrawn before it is carried
+ * out has its future cancelled.
+ *
+ * The actual work is done by a {@link Driver}. Closing may block, so it always runs on the
+ * executor given to the lifecycle, never on the thread that asked for it.
+ */
+class CameraLifecycle {
+
+    /**
+     * Does the actual opening and closing.
+     */
+    interface Driver {
+
+        /**
+         * Starts opening the camera. It must not block; once the camera is open, or fails to open,
+         * the driver calls {@link #onOpened()} or {@link #onOpenFailed(Throwable)}.
+         */
+        void open();
+
+        /**
+         * Closes the camera and releases everything made for it, including after a failed open.
+         * Called on the executor of the lifecycle, and it may block.
+         */
+        void close();
+
+    }
+
+    enum State {
+        CLOSED,
+        OPENING,
+        OPEN,
+        CLOSING
+    }
+
+    /**
+     * The outcome of a request.
+     */
+    static final class Completion implements Future<Void> {
+
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+
+        private final List<Runnable> mListeners = new ArrayList<>();
+
+        private final List<Executor> mListenerExecutors = new ArrayList<>();
+
+        private boolean mDone;
+
+        private boolean mCancelled;
+
+        private Throwable mFailure;
+
+        /**
+         * Runs {@code listener} on {@code executor} once the request completes, fails or is
+         * cancelled.
+         */
+        public void addListener(Runnable listener, Executor executor) {
+            synchronized (this) {
+                if (!mDone) {
+                    mListeners.add(listener);
+                    mListenerExecutors.add(executor);
+                    return;
+                }
+            }
+            executor.execute(listener);
+        }
+
+        /**
+         * Completes the request. Returns false if it was already done.
+         */
+        boolean finish(boolean cancelled, Throwable failure) {
+            synchronized (this) {
+                if (mDone) {
+                    return false;
+                }
+                mDone = true;
+                mCancelled = cancelled;
+                mFailure = failure;
+            }
+            mLatch.countDown();
+            for (int i = 0; i < mListeners.size(); i++) {
+                mListenerExecutors.get(i).execute(mListeners.get(i));
+            }
+            mListeners.clear();
+            mListenerExecutors.clear();
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // Requests are withdrawn through the lifecycle, not through their futures.
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        @Override
+        public Void get() throws InterruptedException, ExecutionException {
+            mLatch.await();
+            return result();
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!mLatch.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        private synchronized Void result() throws ExecutionException {
+            if (mCancelled) {
+                throw new CancellationException();
+            }
+            if (null != mFailure) {
+                throw new ExecutionException(mFailure);
+            }
+            return null;
+        }
+
+    }
+
+    private final Driver mDriver;
+
+    private final Executor mExecutor;
+
+    private State mState = State.CLOSED;
+
+    /**
+     * Whether the latest request was to open the camera
+     */
+    private boolean mWantOpen;
+
+    /**
+     * The pending open request, or null
+     */
+    private Completion mOpening;
+
+    /**
+     * The pending close request, or null
+     */
+    private Completion mClosing;
+
+    private final Runnable mClose = new Runnable() {
+        @Override
+        public void run() {
+            close();
+        }
+    };
+
+    /**
+     * @param driver   Opens and closes the camera
+     * @param executor Runs {@link Driver#close()}. It should run one task at a time.
+     */
+    public CameraLifecycle(Driver driver, Executor executor) {
+        mDriver = driver;
+        mExecutor = executor;
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /**
+     * Asks for the camera to be open.
+     *
+     * @return Completes once the camera is open, fails if it can't be opened, and is cancelled if
+     * {@link #requestClose()} is called first
+     */
+    public Future<Void> requestOpen() {
+        Completion completion;
+        boolean open = false;
+        synchronized (this) {
+            mWantOpen = true;
+            if (mState == State.OPEN) {
+                return done();
+            }
+            if (mState == State.OPENING && null != mClosing) {
+                // The camera won't be closed after all.
+                mClosing.finish(true, null);
+                mClosing = null;
+            }
+            if (null == mOpening) {
+                mOpening = new Completion();
+            }
+            completion = mOpening;
+            if (mState == State.CLOSED) {
+                mState = State.OPENING;
+                open = true;
+            }
+        }
+        if (open) {
+            mDriver.open();
+        }
+        return completion;
+    }
+
+    /**
+     * Asks for the camera to be closed. The camera is closed on the executor of the lifecycle.
+     *
+     * @return Completes once the camera is closed, and is cancelled if {@link #requestOpen()} is
+     * called before the camera even finished opening
+     */
+    public Future<Void> requestClose() {
+        Completion completion;
+        boolean close = false;
+        synchronized (this) {
+            mWantOpen = false;
+            if (null != mOpening && mState != State.OPENING) {
+                // An open waiting for the camera to close first is no longer wanted.
+                mOpening.finish(true, null);
+                mOpening = null;
+            }
+            if (mState == State.CLOSED) {
+                return done();
+            }
+            if (null == mClosing) {
+                mClosing = new Completion();
+            }
+            completion = mClosing;
+            if (mState == State.OPEN) {
+                mState = State.CLOSING;
+                close = true;
+            }
+        }
+        if (close) {
+            mExecutor.execute(mClose);
+        }
+        return completion;
+    }
+
+    /**
+     * Called by the driver once the camera is open.
+     */
+    public void onOpened() {
+        Completion opened = null;
+        boolean close = false;
+        synchronized (this) {
+            if (mState != State.OPENING) {
+                return;
+            }
+            mState = State.OPEN;
+            if (mWantOpen) {
+                opened = mOpening;
+                mOpening = null;
+            } else {
+                // Closing was asked for while the camera was opening.
+                if (null != mOpening) {
+                    mOpening.finish(true, null);
+                    mOpening = null;
+                }
+                mState = State.CLOSING;
+                close = true;
+            }
+        }
+        if (null != opened) {
+            opened.finish(false, null);
+        }
+        if (close) {
+            mExecutor.execute(mClose);
+        }
+    }
+
+    /**
+     * Called by the driver if the camera fails to open. The driver is still asked to close, so
+     * that it can release what it made for the camera.
+     */
+    public void onOpenFailed(Throwable error) {
+        fail(State.OPENING, error);
+    }
+
+    /**
+     * Called by the driver when the camera is disconnected or fails while open.
+     */
+    public void onLost(Throwable error) {
+        fail(null, error);
+    }
+
+    private void fail(State expected, Throwable error) {
+        Completion failed;
+        synchronized (this) {
+            boolean active = mState == State.OPENING || mState == State.OPEN;
+            if (!active || (null != expected && mState != expected)) {
+                return;
+            }
+            // Don't try again by ourselves; the next open request will.
+            mWantOpen = false;
+            failed = mOpening;
+            mOpening = null;
+            mState = State.CLOSING;
+        }
+        if (null != failed) {
+            failed.finish(false, error);
+        }
+        mExecutor.execute(mClose);
+    }
+
+    /**
+     * Closes the camera on the executor and opens it again if that was asked for meanwhile.
+     */
+    private void close() {
+        try {
+            mDriver.close();
+        } finally {
+            Completion closed;
+            boolean open = false;
+            synchronized (this) {
+                mState = State.CLOSED;
+                closed = mClosing;
+                mClosing = null;
+                if (mWantOpen) {
+                    mState = State.OPENING;
+                    open = true;
+                }
+            }
+            if (null != closed) {
+                closed.finish(false, null);
+            }
+            if (open) {
+                mDriver.open();
+            }
+        }
+    }
+
+    private static Completion done() {
+        Completion completion = new Completion();
+        completion.finish(false, null);
+        return completion;
+    }
+
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of the captures written by a {@link CaptureStorage}, in the order they were
+ * written, so they can be listed without scanning the storage directories. The captures of
+ * earlier runs are added back by {@link CaptureStorage#recover()}.
+ */
+class CaptureIndex {
+
+    /**
+     * A capture that has been written to disk.
+     */
+    static class Entry {
+
+        /**
+         * The unique, monotonic ID of the capture, derived from its sensor timestamp
+         */
+        final long id;
+
+        final File file;
+
+        /**
+         * Size of the file in bytes
+         */
+        final long length;
+
+        Entry(long id, File file, long length) {
+            this.id = id;
+            this.file = file;
+            this.length = length;
+        }
+
+    }
+
+    private final List<Entry> mEntries = new ArrayList<>();
+
+    private final Map<Long, Entry> mEntriesById = new HashMap<>();
+
+    public synchronized void add(long id, File file, long length) {
+        Entry entry = new Entry(id, file, length);
+        mEntries.add(entry);
+        mEntriesById.put(id, entry);
+    }
+
+    /**
+     * Adds captures written before the ones already indexed, such as those of earlier runs.
+     * Captures that are already indexed are skipped.
+     *
+     * @param entries The captures, oldest first
+     */
+    public synchronized void addEarlier(List<Entry> entries) {
+        List<Entry> earlier = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            if (!mEntriesById.containsKey(entry.id)) {
+                earlier.add(entry);
+                mEntriesById.put(entry.id, entry);
+            }
+        }
+        mEntries.addAll(0, earlier);
+    }
+
+    /**
+     * Returns the capture with the given ID, or null if it hasn't been written.
+     */
+    public synchronized Entry get(long id) {
+        return mEntriesById.get(id);
+    }
+
+    /**
+     * Returns the most recently written capture, or null if there is none.
+     */
+    public synchronized Entry getLatest() {
+        return mEntries.isEmpty() ? null : mEntries.get(mEntries.size() - 1);
+    }
+
+    /**
+     * Returns a snapshot of all captures, oldest first.
+     */
+    public synchronized List<Entry> getEntries() {
+        return Collections.unmodifiableList(new ArrayList<>(mEntries));
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only log of the metadata of every captured frame, for debugging in the field.
+ *
+ * Each frame is a fixed-width record of {@link #RECORD_SIZE} bytes written into a memory-mapped
+ * file, so recording one is a handful of stores: it neither allocates nor makes a system call.
+ * Files hold a fixed number of records and are named by an increasing sequence number. When one
+ * is full the journal moves on to the next, and only the newest {@code maxFiles} are kept. A
+ * journal opened again carries on in the newest file while it has room.
+ *
+ * The header of a file counts its records, and the count is updated after each record is
+ * written, so a file left behind by a crash reads up to the last complete record. The journal can
+ * be turned into CSV with {@link #exportCsv(File, Writer)}, on the device or, after pulling the
+ * files, with {@link #main(String[])}.
+ */
+class CaptureJournal {
+
+    static final int HEADER_SIZE = 16;
+
+    static final int RECORD_SIZE = 48;
+
+    private static final int MAGIC = 0x434a524e;
+
+    private static final int VERSION = 1;
+
+    private static final String PREFIX = "journal_";
+
+    private static final String SUFFIX = ".bin";
+
+    private static final String CSV_HEADER = "timestamp_ns,frame_number,exposure_time_ns,"
+            + "frame_duration_ns,sensitivity,focus_distance,af_state,ae_state,awb_state,"
+            + "lens_state\n";
+
+    /**
+     * Offsets in the header
+     */
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_RECORD_SIZE = 8;
+    private static final int HEADER_COUNT = 12;
+
+    /**
+     * Offsets in a record. The last four bytes are padding, so records stay aligned.
+     */
+    private static final int TIMESTAMP = 0;
+    private static final int FRAME_NUMBER = 8;
+    private static final int EXPOSURE_TIME = 16;
+    private static final int FRAME_DURATION = 24;
+    private static final int SENSITIVITY = 32;
+    private static final int FOCUS_DISTANCE = 36;
+    private static final int AF_STATE = 40;
+    private static final int AE_STATE = 41;
+    private static final int AWB_STATE = 42;
+    private static final int LENS_STATE = 43;
+
+    private final File mDir;
+
+    private final int mRecordsPerFile;
+
+    private final int mMaxFiles;
+
+    /**
+     * The file being written, or null once the journal is closed
+     */
+    private MappedByteBuffer mBuffer;
+
+    private int mSequence;
+
+    /**
+     * Number of records in the current file
+     */
+    private int mCount;
+
+    private long mRecordCount;
+
+    /**
+     * Opens the newest file in {@code dir} to append to it, or a new file after it if it is full
+     * or was written with another layout. This touches the disk, so it is best done off the UI
+     * thread.
+     *
+     * @param dir          Where the journal files go
+     * @param maxFileBytes The size of each file
+     * @param maxFiles     The number of files kept, including the one being written
+     */
+    public CaptureJournal(File dir, int maxFileBytes, int maxFiles) throws IOException {
+        mDir = dir;
+        mRecordsPerFile = (maxFileBytes - HEADER_SIZE) / RECORD_SIZE;
+        mMaxFiles = maxFiles;
+        if (mRecordsPerFile <= 0 || maxFiles <= 0) {
+            throw new IllegalArgumentException("Journal too small");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        List<File> files = listFiles(dir);
+        boolean resumed = false;
+        if (!files.isEmpty()) {
+            mSequence = sequenceOf(files.get(files.size() - 1));
+            resumed = resumeFile();
+            if (!resumed) {
+                mSequence++;
+            }
+        }
+        for (File file : files) {
+            if (sequenceOf(file) <= mSequence - mMaxFiles) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        if (!resumed) {
+            openFile();
+        }
+    }
+
+    /**
+     * Appends the metadata of a frame. Called on the camera thread; states that are not known
+     * are passed as -1.
+     */
+    public synchronized void record(long timestampNs, long frameNumber, long exposureTimeNs,
+                                    long frameDurationNs, int sensitivity, float focusDistance,
+                                    int afState, int aeState, int awbState, int lensState) {
+        if (null == mBuffer) {
+            return;
+        }
+        if (mCount == mRecordsPerFile) {
+            mSequence++;
+            try {
+                openFile();
+            } catch (IOException e) {
+                e.printStackTrace();
+                mBuffer = null;
+                return;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            fileOf(mSequence - mMaxFiles).delete();
+        }
+        MappedByteBuffer buffer = mBuffer;
+        int base = HEADER_SIZE + mCount * RECORD_SIZE;
+        buffer.putLong(base + TIMESTAMP, timestampNs);
+        buffer.putLong(base + FRAME_NUMBER, frameNumber);
+        buffer.putLong(base + EXPOSURE_TIME, exposureTimeNs);
+        buffer.putLong(base + FRAME_DURATION, frameDurationNs);
+        buffer.putInt(base + SENSITIVITY, sensitivity);
+        buffer.putFloat(base + FOCUS_DISTANCE, focusDistance);
+        buffer.put(base + AF_STATE, (byte) afState);
+        buffer.put(base + AE_STATE, (byte) aeState);
+        buffer.put(base + AWB_STATE, (byte) awbState);
+        buffer.put(base + LENS_STATE, (byte) lensState);
+        // The record only counts once it is complete.
+        mCount++;
+        buffer.putInt(HEADER_COUNT, mCount);
+        mRecordCount++;
+    }
+
+    /**
+     * Flushes the current file to disk and stops recording.
+     */
+    public synchronized void close() {
+        if (null != mBuffer) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Returns the number of records written since the journal was opened.
+     */
+    public synchronized long getRecordCount() {
+        return mRecordCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "Journal: %d records, file %d\n", mRecordCount,
+                mSequence);
+    }
+
+    private void openFile() throws IOException {
+        mBuffer = map(fileOf(mSequence));
+        mBuffer.putInt(HEADER_MAGIC, MAGIC);
+        mBuffer.putInt(HEADER_VERSION, VERSION);
+        mBuffer.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+        mBuffer.putInt(HEADER_COUNT, 0);
+        mCount = 0;
+    }
+
+    /**
+     * Maps the file {@link #mSequence} to go on writing it, if it has the layout of this journal
+     * and room for more records.
+     *
+     * @return false if a new file is needed
+     */
+    private boolean resumeFile() throws IOException {
+        File file = fileOf(mSequence);
+        if (file.length() != HEADER_SIZE + (long) mRecordsPerFile * RECORD_SIZE) {
+            return false;
+        }
+        MappedByteBuffer buffer = map(file);
+        int count = buffer.getInt(HEADER_COUNT);
+        if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION
+                || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE
+                || count < 0 || count >= mRecordsPerFile) {
+            return false;
+        }
+        mBuffer = buffer;
+        mCount = count;
+        return true;
+    }
+
+    /**
+     * Maps {@code file} at the size of a journal file, growing it if needed.
+     */
+    private MappedByteBuffer map(File file) throws IOException {
+        long length = HEADER_SIZE + (long) mRecordsPerFile * RECORD_SIZE;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try {
+            raf.setLength(length);
+            // The mapping stays valid once the file is closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private File fileOf(int sequence) {
+        return new File(mDir, PREFIX + String.format(Locale.US, "%08d", sequence) + SUFFIX);
+    }
+
+    /**
+     * Returns the journal files in {@code dir}, oldest first.
+     */
+    static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        File[] children = dir.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                if (sequenceOf(child) >= 0) {
+                    files.add(child);
+                }
+            }
+        }
+        // The sequence numbers are zero-padded, so names sort in order.
+        Collections.sort(files);
+        return files;
+    }
+
+    private static int sequenceOf(File file) {
+        String name = file.getName();
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(),
+                    name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes every record of the journal in {@code dir} as CSV, oldest first.
+     *
+     * @return The number of records written
+     */
+    static long exportCsv(File dir, Writer out) throws IOException {
+        out.write(CSV_HEADER);
+        long count = 0;
+        StringBuilder line = new StringBuilder();
+        for (File file : listFiles(dir)) {
+            ByteBuffer buffer = readFile(file);
+            if (buffer.limit() < HEADER_SIZE || buffer.getInt(HEADER_MAGIC) != MAGIC
+                    || buffer.getInt(HEADER_VERSION) != VERSION
+                    || buffer.getInt(HEADER_RECORD_SIZE) != RECORD_SIZE) {
+                throw new IOException("Not a journal file: " + file);
+            }
+            int records = Math.min(buffer.getInt(HEADER_COUNT),
+                    (buffer.limit() - HEADER_SIZE) / RECORD_SIZE);
+            for (int i = 0; i < records; i++) {
+                int base = HEADER_SIZE + i * RECORD_SIZE;
+                line.setLength(0);
+                line.append(buffer.getLong(base + TIMESTAMP)).append(',')
+                        .append(buffer.getLong(base + FRAME_NUMBER)).append(',')
+                        .append(buffer.getLong(base + EXPOSURE_TIME)).append(',')
+                        .append(buffer.getLong(base + FRAME_DURATION)).append(',')
+                        .append(buffer.getInt(base + SENSITIVITY)).append(',')
+                        .append(buffer.getFloat(base + FOCUS_DISTANCE)).append(',')
+                        .append(buffer.get(base + AF_STATE)).append(',')
+                        .append(buffer.get(base + AE_STATE)).append(',')
+                        .append(buffer.get(base + AWB_STATE)).append(',')
+                        .append(buffer.get(base + LENS_STATE)).append('\n');
+                out.append(line);
+            }
+            count += records;
+        }
+        out.flush();
+        return count;
+    }
+
+    private static ByteBuffer readFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // Keep reading
+            }
+            buffer.flip();
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Exports a journal pulled from a device: {@code CaptureJournal <dir> [<out.csv>]}. The CSV
+     * goes to standard output when no file is given.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CaptureJournal <journal dir> [<out.csv>]");
+            System.exit(1);
+        }
+        Writer out = new OutputStreamWriter(args.length == 2
+                ? new FileOutputStream(args[1]) : System.out, "UTF-8");
+        try {
+            exportCsv(new File(args[0]), out);
+        } finally {
+            out.close();
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the metadata of the latest frames, and turns the metadata of a still into an XMP
+ * segment that {@link JpegSplicer} adds to its JPEG.
+ *
+ * Recording happens on the camera thread for every frame, so it only stores primitives into a
+ * ring of {@link #CAPACITY} entries. The segment is built when the still is saved, which can wait
+ * a little for a capture result that hasn't arrived yet. A still whose capture result doesn't come
+ * in time, or has already been overwritten, only gets the fields that do not depend on the frame.
+ */
+class CaptureMetadata {
+
+    /**
+     * Number of frames remembered
+     */
+    static final int CAPACITY = 32;
+
+    private static final String NS_EXIF = "http://ns.adobe.com/exif/1.0/";
+
+    private static final String NS_APP = "http://example.com/camera2basic/1.0/";
+
+    private final long[] mTimestamps = new long[CAPACITY];
+
+    private final long[] mFrameNumbers = new long[CAPACITY];
+
+    private final long[] mExposureTimes = new long[CAPACITY];
+
+    private final int[] mSensitivities = new int[CAPACITY];
+
+    private final float[] mFocusDistances = new float[CAPACITY];
+
+    /**
+     * The number of frames recorded so far
+     */
+    private long mCount;
+
+    /**
+     * Who is operating the camera, or null
+     */
+    private String mOperatorId;
+
+    private boolean mHasLocation;
+
+    private double mLatitude;
+
+    private double mLongitude;
+
+    /**
+     * Remembers the metadata of a frame.
+     *
+     * @param timestampNs    The sensor timestamp
+     * @param frameNumber    The frame number of the capture result
+     * @param exposureTimeNs The exposure time, or 0 if unknown
+     * @param sensitivity    The ISO sensitivity, or 0 if unknown
+     * @param focusDistance  The focus distance in diopters, or NaN if unknown
+     */
+    public synchronized void record(long timestampNs, long frameNumber, long exposureTimeNs,
+                                    int sensitivity, float focusDistance) {
+        int slot = (int) (mCount++ % CAPACITY);
+        mTimestamps[slot] = timestampNs;
+        mFrameNumbers[slot] = frameNumber;
+        mExposureTimes[slot] = exposureTimeNs;
+        mSensitivities[slot] = sensitivity;
+        mFocusDistances[slot] = focusDistance;
+        notifyAll();
+    }
+
+    public synchronized void setOperatorId(String operatorId) {
+        mOperatorId = operatorId;
+    }
+
+    /**
+     * Sets where the next stills are taken, in degrees.
+     */
+    public synchronized void setLocation(double latitude, double longitude) {
+        mHasLocation = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    public synchronized void clearLocation() {
+        mHasLocation = false;
+    }
+
+    /**
+     * Returns the segments to add to the still with the given timestamp, or null if there is
+     * nothing to add.
+     */
+    public ByteBuffer[] getSegments(long timestampNs) {
+        String packet = toXmp(timestampNs);
+        return null == packet ? null : new ByteBuffer[]{JpegSplicer.xmpSegment(packet)};
+    }
+
+    /**
+     * Returns the segments to add to the still with the given timestamp once its capture result
+     * has been recorded, or null if there is nothing to add.
+     *
+     * @param timeoutMs How long to wait for the capture result before building the segments
+     *                  without it
+     */
+    public ByteBuffer[] awaitSegments(long timestampNs, long timeoutMs)
+            throws InterruptedException {
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            long remaining;
+            while (find(timestampNs) < 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return getSegments(timestampNs);
+    }
+
+    /**
+     * Returns the XMP packet of the still with the given timestamp, or null if there is nothing
+     * known about it.
+     */
+    synchronized String toXmp(long timestampNs) {
+        int slot = find(timestampNs);
+        if (slot < 0 && null == mOperatorId && !mHasLocation) {
+            return null;
+        }
+        StringBuilder xmp = new StringBuilder(1024);
+        xmp.append("<?xpacket begin=\"\uFEFF\" id=\"W5M0MpCehiHzreSzNTczkc9d\"?>\n")
+                .append("<x:xmpmeta xmlns:x=\"adobe:ns:meta/\">\n")
+                .append("<rdf:RDF xmlns:rdf=\"http://www.w3.org/1999/02/22-rdf-syntax-ns#\">\n")
+                .append("<rdf:Description rdf:about=\"\" xmlns:exif=\"").append(NS_EXIF)
+                .append("\" xmlns:app=\"").append(NS_APP).append("\"");
+        attribute(xmp, "app:SensorTimestamp", Long.toString(timestampNs));
+        if (slot >= 0) {
+            attribute(xmp, "app:FrameNumber", Long.toString(mFrameNumbers[slot]));
+            if (mExposureTimes[slot] > 0) {
+                attribute(xmp, "exif:ExposureTime", rational(mExposureTimes[slot], 1000000000L));
+            }
+            if (!Float.isNaN(mFocusDistances[slot])) {
+                attribute(xmp, "app:FocusDistance",
+                        String.format(Locale.US, "%.4f", mFocusDistances[slot]));
+            }
+        }
+        if (null != mOperatorId) {
+            attribute(xmp, "app:OperatorId", mOperatorId);
+        }
+        if (mHasLocation) {
+            attribute(xmp, "exif:GPSLatitude", coordinate(mLatitude, 'N', 'S'));
+            attribute(xmp, "exif:GPSLongitude", coordinate(mLongitude, 'E', 'W'));
+        }
+        if (slot >= 0 && mSensitivities[slot] > 0) {
+            xmp.append(">\n<exif:ISOSpeedRatings><rdf:Seq><rdf:li>").append(mSensitivities[slot])
+                    .append("</rdf:li></rdf:Seq></exif:ISOSpeedRatings>\n</rdf:Description>\n");
+        } else {
+            xmp.append("/>\n");
+        }
+        return xmp.append("</rdf:RDF>\n</x:xmpmeta>\n<?xpacket end=\"w\"?>").toString();
+    }
+
+    private int find(long timestampNs) {
+        for (int i = 0; i < CAPACITY && i < mCount; i++) {
+            if (mTimestamps[i] == timestampNs) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void attribute(StringBuilder xmp, String name, String value) {
+        xmp.append("\n    ").append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    xmp.append("&amp;");
+                    break;
+                case '<':
+                    xmp.append("&lt;");
+                    break;
+                case '>':
+                    xmp.append("&gt;");
+                    break;
+                case '"':
+                    xmp.append("&quot;");
+                    break;
+                default:
+                    xmp.append(c);
+            }
+        }
+        xmp.append('"');
+    }
+
+    /**
+     * Formats {@code numerator / denominator} in lowest terms, as XMP rationals are written.
+     */
+    static String rational(long numerator, long denominator) {
+        long a = numerator;
+        long b = denominator;
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return (numerator / a) + "/" + (denominator / a);
+    }
+
+    /**
+     * Formats a coordinate as XMP GPS coordinates are written: "DDD,MM.mmmmmmK".
+     */
+    static String coordinate(double degrees, char positive, char negative) {
+        double abs = Math.abs(degrees);
+        int whole = (int) abs;
+        return String.format(Locale.US, "%d,%09.6f%c", whole, (abs - whole) * 60,
+                degrees < 0 ? negative : positive);
+    }
+
+}
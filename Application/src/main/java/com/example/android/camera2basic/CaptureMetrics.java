@@ -0,0 +1,132 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Where the time goes between pressing the shutter and the picture being on disk.
+ *
+ * Each {@link Stage} of a capture is marked as it happens, and the time since the shutter was
+ * pressed is recorded into a {@link LatencyHistogram} for that stage. Marking does not lock or
+ * allocate.
+ */
+class CaptureMetrics {
+
+    enum Stage {
+
+        /**
+         * The picture button was clicked.
+         */
+        SHUTTER,
+
+        /**
+         * The auto-focus trigger was sent.
+         */
+        AF_TRIGGERED,
+
+        /**
+         * Auto-focus locked, or gave up.
+         */
+        AF_LOCKED,
+
+        /**
+         * The auto-exposure precapture trigger was sent.
+         */
+        PRECAPTURE_STARTED,
+
+        /**
+         * Auto-exposure converged and the picture can be taken.
+         */
+        AE_CONVERGED,
+
+        /**
+         * The still capture request was submitted.
+         */
+        CAPTURE_SUBMITTED,
+
+        /**
+         * The still capture request completed.
+         */
+        CAPTURE_COMPLETED,
+
+        /**
+         * The image reached the {@link android.media.ImageReader}.
+         */
+        IMAGE_AVAILABLE,
+
+        /**
+         * The image was written to disk.
+         */
+        IMAGE_SAVED
+
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * When the shutter of the latest capture was pressed, in nanoseconds
+     */
+    private final AtomicLong mShutterNs = new AtomicLong();
+
+    public CaptureMetrics() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Marks that {@code stage} of the latest capture happened at {@code nowNs}. Marking
+     * {@link Stage#SHUTTER} starts a new capture.
+     */
+    public void mark(Stage stage, long nowNs) {
+        if (stage == Stage.SHUTTER) {
+            mShutterNs.set(nowNs);
+            return;
+        }
+        long shutterNs = mShutterNs.get();
+        if (shutterNs != 0) {
+            mHistograms[stage.ordinal()].record(nowNs - shutterNs);
+        }
+    }
+
+    /**
+     * Returns the histogram of the time from the shutter to {@code stage}.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mHistograms) {
+            histogram.reset();
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            if (histogram.getCount() > 0) {
+                builder.append(stage).append(": ").append(histogram).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+}
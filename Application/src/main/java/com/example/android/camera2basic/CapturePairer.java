@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pairs frames, such as RAW {@link android.media.Image}s, with their capture results by sensor
+ * timestamp. Either half may arrive first.
+ *
+ * Both halves are delivered in capture order, so a frame still waiting when a later result
+ * arrives will never get its own, and neither will a result still waiting when a later frame
+ * arrives. Such halves are dropped, frames closed, and at most {@code capacity} of each are held
+ * even when results or buffers are lost.
+ */
+class CapturePairer<F extends CapturePairer.Frame, R> {
+
+    /**
+     * A frame waiting for its result.
+     */
+    interface Frame {
+
+        /**
+         * Returns the sensor timestamp of the frame, in nanoseconds.
+         */
+        long getTimestamp();
+
+        /**
+         * Releases the frame. Called when the frame is dropped.
+         */
+        void close();
+
+    }
+
+    private final int mCapacity;
+
+    private final TreeMap<Long, F> mFrames = new TreeMap<>();
+
+    private final TreeMap<Long, R> mResults = new TreeMap<>();
+
+    public CapturePairer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds a frame. If its result has already arrived, the frame is not kept.
+     *
+     * @return The result of the frame, or null if it is not there yet
+     */
+    public synchronized R addFrame(F frame) {
+        long timestamp = frame.getTimestamp();
+        mResults.headMap(timestamp).clear();
+        R result = mResults.remove(timestamp);
+        if (null != result) {
+            return result;
+        }
+        F replaced = mFrames.put(timestamp, frame);
+        if (null != replaced) {
+            replaced.close();
+        }
+        while (mFrames.size() > mCapacity) {
+            mFrames.pollFirstEntry().getValue().close();
+        }
+        return null;
+    }
+
+    /**
+     * Adds a capture result. If its frame has already arrived, the result is not kept.
+     *
+     * @return The frame of the result, which the caller now owns, or null if it is not there yet
+     */
+    public synchronized F addResult(long timestamp, R result) {
+        Map<Long, F> stale = mFrames.headMap(timestamp);
+        for (F frame : stale.values()) {
+            frame.close();
+        }
+        stale.clear();
+        F frame = mFrames.remove(timestamp);
+        if (null != frame) {
+            return frame;
+        }
+        mResults.put(timestamp, result);
+        while (mResults.size() > mCapacity) {
+            mResults.pollFirstEntry();
+        }
+        return null;
+    }
+
+    /**
+     * Drops everything waiting, such as when a capture failed and its halves can't be told
+     * apart from the others.
+     */
+    public synchronized void clear() {
+        for (F frame : mFrames.values()) {
+            frame.close();
+        }
+        mFrames.clear();
+        mResults.clear();
+    }
+
+    public synchronized int getFrameCount() {
+        return mFrames.size();
+    }
+
+    public synchronized int getResultCount() {
+        return mResults.size();
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * What happens to frames once they leave their {@link FrameSource}. Stills are named by a
+ * {@link CaptureStorage}, encoded by a {@link JpegEncoder} if they are YUV, given the XMP of a
+ * {@link CaptureMetadata}, and written by an {@link ImageSaveQueue}. Preview frames are offered
+ * to a {@link FrameAnalysisPipeline}.
+ *
+ * The pipeline doesn't care where frames come from, so the same path that saves the pictures of
+ * the camera can be load tested with a {@link ReplayFrameSource}.
+ */
+class CapturePipeline {
+
+    /**
+     * How long saving a still waits for its capture result before writing the XMP without it
+     */
+    static final long METADATA_WAIT_MS = 200;
+
+    private final CaptureStorage mStorage;
+
+    private final ImageSaveQueue mSaveQueue;
+
+    private final JpegEncoder mEncoder;
+
+    private final ByteBufferPool mStagingBufferPool;
+
+    private final FrameAnalysisPipeline mAnalysis;
+
+    /**
+     * Notified as stills reach the disk, or null
+     */
+    private volatile ImageSaver.Callback mCallback;
+
+    /**
+     * Provides the XMP segment added to each still, or null
+     */
+    private volatile CaptureMetadata mMetadata;
+
+    public CapturePipeline(CaptureStorage storage, ImageSaveQueue saveQueue, JpegEncoder encoder,
+                           ByteBufferPool stagingBufferPool, FrameAnalysisPipeline analysis) {
+        mStorage = storage;
+        mSaveQueue = saveQueue;
+        mEncoder = encoder;
+        mStagingBufferPool = stagingBufferPool;
+        mAnalysis = analysis;
+    }
+
+    public void setCallback(ImageSaver.Callback callback) {
+        mCallback = callback;
+    }
+
+    public void setMetadata(CaptureMetadata metadata) {
+        mMetadata = metadata;
+    }
+
+    /**
+     * Queues a still to be saved as a JPEG. The pipeline takes over the frame and closes it.
+     *
+     * @return Where the still will be saved, or null if it was dropped
+     */
+    public CaptureStorage.Output save(FrameSource.Frame frame) {
+        return save(frame, 0);
+    }
+
+    /**
+     * Queues a still to be saved as a JPEG. The pipeline takes over the frame and closes it.
+     *
+     * @param orientation The clockwise rotation that makes a YUV frame upright, recorded in an
+     *                    Exif segment since the encoder doesn't rotate. Frames the camera already
+     *                    encoded carry their own.
+     * @return Where the still will be saved, or null if it was dropped
+     */
+    public CaptureStorage.Output save(FrameSource.Frame frame, int orientation) {
+        CaptureStorage.Output output;
+        try {
+            output = mStorage.newOutput(frame.getTimestampNs(), "jpg");
+        } catch (IOException e) {
+            e.printStackTrace();
+            frame.close();
+            return null;
+        }
+        boolean yuv = frame.getFormat() == FrameSource.FORMAT_YUV_420_888;
+        YuvJpegSource yuvSource = yuv ? new YuvJpegSource(frame, mEncoder) : null;
+        ImageSaver saver = new ImageSaver(yuv ? yuvSource : new EncodedSource(frame), output,
+                mStagingBufferPool);
+        saver.setCallback(mCallback);
+        CaptureMetadata metadata = mMetadata;
+        if (yuv || null != metadata) {
+            saver.setSegments(new StillSegments(yuvSource, orientation, metadata,
+                    frame.getTimestampNs()));
+        }
+        return mSaveQueue.submit(saver) ? output : null;
+    }
+
+    /**
+     * Offers the luma of a preview frame for analysis. The frame stays with the caller.
+     */
+    public void analyze(FrameSource.Frame frame) {
+        JpegEncoder.Plane luma = frame.getPlane(0);
+        mAnalysis.offer(frame.getTimestampNs(), frame.getWidth(), frame.getHeight(),
+                luma.buffer, luma.rowStride, luma.pixelStride);
+    }
+
+    /**
+     * Builds the segments of a still when it is saved, by which time a YUV still has its
+     * thumbnail and its capture result has usually been recorded: an Exif segment with the
+     * orientation and thumbnail of a YUV still, then the XMP.
+     */
+    private static class StillSegments implements ImageSaver.Segments {
+
+        /**
+         * The encoder of a YUV still, or null if the camera encoded it
+         */
+        private final YuvJpegSource mYuvSource;
+
+        private final int mOrientation;
+
+        /**
+         * Where the XMP comes from, or null
+         */
+        private final CaptureMetadata mMetadata;
+
+        private final long mTimestampNs;
+
+        StillSegments(YuvJpegSource yuvSource, int orientation, CaptureMetadata metadata,
+                      long timestampNs) {
+            mYuvSource = yuvSource;
+            mOrientation = orientation;
+            mMetadata = metadata;
+            mTimestampNs = timestampNs;
+        }
+
+        @Override
+        public ByteBuffer[] get() throws InterruptedException {
+            List<ByteBuffer> segments = new ArrayList<>();
+            if (null != mYuvSource) {
+                segments.add(JpegSplicer.exifSegment(mOrientation, mYuvSource.getThumbnail()));
+            }
+            ByteBuffer[] xmp = null == mMetadata ? null
+                    : mMetadata.awaitSegments(mTimestampNs, METADATA_WAIT_MS);
+            if (null != xmp) {
+                segments.addAll(Arrays.asList(xmp));
+            }
+            return segments.isEmpty() ? null : segments.toArray(new ByteBuffer[segments.size()]);
+        }
+
+    }
+
+    /**
+     * Exposes the bytes of a frame the camera already encoded.
+     */
+    private static class EncodedSource implements ImageSaver.Source {
+
+        private final FrameSource.Frame mFrame;
+
+        EncodedSource(FrameSource.Frame frame) {
+            mFrame = frame;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mFrame.getPlane(0).buffer;
+        }
+
+        @Override
+        public void close() {
+            mFrame.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * The focus and exposure lock sequence for taking a still picture, as a table-driven state
+ * machine.
+ *
+ * It is fed the AF and AE states of capture results and answers with the {@link Action} to take
+ * next. Every state has a timeout, so a device that never reports the state we wait for still
+ * takes the picture. The machine is not thread-safe: all calls must be made on the thread that
+ * receives capture results.
+ */
+class CaptureStateMachine {
+
+    /**
+     * Value passed for an AF or AE state the device did not report.
+     */
+    static final int UNKNOWN = -1;
+
+    // These mirror the values of the CaptureResult constants, so that this class doesn't depend
+    // on the Android framework.
+
+    static final int AF_STATE_FOCUSED_LOCKED = 4;
+
+    static final int AF_STATE_NOT_FOCUSED_LOCKED = 5;
+
+    static final int AE_STATE_CONVERGED = 2;
+
+    static final int AE_STATE_FLASH_REQUIRED = 4;
+
+    static final int AE_STATE_PRECAPTURE = 5;
+
+    enum State {
+
+        /**
+         * Showing camera preview.
+         */
+        PREVIEW,
+
+        /**
+         * Waiting for the focus to be locked.
+         */
+        WAITING_LOCK,
+
+        /**
+         * Waiting for the exposure to be precapture state.
+         */
+        WAITING_PRECAPTURE,
+
+        /**
+         * Waiting for the exposure state to be something other than precapture.
+         */
+        WAITING_NON_PRECAPTURE,
+
+        /**
+         * Picture was taken.
+         */
+        PICTURE_TAKEN
+
+    }
+
+    enum Action {
+
+        /**
+         * Nothing to do.
+         */
+        NONE,
+
+        /**
+         * Trigger auto-focus.
+         */
+        LOCK_FOCUS,
+
+        /**
+         * Trigger the auto-exposure precapture sequence.
+         */
+        RUN_PRECAPTURE,
+
+        /**
+         * Capture the still picture.
+         */
+        CAPTURE,
+
+        /**
+         * Cancel the AF trigger and resume the preview.
+         */
+        UNLOCK
+
+    }
+
+    /**
+     * A condition on the AF and AE states of a capture result.
+     */
+    private enum Condition {
+
+        AF_UNKNOWN {
+            @Override
+            boolean matches(int afState, int aeState) {
+                return afState == UNKNOWN;
+            }
+        },
+
+        AF_LOCKED_AE_READY {
+            @Override
+            boolean matches(int afState, int aeState) {
+                return isAfLocked(afState)
+                        && (aeState == UNKNOWN || aeState == AE_STATE_CONVERGED);
+            }
+        },
+
+        AF_LOCKED {
+            @Override
+            boolean matches(int afState, int aeState) {
+                return isAfLocked(afState);
+            }
+        },
+
+        AE_PRECAPTURE_STARTED {
+            @Override
+            boolean matches(int afState, int aeState) {
+                return aeState == UNKNOWN || aeState == AE_STATE_PRECAPTURE
+                        || aeState == AE_STATE_FLASH_REQUIRED;
+            }
+        },
+
+        AE_NOT_PRECAPTURE {
+            @Override
+            boolean matches(int afState, int aeState) {
+                return aeState == UNKNOWN || aeState != AE_STATE_PRECAPTURE;
+            }
+        };
+
+        abstract boolean matches(int afState, int aeState);
+
+        private static boolean isAfLocked(int afState) {
+            return afState == AF_STATE_FOCUSED_LOCKED || afState == AF_STATE_NOT_FOCUSED_LOCKED;
+        }
+
+    }
+
+    private static final int STATE_COUNT = State.values().length;
+
+    /**
+     * A row of the transition table.
+     */
+    private static class Transition {
+
+        final Condition condition;
+
+        final State next;
+
+        final Action action;
+
+        Transition(Condition condition, State next, Action action) {
+            this.condition = condition;
+            this.next = next;
+            this.action = action;
+        }
+
+    }
+
+    /**
+     * Transitions taken on a capture result, indexed by state. The first matching row wins.
+     */
+    private static final Transition[][] RESULT_TRANSITIONS = new Transition[STATE_COUNT][];
+
+    /**
+     * Transitions taken when a state times out, indexed by state.
+     */
+    private static final Transition[] TIMEOUT_TRANSITIONS = new Transition[STATE_COUNT];
+
+    static {
+        RESULT_TRANSITIONS[State.PREVIEW.ordinal()] = new Transition[0];
+        RESULT_TRANSITIONS[State.WAITING_LOCK.ordinal()] = new Transition[]{
+                new Transition(Condition.AF_UNKNOWN, State.PICTURE_TAKEN, Action.CAPTURE),
+                new Transition(Condition.AF_LOCKED_AE_READY, State.PICTURE_TAKEN, Action.CAPTURE),
+                new Transition(Condition.AF_LOCKED, State.WAITING_PRECAPTURE,
+                        Action.RUN_PRECAPTURE),
+        };
+        RESULT_TRANSITIONS[State.WAITING_PRECAPTURE.ordinal()] = new Transition[]{
+                new Transition(Condition.AE_PRECAPTURE_STARTED, State.WAITING_NON_PRECAPTURE,
+                        Action.NONE),
+        };
+        RESULT_TRANSITIONS[State.WAITING_NON_PRECAPTURE.ordinal()] = new Transition[]{
+                new Transition(Condition.AE_NOT_PRECAPTURE, State.PICTURE_TAKEN, Action.CAPTURE),
+        };
+        // Leaving PICTURE_TAKEN is driven by the capture completing, not by preview results.
+        RESULT_TRANSITIONS[State.PICTURE_TAKEN.ordinal()] = new Transition[0];
+
+        // Focus that never locks still gets its exposure metered and the picture taken.
+        TIMEOUT_TRANSITIONS[State.WAITING_LOCK.ordinal()] =
+                new Transition(null, State.WAITING_PRECAPTURE, Action.RUN_PRECAPTURE);
+        TIMEOUT_TRANSITIONS[State.WAITING_PRECAPTURE.ordinal()] =
+                new Transition(null, State.WAITING_NON_PRECAPTURE, Action.NONE);
+        TIMEOUT_TRANSITIONS[State.WAITING_NON_PRECAPTURE.ordinal()] =
+                new Transition(null, State.PICTURE_TAKEN, Action.CAPTURE);
+        TIMEOUT_TRANSITIONS[State.PICTURE_TAKEN.ordinal()] =
+                new Transition(null, State.PREVIEW, Action.UNLOCK);
+    }
+
+    /**
+     * Default time allowed in each state before timing out, in milliseconds. Zero means never.
+     */
+    private static final long[] DEFAULT_TIMEOUTS_MS = {
+            0,      // PREVIEW
+            3000,   // WAITING_LOCK
+            1000,   // WAITING_PRECAPTURE
+            3000,   // WAITING_NON_PRECAPTURE
+            5000,   // PICTURE_TAKEN
+    };
+
+    private final long[] mTimeoutsNs = new long[STATE_COUNT];
+
+    private State mState = State.PREVIEW;
+
+    /**
+     * When the current state was entered, in nanoseconds
+     */
+    private long mStateEnteredNs;
+
+    // Per-transition counters, indexed by [from][to] ordinals.
+
+    private final long[][] mTransitionCounts = new long[STATE_COUNT][STATE_COUNT];
+
+    private final long[][] mTransitionTotalNs = new long[STATE_COUNT][STATE_COUNT];
+
+    private final long[][] mTransitionMaxNs = new long[STATE_COUNT][STATE_COUNT];
+
+    private final long[] mTimeoutCounts = new long[STATE_COUNT];
+
+    public CaptureStateMachine() {
+        for (State state : State.values()) {
+            setTimeout(state, DEFAULT_TIMEOUTS_MS[state.ordinal()]);
+        }
+    }
+
+    /**
+     * Sets how long the machine may stay in {@code state}, in milliseconds. Zero disables the
+     * timeout.
+     */
+    public void setTimeout(State state, long timeoutMs) {
+        mTimeoutsNs[state.ordinal()] = timeoutMs * 1000000L;
+    }
+
+    /**
+     * Returns how long the machine may stay in {@code state}, in milliseconds.
+     */
+    public long getTimeoutMs(State state) {
+        return mTimeoutsNs[state.ordinal()] / 1000000L;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    /**
+     * Starts taking a picture. Ignored unless the preview is showing.
+     */
+    public Action start(long nowNs) {
+        if (mState != State.PREVIEW) {
+            return Action.NONE;
+        }
+        moveTo(State.WAITING_LOCK, nowNs);
+        return Action.LOCK_FOCUS;
+    }
+
+    /**
+     * Processes the AF and AE states of a capture result.
+     *
+     * @param afState The CONTROL_AF_STATE of the result, or {@link #UNKNOWN}
+     * @param aeState The CONTROL_AE_STATE of the result, or {@link #UNKNOWN}
+     * @param nowNs   The current time, in nanoseconds
+     */
+    public Action onResult(int afState, int aeState, long nowNs) {
+        Action timeout = onTick(nowNs);
+        if (timeout != Action.NONE) {
+            return timeout;
+        }
+        for (Transition transition : RESULT_TRANSITIONS[mState.ordinal()]) {
+            if (transition.condition.matches(afState, aeState)) {
+                moveTo(transition.next, nowNs);
+                return transition.action;
+            }
+        }
+        return Action.NONE;
+    }
+
+    /**
+     * Times out the current state if it has lasted too long.
+     */
+    public Action onTick(long nowNs) {
+        long timeoutNs = mTimeoutsNs[mState.ordinal()];
+        Transition transition = TIMEOUT_TRANSITIONS[mState.ordinal()];
+        if (null == transition || timeoutNs <= 0 || nowNs - mStateEnteredNs < timeoutNs) {
+            return Action.NONE;
+        }
+        mTimeoutCounts[mState.ordinal()]++;
+        moveTo(transition.next, nowNs);
+        return transition.action;
+    }
+
+    /**
+     * Abandons any picture in progress, such as when the camera is reopened.
+     */
+    public void reset(long nowNs) {
+        if (mState != State.PREVIEW) {
+            moveTo(State.PREVIEW, nowNs);
+        }
+    }
+
+    /**
+     * Called once the still capture has completed or failed.
+     */
+    public Action onCaptureDone(long nowNs) {
+        if (mState != State.PICTURE_TAKEN) {
+            return Action.NONE;
+        }
+        moveTo(State.PREVIEW, nowNs);
+        return Action.UNLOCK;
+    }
+
+    /**
+     * Returns how many times the machine went from {@code from} to {@code to}.
+     */
+    public long getTransitionCount(State from, State to) {
+        return mTransitionCounts[from.ordinal()][to.ordinal()];
+    }
+
+    /**
+     * Returns the mean time spent in {@code from} before moving to {@code to}, in nanoseconds.
+     */
+    public long getMeanTransitionLatencyNs(State from, State to) {
+        long count = mTransitionCounts[from.ordinal()][to.ordinal()];
+        return count == 0 ? 0 : mTransitionTotalNs[from.ordinal()][to.ordinal()] / count;
+    }
+
+    /**
+     * Returns the longest time spent in {@code from} before moving to {@code to}, in nanoseconds.
+     */
+    public long getMaxTransitionLatencyNs(State from, State to) {
+        return mTransitionMaxNs[from.ordinal()][to.ordinal()];
+    }
+
+    /**
+     * Returns how many times {@code state} timed out.
+     */
+    public long getTimeoutCount(State state) {
+        return mTimeoutCounts[state.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("CaptureStateMachine{state=").append(mState);
+        for (State from : State.values()) {
+            for (State to : State.values()) {
+                long count = getTransitionCount(from, to);
+                if (count > 0) {
+                    builder.append(String.format(Locale.US, ", %s->%s: %d x %.1f ms (max %.1f)",
+                            from, to, count, getMeanTransitionLatencyNs(from, to) / 1e6,
+                            getMaxTransitionLatencyNs(from, to) / 1e6));
+                }
+            }
+            if (getTimeoutCount(from) > 0) {
+                builder.append(", ").append(from).append(" timeouts: ")
+                        .append(getTimeoutCount(from));
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private void moveTo(State next, long nowNs) {
+        int from = mState.ordinal();
+        int to = next.ordinal();
+        long latencyNs = nowNs - mStateEnteredNs;
+        mTransitionCounts[from][to]++;
+        mTransitionTotalNs[from][to] += latencyNs;
+        if (latencyNs > mTransitionMaxNs[from][to]) {
+            mTransitionMaxNs[from][to] = latencyNs;
+        }
+        mState = next;
+        mStateEnteredNs = nowNs;
+    }
+
+}
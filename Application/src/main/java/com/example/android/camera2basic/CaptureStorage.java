@@ -0,0 +1,454 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides where captures are stored and keeps a {@link CaptureIndex} of what has been written.
+ *
+ * Captures are named after their sensor timestamp, bumped when needed so that names are unique
+ * and increase monotonically. They are sharded first by date and then into directories of at
+ * most {@link #FILES_PER_SHARD} files:
+ *
+ * <pre>
+ * root/20170301/0000/IMG_123456789012.jpg
+ * root/20170301/0001/...
+ * </pre>
+ *
+ * Files can be reserved ahead of a burst with {@link #reserve(int, long)}, so that creating and
+ * allocating them is not paid for while frames are arriving.
+ *
+ * A capture is written to a hidden file next to its final location and renamed into place by a
+ * {@link FileCommitter}, so a capture is either complete or missing. Hidden files left behind by a
+ * crash are deleted by {@link #recover()}, which also indexes the captures of earlier runs and
+ * makes sure new names come after theirs.
+ */
+class CaptureStorage {
+
+    /**
+     * Maximum number of captures in a single shard directory
+     */
+    static final int FILES_PER_SHARD = 1000;
+
+    private static final String PREFIX = "IMG_";
+
+    private static final String RESERVED_PREFIX = ".reserved_";
+
+    private static final String PENDING_PREFIX = ".pending_";
+
+    /**
+     * Commits outputs that are not part of any storage
+     */
+    private static final FileCommitter IMMEDIATE = new FileCommitter(FileCommitter.Policy.NONE);
+
+    /**
+     * Allocates disk space for a reserved file.
+     */
+    interface Preallocator {
+
+        void preallocate(RandomAccessFile file, long length) throws IOException;
+
+    }
+
+    /**
+     * Sets the length of the file. On most file systems this only creates a sparse file, but it
+     * still moves the cost of creating the file out of the burst.
+     */
+    static final Preallocator SET_LENGTH = new Preallocator() {
+        @Override
+        public void preallocate(RandomAccessFile file, long length) throws IOException {
+            file.setLength(length);
+        }
+    };
+
+    /**
+     * Where a capture goes. The bytes are written to {@link #getWriteFile()}, and then
+     * {@link #commit(long, ImageSaver.Callback)} moves them to {@link #getFile()}.
+     */
+    static class Output {
+
+        private final CaptureStorage mStorage;
+
+        private final long mId;
+
+        private final File mFile;
+
+        private final File mWriteFile;
+
+        /**
+         * An output that is not part of any storage. It is committed as soon as it is written.
+         */
+        Output(File file) {
+            this(null, 0, file, new File(file.getParentFile(), PENDING_PREFIX + file.getName()));
+        }
+
+        Output(CaptureStorage storage, long id, File file, File writeFile) {
+            mStorage = storage;
+            mId = id;
+            mFile = file;
+            mWriteFile = writeFile;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the final location of the capture.
+         */
+        public File getFile() {
+            return mFile;
+        }
+
+        /**
+         * Returns the file the bytes should be written to. This may be a reserved file that is
+         * longer than the capture, so writers must truncate it.
+         */
+        public File getWriteFile() {
+            return mWriteFile;
+        }
+
+        /**
+         * Called once every byte is written to {@link #getWriteFile()}, before it is closed.
+         */
+        public void onWritten(FileChannel channel) throws IOException {
+            getCommitter().onWritten(channel);
+        }
+
+        /**
+         * Hands the written and closed capture to the {@link FileCommitter} of the storage,
+         * which moves it into place now or with a later group.
+         *
+         * @param length   The number of bytes written
+         * @param callback Notified once the capture is in place, or null
+         */
+        public void commit(long length, ImageSaver.Callback callback) {
+            getCommitter().commit(this, length, callback);
+        }
+
+        /**
+         * Moves the written bytes into place right away and records the capture in the index.
+         *
+         * @param length The number of bytes written
+         */
+        public void commit(long length) throws IOException {
+            if (!mWriteFile.equals(mFile) && !mWriteFile.renameTo(mFile)) {
+                throw new IOException("Failed to rename " + mWriteFile + " to " + mFile);
+            }
+            if (null != mStorage) {
+                mStorage.release(mWriteFile);
+                mStorage.mIndex.add(mId, mFile, length);
+            }
+        }
+
+        /**
+         * Deletes whatever was written of a capture that failed.
+         */
+        public void abort() {
+            //noinspection ResultOfMethodCallIgnored
+            mWriteFile.delete();
+            if (null != mStorage) {
+                mStorage.release(mWriteFile);
+            }
+        }
+
+        private FileCommitter getCommitter() {
+            return null == mStorage ? IMMEDIATE : mStorage.mCommitter;
+        }
+
+        @Override
+        public String toString() {
+            return mFile.toString();
+        }
+
+    }
+
+    private final File mRoot;
+
+    private final Preallocator mPreallocator;
+
+    private final CaptureIndex mIndex = new CaptureIndex();
+
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("yyyyMMdd", Locale.US);
+
+    /**
+     * Files reserved by {@link #reserve(int, long)} that have not been used yet
+     */
+    private final Deque<File> mReserved = new ArrayDeque<>();
+
+    /**
+     * Write files handed out by {@link #newOutput} that are not committed or aborted yet
+     */
+    private final Set<File> mPending = new HashSet<>();
+
+    private volatile FileCommitter mCommitter = IMMEDIATE;
+
+    private long mLastId;
+
+    private String mDay;
+
+    private File mShardDir;
+
+    private int mShard;
+
+    /**
+     * Number of files in {@link #mShardDir}, including reserved ones
+     */
+    private int mShardCount;
+
+    private int mReservationCount;
+
+    public CaptureStorage(File root, Preallocator preallocator) {
+        mRoot = root;
+        mPreallocator = preallocator;
+    }
+
+    public CaptureIndex getIndex() {
+        return mIndex;
+    }
+
+    /**
+     * Sets when captures are synced and moved into place. Captures already handed to the
+     * previous committer stay with it.
+     */
+    public void setCommitter(FileCommitter committer) {
+        mCommitter = committer;
+    }
+
+    public FileCommitter getCommitter() {
+        return mCommitter;
+    }
+
+    /**
+     * Returns where to store a capture with the given sensor timestamp.
+     *
+     * @param timestampNs The sensor timestamp of the capture, in nanoseconds
+     * @param extension   The file extension, such as "jpg"
+     */
+    public synchronized Output newOutput(long timestampNs, String extension) throws IOException {
+        long id = Math.max(timestampNs, mLastId + 1);
+        // A reserved file is renamed in place, so the capture goes into its shard.
+        File reserved = mReserved.poll();
+        File dir = null == reserved ? nextShardSlot() : reserved.getParentFile();
+        File file = new File(dir, PREFIX + id + "." + extension);
+        // Sensor timestamps restart from zero when the device reboots.
+        while (file.exists()) {
+            id++;
+            file = new File(dir, PREFIX + id + "." + extension);
+        }
+        mLastId = id;
+        File writeFile = null == reserved ? new File(dir, PENDING_PREFIX + file.getName())
+                : reserved;
+        mPending.add(writeFile);
+        return new Output(this, id, file, writeFile);
+    }
+
+    /**
+     * Creates and preallocates {@code count} files to be used by the next captures.
+     *
+     * @param count       The number of files to reserve
+     * @param lengthBytes The expected size of each capture
+     */
+    public void reserve(int count, long lengthBytes) throws IOException {
+        for (int i = 0; i < count; i++) {
+            // Only the name is taken under the lock, so captures are not held up while the space
+            // is allocated. The file counts as pending until then, so recover() leaves it alone.
+            File file;
+            synchronized (this) {
+                file = new File(nextShardSlot(), RESERVED_PREFIX + mReservationCount++);
+                mPending.add(file);
+            }
+            boolean allocated = false;
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    mPreallocator.preallocate(raf, lengthBytes);
+                } finally {
+                    raf.close();
+                }
+                allocated = true;
+            } finally {
+                synchronized (this) {
+                    mPending.remove(file);
+                    if (allocated) {
+                        mReserved.add(file);
+                    } else {
+                        //noinspection ResultOfMethodCallIgnored
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the reserved files that were not used.
+     */
+    public synchronized void releaseReservations() {
+        File file;
+        while (null != (file = mReserved.poll())) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            if (file.getParentFile().equals(mShardDir)) {
+                mShardCount--;
+            }
+        }
+    }
+
+    /**
+     * Deletes the hidden files that earlier runs left behind: captures that were being written
+     * or waiting for their group commit when the app died, and unused reservations. Files in use
+     * by this storage are kept.
+     *
+     * The captures of earlier runs are added to the index, and the next names are made to come
+     * after theirs, since sensor timestamps restart when the device reboots.
+     *
+     * This lists every shard, so it should run once, away from the camera thread.
+     *
+     * @return The number of files deleted
+     */
+    public int recover() {
+        int deleted = 0;
+        File[] days = mRoot.listFiles();
+        if (null == days) {
+            return 0;
+        }
+        List<CaptureIndex.Entry> captures = new ArrayList<>();
+        for (File day : days) {
+            File[] shards = day.listFiles();
+            if (null == shards) {
+                continue;
+            }
+            for (File shard : shards) {
+                File[] files = shard.listFiles();
+                if (null == files) {
+                    continue;
+                }
+                for (File file : files) {
+                    String name = file.getName();
+                    if (name.startsWith(PREFIX)) {
+                        long id = idOf(name);
+                        if (id >= 0) {
+                            captures.add(new CaptureIndex.Entry(id, file, file.length()));
+                        }
+                        continue;
+                    }
+                    if (!name.startsWith(PENDING_PREFIX) && !name.startsWith(RESERVED_PREFIX)) {
+                        continue;
+                    }
+                    synchronized (this) {
+                        if (!mPending.contains(file) && !mReserved.contains(file)
+                                && file.delete()) {
+                            deleted++;
+                        }
+                    }
+                }
+            }
+        }
+        Collections.sort(captures, new Comparator<CaptureIndex.Entry>() {
+            @Override
+            public int compare(CaptureIndex.Entry a, CaptureIndex.Entry b) {
+                return Long.compare(a.id, b.id);
+            }
+        });
+        if (!captures.isEmpty()) {
+            synchronized (this) {
+                mLastId = Math.max(mLastId, captures.get(captures.size() - 1).id);
+            }
+        }
+        mIndex.addEarlier(captures);
+        return deleted;
+    }
+
+    /**
+     * Returns the ID in the name of a capture, such as "IMG_123.jpg", or -1 if there is none.
+     */
+    private static long idOf(String name) {
+        int end = name.indexOf('.', PREFIX.length());
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), end < 0 ? name.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private synchronized void release(File writeFile) {
+        mPending.remove(writeFile);
+    }
+
+    /**
+     * Returns the shard directory the next file goes into, creating it if needed, and counts the
+     * file against that shard.
+     */
+    private File nextShardSlot() throws IOException {
+        String day = mDateFormat.format(new Date());
+        if (!day.equals(mDay)) {
+            mDay = day;
+            resumeShard(new File(mRoot, day));
+        } else if (mShardCount >= FILES_PER_SHARD) {
+            mShard++;
+            mShardDir = new File(mShardDir.getParentFile(), shardName(mShard));
+            mShardCount = 0;
+        }
+        if (!mShardDir.isDirectory() && !mShardDir.mkdirs()) {
+            throw new IOException("Failed to create " + mShardDir);
+        }
+        mShardCount++;
+        return mShardDir;
+    }
+
+    /**
+     * Picks up from the last shard of {@code dayDir}, which may hold files from an earlier run.
+     * This lists a single shard directory once a day rather than scanning every capture.
+     */
+    private void resumeShard(File dayDir) {
+        mShard = 0;
+        String[] shards = dayDir.list();
+        if (null != shards) {
+            for (String name : shards) {
+                try {
+                    mShard = Math.max(mShard, Integer.parseInt(name));
+                } catch (NumberFormatException e) {
+                    // Not a shard directory
+                }
+            }
+        }
+        mShardDir = new File(dayDir, shardName(mShard));
+        String[] files = mShardDir.list();
+        mShardCount = null == files ? 0 : files.length;
+    }
+
+    private static String shardName(int shard) {
+        return String.format(Locale.US, "%04d", shard);
+    }
+
+}
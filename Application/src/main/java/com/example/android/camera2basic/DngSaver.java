@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves a RAW frame as a DNG file into the specified {@link CaptureStorage.Output}, streaming the
+ * pixels from the buffer of the {@link ImageSaver.Source} through a {@link DngWriter}.
+ */
+class DngSaver implements ImageSaveQueue.Job {
+
+    private final DngWriter mWriter;
+
+    /**
+     * The RAW plane
+     */
+    private final ImageSaver.Source mSource;
+
+    /**
+     * The distance between two rows of the RAW plane, in bytes
+     */
+    private final int mRowStride;
+
+    private final CaptureStorage.Output mOutput;
+
+    /**
+     * Notified once the file is saved, or null.
+     */
+    private ImageSaver.Callback mCallback;
+
+    public DngSaver(DngWriter writer, ImageSaver.Source source, int rowStride,
+                    CaptureStorage.Output output) {
+        mWriter = writer;
+        mSource = source;
+        mRowStride = rowStride;
+        mOutput = output;
+    }
+
+    public void setCallback(ImageSaver.Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void run() {
+        RandomAccessFile output = null;
+        long length = -1;
+        try {
+            output = new RandomAccessFile(mOutput.getWriteFile(), "rw");
+            FileChannel channel = output.getChannel();
+            length = mWriter.write(channel, mSource.getBuffer(), mRowStride);
+            channel.truncate(length);
+            mOutput.onWritten(channel);
+        } catch (IOException e) {
+            e.printStackTrace();
+            length = -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            length = -1;
+        } finally {
+            mSource.close();
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    length = -1;
+                }
+            }
+        }
+        if (length >= 0) {
+            mOutput.commit(length, mCallback);
+        } else {
+            mOutput.abort();
+        }
+    }
+
+    @Override
+    public void discard() {
+        mSource.close();
+    }
+
+}
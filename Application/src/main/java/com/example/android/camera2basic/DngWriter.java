@@ -0,0 +1,418 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Writes 16 bit Bayer RAW frames as uncompressed DNG files.
+ *
+ * The file holds a small TIFF header followed by the pixels as a single strip. Only the header is
+ * built on the heap. The pixel rows are handed to the channel as slices of the buffer they came
+ * in, such as the plane of a RAW_SENSOR {@link android.media.Image}, so the frame is never copied
+ * onto the Java heap.
+ */
+class DngWriter {
+
+    /**
+     * The order of the color filters in each 2x2 block of the sensor
+     */
+    static final int CFA_RGGB = 0;
+
+    static final int CFA_GRBG = 1;
+
+    static final int CFA_GBRG = 2;
+
+    static final int CFA_BGGR = 3;
+
+    private static final int TYPE_BYTE = 1;
+
+    private static final int TYPE_ASCII = 2;
+
+    private static final int TYPE_SHORT = 3;
+
+    private static final int TYPE_LONG = 4;
+
+    private static final int TYPE_RATIONAL = 5;
+
+    private static final int TYPE_SRATIONAL = 10;
+
+    private static final int TAG_NEW_SUBFILE_TYPE = 254;
+
+    private static final int TAG_IMAGE_WIDTH = 256;
+
+    private static final int TAG_IMAGE_LENGTH = 257;
+
+    private static final int TAG_BITS_PER_SAMPLE = 258;
+
+    private static final int TAG_COMPRESSION = 259;
+
+    private static final int TAG_PHOTOMETRIC_INTERPRETATION = 262;
+
+    private static final int TAG_MAKE = 271;
+
+    private static final int TAG_MODEL = 272;
+
+    private static final int TAG_STRIP_OFFSETS = 273;
+
+    private static final int TAG_ORIENTATION = 274;
+
+    private static final int TAG_SAMPLES_PER_PIXEL = 277;
+
+    private static final int TAG_ROWS_PER_STRIP = 278;
+
+    private static final int TAG_STRIP_BYTE_COUNTS = 279;
+
+    private static final int TAG_PLANAR_CONFIGURATION = 284;
+
+    private static final int TAG_CFA_REPEAT_PATTERN_DIM = 33421;
+
+    private static final int TAG_CFA_PATTERN = 33422;
+
+    private static final int TAG_DNG_VERSION = 50706;
+
+    private static final int TAG_DNG_BACKWARD_VERSION = 50707;
+
+    private static final int TAG_UNIQUE_CAMERA_MODEL = 50708;
+
+    private static final int TAG_BLACK_LEVEL_REPEAT_DIM = 50713;
+
+    private static final int TAG_BLACK_LEVEL = 50714;
+
+    private static final int TAG_WHITE_LEVEL = 50717;
+
+    private static final int TAG_COLOR_MATRIX_1 = 50721;
+
+    private static final int TAG_AS_SHOT_NEUTRAL = 50728;
+
+    private static final int TAG_CALIBRATION_ILLUMINANT_1 = 50778;
+
+    private static final int PHOTOMETRIC_CFA = 32803;
+
+    /**
+     * The denominator used for the rational values of the color tags
+     */
+    private static final int RATIONAL_SCALE = 10000;
+
+    /**
+     * The most rows handed to a single gathering write
+     */
+    private static final int MAX_ROWS_PER_WRITE = 256;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final int mWidth;
+
+    private final int mHeight;
+
+    /**
+     * The entries of the IFD, by tag. TIFF wants them in ascending order.
+     */
+    private final Map<Integer, Entry> mEntries = new TreeMap<>();
+
+    /**
+     * @param width  The width of the frame in pixels
+     * @param height The height of the frame in pixels
+     */
+    public DngWriter(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        putLong(TAG_NEW_SUBFILE_TYPE, 0);
+        putLong(TAG_IMAGE_WIDTH, width);
+        putLong(TAG_IMAGE_LENGTH, height);
+        putShort(TAG_BITS_PER_SAMPLE, 16);
+        putShort(TAG_COMPRESSION, 1);
+        putShort(TAG_PHOTOMETRIC_INTERPRETATION, PHOTOMETRIC_CFA);
+        putShort(TAG_SAMPLES_PER_PIXEL, 1);
+        putLong(TAG_ROWS_PER_STRIP, height);
+        putLong(TAG_STRIP_BYTE_COUNTS, getPixelLength());
+        putShort(TAG_PLANAR_CONFIGURATION, 1);
+        putShort(TAG_CFA_REPEAT_PATTERN_DIM, 2, 2);
+        put(TAG_DNG_VERSION, TYPE_BYTE, 4, new byte[]{1, 4, 0, 0});
+        put(TAG_DNG_BACKWARD_VERSION, TYPE_BYTE, 4, new byte[]{1, 1, 0, 0});
+        putShort(TAG_BLACK_LEVEL_REPEAT_DIM, 2, 2);
+        setCfaArrangement(CFA_RGGB);
+        setBlackLevel(0, 0, 0, 0);
+        setWhiteLevel(0xffff);
+        setOrientation(0);
+    }
+
+    /**
+     * @param arrangement One of the CFA_ constants, which match the values of
+     *                    SENSOR_INFO_COLOR_FILTER_ARRANGEMENT
+     */
+    public void setCfaArrangement(int arrangement) {
+        byte[] pattern;
+        switch (arrangement) {
+            case CFA_RGGB:
+                pattern = new byte[]{0, 1, 1, 2};
+                break;
+            case CFA_GRBG:
+                pattern = new byte[]{1, 0, 2, 1};
+                break;
+            case CFA_GBRG:
+                pattern = new byte[]{1, 2, 0, 1};
+                break;
+            case CFA_BGGR:
+                pattern = new byte[]{2, 1, 1, 0};
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported CFA arrangement: " + arrangement);
+        }
+        put(TAG_CFA_PATTERN, TYPE_BYTE, 4, pattern);
+    }
+
+    /**
+     * Sets the black level of each pixel of a 2x2 block, in row-major order.
+     */
+    public void setBlackLevel(int topLeft, int topRight, int bottomLeft, int bottomRight) {
+        putLong(TAG_BLACK_LEVEL, topLeft, topRight, bottomLeft, bottomRight);
+    }
+
+    public void setWhiteLevel(int whiteLevel) {
+        putLong(TAG_WHITE_LEVEL, whiteLevel);
+    }
+
+    /**
+     * Sets the transform from CIE XYZ to the color space of the sensor, under the given
+     * illuminant.
+     *
+     * @param matrix     A 3x3 matrix in row-major order
+     * @param illuminant The EXIF LightSource value of the illuminant
+     */
+    public void setColorMatrix(float[] matrix, int illuminant) {
+        if (matrix.length != 9) {
+            throw new IllegalArgumentException("The color matrix must be 3x3.");
+        }
+        ByteBuffer data = newBuffer(9 * 8);
+        for (float value : matrix) {
+            data.putInt(Math.round(value * RATIONAL_SCALE)).putInt(RATIONAL_SCALE);
+        }
+        put(TAG_COLOR_MATRIX_1, TYPE_SRATIONAL, 9, data.array());
+        putShort(TAG_CALIBRATION_ILLUMINANT_1, illuminant);
+    }
+
+    /**
+     * Sets the white balance of the frame, as the color of a neutral object in the color space of
+     * the sensor.
+     */
+    public void setAsShotNeutral(float red, float green, float blue) {
+        ByteBuffer data = newBuffer(3 * 8);
+        for (float value : new float[]{red, green, blue}) {
+            data.putInt(Math.round(value * RATIONAL_SCALE)).putInt(RATIONAL_SCALE);
+        }
+        put(TAG_AS_SHOT_NEUTRAL, TYPE_RATIONAL, 3, data.array());
+    }
+
+    /**
+     * @param degrees The clockwise rotation that makes the frame upright: 0, 90, 180 or 270
+     */
+    public void setOrientation(int degrees) {
+        int orientation;
+        switch ((degrees % 360 + 360) % 360) {
+            case 90:
+                orientation = 6;
+                break;
+            case 180:
+                orientation = 3;
+                break;
+            case 270:
+                orientation = 8;
+                break;
+            default:
+                orientation = 1;
+        }
+        putShort(TAG_ORIENTATION, orientation);
+    }
+
+    public void setCamera(String make, String model) {
+        putAscii(TAG_MAKE, make);
+        putAscii(TAG_MODEL, model);
+        putAscii(TAG_UNIQUE_CAMERA_MODEL, make + " " + model);
+    }
+
+    /**
+     * Returns the size of the pixel data in bytes.
+     */
+    public long getPixelLength() {
+        return (long) mWidth * mHeight * 2;
+    }
+
+    /**
+     * Builds everything that precedes the pixels, ready to be written.
+     */
+    public ByteBuffer createHeader() {
+        // The pixels follow the header, so the strip offset is known once the header is sized.
+        putLong(TAG_STRIP_OFFSETS, 0);
+        int ifdLength = 2 + mEntries.size() * 12 + 4;
+        int length = 8 + ifdLength;
+        for (Entry entry : mEntries.values()) {
+            if (entry.data.length > 4) {
+                length += align(entry.data.length);
+            }
+        }
+        putLong(TAG_STRIP_OFFSETS, length);
+
+        ByteBuffer header = newBuffer(length);
+        header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+        header.putShort((short) mEntries.size());
+        int dataOffset = 8 + ifdLength;
+        for (Map.Entry<Integer, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            header.putShort(e.getKey().shortValue());
+            header.putShort((short) entry.type);
+            header.putInt(entry.count);
+            if (entry.data.length <= 4) {
+                header.put(entry.data);
+                for (int i = entry.data.length; i < 4; i++) {
+                    header.put((byte) 0);
+                }
+            } else {
+                header.putInt(dataOffset);
+                dataOffset += align(entry.data.length);
+            }
+        }
+        header.putInt(0);
+        for (Entry entry : mEntries.values()) {
+            if (entry.data.length > 4) {
+                header.put(entry.data);
+                if ((entry.data.length & 1) != 0) {
+                    header.put((byte) 0);
+                }
+            }
+        }
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Writes the DNG file to {@code channel}.
+     *
+     * @param channel   Where to write the file
+     * @param pixels    The little-endian 16 bit samples, from the position of the buffer
+     * @param rowStride The distance between the starts of two rows in {@code pixels}, in bytes
+     * @return The number of bytes written
+     */
+    public long write(GatheringByteChannel channel, ByteBuffer pixels, int rowStride)
+            throws IOException {
+        ByteBuffer header = createHeader();
+        long length = header.remaining() + getPixelLength();
+        int rowLength = mWidth * 2;
+        int base = pixels.position();
+        if (rowStride == rowLength) {
+            // The rows are contiguous, so the whole frame is a single slice.
+            ByteBuffer frame = pixels.duplicate();
+            frame.limit(base + (int) getPixelLength());
+            writeFully(channel, new ByteBuffer[]{header, frame});
+            return length;
+        }
+        writeFully(channel, new ByteBuffer[]{header});
+        ByteBuffer[] rows = new ByteBuffer[Math.min(mHeight, MAX_ROWS_PER_WRITE)];
+        for (int first = 0; first < mHeight; first += rows.length) {
+            int count = Math.min(rows.length, mHeight - first);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer row = pixels.duplicate();
+                int start = base + (first + i) * rowStride;
+                row.limit(start + rowLength).position(start);
+                rows[i] = row;
+            }
+            writeFully(channel, count == rows.length ? rows : copyOf(rows, count));
+        }
+        return length;
+    }
+
+    private static ByteBuffer[] copyOf(ByteBuffer[] buffers, int count) {
+        ByteBuffer[] copy = new ByteBuffer[count];
+        System.arraycopy(buffers, 0, copy, 0, count);
+        return copy;
+    }
+
+    private static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers)
+            throws IOException {
+        int first = 0;
+        while (first < buffers.length) {
+            channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    private void putShort(int tag, int... values) {
+        ByteBuffer data = newBuffer(values.length * 2);
+        for (int value : values) {
+            data.putShort((short) value);
+        }
+        put(tag, TYPE_SHORT, values.length, data.array());
+    }
+
+    private void putLong(int tag, long... values) {
+        ByteBuffer data = newBuffer(values.length * 4);
+        for (long value : values) {
+            data.putInt((int) value);
+        }
+        put(tag, TYPE_LONG, values.length, data.array());
+    }
+
+    private void putAscii(int tag, String value) {
+        byte[] chars = value.getBytes(ASCII);
+        byte[] data = new byte[chars.length + 1];
+        System.arraycopy(chars, 0, data, 0, chars.length);
+        put(tag, TYPE_ASCII, data.length, data);
+    }
+
+    private void put(int tag, int type, int count, byte[] data) {
+        mEntries.put(tag, new Entry(type, count, data));
+    }
+
+    private static ByteBuffer newBuffer(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Values start on word boundaries.
+     */
+    private static int align(int length) {
+        return (length + 1) & ~1;
+    }
+
+    /**
+     * The type, count and little-endian value of an IFD entry
+     */
+    private static final class Entry {
+
+        final int type;
+
+        final int count;
+
+        final byte[] data;
+
+        Entry(int type, int count, byte[] data) {
+            this.type = type;
+            this.count = count;
+            this.data = data;
+        }
+
+    }
+
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when written captures reach the disk, and makes them visible under their final name
+ * only once they have. Captures are written to a temporary file of their
+ * {@link CaptureStorage.Output}, so a crash never leaves a truncated capture behind, only a
+ * temporary file that {@link CaptureStorage#recover()} deletes.
+ *
+ * <ul>
+ * <li>{@link Policy#NONE} renames each capture as soon as it is written. A crash of the app
+ * loses nothing, but a crash of the device may leave a renamed capture with missing data.</li>
+ * <li>{@link Policy#PER_FILE} syncs each capture before renaming it.</li>
+ * <li>{@link Policy#GROUP} holds written captures back until a group of them is full or old
+ * enough, then syncs and renames them together on a thread of its own. The threads saving a
+ * burst never wait for the disk to flush, at the cost of captures showing up later.</li>
+ * </ul>
+ */
+class FileCommitter {
+
+    enum Policy {
+        NONE,
+        PER_FILE,
+        GROUP
+    }
+
+    /**
+     * Runs the group commits, one at a time. The thread goes away when no group is waiting.
+     */
+    private static final ScheduledThreadPoolExecutor GROUP_EXECUTOR;
+
+    static {
+        GROUP_EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "GroupCommit");
+            }
+        });
+        GROUP_EXECUTOR.setKeepAliveTime(1, TimeUnit.SECONDS);
+        GROUP_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * A capture that is written but not committed yet
+     */
+    private static class Pending {
+
+        final CaptureStorage.Output output;
+
+        final long length;
+
+        final ImageSaver.Callback callback;
+
+        Pending(CaptureStorage.Output output, long length, ImageSaver.Callback callback) {
+            this.output = output;
+            this.length = length;
+            this.callback = callback;
+        }
+
+    }
+
+    private final Policy mPolicy;
+
+    private final int mGroupSize;
+
+    private final long mGroupDelayMs;
+
+    /**
+     * Commits the captures waiting for their group, on {@link #GROUP_EXECUTOR}
+     */
+    private final Runnable mCommitPending = new Runnable() {
+        @Override
+        public void run() {
+            List<Pending> group;
+            synchronized (FileCommitter.this) {
+                group = takePending();
+            }
+            if (!group.isEmpty()) {
+                commitGroup(group);
+            }
+        }
+    };
+
+    private List<Pending> mPending = new ArrayList<>();
+
+    private ScheduledFuture<?> mScheduledFlush;
+
+    private long mCommitCount;
+
+    private long mSyncCount;
+
+    private long mGroupCount;
+
+    private long mFailureCount;
+
+    /**
+     * @param policy       When captures are synced
+     * @param groupSize    With {@link Policy#GROUP}, the most captures committed together
+     * @param groupDelayMs With {@link Policy#GROUP}, the longest a capture waits to be committed
+     */
+    public FileCommitter(Policy policy, int groupSize, long groupDelayMs) {
+        mPolicy = policy;
+        mGroupSize = groupSize;
+        mGroupDelayMs = groupDelayMs;
+    }
+
+    public FileCommitter(Policy policy) {
+        this(policy, 1, 0);
+    }
+
+    public Policy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * Called once every byte of a capture is written, while its channel is still open.
+     */
+    public void onWritten(FileChannel channel) throws IOException {
+        if (mPolicy == Policy.PER_FILE) {
+            channel.force(false);
+            synchronized (this) {
+                mSyncCount++;
+            }
+        }
+    }
+
+    /**
+     * Commits a written and closed capture, now or with the next group. If the commit fails, the
+     * capture is deleted and {@code callback} is not called.
+     *
+     * @param output   The capture
+     * @param length   The number of bytes written
+     * @param callback Notified on the committing thread once the capture is in place, or null
+     */
+    public void commit(CaptureStorage.Output output, long length, ImageSaver.Callback callback) {
+        if (mPolicy != Policy.GROUP) {
+            publish(new Pending(output, length, callback));
+            return;
+        }
+        synchronized (this) {
+            mPending.add(new Pending(output, length, callback));
+            if (mPending.size() >= mGroupSize) {
+                final List<Pending> group = takePending();
+                GROUP_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        commitGroup(group);
+                    }
+                });
+            } else if (null == mScheduledFlush) {
+                mScheduledFlush = GROUP_EXECUTOR.schedule(mCommitPending, mGroupDelayMs,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Commits the captures waiting for their group right away, and waits until every group
+     * handed to the commit thread so far is committed.
+     */
+    public void flush() {
+        if (mPolicy != Policy.GROUP) {
+            return;
+        }
+        try {
+            GROUP_EXECUTOR.submit(mCommitPending).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public synchronized long getCommitCount() {
+        return mCommitCount;
+    }
+
+    public synchronized long getSyncCount() {
+        return mSyncCount;
+    }
+
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "commit=%s committed=%d syncs=%d groups=%d failed=%d",
+                mPolicy, mCommitCount, mSyncCount, mGroupCount, mFailureCount);
+    }
+
+    private List<Pending> takePending() {
+        List<Pending> group = mPending;
+        mPending = new ArrayList<>();
+        if (null != mScheduledFlush) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+        return group;
+    }
+
+    /**
+     * Syncs every capture of the group, and only then renames them, so that none is visible
+     * before its data is on the disk.
+     */
+    private void commitGroup(List<Pending> group) {
+        List<Pending> synced = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            try {
+                sync(pending.output);
+                synced.add(pending);
+            } catch (IOException e) {
+                e.printStackTrace();
+                fail(pending);
+            }
+        }
+        synchronized (this) {
+            mSyncCount += synced.size();
+            mGroupCount++;
+        }
+        for (Pending pending : synced) {
+            publish(pending);
+        }
+    }
+
+    private static void sync(CaptureStorage.Output output) throws IOException {
+        // Syncing flushes the file, whichever descriptor it goes through.
+        RandomAccessFile file = new RandomAccessFile(output.getWriteFile(), "r");
+        try {
+            file.getChannel().force(false);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void publish(Pending pending) {
+        try {
+            pending.output.commit(pending.length);
+        } catch (IOException e) {
+            e.printStackTrace();
+            fail(pending);
+            return;
+        }
+        synchronized (this) {
+            mCommitCount++;
+        }
+        if (null != pending.callback) {
+            pending.callback.onImageSaved(pending.output, pending.length);
+        }
+    }
+
+    private void fail(Pending pending) {
+        pending.output.abort();
+        synchronized (this) {
+            mFailureCount++;
+        }
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers preview frames to {@link FrameAnalyzer}s on a single analysis thread.
+ *
+ * Only the latest frame is kept. A frame that arrives while the analyzers are still busy
+ * replaces the one waiting for them, which is dropped, so slow analyzers see fewer frames rather
+ * than older ones. The luma plane is copied into a buffer from a small pool, which lets the
+ * camera have its buffer back right away. Three buffers are enough: one being analyzed, one
+ * waiting and one being filled.
+ */
+class FrameAnalysisPipeline {
+
+    private static final int POOL_CAPACITY = 3;
+
+    /**
+     * A registered analyzer and the time it takes per frame.
+     */
+    private static final class Registration {
+
+        final String name;
+
+        final FrameAnalyzer analyzer;
+
+        final LatencyHistogram timing = new LatencyHistogram();
+
+        Registration(String name, FrameAnalyzer analyzer) {
+            this.name = name;
+            this.analyzer = analyzer;
+        }
+
+    }
+
+    private final Executor mExecutor;
+
+    private final List<Registration> mRegistrations = new CopyOnWriteArrayList<>();
+
+    /**
+     * The frame waiting for the analysis thread
+     */
+    private final AtomicReference<FrameAnalyzer.Frame> mLatest = new AtomicReference<>();
+
+    /**
+     * Whether {@link #mDrain} is queued or running
+     */
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final AtomicLong mOffered = new AtomicLong();
+
+    private final AtomicLong mAnalyzed = new AtomicLong();
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * The pool for frames of the current size. Only touched by the thread offering frames.
+     */
+    private ByteBufferPool mPool;
+
+    /**
+     * Analyzes the latest frame until there is none left.
+     */
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    FrameAnalyzer.Frame frame = mLatest.getAndSet(null);
+                    if (null == frame) {
+                        mScheduled.set(false);
+                        // A frame offered after the check above found the drain still scheduled.
+                        if (null == mLatest.get() || !mScheduled.compareAndSet(false, true)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    try {
+                        analyze(frame);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } catch (RuntimeException | Error e) {
+                mScheduled.set(false);
+                throw e;
+            }
+        }
+    };
+
+    /**
+     * @param executor Runs the analyzers. Frames are analyzed one at a time whatever the number
+     *                 of threads of the executor.
+     */
+    public FrameAnalysisPipeline(Executor executor) {
+        mExecutor = executor;
+    }
+
+    /**
+     * Registers {@code analyzer} to be run on every analyzed frame, after those already
+     * registered.
+     *
+     * @param name Names the analyzer in {@link #toString()}
+     */
+    public void addAnalyzer(String name, FrameAnalyzer analyzer) {
+        mRegistrations.add(new Registration(name, analyzer));
+    }
+
+    public void removeAnalyzer(FrameAnalyzer analyzer) {
+        for (Registration registration : mRegistrations) {
+            if (registration.analyzer == analyzer) {
+                mRegistrations.remove(registration);
+            }
+        }
+    }
+
+    public boolean hasAnalyzers() {
+        return !mRegistrations.isEmpty();
+    }
+
+    /**
+     * Copies the luma plane of a frame and hands it to the analysis thread, dropping the frame
+     * that was waiting there, if any. Frames must be offered from a single thread.
+     *
+     * @param timestampNs The sensor timestamp of the frame
+     * @param luma        The luma samples, from the position of the buffer
+     * @param rowStride   The distance between two rows in {@code luma}, in bytes
+     * @param pixelStride The distance between two samples of a row in {@code luma}, in bytes
+     */
+    public void offer(long timestampNs, int width, int height, ByteBuffer luma, int rowStride,
+                      int pixelStride) {
+        mOffered.incrementAndGet();
+        int size = width * height;
+        if (null == mPool || mPool.getBufferSize() != size) {
+            mPool = new ByteBufferPool(size, POOL_CAPACITY);
+        }
+        ByteBuffer buffer;
+        try {
+            buffer = mPool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mDropped.incrementAndGet();
+            return;
+        }
+        copyPlane(luma, width, height, rowStride, pixelStride, buffer);
+        FrameAnalyzer.Frame previous = mLatest.getAndSet(
+                new FrameAnalyzer.Frame(mPool, buffer, width, height, timestampNs));
+        if (null != previous) {
+            previous.release();
+            mDropped.incrementAndGet();
+        } else if (mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(mDrain);
+        }
+    }
+
+    /**
+     * Drops the frame waiting for the analysis thread, if any.
+     */
+    public void clear() {
+        FrameAnalyzer.Frame frame = mLatest.getAndSet(null);
+        if (null != frame) {
+            frame.release();
+            mDropped.incrementAndGet();
+        }
+    }
+
+    public long getOfferedCount() {
+        return mOffered.get();
+    }
+
+    public long getAnalyzedCount() {
+        return mAnalyzed.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the time {@code analyzer} takes per frame, or null if it isn't registered.
+     */
+    public LatencyHistogram getTiming(FrameAnalyzer analyzer) {
+        for (Registration registration : mRegistrations) {
+            if (registration.analyzer == analyzer) {
+                return registration.timing;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("analysis: offered=").append(getOfferedCount())
+                .append(" analyzed=").append(getAnalyzedCount())
+                .append(" dropped=").append(getDroppedCount()).append('\n');
+        for (Registration registration : mRegistrations) {
+            builder.append(registration.name).append(": ").append(registration.analyzer)
+                    .append(' ').append(registration.timing).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void analyze(FrameAnalyzer.Frame frame) {
+        for (Registration registration : mRegistrations) {
+            long start = System.nanoTime();
+            frame.getLuma().rewind();
+            registration.analyzer.analyze(frame);
+            registration.timing.record(System.nanoTime() - start);
+        }
+        mAnalyzed.incrementAndGet();
+    }
+
+    /**
+     * Copies a plane into {@code out} without row padding.
+     */
+    static void copyPlane(ByteBuffer plane, int width, int height, int rowStride,
+                          int pixelStride, ByteBuffer out) {
+        out.clear();
+        int base = plane.position();
+        if (pixelStride == 1) {
+            ByteBuffer row = plane.duplicate();
+            for (int y = 0; y < height; y++) {
+                int start = base + y * rowStride;
+                row.limit(start + width).position(start);
+                out.put(row);
+            }
+        } else {
+            for (int y = 0; y < height; y++) {
+                int index = base + y * rowStride;
+                for (int x = 0; x < width; x++) {
+                    out.put(plane.get(index));
+                    index += pixelStride;
+                }
+            }
+        }
+        out.flip();
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Looks at preview frames delivered by a {@link FrameAnalysisPipeline}.
+ */
+interface FrameAnalyzer {
+
+    /**
+     * The luma plane of a preview frame, copied out of the camera buffer.
+     */
+    final class Frame {
+
+        private final ByteBufferPool mPool;
+
+        private ByteBuffer mLuma;
+
+        private final int mWidth;
+
+        private final int mHeight;
+
+        private final long mTimestampNs;
+
+        Frame(ByteBufferPool pool, ByteBuffer luma, int width, int height, long timestampNs) {
+            mPool = pool;
+            mLuma = luma;
+            mWidth = width;
+            mHeight = height;
+            mTimestampNs = timestampNs;
+        }
+
+        /**
+         * Returns the luma samples, one byte per pixel and row after row without padding. The
+         * buffer goes back to its pool once every analyzer has seen the frame, so analyzers must
+         * not keep it.
+         */
+        public ByteBuffer getLuma() {
+            return mLuma;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Returns the sensor timestamp of the frame, in nanoseconds.
+         */
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        void release() {
+            if (null != mLuma) {
+                mPool.release(mLuma);
+                mLuma = null;
+            }
+        }
+
+    }
+
+    /**
+     * Called on the analysis thread for each frame that isn't dropped. Frames that arrive while
+     * this runs are dropped, except for the latest one.
+     */
+    void analyze(Frame frame);
+
+}
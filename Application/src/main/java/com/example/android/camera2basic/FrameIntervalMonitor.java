@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+
+/**
+ * Measures how evenly preview frames arrive, and how much a still capture disturbs them.
+ *
+ * The interval between consecutive sensor timestamps is compared with the expected interval, a
+ * running average of the undisturbed intervals. The deviation is the jitter. Intervals that follow
+ * a still capture are counted apart from the others, for a few frames, so the two can be
+ * compared; a stall shows as a large deviation and as skipped frames.
+ */
+class FrameIntervalMonitor {
+
+    /**
+     * How quickly the expected interval follows the measured ones
+     */
+    private static final double SMOOTHING = 1.0 / 16;
+
+    /**
+     * An interval this many times the expected one skipped at least one frame.
+     */
+    private static final double GAP_RATIO = 1.5;
+
+    /**
+     * Number of intervals after a still capture that are counted as disturbed by it
+     */
+    private final int mWindow;
+
+    private final LatencyHistogram mJitter = new LatencyHistogram();
+
+    private final LatencyHistogram mSnapshotJitter = new LatencyHistogram();
+
+    private long mLastTimestampNs;
+
+    private double mExpectedIntervalNs;
+
+    /**
+     * Number of intervals still to count as disturbed by the last still capture
+     */
+    private int mSnapshotIntervalsLeft;
+
+    private long mSkippedFrames;
+
+    private long mSnapshotSkippedFrames;
+
+    private long mSnapshotCount;
+
+    /**
+     * @param window Number of intervals after a still capture that are counted apart
+     */
+    public FrameIntervalMonitor(int window) {
+        mWindow = window;
+    }
+
+    /**
+     * Called with the sensor timestamp of every preview frame. Timestamps that don't move
+     * forward, such as those of a result delivered out of order, are ignored.
+     */
+    public synchronized void onFrame(long timestampNs) {
+        if (timestampNs <= mLastTimestampNs) {
+            return;
+        }
+        long last = mLastTimestampNs;
+        mLastTimestampNs = timestampNs;
+        if (0 == last) {
+            return;
+        }
+        long interval = timestampNs - last;
+        boolean disturbed = mSnapshotIntervalsLeft > 0;
+        if (disturbed) {
+            mSnapshotIntervalsLeft--;
+        }
+        if (0 == mExpectedIntervalNs) {
+            mExpectedIntervalNs = interval;
+            return;
+        }
+        long deviation = Math.abs(Math.round(interval - mExpectedIntervalNs));
+        long skipped = interval > GAP_RATIO * mExpectedIntervalNs
+                ? Math.round(interval / mExpectedIntervalNs) - 1 : 0;
+        if (disturbed) {
+            mSnapshotJitter.record(deviation);
+            mSnapshotSkippedFrames += skipped;
+        } else {
+            mJitter.record(deviation);
+            mSkippedFrames += skipped;
+            // Only undisturbed, whole intervals teach the monitor what to expect.
+            if (0 == skipped) {
+                mExpectedIntervalNs += (interval - mExpectedIntervalNs) * SMOOTHING;
+            }
+        }
+    }
+
+    /**
+     * Called when a still capture is submitted while the preview is running.
+     */
+    public synchronized void onSnapshot() {
+        mSnapshotCount++;
+        mSnapshotIntervalsLeft = mWindow;
+    }
+
+    /**
+     * Forgets the last frame, such as when the preview restarts. The statistics are kept.
+     */
+    public synchronized void restart() {
+        mLastTimestampNs = 0;
+        mSnapshotIntervalsLeft = 0;
+    }
+
+    /**
+     * Returns the jitter of the intervals not disturbed by a still capture.
+     */
+    public LatencyHistogram getJitter() {
+        return mJitter;
+    }
+
+    /**
+     * Returns the jitter of the intervals right after a still capture.
+     */
+    public LatencyHistogram getSnapshotJitter() {
+        return mSnapshotJitter;
+    }
+
+    public synchronized long getExpectedIntervalNs() {
+        return Math.round(mExpectedIntervalNs);
+    }
+
+    public synchronized long getSkippedFrames() {
+        return mSkippedFrames;
+    }
+
+    public synchronized long getSnapshotSkippedFrames() {
+        return mSnapshotSkippedFrames;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Frame interval %.1fms, jitter: %s, %d skipped\n"
+                        + "After %d snapshots: %s, %d skipped\n",
+                mExpectedIntervalNs / 1e6, mJitter, mSkippedFrames, mSnapshotCount,
+                mSnapshotJitter, mSnapshotSkippedFrames);
+    }
+
+}
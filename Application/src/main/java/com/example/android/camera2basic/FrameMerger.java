@@ -0,0 +1,592 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Merges a burst of YUV 4:2:0 frames of the same scene into one frame with less noise and, when
+ * the exposures are bracketed, more dynamic range.
+ *
+ * Every frame is first aligned to a reference frame by a global translation, searched coarse to
+ * fine on box-filtered copies of the luma. The frames are then averaged in linear light after
+ * scaling them to the exposure of the reference. Each sample is weighted by its exposure, since
+ * longer exposures are less noisy, and by how far it is from clipping. Samples that disagree with
+ * the reference are left out, so that moving subjects don't leave ghosts.
+ *
+ * The merge runs on a {@link ForkJoinPool}, one task per tile of {@link #TILE_SIZE} pixels. The
+ * frames are read where they are, usually the direct buffers of {@link android.media.Image}s, and
+ * the result is written to direct buffers, so only a few tiles worth of weights live on the heap
+ * however many frames are merged. The result can be handed to {@link JpegEncoder} as it is.
+ */
+class FrameMerger {
+
+    /**
+     * A frame to merge.
+     */
+    static final class Input {
+
+        final JpegEncoder.Frame frame;
+
+        /**
+         * The exposure of the frame, such as exposure time times sensitivity, in any unit shared
+         * by the frames of the burst
+         */
+        final double exposure;
+
+        Input(JpegEncoder.Frame frame, double exposure) {
+            this.frame = frame;
+            this.exposure = exposure;
+        }
+
+    }
+
+    /**
+     * The width and height of the tiles merged by a single task. It is even, so that tiles cover
+     * whole chroma samples.
+     */
+    static final int TILE_SIZE = 64;
+
+    /**
+     * Tasks covering no more tiles than this are not split any further
+     */
+    private static final int LEAF_TILES = 4;
+
+    /**
+     * The downscaling factors of the alignment pyramid, coarsest first. The offsets found at
+     * the finest level are doubled, so they are always even and move the chroma by whole samples.
+     */
+    private static final int[] PYRAMID_FACTORS = {16, 4, 2};
+
+    /**
+     * The smallest width and height of the frames, so that the coarsest level of the pyramid
+     * has a few pixels to compare
+     */
+    static final int MIN_SIZE = 4 * 16;
+
+    /**
+     * The search radius at each level of {@link #PYRAMID_FACTORS}, in pixels of that level
+     */
+    private static final int[] PYRAMID_RADII = {4, 3, 2};
+
+    /**
+     * About how many samples are compared per candidate offset at each level of the pyramid
+     */
+    private static final int ALIGNMENT_SAMPLES = 1 << 16;
+
+    /**
+     * How far, in luma levels, a sample can be from the reference before it is left out
+     */
+    static final int GHOST_THRESHOLD = 24;
+
+    /**
+     * Luma levels of the reference above this are clipped, so other frames are not compared
+     * against them.
+     */
+    private static final int CLIPPED = 250;
+
+    /**
+     * Merged values above this, in linear light, are compressed so that the brightest value the
+     * shortest exposure can hold still fits under white.
+     */
+    private static final float KNEE = 0.5f;
+
+    private static final double GAMMA = 2.2;
+
+    /**
+     * Linear light of each luma level, from 0 to 1
+     */
+    private static final float[] TO_LINEAR = new float[256];
+
+    /**
+     * How much a sample at each luma level can be trusted; samples close to black or white carry
+     * little information.
+     */
+    private static final float[] TRUST = new float[256];
+
+    private static final int TO_GAMMA_SIZE = 1 << 16;
+
+    /**
+     * The luma level of linear light from 0 to 1, in {@link #TO_GAMMA_SIZE} steps
+     */
+    private static final byte[] TO_GAMMA = new byte[TO_GAMMA_SIZE];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            TO_LINEAR[i] = (float) Math.pow(i / 255.0, GAMMA);
+            double distance = Math.abs(i - 127.5) / 127.5;
+            TRUST[i] = (float) Math.max(0.01, 1 - Math.pow(distance, 12));
+        }
+        for (int i = 0; i < TO_GAMMA_SIZE; i++) {
+            TO_GAMMA[i] = (byte) Math.round(255 * Math.pow(i / (TO_GAMMA_SIZE - 1.0), 1 / GAMMA));
+        }
+    }
+
+    private final ForkJoinPool mPool;
+
+    public FrameMerger(ForkJoinPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Merges frames of the same size into a new frame, which is exposed like the reference.
+     *
+     * @param inputs    The frames
+     * @param reference The index of the frame the others are aligned and exposed to
+     */
+    public JpegEncoder.Frame merge(List<Input> inputs, int reference) {
+        JpegEncoder.Frame first = inputs.get(reference).frame;
+        int width = first.width;
+        int height = first.height;
+        if (width < MIN_SIZE || height < MIN_SIZE) {
+            throw new IllegalArgumentException("Frames are too small to align: " + width + "x"
+                    + height);
+        }
+        for (Input input : inputs) {
+            if (input.frame.width != width || input.frame.height != height) {
+                throw new IllegalArgumentException("Frames differ in size");
+            }
+        }
+        int[][] offsets = align(inputs, reference);
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        JpegEncoder.Frame output = new JpegEncoder.Frame(width, height,
+                new JpegEncoder.Plane(ByteBuffer.allocateDirect(width * height), width, 1),
+                new JpegEncoder.Plane(ByteBuffer.allocateDirect(chromaWidth * chromaHeight),
+                        chromaWidth, 1),
+                new JpegEncoder.Plane(ByteBuffer.allocateDirect(chromaWidth * chromaHeight),
+                        chromaWidth, 1));
+        Job job = new Job(inputs, reference, offsets, output);
+        mPool.invoke(new TileTask(job, 0, job.tileColumns * job.tileRows));
+        return output;
+    }
+
+    /**
+     * Finds the translation of every frame relative to the reference.
+     *
+     * @return For each frame, the horizontal and vertical offset of the pixel that matches a
+     * pixel of the reference
+     */
+    static int[][] align(List<Input> inputs, int reference) {
+        Input base = inputs.get(reference);
+        int[][] offsets = new int[inputs.size()][2];
+        Pyramid referencePyramid = new Pyramid(base.frame, 1);
+        for (int i = 0; i < inputs.size(); i++) {
+            if (i == reference) {
+                continue;
+            }
+            Pyramid pyramid = new Pyramid(inputs.get(i).frame,
+                    (float) (base.exposure / inputs.get(i).exposure));
+            int dx = 0;
+            int dy = 0;
+            for (int level = 0; level < PYRAMID_FACTORS.length; level++) {
+                if (level > 0) {
+                    int ratio = PYRAMID_FACTORS[level - 1] / PYRAMID_FACTORS[level];
+                    dx *= ratio;
+                    dy *= ratio;
+                }
+                int[] best = search(referencePyramid.levels[level], pyramid.levels[level],
+                        referencePyramid.widths[level], referencePyramid.heights[level],
+                        dx, dy, PYRAMID_RADII[level]);
+                dx = best[0];
+                dy = best[1];
+            }
+            int last = PYRAMID_FACTORS[PYRAMID_FACTORS.length - 1];
+            offsets[i][0] = dx * last;
+            offsets[i][1] = dy * last;
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the offset, within {@code radius} of a center, at which {@code frame} differs least
+     * from {@code reference}.
+     */
+    static int[] search(byte[] reference, byte[] frame, int width, int height, int centerX,
+                        int centerY, int radius) {
+        int step = Math.max(1, (int) Math.sqrt((double) width * height / ALIGNMENT_SAMPLES));
+        int[] best = {centerX, centerY};
+        double bestDifference = Double.MAX_VALUE;
+        for (int dy = centerY - radius; dy <= centerY + radius; dy++) {
+            for (int dx = centerX - radius; dx <= centerX + radius; dx++) {
+                double difference = meanDifference(reference, frame, width, height, dx, dy, step);
+                // Ties go to the smaller move.
+                if (difference < bestDifference || (difference == bestDifference
+                        && Math.abs(dx) + Math.abs(dy) < Math.abs(best[0]) + Math.abs(best[1]))) {
+                    bestDifference = difference;
+                    best[0] = dx;
+                    best[1] = dy;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the mean absolute difference between the pixels of the reference and the pixels of
+     * the frame moved by the offset, over where they overlap.
+     */
+    private static double meanDifference(byte[] reference, byte[] frame, int width, int height,
+                                         int dx, int dy, int step) {
+        int x0 = Math.max(0, -dx);
+        int x1 = Math.min(width, width - dx);
+        int y0 = Math.max(0, -dy);
+        int y1 = Math.min(height, height - dy);
+        if (x1 - x0 < width / 2 || y1 - y0 < height / 2) {
+            return Double.MAX_VALUE;
+        }
+        long sum = 0;
+        long count = 0;
+        for (int y = y0; y < y1; y += step) {
+            int row = y * width;
+            int shifted = (y + dy) * width + dx;
+            for (int x = x0; x < x1; x += step) {
+                sum += Math.abs((reference[row + x] & 0xff) - (frame[shifted + x] & 0xff));
+            }
+            count += (x1 - x0 + step - 1) / step;
+        }
+        return (double) sum / count;
+    }
+
+    /**
+     * Box-filtered copies of the luma of a frame at each level of {@link #PYRAMID_FACTORS},
+     * brought to the exposure of the reference.
+     */
+    private static final class Pyramid {
+
+        final byte[][] levels = new byte[PYRAMID_FACTORS.length][];
+
+        final int[] widths = new int[PYRAMID_FACTORS.length];
+
+        final int[] heights = new int[PYRAMID_FACTORS.length];
+
+        Pyramid(JpegEncoder.Frame frame, float gain) {
+            byte[] toReference = new byte[256];
+            for (int i = 0; i < 256; i++) {
+                toReference[i] = toGamma(TO_LINEAR[i] * gain);
+            }
+            byte[] row = new byte[(frame.width - 1) * frame.y.pixelStride + 1];
+            for (int level = 0; level < PYRAMID_FACTORS.length; level++) {
+                int factor = PYRAMID_FACTORS[level];
+                int width = frame.width / factor;
+                int height = frame.height / factor;
+                byte[] pixels = new byte[width * height];
+                BurstFrameScorer.downscale(frame.y.buffer, frame.y.rowStride,
+                        frame.y.pixelStride, factor, width, height, row, new int[width], pixels);
+                if (gain != 1) {
+                    for (int i = 0; i < pixels.length; i++) {
+                        pixels[i] = toReference[pixels[i] & 0xff];
+                    }
+                }
+                levels[level] = pixels;
+                widths[level] = width;
+                heights[level] = height;
+            }
+        }
+
+    }
+
+    /**
+     * Compresses linear light above {@link #KNEE} so that {@code white} maps to 1, with the
+     * extended Reinhard curve. Values up to 1 are kept when {@code white} is 1.
+     */
+    static float compress(float linear, float white) {
+        if (linear <= KNEE || white <= 1) {
+            return linear;
+        }
+        float headroom = 1 - KNEE;
+        float excess = (linear - KNEE) / headroom;
+        float whiteExcess = (white - KNEE) / headroom;
+        return KNEE + headroom * excess * (1 + excess / (whiteExcess * whiteExcess))
+                / (1 + excess);
+    }
+
+    /**
+     * Returns the luma level of linear light, clipping it to white.
+     */
+    static byte toGamma(float linear) {
+        int index = (int) (linear * (TO_GAMMA_SIZE - 1) + 0.5f);
+        return TO_GAMMA[Math.max(0, Math.min(TO_GAMMA_SIZE - 1, index))];
+    }
+
+    /**
+     * What the tile tasks of a single merge share.
+     */
+    private static final class Job {
+
+        final JpegEncoder.Frame[] frames;
+
+        final int reference;
+
+        final int[][] offsets;
+
+        /**
+         * For each frame and luma level, the linear light at the exposure of the reference
+         */
+        final float[][] values;
+
+        /**
+         * For each frame and luma level, the weight of the sample
+         */
+        final float[][] weights;
+
+        /**
+         * For each frame and luma level, the level at the exposure of the reference
+         */
+        final int[][] levels;
+
+        /**
+         * For each frame and luma level, how much the chroma is scaled to the exposure of the
+         * reference
+         */
+        final float[][] chromaScales;
+
+        final JpegEncoder.Frame output;
+
+        /**
+         * The brightest linear light any of the frames can hold, relative to the reference
+         */
+        final float white;
+
+        final int tileColumns;
+
+        final int tileRows;
+
+        Job(List<Input> inputs, int reference, int[][] offsets, JpegEncoder.Frame output) {
+            List<JpegEncoder.Frame> frames = new ArrayList<>(inputs.size());
+            int count = inputs.size();
+            values = new float[count][256];
+            weights = new float[count][256];
+            levels = new int[count][256];
+            chromaScales = new float[count][256];
+            double referenceExposure = inputs.get(reference).exposure;
+            float white = 1;
+            // Everything that only depends on the frame and the level is looked up per sample.
+            for (int i = 0; i < count; i++) {
+                frames.add(inputs.get(i).frame);
+                float gain = (float) (inputs.get(i).exposure / referenceExposure);
+                white = Math.max(white, 1 / gain);
+                for (int level = 0; level < 256; level++) {
+                    float value = TO_LINEAR[level] / gain;
+                    values[i][level] = value;
+                    // Longer exposures are less noisy, so they count for more.
+                    weights[i][level] = TRUST[level] * gain;
+                    levels[i][level] = toGamma(value) & 0xff;
+                    // Chroma grows with the luma it comes with, so it is brought to the exposure
+                    // of the reference along with it.
+                    chromaScales[i][level] = level == 0 ? 1 : (float) levels[i][level] / level;
+                }
+            }
+            this.white = white;
+            this.frames = frames.toArray(new JpegEncoder.Frame[frames.size()]);
+            this.reference = reference;
+            this.offsets = offsets;
+            this.output = output;
+            tileColumns = (output.width + TILE_SIZE - 1) / TILE_SIZE;
+            tileRows = (output.height + TILE_SIZE - 1) / TILE_SIZE;
+        }
+
+    }
+
+    /**
+     * Merges a range of tiles, splitting it in two until it is small enough.
+     */
+    private static final class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Job mJob;
+
+        private final int mFirst;
+
+        private final int mEnd;
+
+        TileTask(Job job, int first, int end) {
+            mJob = job;
+            mFirst = first;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mFirst <= LEAF_TILES) {
+                int count = mJob.frames.length;
+                // The weights of the top-left luma sample of each chroma sample, per frame
+                int chromaTile = TILE_SIZE / 2;
+                float[] weights = new float[count * chromaTile * chromaTile];
+                float[] scales = new float[weights.length];
+                // Rows are copied out in bulk, so that the loops over samples work on arrays.
+                ByteBuffer[] buffers = new ByteBuffer[count];
+                for (int i = 0; i < count; i++) {
+                    buffers[i] = mJob.frames[i].y.buffer.duplicate();
+                }
+                byte[][] rows = new byte[count][TILE_SIZE];
+                byte[] outRow = new byte[TILE_SIZE];
+                ByteBuffer out = mJob.output.y.buffer.duplicate();
+                for (int tile = mFirst; tile < mEnd; tile++) {
+                    int x0 = (tile % mJob.tileColumns) * TILE_SIZE;
+                    int y0 = (tile / mJob.tileColumns) * TILE_SIZE;
+                    mergeLuma(x0, y0, buffers, rows, out, outRow, weights, scales);
+                    mergeChroma(x0, y0, weights, scales);
+                }
+                return;
+            }
+            int middle = (mFirst + mEnd) >>> 1;
+            invokeAll(new TileTask(mJob, mFirst, middle), new TileTask(mJob, middle, mEnd));
+        }
+
+        private void mergeLuma(int x0, int y0, ByteBuffer[] buffers, byte[][] rows,
+                               ByteBuffer out, byte[] outRow, float[] weights, float[] scales) {
+            JpegEncoder.Frame[] frames = mJob.frames;
+            int width = mJob.output.width;
+            int height = mJob.output.height;
+            int tileWidth = Math.min(width, x0 + TILE_SIZE) - x0;
+            int y1 = Math.min(height, y0 + TILE_SIZE);
+            int chromaTile = TILE_SIZE / 2;
+            int perFrame = chromaTile * chromaTile;
+            byte[] referenceRow = rows[mJob.reference];
+            for (int y = y0; y < y1; y++) {
+                for (int i = 0; i < frames.length; i++) {
+                    int sy = Math.max(0, Math.min(height - 1, y + mJob.offsets[i][1]));
+                    readRow(frames[i].y, buffers[i], sy, x0 + mJob.offsets[i][0], tileWidth,
+                            width, rows[i]);
+                }
+                boolean chromaRow = ((y - y0) & 1) == 0;
+                int siteRow = ((y - y0) >> 1) * chromaTile;
+                for (int x = 0; x < tileWidth; x++) {
+                    int referenceLevel = referenceRow[x] & 0xff;
+                    boolean compare = referenceLevel < CLIPPED;
+                    float weightSum = 0;
+                    float valueSum = 0;
+                    boolean chromaSite = chromaRow && (x & 1) == 0;
+                    int site = siteRow + (x >> 1);
+                    for (int i = 0; i < frames.length; i++) {
+                        int level = rows[i][x] & 0xff;
+                        float weight = mJob.weights[i][level];
+                        if (compare && i != mJob.reference && Math.abs(
+                                mJob.levels[i][level] - referenceLevel) > GHOST_THRESHOLD) {
+                            weight = 0;
+                        }
+                        weightSum += weight;
+                        valueSum += weight * mJob.values[i][level];
+                        if (chromaSite) {
+                            weights[i * perFrame + site] = weight;
+                            scales[i * perFrame + site] = mJob.chromaScales[i][level];
+                        }
+                    }
+                    float merged = weightSum > 0 ? valueSum / weightSum
+                            : TO_LINEAR[referenceLevel];
+                    outRow[x] = toGamma(compress(merged, mJob.white));
+                }
+                JpegEncoder.Plane plane = mJob.output.y;
+                out.position(plane.buffer.position() + y * plane.rowStride + x0);
+                out.put(outRow, 0, tileWidth);
+            }
+        }
+
+        /**
+         * Copies {@code count} samples of a row, starting at {@code x}, repeating the edge samples
+         * where the row is left.
+         *
+         * @param buffer A duplicate of the buffer of the plane, to be moved about
+         */
+        private static void readRow(JpegEncoder.Plane plane, ByteBuffer buffer, int y, int x,
+                                    int count, int width, byte[] row) {
+            int base = plane.buffer.position() + y * plane.rowStride;
+            int first = Math.max(0, Math.min(count, -x));
+            int last = Math.max(first, Math.min(count, width - x));
+            if (plane.pixelStride == 1) {
+                buffer.position(base + x + first);
+                buffer.get(row, first, last - first);
+            } else {
+                for (int i = first; i < last; i++) {
+                    row[i] = buffer.get(base + (x + i) * plane.pixelStride);
+                }
+            }
+            if (first > 0) {
+                byte left = buffer.get(base);
+                for (int i = 0; i < first; i++) {
+                    row[i] = left;
+                }
+            }
+            if (last < count) {
+                byte right = buffer.get(base + (width - 1) * plane.pixelStride);
+                for (int i = last; i < count; i++) {
+                    row[i] = right;
+                }
+            }
+        }
+
+        private void mergeChroma(int x0, int y0, float[] weights, float[] scales) {
+            JpegEncoder.Frame[] frames = mJob.frames;
+            int chromaWidth = (mJob.output.width + 1) / 2;
+            int chromaHeight = (mJob.output.height + 1) / 2;
+            int cx0 = x0 / 2;
+            int cy0 = y0 / 2;
+            int chromaTile = TILE_SIZE / 2;
+            int cx1 = Math.min(chromaWidth, cx0 + chromaTile);
+            int cy1 = Math.min(chromaHeight, cy0 + chromaTile);
+            int perFrame = chromaTile * chromaTile;
+            JpegEncoder.Plane outU = mJob.output.u;
+            JpegEncoder.Plane outV = mJob.output.v;
+            for (int cy = cy0; cy < cy1; cy++) {
+                for (int cx = cx0; cx < cx1; cx++) {
+                    int site = (cy - cy0) * chromaTile + (cx - cx0);
+                    float weightSum = 0;
+                    float uSum = 0;
+                    float vSum = 0;
+                    for (int i = 0; i < frames.length; i++) {
+                        float weight = weights[i * perFrame + site];
+                        if (weight == 0) {
+                            continue;
+                        }
+                        float scale = scales[i * perFrame + site];
+                        int sx = Math.max(0, Math.min(chromaWidth - 1,
+                                cx + mJob.offsets[i][0] / 2));
+                        int sy = Math.max(0, Math.min(chromaHeight - 1,
+                                cy + mJob.offsets[i][1] / 2));
+                        weightSum += weight;
+                        uSum += weight * scale * (sample(frames[i].u, sx, sy) - 128);
+                        vSum += weight * scale * (sample(frames[i].v, sx, sy) - 128);
+                    }
+                    int u;
+                    int v;
+                    if (weightSum > 0) {
+                        u = Math.max(0, Math.min(255, Math.round(128 + uSum / weightSum)));
+                        v = Math.max(0, Math.min(255, Math.round(128 + vSum / weightSum)));
+                    } else {
+                        u = sample(frames[mJob.reference].u, cx, cy);
+                        v = sample(frames[mJob.reference].v, cx, cy);
+                    }
+                    outU.buffer.put(outU.buffer.position() + cy * outU.rowStride + cx, (byte) u);
+                    outV.buffer.put(outV.buffer.position() + cy * outV.rowStride + cx, (byte) v);
+                }
+            }
+        }
+
+        private static int sample(JpegEncoder.Plane plane, int x, int y) {
+            return plane.buffer.get(plane.buffer.position() + y * plane.rowStride
+                    + x * plane.pixelStride) & 0xff;
+        }
+
+    }
+
+}
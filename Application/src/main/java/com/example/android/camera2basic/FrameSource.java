@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * What a source of camera frames delivers: images as {@link Frame}s, and their metadata as
+ * {@link Result}s, to a {@link Callback}. The camera hands its images over as {@link ImageFrame}s;
+ * a {@link ReplayFrameSource} plays recorded ones.
+ *
+ * Nothing here depends on the framework, so what consumes frames, such as a
+ * {@link CapturePipeline}, runs on a plain JVM as well as on the camera.
+ */
+interface FrameSource {
+
+    /**
+     * The format of a JPEG frame, as in {@link android.graphics.ImageFormat#JPEG}
+     */
+    int FORMAT_JPEG = 0x100;
+
+    /**
+     * The format of a YUV frame, as in {@link android.graphics.ImageFormat#YUV_420_888}
+     */
+    int FORMAT_YUV_420_888 = 0x23;
+
+    /**
+     * An image delivered by a source, like an {@link android.media.Image}.
+     */
+    interface Frame {
+
+        /**
+         * Returns {@link #FORMAT_JPEG} or {@link #FORMAT_YUV_420_888}.
+         */
+        int getFormat();
+
+        int getWidth();
+
+        int getHeight();
+
+        /**
+         * Returns the sensor timestamp of the frame, in nanoseconds.
+         */
+        long getTimestampNs();
+
+        /**
+         * Returns the number of planes: one for a JPEG, three for a YUV frame.
+         */
+        int getPlaneCount();
+
+        /**
+         * Returns a plane of the frame. The buffer of a JPEG plane holds the encoded bytes.
+         */
+        JpegEncoder.Plane getPlane(int index);
+
+        /**
+         * Gives the frame back to its source.
+         */
+        void close();
+
+    }
+
+    /**
+     * The metadata of a captured frame, the part of a
+     * {@link android.hardware.camera2.CaptureResult} that the app reads.
+     */
+    final class Result {
+
+        final long timestampNs;
+
+        final long frameNumber;
+
+        /**
+         * Whether the frame was taken by a still capture rather than the repeating request
+         */
+        final boolean still;
+
+        /**
+         * The CONTROL_AF_STATE, or {@link CaptureStateMachine#UNKNOWN}
+         */
+        final int afState;
+
+        /**
+         * The CONTROL_AE_STATE, or {@link CaptureStateMachine#UNKNOWN}
+         */
+        final int aeState;
+
+        /**
+         * The SENSOR_EXPOSURE_TIME in nanoseconds, or 0 if unknown
+         */
+        final long exposureTimeNs;
+
+        /**
+         * The SENSOR_SENSITIVITY, or 0 if unknown
+         */
+        final int sensitivity;
+
+        Result(long timestampNs, long frameNumber, boolean still, int afState, int aeState,
+               long exposureTimeNs, int sensitivity) {
+            this.timestampNs = timestampNs;
+            this.frameNumber = frameNumber;
+            this.still = still;
+            this.afState = afState;
+            this.aeState = aeState;
+            this.exposureTimeNs = exposureTimeNs;
+            this.sensitivity = sensitivity;
+        }
+
+    }
+
+    /**
+     * Receives what a source produces, on the thread of the source.
+     */
+    interface Callback {
+
+        void onOpened();
+
+        /**
+         * Called when the source can't open or fails while running. No more frames follow.
+         */
+        void onError(Exception e);
+
+        /**
+         * Called with the metadata of every frame, whether or not an image is delivered with it.
+         */
+        void onCaptureResult(Result result);
+
+        /**
+         * Called with a frame of the analysis stream. The source closes it once this returns.
+         */
+        void onPreviewFrame(Frame frame);
+
+        /**
+         * Called with a still image. The callback owns it and must close it.
+         */
+        void onStillImage(Frame frame);
+
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.Image;
+
+/**
+ * Hands an {@link Image} from the camera to code that takes any {@link FrameSource.Frame}.
+ */
+class ImageFrame implements FrameSource.Frame {
+
+    private final Image mImage;
+
+    public ImageFrame(Image image) {
+        mImage = image;
+    }
+
+    @Override
+    public int getFormat() {
+        return mImage.getFormat();
+    }
+
+    @Override
+    public int getWidth() {
+        return mImage.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return mImage.getHeight();
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mImage.getTimestamp();
+    }
+
+    @Override
+    public int getPlaneCount() {
+        return mImage.getPlanes().length;
+    }
+
+    @Override
+    public JpegEncoder.Plane getPlane(int index) {
+        Image.Plane plane = mImage.getPlanes()[index];
+        return new JpegEncoder.Plane(plane.getBuffer(), plane.getRowStride(),
+                plane.getPixelStride());
+    }
+
+    @Override
+    public void close() {
+        mImage.close();
+    }
+
+}
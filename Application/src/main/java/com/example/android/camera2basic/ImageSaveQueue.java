@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs {@link ImageSaver}s, or other {@link Job}s, on a bounded pool of worker threads, away from
+ * the thread that delivers capture results.
+ */
+class ImageSaveQueue {
+
+    /**
+     * Saves an image when run.
+     */
+    interface Job extends Runnable {
+
+        /**
+         * Releases the image without saving it.
+         */
+        void discard();
+
+    }
+
+    /**
+     * What to do with a new image when the queue is full.
+     */
+    enum Backpressure {
+
+        /**
+         * Wait on the submitting thread until there is room in the queue.
+         */
+        BLOCK,
+
+        /**
+         * Discard the oldest pending image to make room for the new one.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the new image and report it to the caller.
+         */
+        FAIL_FAST
+
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Backpressure mBackpressure;
+
+    private final AtomicLong mSubmitted = new AtomicLong();
+
+    private final AtomicLong mCompleted = new AtomicLong();
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * Sum of the latencies from submission to saved of all completed images, in nanoseconds.
+     */
+    private final AtomicLong mTotalLatencyNs = new AtomicLong();
+
+    private final AtomicLong mMaxLatencyNs = new AtomicLong();
+
+    /**
+     * @param workerCount  The number of threads saving images concurrently
+     * @param capacity     The maximum number of images waiting to be saved
+     * @param backpressure What to do when {@code capacity} images are already waiting
+     */
+    public ImageSaveQueue(int workerCount, int capacity, Backpressure backpressure) {
+        this("ImageSaver", workerCount, capacity, backpressure);
+    }
+
+    /**
+     * @param name         The name of the worker threads
+     * @param workerCount  The number of threads saving images concurrently
+     * @param capacity     The maximum number of images waiting to be saved
+     * @param backpressure What to do when {@code capacity} images are already waiting
+     */
+    public ImageSaveQueue(String name, int workerCount, int capacity,
+                          Backpressure backpressure) {
+        mBackpressure = backpressure;
+        mExecutor = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity), new SaverThreadFactory(name),
+                new BackpressureHandler());
+    }
+
+    /**
+     * Queues {@code job} to be run on a worker thread.
+     *
+     * @return false if the image was discarded because the queue is full or shut down
+     */
+    public boolean submit(Job job) {
+        mSubmitted.incrementAndGet();
+        try {
+            mExecutor.execute(new Task(job));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting new images. Images already queued are still saved.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for queued images to be saved after {@link #shutdown()}.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mExecutor.awaitTermination(timeout, unit);
+    }
+
+    public Backpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    /**
+     * Returns the number of images waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of images submitted that have been neither saved nor dropped yet.
+     */
+    public long getPendingCount() {
+        return mSubmitted.get() - mCompleted.get() - mDropped.get();
+    }
+
+    public long getSubmittedCount() {
+        return mSubmitted.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Returns the mean time from submission until an image is saved, in nanoseconds.
+     */
+    public long getMeanLatencyNs() {
+        long completed = mCompleted.get();
+        return completed == 0 ? 0 : mTotalLatencyNs.get() / completed;
+    }
+
+    /**
+     * Returns the longest time from submission until an image is saved, in nanoseconds.
+     */
+    public long getMaxLatencyNs() {
+        return mMaxLatencyNs.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ImageSaveQueue{depth=" + getQueueDepth()
+                + ", submitted=" + getSubmittedCount()
+                + ", completed=" + getCompletedCount()
+                + ", dropped=" + getDroppedCount()
+                + ", meanLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(getMeanLatencyNs())
+                + ", maxLatencyMs=" + TimeUnit.NANOSECONDS.toMillis(getMaxLatencyNs()) + "}";
+    }
+
+    private void recordLatency(long latencyNs) {
+        mTotalLatencyNs.addAndGet(latencyNs);
+        long max = mMaxLatencyNs.get();
+        while (latencyNs > max && !mMaxLatencyNs.compareAndSet(max, latencyNs)) {
+            max = mMaxLatencyNs.get();
+        }
+        mCompleted.incrementAndGet();
+    }
+
+    /**
+     * A {@link Job} along with the time it was submitted.
+     */
+    private class Task implements Runnable {
+
+        private final Job mSaver;
+
+        private final long mSubmitTimeNs;
+
+        Task(Job saver) {
+            mSaver = saver;
+            mSubmitTimeNs = System.nanoTime();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSaver.run();
+            } finally {
+                // A job that throws is over all the same, and must not stay pending forever.
+                recordLatency(System.nanoTime() - mSubmitTimeNs);
+            }
+        }
+
+        /**
+         * Gives the image back without saving it.
+         */
+        void drop() {
+            mSaver.discard();
+            mDropped.incrementAndGet();
+        }
+
+    }
+
+    /**
+     * Applies {@link #mBackpressure} to tasks that don't fit in the queue.
+     */
+    private class BackpressureHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            Task task = (Task) runnable;
+            if (executor.isShutdown()) {
+                task.drop();
+                throw new RejectedExecutionException("Save queue is shut down.");
+            }
+            switch (mBackpressure) {
+                case BLOCK: {
+                    try {
+                        executor.getQueue().put(task);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        task.drop();
+                        throw new RejectedExecutionException("Interrupted while queueing.", e);
+                    }
+                    break;
+                }
+                case DROP_OLDEST: {
+                    Task oldest = (Task) executor.getQueue().poll();
+                    if (null != oldest) {
+                        oldest.drop();
+                    }
+                    executor.execute(task);
+                    break;
+                }
+                case FAIL_FAST: {
+                    task.drop();
+                    throw new RejectedExecutionException("Save queue is full.");
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Creates low priority, named worker threads.
+     */
+    private static class SaverThreadFactory implements ThreadFactory {
+
+        private final String mName;
+
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        SaverThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mName + "-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+
+    }
+
+}
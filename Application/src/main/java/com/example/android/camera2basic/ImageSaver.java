@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves an encoded image into the specified {@link File} or {@link CaptureStorage.Output}.
+ *
+ * The bytes are written straight from the buffer of the {@link Source} through a
+ * {@link FileChannel}, so a full resolution JPEG is never copied onto the Java heap. Buffers that
+ * are not direct are staged through a buffer borrowed from a {@link ByteBufferPool}. Segments set
+ * with {@link #setSegments} are spliced into the JPEG on the way by {@link JpegSplicer}. They can
+ * be built while saving, once the image is encoded, for metadata that may still be on its way.
+ *
+ * The image is only moved into place once complete, as decided by the {@link FileCommitter} of
+ * the output.
+ */
+class ImageSaver implements ImageSaveQueue.Job {
+
+    /**
+     * A source of encoded image bytes, such as the single plane of a JPEG
+     * {@link android.media.Image}.
+     */
+    interface Source {
+
+        /**
+         * Returns the encoded bytes, positioned at the first byte to write. Sources that encode
+         * the image may block here.
+         */
+        ByteBuffer getBuffer() throws InterruptedException;
+
+        /**
+         * Releases the underlying image. Called once its bytes have been written.
+         */
+        void close();
+
+    }
+
+    /**
+     * Builds the APP segments of an image when it is saved.
+     */
+    interface Segments {
+
+        /**
+         * Returns the segments to insert into the JPEG, or null. May block, for a bounded time.
+         */
+        ByteBuffer[] get() throws InterruptedException;
+
+    }
+
+    /**
+     * Notified once an image is on disk, on the thread that commits it: the saving thread, or
+     * another one when captures are committed in groups.
+     */
+    interface Callback {
+
+        /**
+         * @param output Where the image was saved
+         * @param length The size of the saved image in bytes
+         */
+        void onImageSaved(CaptureStorage.Output output, long length);
+
+    }
+
+    /**
+     * The image to save
+     */
+    private final Source mSource;
+
+    /**
+     * Where we save the image into.
+     */
+    private final CaptureStorage.Output mOutput;
+
+    /**
+     * The pool used to stage buffers that can't be handed to the channel directly.
+     */
+    private final ByteBufferPool mBufferPool;
+
+    /**
+     * Notified once the image is saved, or null.
+     */
+    private Callback mCallback;
+
+    /**
+     * Builds the APP segments to insert into the JPEG, or null.
+     */
+    private Segments mSegments;
+
+    public ImageSaver(Source source, File file, ByteBufferPool bufferPool) {
+        this(source, new CaptureStorage.Output(file), bufferPool);
+    }
+
+    public ImageSaver(Source source, CaptureStorage.Output output, ByteBufferPool bufferPool) {
+        mSource = source;
+        mOutput = output;
+        mBufferPool = bufferPool;
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Sets APP segments, as made by {@link JpegSplicer#appSegment}, to insert into the JPEG.
+     */
+    public void setSegments(final ByteBuffer[] segments) {
+        mSegments = new Segments() {
+            @Override
+            public ByteBuffer[] get() {
+                return segments;
+            }
+        };
+    }
+
+    /**
+     * Sets what builds the APP segments to insert into the JPEG, once its bytes are ready.
+     */
+    public void setSegments(Segments segments) {
+        mSegments = segments;
+    }
+
+    @Override
+    public void run() {
+        RandomAccessFile output = null;
+        long length = -1;
+        boolean written = false;
+        try {
+            // The file may have been preallocated, so it is opened without truncating it and then
+            // cut to the length actually written.
+            output = new RandomAccessFile(mOutput.getWriteFile(), "rw");
+            FileChannel channel = output.getChannel();
+            ByteBuffer buffer = mSource.getBuffer();
+            ByteBuffer[] segments = null == mSegments ? null : mSegments.get();
+            // Bytes that can't take the segments are still saved as they are.
+            if (null == segments
+                    || !JpegSplicer.write(buffer, segments, channel, mBufferPool)) {
+                write(buffer, channel, mBufferPool);
+            }
+            length = channel.position();
+            channel.truncate(length);
+            mOutput.onWritten(channel);
+            written = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mSource.close();
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    written = false;
+                }
+            }
+            // This also runs when the source or the splicer throws, so the write file is not
+            // left behind.
+            if (!written) {
+                mOutput.abort();
+            }
+        }
+        if (written) {
+            mOutput.commit(length, mCallback);
+        }
+    }
+
+    @Override
+    public void discard() {
+        mSource.close();
+    }
+
+    /**
+     * Writes the remaining bytes of {@code buffer} to {@code channel} without allocating.
+     *
+     * @param buffer     The bytes to write. Its position is advanced to its limit.
+     * @param channel    The channel to write to
+     * @param bufferPool The pool to borrow a staging buffer from if {@code buffer} is not direct
+     */
+    static void write(ByteBuffer buffer, FileChannel channel, ByteBufferPool bufferPool)
+            throws IOException, InterruptedException {
+        if (buffer.isDirect()) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            return;
+        }
+        // Heap buffers would be copied into a temporary direct buffer by the channel anyway, so
+        // we do it ourselves with a buffer we can reuse.
+        ByteBuffer staging = bufferPool.acquire();
+        int limit = buffer.limit();
+        try {
+            while (buffer.hasRemaining()) {
+                staging.clear();
+                buffer.limit(buffer.position() + Math.min(staging.remaining(), buffer.remaining()));
+                staging.put(buffer);
+                buffer.limit(limit);
+                staging.flip();
+                while (staging.hasRemaining()) {
+                    channel.write(staging);
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+            bufferPool.release(staging);
+        }
+    }
+
+}
@@ -0,0 +1,762 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * A baseline JPEG encoder for YUV 4:2:0 frames, written in plain Java so it behaves the same on
+ * every device and can be measured off the device.
+ *
+ * The image is cut into horizontal strips of whole MCU rows. Each strip is entropy coded on its
+ * own, on a thread of the {@link Executor}, and strips are separated by restart markers so that
+ * they can simply be concatenated. The encoding thread codes the first strip itself.
+ *
+ * Frames can also be scaled down by a power of two while they are encoded, which makes a
+ * thumbnail cost about as much as reading the samples it keeps.
+ */
+class JpegEncoder {
+
+    /**
+     * A plane of 8 bit samples, such as a plane of a YUV_420_888 {@link android.media.Image}.
+     * Samples are read with absolute gets from the position of the buffer onwards, so the buffer
+     * can be shared between threads.
+     */
+    static final class Plane {
+
+        final ByteBuffer buffer;
+
+        final int rowStride;
+
+        final int pixelStride;
+
+        Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+    }
+
+    /**
+     * A YUV 4:2:0 frame. The chroma planes have half the width and height of the luma plane,
+     * rounded up.
+     */
+    static final class Frame {
+
+        final int width;
+
+        final int height;
+
+        final Plane y;
+
+        final Plane u;
+
+        final Plane v;
+
+        Frame(int width, int height, Plane y, Plane u, Plane v) {
+            this.width = width;
+            this.height = height;
+            this.y = y;
+            this.u = u;
+            this.v = v;
+        }
+
+    }
+
+    /**
+     * The largest number of MCUs between two restart markers that a DRI segment can hold
+     */
+    private static final int MAX_RESTART_INTERVAL = 0xffff;
+
+    /**
+     * The zigzag order of the coefficients of a block, as indices in row-major order
+     */
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63};
+
+    /**
+     * The luminance quantization table suggested by the JPEG specification, for quality 50
+     */
+    private static final int[] LUMA_QUANTIZATION = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+
+    /**
+     * The chrominance quantization table suggested by the JPEG specification, for quality 50
+     */
+    private static final int[] CHROMA_QUANTIZATION = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    /**
+     * The scale factors of the AAN forward DCT, which are folded into the quantization divisors
+     */
+    private static final double[] AAN_SCALE = {
+            1.0, 1.387039845, 1.306562965, 1.175875602,
+            1.0, 0.785694958, 0.541196100, 0.275899379};
+
+    private static final HuffmanTable DC_LUMA = new HuffmanTable(0x00,
+            new int[]{0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    private static final HuffmanTable DC_CHROMA = new HuffmanTable(0x01,
+            new int[]{0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            new int[]{0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11});
+
+    private static final HuffmanTable AC_LUMA = new HuffmanTable(0x10,
+            new int[]{0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            new int[]{
+                    0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+                    0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                    0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+                    0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                    0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+                    0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                    0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+                    0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                    0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+                    0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                    0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+                    0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                    0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+                    0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                    0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+                    0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                    0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+                    0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                    0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+                    0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa});
+
+    private static final HuffmanTable AC_CHROMA = new HuffmanTable(0x11,
+            new int[]{0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+            new int[]{
+                    0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+                    0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                    0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+                    0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                    0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+                    0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                    0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+                    0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                    0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+                    0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                    0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+                    0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                    0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+                    0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                    0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+                    0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                    0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+                    0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                    0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+                    0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                    0xf9, 0xfa});
+
+    private final int mQuality;
+
+    private final int mStripCount;
+
+    private final Executor mExecutor;
+
+    /**
+     * The quantization tables in zigzag order, as they are written to the file
+     */
+    private final int[] mLumaTable;
+
+    private final int[] mChromaTable;
+
+    /**
+     * The reciprocals of the quantization steps, scaled for the AAN DCT, in row-major order
+     */
+    private final float[] mLumaDivisors;
+
+    private final float[] mChromaDivisors;
+
+    /**
+     * @param quality    JPEG quality, from 1 to 100
+     * @param stripCount The number of strips to encode in parallel
+     * @param executor   Runs every strip but the first
+     */
+    public JpegEncoder(int quality, int stripCount, Executor executor) {
+        if (stripCount <= 0) {
+            throw new IllegalArgumentException("Strip count must be positive.");
+        }
+        mQuality = Math.max(1, Math.min(100, quality));
+        mStripCount = stripCount;
+        mExecutor = executor;
+        mLumaTable = scaleQuantization(LUMA_QUANTIZATION, mQuality);
+        mChromaTable = scaleQuantization(CHROMA_QUANTIZATION, mQuality);
+        mLumaDivisors = divisors(mLumaTable);
+        mChromaDivisors = divisors(mChromaTable);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Encodes {@code frame}, scaled down by {@code 2^scaleShift} in both dimensions. Scaling
+     * keeps every {@code 2^scaleShift}-th sample without filtering.
+     *
+     * @param frame      The frame to encode
+     * @param scaleShift 0 for the full frame, 1 for half its size and so on
+     * @return The JPEG file
+     */
+    public byte[] encode(Frame frame, int scaleShift) throws InterruptedException {
+        int width = Math.max(1, frame.width >> scaleShift);
+        int height = Math.max(1, frame.height >> scaleShift);
+        int mcuColumns = (width + 15) / 16;
+        int mcuRows = (height + 15) / 16;
+        int rowsPerStrip = (mcuRows + mStripCount - 1) / mStripCount;
+        rowsPerStrip = Math.max(1, Math.min(rowsPerStrip, MAX_RESTART_INTERVAL / mcuColumns));
+        int stripCount = (mcuRows + rowsPerStrip - 1) / rowsPerStrip;
+
+        Layout layout = new Layout(frame, width, height, mcuColumns, mcuRows, scaleShift);
+        List<FutureTask<byte[]>> tasks = new ArrayList<>(stripCount - 1);
+        for (int i = 1; i < stripCount; i++) {
+            FutureTask<byte[]> task = new FutureTask<>(
+                    new Strip(layout, i, rowsPerStrip, i < stripCount - 1));
+            tasks.add(task);
+            try {
+                mExecutor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+        byte[][] strips = new byte[stripCount][];
+        Throwable failure = null;
+        boolean interrupted = false;
+        try {
+            strips[0] = new Strip(layout, 0, rowsPerStrip, stripCount > 1).call();
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            layout.abandoned = true;
+        }
+        // Every strip reads the frame, which the caller closes once this returns or throws, so
+        // all of them are waited for. Strips that have not started yet skip their work once the
+        // encoding is abandoned.
+        for (int i = 1; i < stripCount; i++) {
+            while (true) {
+                try {
+                    strips[i] = tasks.get(i - 1).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    layout.abandoned = true;
+                } catch (ExecutionException e) {
+                    if (null == failure) {
+                        failure = e.getCause();
+                    }
+                    layout.abandoned = true;
+                    break;
+                }
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (null != failure) {
+            throw new IllegalStateException(failure);
+        } else if (interrupted) {
+            throw new InterruptedException("Interrupted while encoding");
+        }
+
+        byte[] header = writeHeader(width, height,
+                stripCount > 1 ? rowsPerStrip * mcuColumns : 0);
+        int length = header.length + 2;
+        for (byte[] strip : strips) {
+            length += strip.length;
+        }
+        byte[] jpeg = new byte[length];
+        System.arraycopy(header, 0, jpeg, 0, header.length);
+        int offset = header.length;
+        for (byte[] strip : strips) {
+            System.arraycopy(strip, 0, jpeg, offset, strip.length);
+            offset += strip.length;
+        }
+        jpeg[offset] = (byte) 0xff;
+        jpeg[offset + 1] = (byte) 0xd9;
+        return jpeg;
+    }
+
+    /**
+     * Writes everything up to the entropy coded data.
+     *
+     * @param restartInterval The number of MCUs in a strip, or 0 when there is a single strip
+     */
+    private byte[] writeHeader(int width, int height, int restartInterval) {
+        Segments out = new Segments();
+        out.marker(0xd8);
+
+        out.marker(0xe0);
+        out.short16(16);
+        out.bytes('J', 'F', 'I', 'F', 0, 1, 1, 0);
+        out.short16(1);
+        out.short16(1);
+        out.bytes(0, 0);
+
+        out.marker(0xdb);
+        out.short16(2 + 2 * 65);
+        out.bytes(0);
+        out.bytes(mLumaTable);
+        out.bytes(1);
+        out.bytes(mChromaTable);
+
+        // Luma is sampled twice as densely as chroma in both directions.
+        out.marker(0xc0);
+        out.short16(17);
+        out.bytes(8);
+        out.short16(height);
+        out.short16(width);
+        out.bytes(3, 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1);
+
+        out.marker(0xc4);
+        out.short16(2 + DC_LUMA.length() + AC_LUMA.length() + DC_CHROMA.length()
+                + AC_CHROMA.length());
+        DC_LUMA.write(out);
+        AC_LUMA.write(out);
+        DC_CHROMA.write(out);
+        AC_CHROMA.write(out);
+
+        if (restartInterval > 0) {
+            out.marker(0xdd);
+            out.short16(4);
+            out.short16(restartInterval);
+        }
+
+        out.marker(0xda);
+        out.short16(12);
+        out.bytes(3, 1, 0x00, 2, 0x11, 3, 0x11, 0, 63, 0);
+        return out.toByteArray();
+    }
+
+    /**
+     * Scales a quantization table the way the IJG library does, and returns it in zigzag order.
+     */
+    static int[] scaleQuantization(int[] table, int quality) {
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        int[] scaled = new int[64];
+        for (int i = 0; i < 64; i++) {
+            int step = (table[ZIGZAG[i]] * scale + 50) / 100;
+            scaled[i] = Math.max(1, Math.min(255, step));
+        }
+        return scaled;
+    }
+
+    private static float[] divisors(int[] zigzagTable) {
+        float[] divisors = new float[64];
+        for (int i = 0; i < 64; i++) {
+            int index = ZIGZAG[i];
+            divisors[index] = (float) (1.0 / (zigzagTable[i] * AAN_SCALE[index >> 3]
+                    * AAN_SCALE[index & 7] * 8.0));
+        }
+        return divisors;
+    }
+
+    /**
+     * Where each sample of the scaled, padded image is read from. The offsets of a sample are
+     * the sum of the offset of its row and of its column, and edge samples are repeated to fill
+     * the last MCUs.
+     */
+    private static final class Layout {
+
+        final int mcuColumns;
+
+        final int mcuRows;
+
+        final ByteBuffer y;
+
+        final ByteBuffer u;
+
+        final ByteBuffer v;
+
+        final int[] yRows;
+
+        final int[] yColumns;
+
+        final int[] uRows;
+
+        final int[] uColumns;
+
+        final int[] vRows;
+
+        final int[] vColumns;
+
+        /**
+         * Set once the image won't be completed, so that strips not started yet do nothing
+         */
+        volatile boolean abandoned;
+
+        Layout(Frame frame, int width, int height, int mcuColumns, int mcuRows, int shift) {
+            this.mcuColumns = mcuColumns;
+            this.mcuRows = mcuRows;
+            y = frame.y.buffer;
+            u = frame.u.buffer;
+            v = frame.v.buffer;
+            int chromaWidth = (frame.width + 1) / 2;
+            int chromaHeight = (frame.height + 1) / 2;
+            yRows = offsets(mcuRows * 16, height, frame.height, shift,
+                    frame.y.rowStride, y.position());
+            yColumns = offsets(mcuColumns * 16, width, frame.width, shift,
+                    frame.y.pixelStride, 0);
+            uRows = offsets(mcuRows * 8, (height + 1) / 2, chromaHeight, shift,
+                    frame.u.rowStride, u.position());
+            uColumns = offsets(mcuColumns * 8, (width + 1) / 2, chromaWidth, shift,
+                    frame.u.pixelStride, 0);
+            vRows = offsets(mcuRows * 8, (height + 1) / 2, chromaHeight, shift,
+                    frame.v.rowStride, v.position());
+            vColumns = offsets(mcuColumns * 8, (width + 1) / 2, chromaWidth, shift,
+                    frame.v.pixelStride, 0);
+        }
+
+        /**
+         * @param count  The number of padded samples
+         * @param size   The number of samples in the scaled image
+         * @param source The number of samples in the frame
+         * @param shift  The scale of the image
+         * @param stride The distance between two samples in the buffer
+         * @param base   The offset of the first sample
+         */
+        private static int[] offsets(int count, int size, int source, int shift, int stride,
+                                     int base) {
+            int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                int sample = Math.min(Math.min(i, size - 1) << shift, source - 1);
+                offsets[i] = base + sample * stride;
+            }
+            return offsets;
+        }
+
+    }
+
+    /**
+     * Encodes a run of MCU rows into entropy coded data, followed by a restart marker unless it
+     * is the last strip.
+     */
+    private final class Strip implements Callable<byte[]> {
+
+        private final Layout mLayout;
+
+        private final int mIndex;
+
+        private final int mFirstRow;
+
+        private final int mEndRow;
+
+        private final boolean mRestart;
+
+        private final float[] mBlock = new float[64];
+
+        /**
+         * The DC coefficients of the last Y, Cb and Cr blocks, which the next ones are coded
+         * relative to
+         */
+        private final int[] mPredictions = new int[3];
+
+        private byte[] mOut;
+
+        private int mLength;
+
+        private int mBits;
+
+        private int mBitCount;
+
+        Strip(Layout layout, int index, int rowsPerStrip, boolean restart) {
+            mLayout = layout;
+            mIndex = index;
+            mFirstRow = index * rowsPerStrip;
+            mEndRow = Math.min(layout.mcuRows, mFirstRow + rowsPerStrip);
+            mRestart = restart;
+            // Compressed data is rarely more than a byte per luma sample.
+            mOut = new byte[Math.max(1024, (mEndRow - mFirstRow) * layout.mcuColumns * 64)];
+        }
+
+        @Override
+        public byte[] call() {
+            Layout layout = mLayout;
+            if (layout.abandoned) {
+                return null;
+            }
+            for (int row = mFirstRow; row < mEndRow; row++) {
+                int y = row * 16;
+                int chromaY = row * 8;
+                for (int column = 0; column < layout.mcuColumns; column++) {
+                    int x = column * 16;
+                    int chromaX = column * 8;
+                    encodeBlock(layout.y, layout.yRows, layout.yColumns, y, x, 0);
+                    encodeBlock(layout.y, layout.yRows, layout.yColumns, y, x + 8, 0);
+                    encodeBlock(layout.y, layout.yRows, layout.yColumns, y + 8, x, 0);
+                    encodeBlock(layout.y, layout.yRows, layout.yColumns, y + 8, x + 8, 0);
+                    encodeBlock(layout.u, layout.uRows, layout.uColumns, chromaY, chromaX, 1);
+                    encodeBlock(layout.v, layout.vRows, layout.vColumns, chromaY, chromaX, 2);
+                }
+            }
+            // Pad the last byte with ones.
+            if (mBitCount > 0) {
+                writeBits((1 << (8 - mBitCount)) - 1, 8 - mBitCount);
+            }
+            if (mRestart) {
+                writeByte(0xff);
+                writeByte(0xd0 + (mIndex & 7));
+            }
+            return Arrays.copyOf(mOut, mLength);
+        }
+
+        private void encodeBlock(ByteBuffer buffer, int[] rows, int[] columns, int y, int x,
+                                 int component) {
+            float[] block = mBlock;
+            for (int r = 0; r < 8; r++) {
+                int row = rows[y + r];
+                for (int c = 0; c < 8; c++) {
+                    block[r * 8 + c] = (buffer.get(row + columns[x + c]) & 0xff) - 128;
+                }
+            }
+            forwardDct(block);
+
+            boolean luma = component == 0;
+            float[] divisors = luma ? mLumaDivisors : mChromaDivisors;
+            HuffmanTable dcTable = luma ? DC_LUMA : DC_CHROMA;
+            HuffmanTable acTable = luma ? AC_LUMA : AC_CHROMA;
+
+            int dc = quantize(block[0] * divisors[0]);
+            writeCoefficient(dcTable, 0, dc - mPredictions[component]);
+            mPredictions[component] = dc;
+
+            int run = 0;
+            for (int i = 1; i < 64; i++) {
+                int index = ZIGZAG[i];
+                int value = quantize(block[index] * divisors[index]);
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    writeBits(acTable.codes[0xf0], acTable.sizes[0xf0]);
+                    run -= 16;
+                }
+                // Rounding can overshoot the largest magnitude the AC tables can code.
+                writeCoefficient(acTable, run, Math.max(-1023, Math.min(1023, value)));
+                run = 0;
+            }
+            if (run > 0) {
+                writeBits(acTable.codes[0], acTable.sizes[0]);
+            }
+        }
+
+        /**
+         * Writes the Huffman code for a run of zeros and the size of {@code value}, followed by
+         * the bits of {@code value}.
+         */
+        private void writeCoefficient(HuffmanTable table, int run, int value) {
+            int magnitude = value < 0 ? -value : value;
+            int size = 32 - Integer.numberOfLeadingZeros(magnitude);
+            int symbol = (run << 4) | size;
+            writeBits(table.codes[symbol], table.sizes[symbol]);
+            if (size > 0) {
+                writeBits(value < 0 ? value - 1 : value, size);
+            }
+        }
+
+        /**
+         * Appends the {@code count} low bits of {@code value}, stuffing a zero after every 0xff.
+         */
+        private void writeBits(int value, int count) {
+            mBits = (mBits << count) | (value & ((1 << count) - 1));
+            mBitCount += count;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                int b = (mBits >> mBitCount) & 0xff;
+                writeByte(b);
+                if (b == 0xff) {
+                    writeByte(0);
+                }
+            }
+        }
+
+        private void writeByte(int b) {
+            if (mLength == mOut.length) {
+                mOut = Arrays.copyOf(mOut, mOut.length * 2);
+            }
+            mOut[mLength++] = (byte) b;
+        }
+
+    }
+
+    private static int quantize(float value) {
+        // Rounds to the nearest integer without the cost of Math.round().
+        return (int) (value + 16384.5f) - 16384;
+    }
+
+    /**
+     * The floating point forward DCT of Arai, Agui and Nakajima, as in the IJG library. The
+     * coefficients come out scaled by the factors in {@link #AAN_SCALE}.
+     */
+    static void forwardDct(float[] block) {
+        for (int i = 0; i < 64; i += 8) {
+            dct8(block, i, 1);
+        }
+        for (int i = 0; i < 8; i++) {
+            dct8(block, i, 8);
+        }
+    }
+
+    private static void dct8(float[] d, int o, int s) {
+        float tmp0 = d[o] + d[o + 7 * s];
+        float tmp7 = d[o] - d[o + 7 * s];
+        float tmp1 = d[o + s] + d[o + 6 * s];
+        float tmp6 = d[o + s] - d[o + 6 * s];
+        float tmp2 = d[o + 2 * s] + d[o + 5 * s];
+        float tmp5 = d[o + 2 * s] - d[o + 5 * s];
+        float tmp3 = d[o + 3 * s] + d[o + 4 * s];
+        float tmp4 = d[o + 3 * s] - d[o + 4 * s];
+
+        // Even part
+        float tmp10 = tmp0 + tmp3;
+        float tmp13 = tmp0 - tmp3;
+        float tmp11 = tmp1 + tmp2;
+        float tmp12 = tmp1 - tmp2;
+        d[o] = tmp10 + tmp11;
+        d[o + 4 * s] = tmp10 - tmp11;
+        float z1 = (tmp12 + tmp13) * 0.707106781f;
+        d[o + 2 * s] = tmp13 + z1;
+        d[o + 6 * s] = tmp13 - z1;
+
+        // Odd part
+        tmp10 = tmp4 + tmp5;
+        tmp11 = tmp5 + tmp6;
+        tmp12 = tmp6 + tmp7;
+        float z5 = (tmp10 - tmp12) * 0.382683433f;
+        float z2 = 0.541196100f * tmp10 + z5;
+        float z4 = 1.306562965f * tmp12 + z5;
+        float z3 = tmp11 * 0.707106781f;
+        float z11 = tmp7 + z3;
+        float z13 = tmp7 - z3;
+        d[o + 5 * s] = z13 + z2;
+        d[o + 3 * s] = z13 - z2;
+        d[o + s] = z11 + z4;
+        d[o + 7 * s] = z11 - z4;
+    }
+
+    /**
+     * A Huffman table given by the number of codes of each length and the symbols they code.
+     */
+    private static final class HuffmanTable {
+
+        /**
+         * The class and ID of the table, as written in the DHT segment
+         */
+        private final int mId;
+
+        private final int[] mCounts;
+
+        private final int[] mSymbols;
+
+        /**
+         * The code and code length of every symbol
+         */
+        final int[] codes = new int[256];
+
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int id, int[] counts, int[] symbols) {
+            mId = id;
+            mCounts = counts;
+            mSymbols = symbols;
+            // Codes of each length count up from the last code of the previous length, shifted.
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < counts[length - 1]; i++) {
+                    codes[symbols[k]] = code++;
+                    sizes[symbols[k]] = length;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+
+        int length() {
+            return 1 + 16 + mSymbols.length;
+        }
+
+        void write(Segments out) {
+            out.bytes(mId);
+            out.bytes(mCounts);
+            out.bytes(mSymbols);
+        }
+
+    }
+
+    /**
+     * Collects the marker segments of the header.
+     */
+    private static final class Segments {
+
+        private byte[] mData = new byte[1024];
+
+        private int mLength;
+
+        void marker(int marker) {
+            bytes(0xff, marker);
+        }
+
+        void short16(int value) {
+            bytes(value >> 8, value);
+        }
+
+        void bytes(int... values) {
+            if (mLength + values.length > mData.length) {
+                mData = Arrays.copyOf(mData, Math.max(mData.length * 2, mLength + values.length));
+            }
+            for (int value : values) {
+                mData[mLength++] = (byte) value;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mData, mLength);
+        }
+
+    }
+
+}
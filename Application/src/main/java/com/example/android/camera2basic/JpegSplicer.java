@@ -0,0 +1,260 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Inserts APP segments, such as XMP, into an encoded JPEG while it is written to a
+ * {@link FileChannel}. Only the headers of the segments ahead of the insertion point are read; the
+ * image itself is neither decoded nor copied.
+ *
+ * The new segments go after the APP segments already at the start of the file, so the JFIF or
+ * Exif segment of the camera stays first, as readers expect.
+ */
+final class JpegSplicer {
+
+    private static final int MARKER = 0xFF;
+
+    private static final int SOI = 0xD8;
+
+    private static final int APP0 = 0xE0;
+
+    private static final int APP1 = 0xE1;
+
+    private static final int APP15 = 0xEF;
+
+    /**
+     * The largest payload of a segment, whose length field counts itself
+     */
+    static final int MAX_PAYLOAD = 0xFFFF - 2;
+
+    private static final byte[] EXIF_HEADER = {'E', 'x', 'i', 'f', 0, 0};
+
+    private static final short TIFF_MAGIC = 42;
+
+    private static final short TAG_COMPRESSION = 0x0103;
+
+    private static final short TAG_ORIENTATION = 0x0112;
+
+    private static final short TAG_THUMBNAIL_OFFSET = 0x0201;
+
+    private static final short TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final short TYPE_SHORT = 3;
+
+    private static final short TYPE_LONG = 4;
+
+    /**
+     * The Compression of a JPEG thumbnail
+     */
+    private static final short COMPRESSION_JPEG = 6;
+
+    /**
+     * The size of the TIFF header, IFD0 with its orientation, and IFD1 with its three entries
+     */
+    private static final int EXIF_TIFF_SIZE = 8 + (2 + 12 + 4) + (2 + 3 * 12 + 4);
+
+    private static final byte[] XMP_NAMESPACE = "http://ns.adobe.com/xap/1.0/\0"
+            .getBytes(Charset.forName("US-ASCII"));
+
+    private JpegSplicer() {
+    }
+
+    /**
+     * Returns a complete APP segment, marker and length included, ready to be spliced.
+     *
+     * @param n       The number of the APP segment, from 0 to 15
+     * @param payload The bytes following the length field
+     */
+    static ByteBuffer appSegment(int n, byte[] payload) {
+        if (n < 0 || n > APP15 - APP0) {
+            throw new IllegalArgumentException("No such APP segment: " + n);
+        }
+        if (payload.length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Payload too large: " + payload.length);
+        }
+        ByteBuffer segment = ByteBuffer.allocate(4 + payload.length);
+        segment.put((byte) MARKER).put((byte) (APP0 + n)).putShort((short) (payload.length + 2))
+                .put(payload);
+        segment.flip();
+        return segment;
+    }
+
+    /**
+     * Returns an APP1 segment holding an XMP packet.
+     */
+    static ByteBuffer xmpSegment(String packet) {
+        byte[] xml = packet.getBytes(Charset.forName("UTF-8"));
+        byte[] payload = new byte[XMP_NAMESPACE.length + xml.length];
+        System.arraycopy(XMP_NAMESPACE, 0, payload, 0, XMP_NAMESPACE.length);
+        System.arraycopy(xml, 0, payload, XMP_NAMESPACE.length, xml.length);
+        return appSegment(APP1 - APP0, payload);
+    }
+
+    /**
+     * Returns an APP1 segment holding Exif with only an orientation, for JPEGs encoded without
+     * rotation. It goes after a JFIF segment, where readers that honour the orientation still find
+     * it.
+     *
+     * @param degrees The clockwise rotation that makes the image upright: 0, 90, 180 or 270
+     */
+    static ByteBuffer exifSegment(int degrees) {
+        return exifSegment(degrees, null);
+    }
+
+    /**
+     * Returns an APP1 segment holding Exif with an orientation and, in IFD1, a JPEG thumbnail.
+     * A thumbnail too large for the segment is left out.
+     *
+     * @param degrees   The clockwise rotation that makes the image upright: 0, 90, 180 or 270
+     * @param thumbnail A complete JPEG, or null
+     */
+    static ByteBuffer exifSegment(int degrees, byte[] thumbnail) {
+        if (null != thumbnail
+                && EXIF_HEADER.length + EXIF_TIFF_SIZE + thumbnail.length > MAX_PAYLOAD) {
+            thumbnail = null;
+        }
+        // A big endian TIFF header, then IFD0 with a single entry, then IFD1 if there is a
+        // thumbnail, which directly follows it.
+        int size = null == thumbnail ? 8 + 2 + 12 + 4 : EXIF_TIFF_SIZE + thumbnail.length;
+        ByteBuffer payload = ByteBuffer.allocate(EXIF_HEADER.length + size);
+        payload.put(EXIF_HEADER);
+        payload.put((byte) 'M').put((byte) 'M').putShort(TIFF_MAGIC).putInt(8);
+        payload.putShort((short) 1);
+        payload.putShort(TAG_ORIENTATION).putShort(TYPE_SHORT).putInt(1)
+                .putShort((short) exifOrientation(degrees)).putShort((short) 0);
+        if (null == thumbnail) {
+            payload.putInt(0);
+            return appSegment(APP1 - APP0, payload.array());
+        }
+        payload.putInt(8 + 2 + 12 + 4);
+        payload.putShort((short) 3);
+        payload.putShort(TAG_COMPRESSION).putShort(TYPE_SHORT).putInt(1)
+                .putShort(COMPRESSION_JPEG).putShort((short) 0);
+        payload.putShort(TAG_THUMBNAIL_OFFSET).putShort(TYPE_LONG).putInt(1)
+                .putInt(EXIF_TIFF_SIZE);
+        payload.putShort(TAG_THUMBNAIL_LENGTH).putShort(TYPE_LONG).putInt(1)
+                .putInt(thumbnail.length);
+        payload.putInt(0);
+        payload.put(thumbnail);
+        return appSegment(APP1 - APP0, payload.array());
+    }
+
+    /**
+     * Returns the value of the Exif Orientation tag for a clockwise rotation.
+     */
+    static int exifOrientation(int degrees) {
+        switch (degrees) {
+            case 0:
+                return 1;
+            case 90:
+                return 6;
+            case 180:
+                return 3;
+            case 270:
+                return 8;
+            default:
+                throw new IllegalArgumentException("Not a right angle: " + degrees);
+        }
+    }
+
+    /**
+     * Finds where new segments go: after the SOI marker and the APP segments that follow it.
+     *
+     * @param jpeg The encoded image, from its position to its limit. It is not modified.
+     * @return The absolute index in {@code jpeg} to insert at
+     * @throws IOException If the bytes do not start like a JPEG
+     */
+    static int findInsertionPoint(ByteBuffer jpeg) throws IOException {
+        int limit = jpeg.limit();
+        int offset = jpeg.position();
+        if (limit - offset < 2 || (jpeg.get(offset) & 0xFF) != MARKER
+                || (jpeg.get(offset + 1) & 0xFF) != SOI) {
+            throw new IOException("Missing SOI marker");
+        }
+        offset += 2;
+        while (true) {
+            // A marker may be preceded by any number of fill bytes.
+            int start = offset;
+            while (offset < limit && (jpeg.get(offset) & 0xFF) == MARKER) {
+                offset++;
+            }
+            if (offset == start || offset >= limit) {
+                throw new IOException("Expected a marker at " + start);
+            }
+            int marker = jpeg.get(offset) & 0xFF;
+            if (marker < APP0 || marker > APP15) {
+                return start;
+            }
+            if (limit - offset < 3) {
+                throw new IOException("Truncated segment at " + start);
+            }
+            int length = ((jpeg.get(offset + 1) & 0xFF) << 8) | (jpeg.get(offset + 2) & 0xFF);
+            if (length < 2 || length > limit - offset - 1) {
+                throw new IOException("Bad segment length " + length + " at " + start);
+            }
+            offset += 1 + length;
+        }
+    }
+
+    /**
+     * Writes {@code jpeg} to {@code channel} with {@code segments} inserted at
+     * {@link #findInsertionPoint}. A direct buffer goes out in a single gathering write; other
+     * buffers are staged as in {@link ImageSaver#write}.
+     *
+     * @param jpeg       The encoded image. Its position is advanced to its limit.
+     * @param segments   Complete segments, as made by {@link #appSegment}. Their positions are not
+     *                   changed.
+     * @param channel    The channel to write to
+     * @param bufferPool The pool to borrow a staging buffer from if {@code jpeg} is not direct
+     * @return False, with nothing written, if the bytes do not start like a JPEG
+     */
+    static boolean write(ByteBuffer jpeg, ByteBuffer[] segments, FileChannel channel,
+                         ByteBufferPool bufferPool) throws IOException, InterruptedException {
+        int insertion;
+        try {
+            insertion = findInsertionPoint(jpeg);
+        } catch (IOException e) {
+            return false;
+        }
+        ByteBuffer[] pieces = new ByteBuffer[segments.length + 2];
+        pieces[0] = jpeg.duplicate();
+        pieces[0].limit(insertion);
+        for (int i = 0; i < segments.length; i++) {
+            pieces[i + 1] = segments[i].duplicate();
+        }
+        ByteBuffer tail = jpeg.duplicate();
+        tail.position(insertion);
+        pieces[pieces.length - 1] = tail;
+        if (jpeg.isDirect()) {
+            while (tail.hasRemaining()) {
+                channel.write(pieces);
+            }
+        } else {
+            for (ByteBuffer piece : pieces) {
+                ImageSaver.write(piece, channel, bufferPool);
+            }
+        }
+        jpeg.position(jpeg.limit());
+        return true;
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with fixed buckets. Recording is lock-free and does not allocate, so it
+ * can be done on the camera thread.
+ *
+ * Values are kept in microseconds. Every power of two is split into {@link #SUB_BUCKETS} buckets,
+ * so a value is known to within 25% of itself, from 1 us up to about 30 seconds.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The highest power of two tracked; larger values go into the last bucket.
+     */
+    private static final int MAX_EXPONENT = 24;
+
+    static final int BUCKET_COUNT =
+            SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong mCount = new AtomicLong();
+
+    private final AtomicLong mTotalUs = new AtomicLong();
+
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * Records a latency.
+     *
+     * @param latencyNs The latency in nanoseconds. Negative values are ignored.
+     */
+    public void record(long latencyNs) {
+        if (latencyNs < 0) {
+            return;
+        }
+        long us = latencyNs / 1000;
+        mCounts.incrementAndGet(bucketOf(us));
+        mCount.incrementAndGet();
+        mTotalUs.addAndGet(us);
+        long max = mMaxUs.get();
+        while (us > max && !mMaxUs.compareAndSet(max, us)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanUs() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mTotalUs.get() / count;
+    }
+
+    public long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    /**
+     * Returns an upper bound of the given percentile, in microseconds.
+     *
+     * @param percentile A value between 0 and 100
+     */
+    public long getPercentileUs(double percentile) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBoundOf(i), getMaxUs());
+            }
+        }
+        return getMaxUs();
+    }
+
+    /**
+     * Clears every recorded value. Values recorded concurrently may be partially kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mTotalUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "n=%d mean=%.1fms p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms",
+                getCount(), getMeanUs() / 1e3, getPercentileUs(50) / 1e3,
+                getPercentileUs(90) / 1e3, getPercentileUs(99) / 1e3, getMaxUs() / 1e3);
+    }
+
+    static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the largest value, in microseconds, that falls into the given bucket.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (long) (SUB_BUCKETS | subBucket) << (exponent - SUB_BUCKET_BITS);
+        return lower + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Computes the histogram and the mean of the luma of preview frames.
+ */
+class LumaHistogramAnalyzer implements FrameAnalyzer {
+
+    private static final int BINS = 256;
+
+    /**
+     * Counts of each luma value in the last analyzed frame. Only touched by the analysis thread.
+     */
+    private final int[] mCounts = new int[BINS];
+
+    /**
+     * A copy of {@link #mCounts} published after each frame
+     */
+    private volatile int[] mHistogram = new int[BINS];
+
+    private volatile float mMean;
+
+    @Override
+    public void analyze(Frame frame) {
+        int[] counts = mCounts;
+        Arrays.fill(counts, 0);
+        ByteBuffer luma = frame.getLuma();
+        int length = luma.remaining();
+        int base = luma.position();
+        for (int i = 0; i < length; i++) {
+            counts[luma.get(base + i) & 0xff]++;
+        }
+        long sum = 0;
+        for (int value = 0; value < BINS; value++) {
+            sum += (long) value * counts[value];
+        }
+        mMean = length == 0 ? 0 : (float) sum / length;
+        mHistogram = counts.clone();
+    }
+
+    /**
+     * Returns the number of pixels of each luma value, from 0 to 255, in the last analyzed frame.
+     */
+    public int[] getHistogram() {
+        return mHistogram.clone();
+    }
+
+    /**
+     * Returns the average luma of the last analyzed frame, from 0 to 255.
+     */
+    public float getMean() {
+        return mMean;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "mean=%.1f", getMean());
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merges a bracketed burst of {@link ImageFormat#YUV_420_888} {@link Image}s with a
+ * {@link FrameMerger} and encodes the result with a {@link JpegEncoder}, for an
+ * {@link ImageSaver}. The frames are collected as they arrive, and merged in
+ * {@link #getBuffer()} on the thread saving the image, along with a thumbnail for the Exif
+ * segment.
+ */
+class MergedJpegSource implements ImageSaver.Source {
+
+    private final FrameMerger mMerger;
+
+    private final JpegEncoder mEncoder;
+
+    /**
+     * The exposure of each frame of the burst, in the order the frames are captured
+     */
+    private final double[] mExposures;
+
+    private final List<Image> mImages = new ArrayList<>();
+
+    private boolean mAbandoned;
+
+    /**
+     * The thumbnail encoded along with the merged frame, or null
+     */
+    private byte[] mThumbnail;
+
+    /**
+     * @param exposures The exposure of each frame, as exposure time times sensitivity. The first
+     *                  frame is the reference the others are aligned and exposed to.
+     */
+    public MergedJpegSource(FrameMerger merger, JpegEncoder encoder, double[] exposures) {
+        mMerger = merger;
+        mEncoder = encoder;
+        mExposures = exposures.clone();
+    }
+
+    /**
+     * Adds the next frame of the burst.
+     *
+     * @return Whether every frame of the burst is now there
+     */
+    public synchronized boolean addFrame(Image image) {
+        if (mAbandoned || mImages.size() == mExposures.length) {
+            image.close();
+            return false;
+        }
+        mImages.add(image);
+        return mImages.size() == mExposures.length;
+    }
+
+    /**
+     * Releases the frames collected so far, and every frame added later, when the burst can't be
+     * completed.
+     */
+    public synchronized void abandon() {
+        mAbandoned = true;
+        close();
+    }
+
+    @Override
+    public ByteBuffer getBuffer() throws InterruptedException {
+        List<FrameMerger.Input> inputs = new ArrayList<>(mExposures.length);
+        synchronized (this) {
+            for (int i = 0; i < mImages.size(); i++) {
+                inputs.add(new FrameMerger.Input(toFrame(mImages.get(i)), mExposures[i]));
+            }
+        }
+        JpegEncoder.Frame merged = mMerger.merge(inputs, 0);
+        byte[] jpeg = mEncoder.encode(merged, 0);
+        mThumbnail = mEncoder.encode(merged, YuvJpegSource.THUMBNAIL_SCALE_SHIFT);
+        return ByteBuffer.wrap(jpeg);
+    }
+
+    /**
+     * Returns the thumbnail encoded by {@link #getBuffer()}, or null before it.
+     */
+    public byte[] getThumbnail() {
+        return mThumbnail;
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Image image : mImages) {
+            image.close();
+        }
+        mImages.clear();
+    }
+
+    private static JpegEncoder.Frame toFrame(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        return new JpegEncoder.Frame(image.getWidth(), image.getHeight(), toPlane(planes[0]),
+                toPlane(planes[1]), toPlane(planes[2]));
+    }
+
+    private static JpegEncoder.Plane toPlane(Image.Plane plane) {
+        return new JpegEncoder.Plane(plane.getBuffer(), plane.getRowStride(),
+                plane.getPixelStride());
+    }
+
+}
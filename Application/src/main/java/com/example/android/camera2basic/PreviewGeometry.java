@@ -0,0 +1,224 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The size and layout math behind the preview. None of it touches the framework beyond
+ * {@link Size}, so it can be benchmarked and tested on a plain JVM.
+ */
+final class PreviewGeometry {
+
+    /**
+     * Index of each value in the array filled by
+     * {@link #getTransform(int, int, int, int, int, float[])}, as laid out by
+     * {@link android.graphics.Matrix#setValues(float[])}.
+     */
+    static final int MSCALE_X = 0;
+    static final int MSKEW_X = 1;
+    static final int MTRANS_X = 2;
+    static final int MSKEW_Y = 3;
+    static final int MSCALE_Y = 4;
+    static final int MTRANS_Y = 5;
+    static final int MPERSP_2 = 8;
+
+    private PreviewGeometry() {
+    }
+
+    /**
+     * Given {@code choices} of {@code Size}s supported by a camera, choose the smallest one that
+     * is at least as large as the respective texture view size, and that is at most as large as the
+     * respective max size, and whose aspect ratio matches with the specified value. If such size
+     * doesn't exist, choose the largest one that is at most as large as the respective max size,
+     * and whose aspect ratio matches with the specified value.
+     *
+     * @param choices           The list of sizes that the camera supports for the intended output
+     *                          class
+     * @param textureViewWidth  The width of the texture view relative to sensor coordinate
+     * @param textureViewHeight The height of the texture view relative to sensor coordinate
+     * @param maxWidth          The maximum width that can be chosen
+     * @param maxHeight         The maximum height that can be chosen
+     * @param aspectRatio       The aspect ratio
+     * @return The optimal {@code Size}, or null if none matches
+     */
+    static Size chooseOptimalSize(Size[] choices, int textureViewWidth, int textureViewHeight,
+                                  int maxWidth, int maxHeight, Size aspectRatio) {
+
+        // Collect the supported resolutions that are at least as big as the preview Surface
+        List<Size> bigEnough = new ArrayList<>();
+        // Collect the supported resolutions that are smaller than the preview Surface
+        List<Size> notBigEnough = new ArrayList<>();
+        int w = aspectRatio.getWidth();
+        int h = aspectRatio.getHeight();
+        for (Size option : choices) {
+            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
+                    option.getHeight() == option.getWidth() * h / w) {
+                if (option.getWidth() >= textureViewWidth &&
+                    option.getHeight() >= textureViewHeight) {
+                    bigEnough.add(option);
+                } else {
+                    notBigEnough.add(option);
+                }
+            }
+        }
+
+        // Pick the smallest of those big enough. If there is no one big enough, pick the
+        // largest of those not big enough.
+        if (bigEnough.size() > 0) {
+            return Collections.min(bigEnough, new CompareSizesByArea());
+        } else if (notBigEnough.size() > 0) {
+            return Collections.max(notBigEnough, new CompareSizesByArea());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Given {@code choices} of {@code Size}s supported by a camera, choose the largest one whose
+     * aspect ratio matches with the specified value, or the largest one overall if none does.
+     *
+     * @param choices     The list of sizes that the camera supports for the intended output class
+     * @param aspectRatio The aspect ratio
+     * @return The largest matching {@code Size}
+     */
+    static Size chooseLargestWithAspectRatio(Size[] choices, Size aspectRatio) {
+        List<Size> matching = new ArrayList<>();
+        for (Size option : choices) {
+            if ((long) option.getHeight() * aspectRatio.getWidth() ==
+                    (long) option.getWidth() * aspectRatio.getHeight()) {
+                matching.add(option);
+            }
+        }
+        return Collections.max(matching.isEmpty() ? Arrays.asList(choices) : matching,
+                new CompareSizesByArea());
+    }
+
+    /**
+     * Given {@code choices} of {@code Size}s supported by a camera, choose the one to record video
+     * at: the largest one whose aspect ratio matches with the specified value, that is at most as
+     * large as the respective max size and that the camera can stream at {@code frameRate}. If
+     * no size with that aspect ratio qualifies, choose the largest one of any aspect ratio that
+     * does.
+     *
+     * @param choices             The list of sizes that the camera supports for the intended
+     *                            output class
+     * @param minFrameDurationsNs The minimum frame duration of each choice in nanoseconds, or 0
+     *                            where it is unknown
+     * @param maxWidth            The maximum width that can be chosen
+     * @param maxHeight           The maximum height that can be chosen
+     * @param frameRate           The frame rate to record at
+     * @param aspectRatio         The aspect ratio
+     * @return The {@code Size} to record at, or null if none qualifies
+     */
+    static Size chooseVideoSize(Size[] choices, long[] minFrameDurationsNs, int maxWidth,
+                                int maxHeight, int frameRate, Size aspectRatio) {
+        long frameDurationNs = 1000000000L / frameRate;
+        List<Size> matching = new ArrayList<>();
+        List<Size> fitting = new ArrayList<>();
+        for (int i = 0; i < choices.length; i++) {
+            Size option = choices[i];
+            if (option.getWidth() > maxWidth || option.getHeight() > maxHeight
+                    || minFrameDurationsNs[i] > frameDurationNs) {
+                continue;
+            }
+            fitting.add(option);
+            if ((long) option.getHeight() * aspectRatio.getWidth() ==
+                    (long) option.getWidth() * aspectRatio.getHeight()) {
+                matching.add(option);
+            }
+        }
+        if (!matching.isEmpty()) {
+            return Collections.max(matching, new CompareSizesByArea());
+        } else if (!fitting.isEmpty()) {
+            return Collections.max(fitting, new CompareSizesByArea());
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Shrinks {@code width} x {@code height} to the largest size with the given aspect ratio that
+     * fits in it. A ratio of zero leaves the size as it is.
+     *
+     * @param out Receives the width and the height
+     */
+    static void fitToAspectRatio(int width, int height, int ratioWidth, int ratioHeight,
+                                 int[] out) {
+        if (0 == ratioWidth || 0 == ratioHeight) {
+            out[0] = width;
+            out[1] = height;
+        } else if (width < height * ratioWidth / ratioHeight) {
+            out[0] = width;
+            out[1] = width * ratioHeight / ratioWidth;
+        } else {
+            out[0] = height * ratioWidth / ratioHeight;
+            out[1] = height;
+        }
+    }
+
+    /**
+     * Computes the transformation that maps the camera preview onto a texture view, so that it
+     * fills the view upright.
+     *
+     * @param viewWidth     The width of the texture view
+     * @param viewHeight    The height of the texture view
+     * @param previewWidth  The width of the camera preview, in sensor orientation
+     * @param previewHeight The height of the camera preview, in sensor orientation
+     * @param rotation      The display rotation, one of the {@code Surface.ROTATION_*} constants
+     * @param values        Receives the 3x3 matrix, in the order expected by
+     *                      {@link android.graphics.Matrix#setValues(float[])}
+     */
+    static void getTransform(int viewWidth, int viewHeight, int previewWidth, int previewHeight,
+                             int rotation, float[] values) {
+        Arrays.fill(values, 0);
+        values[MPERSP_2] = 1;
+        float centerX = viewWidth / 2f;
+        float centerY = viewHeight / 2f;
+        if (1 == rotation || 3 == rotation) {
+            // Map the view onto the sideways buffer centered on it, scale it up until it covers
+            // the view and then turn it upright.
+            float scale = Math.max(
+                    (float) viewHeight / previewHeight,
+                    (float) viewWidth / previewWidth);
+            float scaleX = scale * previewHeight / viewWidth;
+            float scaleY = scale * previewWidth / viewHeight;
+            float translateX = -scale * previewHeight / 2f;
+            float translateY = -scale * previewWidth / 2f;
+            // The rotation is -90 degrees for ROTATION_90 and 90 for ROTATION_270.
+            float sin = rotation - 2;
+            values[MSKEW_X] = -sin * scaleY;
+            values[MSKEW_Y] = sin * scaleX;
+            values[MTRANS_X] = centerX - sin * translateY;
+            values[MTRANS_Y] = centerY + sin * translateX;
+        } else if (2 == rotation) {
+            values[MSCALE_X] = -1;
+            values[MSCALE_Y] = -1;
+            values[MTRANS_X] = viewWidth;
+            values[MTRANS_Y] = viewHeight;
+        } else {
+            values[MSCALE_X] = 1;
+            values[MSCALE_Y] = 1;
+        }
+    }
+
+}
@@ -0,0 +1,422 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Steps the preview down a ladder of sizes and frame rates while the device is struggling, and
+ * back up once it has recovered.
+ *
+ * The governor is fed the sensor timestamp of every preview frame. Once a second of frames it
+ * takes a sample: the variation of the frame intervals, the number of pictures waiting to be
+ * saved and the device temperature. A few stressed samples in a row step the preview down; many
+ * relaxed samples step it back up, and only after a hold that doubles whenever a step up has to
+ * be taken back soon after. The temperature has separate thresholds for the two directions, so a
+ * device hovering around one of them does not flip between levels.
+ *
+ * Nothing here touches the framework, so the decisions can be checked against recorded traces.
+ */
+class PreviewGovernor {
+
+    /**
+     * Returned by {@link Signals#getTemperature()} when the temperature is not known
+     */
+    static final int NO_TEMPERATURE = Integer.MIN_VALUE;
+
+    /**
+     * Length of a sample, in sensor time
+     */
+    static final long SAMPLE_NS = 1000000000L;
+
+    /**
+     * Time after a change during which samples are ignored, while the new session starts
+     */
+    static final long SETTLE_NS = 2000000000L;
+
+    /**
+     * Shortest time between a change and the next step up
+     */
+    static final long UP_HOLD_NS = 10000000000L;
+
+    /**
+     * Longest time between a change and the next step up
+     */
+    static final long MAX_UP_HOLD_NS = 160000000000L;
+
+    /**
+     * A step down this soon after a step up means the step up was a mistake.
+     */
+    static final long PROBATION_NS = 30000000000L;
+
+    /**
+     * Number of stressed samples in a row that step the preview down
+     */
+    static final int DOWN_SAMPLES = 3;
+
+    /**
+     * Number of relaxed samples in a row that step the preview up
+     */
+    static final int UP_SAMPLES = 10;
+
+    /**
+     * Variation of the frame intervals above which a sample is stressed. A steady stream that
+     * drops one frame a second is about 0.17.
+     */
+    static final double JITTER_HIGH = 0.15;
+
+    /**
+     * Variation of the frame intervals below which a sample can be relaxed
+     */
+    static final double JITTER_LOW = 0.05;
+
+    /**
+     * Number of pictures waiting to be saved at which a sample is stressed
+     */
+    static final int QUEUE_HIGH = 3;
+
+    /**
+     * Temperature, in tenths of a degree Celsius, at which a sample is stressed
+     */
+    static final int HOT_TEMPERATURE = 420;
+
+    /**
+     * Temperature, in tenths of a degree Celsius, below which a sample can be relaxed
+     */
+    static final int COOL_TEMPERATURE = 380;
+
+    /**
+     * Fewer frames than this in a sample means the stream is stalling.
+     */
+    private static final int MIN_FRAMES = 4;
+
+    /**
+     * Each size on the ladder has at most this share of the area of the one before.
+     */
+    private static final double MAX_AREA_STEP = 0.75;
+
+    /**
+     * Sizes narrower than this are not used, unless there is nothing else.
+     */
+    private static final int MIN_WIDTH = 480;
+
+    /**
+     * A preview size and target frame rate range.
+     */
+    static final class Level {
+
+        final int width;
+
+        final int height;
+
+        /**
+         * The bounds of the CONTROL_AE_TARGET_FPS_RANGE, or 0 to leave it to the template
+         */
+        final int minFps;
+
+        final int maxFps;
+
+        Level(int width, int height, int minFps, int maxFps) {
+            this.width = width;
+            this.height = height;
+            this.minFps = minFps;
+            this.maxFps = maxFps;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%dx%d@[%d,%d]", width, height, minFps, maxFps);
+        }
+
+    }
+
+    /**
+     * The load on the device, read once per sample.
+     */
+    interface Signals {
+
+        /**
+         * Returns the number of pictures waiting to be saved.
+         */
+        int getQueueDepth();
+
+        /**
+         * Returns the device temperature in tenths of a degree Celsius, or
+         * {@link #NO_TEMPERATURE}.
+         */
+        int getTemperature();
+
+    }
+
+    private final List<Level> mLevels;
+
+    private final Signals mSignals;
+
+    private int mLevel;
+
+    private long mLastTimestampNs;
+
+    private long mSampleStartNs;
+
+    private int mIntervalCount;
+
+    private double mIntervalSum;
+
+    private double mIntervalSquareSum;
+
+    private long mSettleUntilNs;
+
+    /**
+     * Sensor time of the last change, or of the first frame
+     */
+    private long mChangedNs = Long.MIN_VALUE;
+
+    private long mSteppedUpNs = -PROBATION_NS;
+
+    private long mUpHoldNs = UP_HOLD_NS;
+
+    private int mStressedSamples;
+
+    private int mRelaxedSamples;
+
+    private int mChangeCount;
+
+    private double mLastJitter;
+
+    private int mLastQueueDepth;
+
+    private int mLastTemperature = NO_TEMPERATURE;
+
+    /**
+     * @param levels  The ladder, from the best preview down, such as made by
+     *                {@link #buildLadder(int[], int[], int[])}
+     * @param signals Where the load is read from
+     */
+    public PreviewGovernor(List<Level> levels, Signals signals) {
+        if (levels.isEmpty()) {
+            throw new IllegalArgumentException("No levels");
+        }
+        mLevels = Collections.unmodifiableList(new ArrayList<>(levels));
+        mSignals = signals;
+    }
+
+    /**
+     * Called with the sensor timestamp of every preview frame. Timestamps that don't move
+     * forward are ignored.
+     *
+     * @return Whether the preview should change to {@link #getLevel()}
+     */
+    public synchronized boolean onFrame(long timestampNs) {
+        if (timestampNs <= mLastTimestampNs) {
+            return false;
+        }
+        long last = mLastTimestampNs;
+        mLastTimestampNs = timestampNs;
+        if (0 == last) {
+            if (Long.MIN_VALUE == mChangedNs) {
+                mChangedNs = timestampNs;
+            }
+            mSettleUntilNs = Math.max(mSettleUntilNs, timestampNs + SETTLE_NS);
+            startSample(timestampNs);
+            return false;
+        }
+        double interval = timestampNs - last;
+        mIntervalCount++;
+        mIntervalSum += interval;
+        mIntervalSquareSum += interval * interval;
+        if (timestampNs - mSampleStartNs < SAMPLE_NS) {
+            return false;
+        }
+        boolean changed = timestampNs >= mSettleUntilNs && evaluate(timestampNs);
+        startSample(timestampNs);
+        return changed;
+    }
+
+    /**
+     * Forgets the last frame, such as when the session is rebuilt, and waits for the preview to
+     * settle again.
+     */
+    public synchronized void restart() {
+        mLastTimestampNs = 0;
+        mStressedSamples = 0;
+        mRelaxedSamples = 0;
+    }
+
+    public synchronized Level getLevel() {
+        return mLevels.get(mLevel);
+    }
+
+    public synchronized int getLevelIndex() {
+        return mLevel;
+    }
+
+    public List<Level> getLevels() {
+        return mLevels;
+    }
+
+    public synchronized int getChangeCount() {
+        return mChangeCount;
+    }
+
+    /**
+     * Returns how long the preview has to be relaxed after a change before it steps up.
+     */
+    public synchronized long getUpHoldNs() {
+        return mUpHoldNs;
+    }
+
+    private void startSample(long timestampNs) {
+        mSampleStartNs = timestampNs;
+        mIntervalCount = 0;
+        mIntervalSum = 0;
+        mIntervalSquareSum = 0;
+    }
+
+    /**
+     * Closes a sample and decides whether to change level.
+     */
+    private boolean evaluate(long nowNs) {
+        double jitter;
+        if (mIntervalCount < MIN_FRAMES) {
+            jitter = Double.POSITIVE_INFINITY;
+        } else {
+            // The coefficient of variation of the intervals, so a steady low frame rate in the
+            // dark is not mistaken for stutter.
+            double mean = mIntervalSum / mIntervalCount;
+            double variance = Math.max(0, mIntervalSquareSum / mIntervalCount - mean * mean);
+            jitter = Math.sqrt(variance) / mean;
+        }
+        int queueDepth = mSignals.getQueueDepth();
+        int temperature = mSignals.getTemperature();
+        mLastJitter = jitter;
+        mLastQueueDepth = queueDepth;
+        mLastTemperature = temperature;
+
+        boolean known = NO_TEMPERATURE != temperature;
+        boolean stressed = (known && temperature >= HOT_TEMPERATURE) || jitter > JITTER_HIGH
+                || queueDepth >= QUEUE_HIGH;
+        boolean relaxed = (!known || temperature < COOL_TEMPERATURE) && jitter < JITTER_LOW
+                && queueDepth == 0;
+        mStressedSamples = stressed ? mStressedSamples + 1 : 0;
+        mRelaxedSamples = relaxed ? mRelaxedSamples + 1 : 0;
+
+        if (mStressedSamples >= DOWN_SAMPLES && mLevel < mLevels.size() - 1) {
+            mUpHoldNs = nowNs - mSteppedUpNs < PROBATION_NS
+                    ? Math.min(mUpHoldNs * 2, MAX_UP_HOLD_NS) : UP_HOLD_NS;
+            change(mLevel + 1, nowNs);
+            return true;
+        }
+        if (mRelaxedSamples >= UP_SAMPLES && mLevel > 0 && nowNs - mChangedNs >= mUpHoldNs) {
+            mSteppedUpNs = nowNs;
+            change(mLevel - 1, nowNs);
+            return true;
+        }
+        return false;
+    }
+
+    private void change(int level, long nowNs) {
+        mLevel = level;
+        mChangedNs = nowNs;
+        mSettleUntilNs = nowNs + SETTLE_NS;
+        mStressedSamples = 0;
+        mRelaxedSamples = 0;
+        mChangeCount++;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Preview %s (%d/%d), jitter %.2f, queue %d, %s, %d changes\n",
+                getLevel(), mLevel + 1, mLevels.size(), mLastJitter, mLastQueueDepth,
+                NO_TEMPERATURE == mLastTemperature ? "?C"
+                        : String.format(Locale.US, "%.1fC", mLastTemperature / 10.0),
+                mChangeCount);
+    }
+
+    /**
+     * Builds a ladder from the sizes and frame rates a camera supports. The sizes step down in
+     * area, all at the highest frame rate, and the smallest one is then offered again at no more
+     * than two thirds of that rate.
+     *
+     * @param widths    The widths of the candidate sizes, which should share an aspect ratio and
+     *                  be no larger than the best preview
+     * @param heights   The heights of the candidate sizes
+     * @param fpsRanges The target frame rate ranges, as pairs of lower and upper bounds
+     */
+    static List<Level> buildLadder(final int[] widths, final int[] heights, int[] fpsRanges) {
+        Integer[] order = new Integer[widths.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.signum((long) widths[rhs] * heights[rhs]
+                        - (long) widths[lhs] * heights[lhs]);
+            }
+        });
+
+        int full = bestRange(fpsRanges, Integer.MAX_VALUE);
+        int fullMin = full < 0 ? 0 : fpsRanges[full];
+        int fullMax = full < 0 ? 0 : fpsRanges[full + 1];
+        List<Level> levels = new ArrayList<>();
+        long lastArea = 0;
+        for (int i : order) {
+            long area = (long) widths[i] * heights[i];
+            if (!levels.isEmpty() && (area > lastArea * MAX_AREA_STEP || widths[i] < MIN_WIDTH)) {
+                continue;
+            }
+            levels.add(new Level(widths[i], heights[i], fullMin, fullMax));
+            lastArea = area;
+        }
+        if (levels.isEmpty()) {
+            return levels;
+        }
+        int reduced = full < 0 ? -1 : bestRange(fpsRanges, fullMax * 2 / 3);
+        if (reduced >= 0) {
+            Level smallest = levels.get(levels.size() - 1);
+            levels.add(new Level(smallest.width, smallest.height, fpsRanges[reduced],
+                    fpsRanges[reduced + 1]));
+        }
+        return levels;
+    }
+
+    /**
+     * Returns the index of the range with the highest upper bound no higher than {@code limit},
+     * preferring the steadiest one, or -1 if there is none.
+     */
+    private static int bestRange(int[] fpsRanges, int limit) {
+        int best = -1;
+        for (int i = 0; i + 1 < fpsRanges.length; i += 2) {
+            int upper = fpsRanges[i + 1];
+            if (upper > limit) {
+                continue;
+            }
+            if (best < 0 || upper > fpsRanges[best + 1]
+                    || (upper == fpsRanges[best + 1] && fpsRanges[i] > fpsRanges[best])) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,528 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays back frames recorded to a directory, at a fixed frame rate, without a camera. It opens,
+ * sets up a session, runs a repeating request and takes stills like the camera, and delivers
+ * {@link FrameSource.Frame}s and {@link FrameSource.Result}s to a {@link FrameSource.Callback}.
+ *
+ * The directory holds one file per frame and an index, {@value #INDEX_NAME}, with a line per frame
+ * after a header:
+ *
+ * <pre>
+ * file,format,width,height,af_state,ae_state,exposure_time_ns,sensitivity
+ * 0001.yuv,yuv,1920,1080,2,2,16666666,100
+ * 0002.jpg,jpeg,4032,3024,2,2,16666666,100
+ * </pre>
+ *
+ * YUV frames are stored as I420: the full luma plane, then the U and the V plane. Every frame is
+ * read into memory when the source opens, so the disk doesn't limit the replay. Frames are then
+ * played in order, looping, with timestamps from {@link System#nanoTime()}.
+ *
+ * Like a sensor, the source doesn't wait for a slow callback: frames that come due while the
+ * callback is still busy are skipped. Like an {@link android.media.ImageReader}, at most
+ * {@code maxImages} stills can be held at a time, and stills beyond that are dropped.
+ */
+class ReplayFrameSource {
+
+    static final String INDEX_NAME = "frames.csv";
+
+    private static final String HEADER =
+            "file,format,width,height,af_state,ae_state,exposure_time_ns,sensitivity";
+
+    /**
+     * A frame of the recording, held in memory.
+     */
+    private static final class Recorded {
+
+        final int format;
+
+        final int width;
+
+        final int height;
+
+        final ByteBuffer data;
+
+        final int afState;
+
+        final int aeState;
+
+        final long exposureTimeNs;
+
+        final int sensitivity;
+
+        Recorded(int format, int width, int height, ByteBuffer data, int afState, int aeState,
+                 long exposureTimeNs, int sensitivity) {
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.data = data;
+            this.afState = afState;
+            this.aeState = aeState;
+            this.exposureTimeNs = exposureTimeNs;
+            this.sensitivity = sensitivity;
+        }
+
+    }
+
+    /**
+     * A delivered frame. Its planes are read-only views of the recording.
+     */
+    private final class ReplayFrame implements FrameSource.Frame {
+
+        private final Recorded mRecorded;
+
+        private final long mTimestampNs;
+
+        private final boolean mStill;
+
+        private final AtomicInteger mClosed = new AtomicInteger();
+
+        ReplayFrame(Recorded recorded, long timestampNs, boolean still) {
+            mRecorded = recorded;
+            mTimestampNs = timestampNs;
+            mStill = still;
+        }
+
+        @Override
+        public int getFormat() {
+            return mRecorded.format;
+        }
+
+        @Override
+        public int getWidth() {
+            return mRecorded.width;
+        }
+
+        @Override
+        public int getHeight() {
+            return mRecorded.height;
+        }
+
+        @Override
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        @Override
+        public int getPlaneCount() {
+            return mRecorded.format == FrameSource.FORMAT_JPEG ? 1 : 3;
+        }
+
+        @Override
+        public JpegEncoder.Plane getPlane(int index) {
+            if (mRecorded.format == FrameSource.FORMAT_JPEG) {
+                return new JpegEncoder.Plane(slice(mRecorded.data, 0, mRecorded.data.limit()),
+                        0, 0);
+            }
+            int lumaSize = mRecorded.width * mRecorded.height;
+            int chromaWidth = (mRecorded.width + 1) / 2;
+            int chromaSize = chromaWidth * ((mRecorded.height + 1) / 2);
+            if (0 == index) {
+                return new JpegEncoder.Plane(slice(mRecorded.data, 0, lumaSize),
+                        mRecorded.width, 1);
+            }
+            return new JpegEncoder.Plane(slice(mRecorded.data,
+                    lumaSize + (index - 1) * chromaSize, chromaSize), chromaWidth, 1);
+        }
+
+        @Override
+        public void close() {
+            if (mStill && mClosed.compareAndSet(0, 1)) {
+                mHeldStills.decrementAndGet();
+            }
+        }
+
+    }
+
+    private final File mDir;
+
+    private final long mFramePeriodNs;
+
+    private final int mMaxImages;
+
+    /**
+     * Plays the frames and runs every call on the source, like the handler of a camera
+     */
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "FrameReplay");
+                }
+            });
+
+    private final AtomicInteger mHeldStills = new AtomicInteger();
+
+    private final AtomicLong mFrameCount = new AtomicLong();
+
+    private final AtomicLong mSkippedCount = new AtomicLong();
+
+    private final AtomicLong mStillCount = new AtomicLong();
+
+    private final AtomicLong mDroppedStillCount = new AtomicLong();
+
+    private FrameSource.Callback mCallback;
+
+    /**
+     * The recording, once {@link #open} has read it
+     */
+    private volatile List<Recorded> mFrames;
+
+    private int mStillFormat;
+
+    private boolean mAnalysis;
+
+    private boolean mRepeating;
+
+    private int mPendingStills;
+
+    /**
+     * The index of the next frame of the recording to play
+     */
+    private int mNext;
+
+    /**
+     * When the first frame was due, in {@link System#nanoTime()}, or 0 before the session starts
+     */
+    private long mStartNs;
+
+    /**
+     * The number of frame periods since {@link #mStartNs} already played or skipped
+     */
+    private long mTick;
+
+    private boolean mClosed;
+
+    private final Runnable mPlay = new Runnable() {
+        @Override
+        public void run() {
+            play();
+        }
+    };
+
+    /**
+     * @param dir       The directory of the recording
+     * @param frameRate The number of frames played per second
+     * @param maxImages The number of stills that can be held at the same time
+     */
+    public ReplayFrameSource(File dir, double frameRate, int maxImages) {
+        if (frameRate <= 0) {
+            throw new IllegalArgumentException("Frame rate " + frameRate);
+        }
+        mDir = dir;
+        mFramePeriodNs = Math.round(1e9 / frameRate);
+        mMaxImages = maxImages;
+    }
+
+    /**
+     * Starts reading the recording. {@link FrameSource.Callback#onOpened()} or
+     * {@link FrameSource.Callback#onError} follows.
+     */
+    public void open(final FrameSource.Callback callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mCallback = callback;
+                try {
+                    mFrames = load(mDir);
+                } catch (IOException e) {
+                    callback.onError(e);
+                    return;
+                }
+                callback.onOpened();
+            }
+        });
+    }
+
+    /**
+     * Starts playing. Called once the source is open.
+     *
+     * @param stillFormat The format of stills, {@link FrameSource#FORMAT_JPEG} or
+     *                    {@link FrameSource#FORMAT_YUV_420_888}
+     * @param analysis    Whether preview frames are delivered for analysis
+     */
+    public void createSession(final int stillFormat, final boolean analysis) throws IOException {
+        List<Recorded> frames = mFrames;
+        if (null == frames) {
+            throw new IOException("The source is not open");
+        }
+        boolean hasStills = false;
+        boolean hasPreview = false;
+        for (Recorded recorded : frames) {
+            hasStills |= recorded.format == stillFormat;
+            hasPreview |= recorded.format == FrameSource.FORMAT_YUV_420_888;
+        }
+        if (!hasStills) {
+            throw new IOException("No frames of format " + stillFormat + " in " + mDir);
+        }
+        if (analysis && !hasPreview) {
+            throw new IOException("No YUV frames to analyze in " + mDir);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mStillFormat = stillFormat;
+                mAnalysis = analysis;
+                if (0 == mStartNs && !mClosed) {
+                    mStartNs = System.nanoTime();
+                    mExecutor.execute(mPlay);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts or stops delivering the results of preview frames.
+     */
+    public void setRepeating(final boolean repeating) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mRepeating = repeating;
+            }
+        });
+    }
+
+    /**
+     * Takes {@code count} stills on the following frames, next to the repeating request.
+     */
+    public void capture(final int count) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPendingStills += count;
+            }
+        });
+    }
+
+    /**
+     * Stops the source. Frames already delivered stay valid until they are closed.
+     */
+    public void close() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mClosed = true;
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Waits for {@link #close()} to take effect.
+     *
+     * @return false if the source is still running after {@code timeoutMs}
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return mExecutor.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the number of frames played, with or without an image.
+     */
+    public long getFrameCount() {
+        return mFrameCount.get();
+    }
+
+    /**
+     * Returns the number of frames that came due while the callback was busy.
+     */
+    public long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    public long getStillCount() {
+        return mStillCount.get();
+    }
+
+    /**
+     * Returns the number of stills dropped because {@code maxImages} were held.
+     */
+    public long getDroppedStillCount() {
+        return mDroppedStillCount.get();
+    }
+
+    /**
+     * Returns the number of stills delivered and not closed yet.
+     */
+    public int getHeldStillCount() {
+        return mHeldStills.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "Replay %.0ffps: %d frames, %d skipped, %d stills, %d dropped, %d held",
+                1e9 / mFramePeriodNs, getFrameCount(), getSkippedCount(), getStillCount(),
+                getDroppedStillCount(), getHeldStillCount());
+    }
+
+    /**
+     * Plays the frame that is due, and schedules the next one.
+     */
+    private void play() {
+        if (mClosed) {
+            return;
+        }
+        long nowNs = System.nanoTime();
+        Recorded recorded = mFrames.get(mNext);
+        mNext = (mNext + 1) % mFrames.size();
+        if (mRepeating || mPendingStills > 0) {
+            deliver(recorded, nowNs);
+        }
+        // Frames that came due while this one was delivered are skipped, as a sensor would.
+        long due = (System.nanoTime() - mStartNs) / mFramePeriodNs + 1;
+        if (due > mTick + 1) {
+            long skipped = due - mTick - 1;
+            mSkippedCount.addAndGet(skipped);
+            mNext = (int) ((mNext + skipped) % mFrames.size());
+        }
+        mTick = due;
+        if (!mExecutor.isShutdown()) {
+            mExecutor.schedule(mPlay, mStartNs + mTick * mFramePeriodNs - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void deliver(Recorded recorded, long timestampNs) {
+        long frameNumber = mFrameCount.getAndIncrement();
+        boolean still = mPendingStills > 0 && recorded.format == mStillFormat;
+        if (still) {
+            mPendingStills--;
+        }
+        mCallback.onCaptureResult(new FrameSource.Result(timestampNs, frameNumber, still,
+                recorded.afState, recorded.aeState, recorded.exposureTimeNs,
+                recorded.sensitivity));
+        if (mAnalysis && mRepeating && recorded.format == FrameSource.FORMAT_YUV_420_888) {
+            ReplayFrame frame = new ReplayFrame(recorded, timestampNs, false);
+            try {
+                mCallback.onPreviewFrame(frame);
+            } finally {
+                frame.close();
+            }
+        }
+        if (still) {
+            if (mHeldStills.incrementAndGet() > mMaxImages) {
+                mHeldStills.decrementAndGet();
+                mDroppedStillCount.incrementAndGet();
+                return;
+            }
+            mStillCount.incrementAndGet();
+            mCallback.onStillImage(new ReplayFrame(recorded, timestampNs, true));
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer data, int offset, int length) {
+        ByteBuffer view = data.duplicate();
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    /**
+     * Reads the index and every frame of a recording.
+     */
+    private static List<Recorded> load(File dir) throws IOException {
+        List<Recorded> frames = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(new File(dir, INDEX_NAME)));
+        try {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("Unexpected header in " + INDEX_NAME + ": " + line);
+            }
+            while (null != (line = reader.readLine())) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                if (fields.length != 8) {
+                    throw new IOException("Malformed line in " + INDEX_NAME + ": " + line);
+                }
+                int format = parseFormat(fields[1]);
+                int width = Integer.parseInt(fields[2]);
+                int height = Integer.parseInt(fields[3]);
+                ByteBuffer data = read(new File(dir, fields[0]));
+                if (format == FrameSource.FORMAT_YUV_420_888 && data.limit()
+                        < width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)) {
+                    throw new IOException(fields[0] + " is too short for " + width + "x"
+                            + height);
+                }
+                frames.add(new Recorded(format, width, height, data,
+                        Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+                        Long.parseLong(fields[6]), Integer.parseInt(fields[7])));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed " + INDEX_NAME, e);
+        } finally {
+            reader.close();
+        }
+        if (frames.isEmpty()) {
+            throw new IOException("No frames in " + dir);
+        }
+        return frames;
+    }
+
+    private static int parseFormat(String name) throws IOException {
+        switch (name) {
+            case "jpeg":
+                return FrameSource.FORMAT_JPEG;
+            case "yuv":
+                return FrameSource.FORMAT_YUV_420_888;
+            default:
+                throw new IOException("Unknown format " + name);
+        }
+    }
+
+    /**
+     * Reads a file into a read-only direct buffer, like the plane of an image.
+     */
+    private static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer data = ByteBuffer.allocateDirect((int) channel.size());
+            while (data.hasRemaining()) {
+                if (channel.read(data) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+            data.flip();
+            return data.asReadOnlyBuffer();
+        } finally {
+            in.close();
+        }
+    }
+
+}
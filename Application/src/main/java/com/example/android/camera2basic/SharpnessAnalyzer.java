@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Scores how sharp preview frames are, as the variance of the Laplacian of their luma. Blur
+ * flattens edges, which lowers the variance.
+ */
+class SharpnessAnalyzer implements FrameAnalyzer {
+
+    /**
+     * Only every {@code STEP}-th pixel of every {@code STEP}-th row is scored.
+     */
+    private static final int STEP = 2;
+
+    private volatile double mSharpness;
+
+    @Override
+    public void analyze(Frame frame) {
+        mSharpness = laplacianVariance(frame.getLuma(), frame.getWidth(), frame.getHeight(),
+                frame.getWidth(), 1, STEP);
+    }
+
+    /**
+     * Returns the score of the last analyzed frame. Scores are only comparable between frames of
+     * the same size and scene.
+     */
+    public double getSharpness() {
+        return mSharpness;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "sharpness=%.1f", getSharpness());
+    }
+
+    /**
+     * Computes the variance of the 4-neighbour Laplacian over the inner pixels of a plane.
+     *
+     * @param plane       The samples, from the position of the buffer
+     * @param rowStride   The distance between two rows, in bytes
+     * @param pixelStride The distance between two samples of a row, in bytes
+     * @param step        Scores every {@code step}-th pixel of every {@code step}-th row
+     */
+    static double laplacianVariance(ByteBuffer plane, int width, int height, int rowStride,
+                                    int pixelStride, int step) {
+        int base = plane.position();
+        long sum = 0;
+        long sumOfSquares = 0;
+        long count = 0;
+        for (int y = 1; y < height - 1; y += step) {
+            int row = base + y * rowStride;
+            for (int x = 1; x < width - 1; x += step) {
+                int index = row + x * pixelStride;
+                int laplacian = (plane.get(index - pixelStride) & 0xff)
+                        + (plane.get(index + pixelStride) & 0xff)
+                        + (plane.get(index - rowStride) & 0xff)
+                        + (plane.get(index + rowStride) & 0xff)
+                        - 4 * (plane.get(index) & 0xff);
+                sum += laplacian;
+                sumOfSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        double mean = (double) sum / count;
+        return (double) sumOfSquares / count - mean * mean;
+    }
+
+}
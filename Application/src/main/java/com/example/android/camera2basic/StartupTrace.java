@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamps of the steps from asking for the camera to the first preview frame.
+ *
+ * Steps may be reached from different threads and in any order, since several of them overlap.
+ * The first trace of the process is cold: nothing has been cached or loaded yet.
+ */
+class StartupTrace {
+
+    enum Step {
+
+        /**
+         * The camera to open was picked from the {@link CameraCapabilityIndex}.
+         */
+        CAMERA_CHOSEN,
+
+        /**
+         * The camera was asked to open.
+         */
+        OPEN_REQUESTED,
+
+        /**
+         * The image readers, the preview surface and the transform are ready.
+         */
+        OUTPUTS_READY,
+
+        /**
+         * The camera device is open.
+         */
+        CAMERA_OPENED,
+
+        /**
+         * The capture session is configured and the repeating request is set.
+         */
+        SESSION_CONFIGURED,
+
+        /**
+         * The first preview frame completed.
+         */
+        FIRST_FRAME
+
+    }
+
+    /**
+     * Whether a trace has been started in this process
+     */
+    private static final AtomicBoolean sStarted = new AtomicBoolean();
+
+    private final long mStartNs;
+
+    private final boolean mCold;
+
+    /**
+     * When each step was reached, relative to {@link #mStartNs}, or -1
+     */
+    private final AtomicLongArray mStepNs = new AtomicLongArray(Step.values().length);
+
+    StartupTrace(long startNs, boolean cold) {
+        mStartNs = startNs;
+        mCold = cold;
+        for (int i = 0; i < mStepNs.length(); i++) {
+            mStepNs.set(i, -1);
+        }
+    }
+
+    /**
+     * Starts a trace, which is cold if it is the first one of the process.
+     */
+    public static StartupTrace begin(long nowNs) {
+        return new StartupTrace(nowNs, sStarted.compareAndSet(false, true));
+    }
+
+    /**
+     * Records that {@code step} was reached. Only the first time counts.
+     *
+     * @return Whether this was the first time
+     */
+    public boolean mark(Step step, long nowNs) {
+        return mStepNs.compareAndSet(step.ordinal(), -1, Math.max(0, nowNs - mStartNs));
+    }
+
+    /**
+     * Returns how long after the start {@code step} was reached, or -1 if it hasn't been.
+     */
+    public long getElapsedNs(Step step) {
+        return mStepNs.get(step.ordinal());
+    }
+
+    public boolean isCold() {
+        return mCold;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mCold ? "Startup (cold):" : "Startup (warm):");
+        for (Step step : Step.values()) {
+            long elapsedNs = getElapsedNs(step);
+            if (elapsedNs >= 0) {
+                builder.append(String.format(Locale.US, " %s +%.1fms", step, elapsedNs / 1e6));
+            }
+        }
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Keeps the encoded thumbnails of captures, keyed by the id of their
+ * {@link CaptureStorage.Output}, so a gallery can show thousands of captures without decoding
+ * any of them at full size.
+ *
+ * Thumbnails are held in memory and on disk, each bounded in bytes and evicting the least
+ * recently used first. The disk cache survives restarts: the order of use is kept in the
+ * modification times of its files.
+ */
+class ThumbnailCache {
+
+    private static final String SUFFIX = ".jpg";
+
+    private final File mDir;
+
+    private final long mMaxDiskBytes;
+
+    private final long mMaxMemoryBytes;
+
+    /**
+     * Thumbnails held in memory, least recently used first
+     */
+    private final LinkedHashMap<Long, byte[]> mMemory = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * The sizes of the thumbnails on disk, least recently used first
+     */
+    private final LinkedHashMap<Long, Long> mDisk = new LinkedHashMap<>(256, 0.75f, true);
+
+    private long mMemoryBytes;
+
+    private long mDiskBytes;
+
+    private long mMemoryHits;
+
+    private long mDiskHits;
+
+    private long mMisses;
+
+    /**
+     * Opens the cache in {@code dir}, picking up the thumbnails already there.
+     *
+     * @param maxDiskBytes   The most bytes of thumbnails kept on disk
+     * @param maxMemoryBytes The most bytes of thumbnails kept in memory
+     */
+    public ThumbnailCache(File dir, long maxDiskBytes, long maxMemoryBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        mDir = dir;
+        mMaxDiskBytes = maxDiskBytes;
+        mMaxMemoryBytes = maxMemoryBytes;
+        File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        // Files are modified when used, so the oldest goes first.
+        final long[] modified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            modified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return modified[a] < modified[b] ? -1 : modified[a] > modified[b] ? 1 : 0;
+            }
+        });
+        for (Integer i : order) {
+            File file = files[i];
+            String name = file.getName();
+            if (!name.endsWith(SUFFIX)) {
+                // Left over from a write that didn't finish
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                mDisk.put(id, file.length());
+                mDiskBytes += file.length();
+            } catch (NumberFormatException e) {
+                // Not a thumbnail
+            }
+        }
+        trimDisk();
+    }
+
+    /**
+     * Adds the thumbnail of a capture, replacing any it had.
+     *
+     * @param id   The id of the capture
+     * @param jpeg The encoded thumbnail. The cache keeps the array, so it must not be changed.
+     */
+    public synchronized void put(long id, byte[] jpeg) throws IOException {
+        File file = fileOf(id);
+        File temp = new File(mDir, id + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(jpeg);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Failed to rename " + temp + " to " + file);
+        }
+        Long old = mDisk.put(id, (long) jpeg.length);
+        mDiskBytes += jpeg.length - (null == old ? 0 : old);
+        keepInMemory(id, jpeg);
+        trimDisk();
+    }
+
+    /**
+     * Returns the thumbnail of a capture, or null if it isn't cached.
+     */
+    public synchronized byte[] get(long id) {
+        byte[] jpeg = mMemory.get(id);
+        if (null != jpeg) {
+            mMemoryHits++;
+            // Keeps the disk order in step with the memory order.
+            mDisk.get(id);
+            return jpeg;
+        }
+        Long length = mDisk.get(id);
+        if (null == length) {
+            mMisses++;
+            return null;
+        }
+        File file = fileOf(id);
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                jpeg = new byte[(int) input.length()];
+                input.readFully(jpeg);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            // Deleted behind our back
+            mDisk.remove(id);
+            mDiskBytes -= length;
+            mMisses++;
+            return null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        mDiskHits++;
+        keepInMemory(id, jpeg);
+        return jpeg;
+    }
+
+    public synchronized boolean contains(long id) {
+        return mDisk.containsKey(id);
+    }
+
+    public synchronized int getCount() {
+        return mDisk.size();
+    }
+
+    public synchronized long getDiskBytes() {
+        return mDiskBytes;
+    }
+
+    public synchronized long getMemoryBytes() {
+        return mMemoryBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "thumbnails=%d disk=%dKB memory=%dKB hits=%d/%d misses=%d",
+                mDisk.size(), mDiskBytes / 1024, mMemoryBytes / 1024, mMemoryHits, mDiskHits,
+                mMisses);
+    }
+
+    private File fileOf(long id) {
+        return new File(mDir, id + SUFFIX);
+    }
+
+    private void keepInMemory(long id, byte[] jpeg) {
+        byte[] old = mMemory.remove(id);
+        if (null != old) {
+            mMemoryBytes -= old.length;
+        }
+        if (jpeg.length > mMaxMemoryBytes) {
+            return;
+        }
+        mMemory.put(id, jpeg);
+        mMemoryBytes += jpeg.length;
+        Iterator<Map.Entry<Long, byte[]>> eldest = mMemory.entrySet().iterator();
+        while (mMemoryBytes > mMaxMemoryBytes) {
+            mMemoryBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<Long, Long>> eldest = mDisk.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && eldest.hasNext()) {
+            Map.Entry<Long, Long> entry = eldest.next();
+            mDiskBytes -= entry.getValue();
+            //noinspection ResultOfMethodCallIgnored
+            fileOf(entry.getKey()).delete();
+            byte[] jpeg = mMemory.remove(entry.getKey());
+            if (null != jpeg) {
+                mMemoryBytes -= jpeg.length;
+            }
+            eldest.remove();
+        }
+    }
+
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Finds the thumbnail a camera embeds in the Exif segment of a JPEG, as set by
+ * {@link android.hardware.camera2.CaptureRequest#JPEG_THUMBNAIL_SIZE}, or that
+ * {@link JpegSplicer#exifSegment(int, byte[])} adds to a JPEG encoded from YUV. Only the headers
+ * at the start of the file are read, so this costs the same for any size of image.
+ *
+ * Malformed headers are not an error: they just have no thumbnail.
+ */
+final class ThumbnailExtractor {
+
+    /**
+     * How much of a file is mapped. Exif has to fit in a single APP1 segment.
+     */
+    private static final int HEADER_BYTES = 128 * 1024;
+
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+
+    private static final int IFD_ENTRY_SIZE = 12;
+
+    private ThumbnailExtractor() {
+    }
+
+    /**
+     * Returns the embedded thumbnail of a saved JPEG, or null if it has none.
+     */
+    static byte[] read(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    Math.min(channel.size(), HEADER_BYTES));
+            ByteBuffer thumbnail = find(header);
+            if (null == thumbnail) {
+                return null;
+            }
+            byte[] bytes = new byte[thumbnail.remaining()];
+            thumbnail.get(bytes);
+            return bytes;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Returns the embedded thumbnail of a JPEG as a slice of {@code jpeg}, from its position to
+     * its limit, or null if it has none. {@code jpeg} itself is not modified.
+     */
+    static ByteBuffer find(ByteBuffer jpeg) {
+        int limit = jpeg.limit();
+        int offset = jpeg.position();
+        if (limit - offset < 4 || (jpeg.get(offset) & 0xFF) != 0xFF
+                || (jpeg.get(offset + 1) & 0xFF) != 0xD8) {
+            return null;
+        }
+        offset += 2;
+        // Exif is one of the APP segments at the start of the file.
+        while (limit - offset >= 4 && (jpeg.get(offset) & 0xFF) == 0xFF) {
+            int marker = jpeg.get(offset + 1) & 0xFF;
+            if (marker < 0xE0 || marker > 0xEF) {
+                return null;
+            }
+            int length = ((jpeg.get(offset + 2) & 0xFF) << 8) | (jpeg.get(offset + 3) & 0xFF);
+            int end = offset + 2 + length;
+            if (length < 2 || end > limit) {
+                return null;
+            }
+            if (marker == 0xE1 && isExif(jpeg, offset + 4, end)) {
+                return findInTiff(jpeg, offset + 10, end);
+            }
+            offset = end;
+        }
+        return null;
+    }
+
+    private static boolean isExif(ByteBuffer jpeg, int offset, int end) {
+        return end - offset >= 6 && jpeg.get(offset) == 'E' && jpeg.get(offset + 1) == 'x'
+                && jpeg.get(offset + 2) == 'i' && jpeg.get(offset + 3) == 'f'
+                && jpeg.get(offset + 4) == 0 && jpeg.get(offset + 5) == 0;
+    }
+
+    /**
+     * Follows IFD0 to IFD1, which describes the thumbnail.
+     *
+     * @param tiff The start of the TIFF structure, which Exif offsets are relative to
+     * @param end  The end of the APP1 segment
+     */
+    private static ByteBuffer findInTiff(ByteBuffer jpeg, int tiff, int end) {
+        if (end - tiff < 8) {
+            return null;
+        }
+        ByteBuffer view = jpeg.duplicate();
+        byte first = view.get(tiff);
+        if (first == 'I' && view.get(tiff + 1) == 'I') {
+            view.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (first == 'M' && view.get(tiff + 1) == 'M') {
+            view.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        if ((view.getShort(tiff + 2) & 0xFFFF) != 42) {
+            return null;
+        }
+        long ifd0 = view.getInt(tiff + 4) & 0xFFFFFFFFL;
+        int entries0 = entryCount(view, tiff, ifd0, end);
+        if (entries0 < 0) {
+            return null;
+        }
+        long nextAt = ifd0 + 2 + (long) entries0 * IFD_ENTRY_SIZE;
+        if (tiff + nextAt + 4 > end) {
+            return null;
+        }
+        long ifd1 = view.getInt(tiff + (int) nextAt) & 0xFFFFFFFFL;
+        int entries1 = ifd1 == 0 ? -1 : entryCount(view, tiff, ifd1, end);
+        long thumbnailOffset = -1;
+        long thumbnailLength = -1;
+        for (int i = 0; i < entries1; i++) {
+            int entry = tiff + (int) ifd1 + 2 + i * IFD_ENTRY_SIZE;
+            int tag = view.getShort(entry) & 0xFFFF;
+            // Both tags are a single LONG, so the value sits in the entry itself.
+            long value = view.getInt(entry + 8) & 0xFFFFFFFFL;
+            if (tag == TAG_THUMBNAIL_OFFSET) {
+                thumbnailOffset = value;
+            } else if (tag == TAG_THUMBNAIL_LENGTH) {
+                thumbnailLength = value;
+            }
+        }
+        if (thumbnailOffset < 0 || thumbnailLength < 2
+                || tiff + thumbnailOffset + thumbnailLength > end) {
+            return null;
+        }
+        int start = tiff + (int) thumbnailOffset;
+        if ((jpeg.get(start) & 0xFF) != 0xFF || (jpeg.get(start + 1) & 0xFF) != 0xD8) {
+            return null;
+        }
+        ByteBuffer thumbnail = jpeg.duplicate();
+        thumbnail.limit(start + (int) thumbnailLength);
+        thumbnail.position(start);
+        return thumbnail.slice();
+    }
+
+    /**
+     * Returns the number of entries of the IFD at {@code ifd}, or -1 if it doesn't fit.
+     */
+    private static int entryCount(ByteBuffer view, int tiff, long ifd, int end) {
+        if (ifd < 8 || tiff + ifd + 2 > end) {
+            return -1;
+        }
+        int count = view.getShort(tiff + (int) ifd) & 0xFFFF;
+        return tiff + ifd + 2 + (long) count * IFD_ENTRY_SIZE > end ? -1 : count;
+    }
+
+}
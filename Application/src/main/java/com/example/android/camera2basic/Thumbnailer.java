@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Adds the thumbnail of every saved JPEG to a {@link ThumbnailCache}, on a worker thread of its
+ * own so that saving is never held up.
+ *
+ * The thumbnail embedded in the Exif of the JPEG is used when there is one: the camera embeds one
+ * in the JPEGs it encodes, and stills encoded from YUV carry one from the encoder. Otherwise the
+ * JPEG is decoded with a sample size of up to 8, which the JPEG decoder applies while decoding
+ * the DCT blocks rather than after decoding the full image.
+ */
+class Thumbnailer implements ImageSaver.Callback {
+
+    private static final String TAG = "Thumbnailer";
+
+    /**
+     * The width of the thumbnails made by decoding, in pixels
+     */
+    static final int TARGET_WIDTH = 320;
+
+    /**
+     * The largest sample size the decoder scales in the DCT domain
+     */
+    private static final int MAX_SAMPLE_SIZE = 8;
+
+    private static final int QUALITY = 85;
+
+    /**
+     * Saves that arrive while this many thumbnails are waiting get none.
+     */
+    private static final int QUEUE_CAPACITY = 16;
+
+    private final ThumbnailCache mCache;
+
+    private final ImageSaveQueue mQueue =
+            new ImageSaveQueue("Thumbnailer", 1, QUEUE_CAPACITY,
+                    ImageSaveQueue.Backpressure.FAIL_FAST);
+
+    public Thumbnailer(ThumbnailCache cache) {
+        mCache = cache;
+    }
+
+    public ThumbnailCache getCache() {
+        return mCache;
+    }
+
+    @Override
+    public void onImageSaved(final CaptureStorage.Output output, long length) {
+        if (!output.getFile().getName().endsWith(".jpg")) {
+            return;
+        }
+        boolean queued = mQueue.submit(new ImageSaveQueue.Job() {
+            @Override
+            public void run() {
+                try {
+                    byte[] thumbnail = make(output.getFile());
+                    if (null != thumbnail) {
+                        mCache.put(output.getId(), thumbnail);
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "No thumbnail for " + output, e);
+                }
+            }
+
+            @Override
+            public void discard() {
+            }
+        });
+        if (!queued) {
+            Log.w(TAG, "Skipped thumbnail for " + output);
+        }
+    }
+
+    /**
+     * Stops taking new thumbnails. Those already queued are still made.
+     */
+    public void shutdown() {
+        mQueue.shutdown();
+    }
+
+    /**
+     * Returns the thumbnail of a JPEG, or null if it can't be decoded.
+     */
+    static byte[] make(File file) throws IOException {
+        byte[] embedded = ThumbnailExtractor.read(file);
+        if (null != embedded) {
+            return embedded;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (options.inSampleSize < MAX_SAMPLE_SIZE
+                && options.outWidth / (options.inSampleSize * 2) >= TARGET_WIDTH) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (null == bitmap) {
+            return null;
+        }
+        if (bitmap.getWidth() > TARGET_WIDTH) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, TARGET_WIDTH,
+                    Math.max(1, bitmap.getHeight() * TARGET_WIDTH / bitmap.getWidth()), true);
+            bitmap.recycle();
+            bitmap = scaled;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 * 1024);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+        bitmap.recycle();
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Keeps track of the frames of a recording between the camera and the muxer: how many are queued
+ * in the encoder, and how many never came out of it.
+ *
+ * Frames are matched by timestamp. The camera stamps the buffers it sends to the encoder's input
+ * surface with their sensor timestamps, and the encoder keeps them as presentation times, so an
+ * encoded frame accounts for every captured frame before it that hasn't come out.
+ */
+class VideoEncoderStats {
+
+    /**
+     * Captured frames that are not matched beyond this are counted as dropped, so that the queue
+     * stays bounded even if timestamps never match.
+     */
+    static final int MAX_PENDING = 256;
+
+    /**
+     * Sensor timestamps of the frames captured but not encoded yet, in microseconds, oldest first
+     */
+    private final ArrayDeque<Long> mPendingUs = new ArrayDeque<>();
+
+    private long mCaptured;
+
+    private long mEncoded;
+
+    private long mDropped;
+
+    private long mBytes;
+
+    private int mMaxQueueDepth;
+
+    /**
+     * Called when the camera has completed a frame that targets the encoder.
+     *
+     * @param timestampNs The sensor timestamp of the frame
+     */
+    public synchronized void onFrameCaptured(long timestampNs) {
+        mCaptured++;
+        mPendingUs.add(timestampNs / 1000);
+        if (mPendingUs.size() > MAX_PENDING) {
+            mPendingUs.poll();
+            mDropped++;
+        }
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mPendingUs.size());
+    }
+
+    /**
+     * Called when the encoder has output a frame.
+     *
+     * @param presentationTimeUs The presentation time of the frame
+     * @param size               The size of the encoded frame in bytes
+     */
+    public synchronized void onFrameEncoded(long presentationTimeUs, int size) {
+        mEncoded++;
+        mBytes += size;
+        Long pending;
+        while (null != (pending = mPendingUs.peek()) && pending < presentationTimeUs) {
+            mPendingUs.poll();
+            mDropped++;
+        }
+        if (null != pending && pending == presentationTimeUs) {
+            mPendingUs.poll();
+        }
+    }
+
+    /**
+     * Called once the encoder has output its last frame. Frames still pending never will be.
+     */
+    public synchronized void onEndOfStream() {
+        mDropped += mPendingUs.size();
+        mPendingUs.clear();
+    }
+
+    /**
+     * Returns the number of captured frames that the encoder hasn't output yet.
+     */
+    public synchronized int getQueueDepth() {
+        return mPendingUs.size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public synchronized long getCapturedFrames() {
+        return mCaptured;
+    }
+
+    public synchronized long getEncodedFrames() {
+        return mEncoded;
+    }
+
+    /**
+     * Returns the number of captured frames that the encoder skipped.
+     */
+    public synchronized long getDroppedFrames() {
+        return mDropped;
+    }
+
+    public synchronized long getEncodedBytes() {
+        return mBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US,
+                "Video: %d/%d frames encoded, %d dropped, queue %d (max %d), %.1f MB",
+                mEncoded, mCaptured, mDropped, mPendingUs.size(), mMaxQueueDepth,
+                mBytes / 1e6);
+    }
+
+}
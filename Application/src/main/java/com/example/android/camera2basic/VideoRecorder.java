@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Records H.264 video from the camera into an MP4 file.
+ *
+ * The camera renders straight into the input {@link Surface} of a {@link MediaCodec} encoder, so
+ * no frame is ever copied by the CPU. A thread of its own drains the encoder and hands each
+ * encoded buffer to a {@link MediaMuxer} as it is, then commits the file once the encoder has
+ * flushed its last frame.
+ */
+class VideoRecorder {
+
+    private static final String TAG = "VideoRecorder";
+
+    /**
+     * How long the muxer thread waits for an encoded frame before checking on the recording
+     */
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    /**
+     * How long the encoder has to flush its last frames once the recording is stopped
+     */
+    private static final long STOP_TIMEOUT_MS = 2000;
+
+    /**
+     * Seconds between two key frames
+     */
+    private static final int KEY_FRAME_INTERVAL_S = 1;
+
+    /**
+     * Notified on the muxer thread once the recording is over.
+     */
+    interface Callback {
+
+        /**
+         * @param output Where the video was saved
+         * @param stats  The frames of the whole recording
+         */
+        void onRecordingFinished(CaptureStorage.Output output, VideoEncoderStats stats);
+
+        void onRecordingFailed(CaptureStorage.Output output, Exception e);
+
+    }
+
+    private final CaptureStorage.Output mOutput;
+
+    private final MediaCodec mEncoder;
+
+    private final MediaMuxer mMuxer;
+
+    private final Surface mInputSurface;
+
+    private final VideoEncoderStats mStats = new VideoEncoderStats();
+
+    private final Thread mMuxerThread;
+
+    private Callback mCallback;
+
+    /**
+     * When the recording was stopped, in {@link System#nanoTime()}, or 0 while it is running
+     */
+    private volatile long mStopTimeNs;
+
+    /**
+     * @param size             The size of the frames
+     * @param frameRate        The frame rate the camera delivers
+     * @param bitRate          The target bit rate in bits per second
+     * @param orientationHint  The clockwise rotation players should apply, in degrees
+     */
+    public VideoRecorder(CaptureStorage.Output output, Size size, int frameRate, int bitRate,
+                         int orientationHint) throws IOException {
+        mOutput = output;
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC,
+                size.getWidth(), size.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, KEY_FRAME_INTERVAL_S);
+        mEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mEncoder.createInputSurface();
+            mMuxer = new MediaMuxer(output.getWriteFile().getPath(),
+                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            mEncoder.release();
+            throw e;
+        }
+        mMuxer.setOrientationHint(orientationHint);
+        mMuxerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "VideoMuxer");
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Returns the surface the camera should render the frames to record into.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    public CaptureStorage.Output getOutput() {
+        return mOutput;
+    }
+
+    public VideoEncoderStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Starts the encoder and the muxer thread. Frames rendered into the input surface from now on
+     * are recorded.
+     */
+    public void start() {
+        mEncoder.start();
+        mMuxerThread.start();
+    }
+
+    /**
+     * Called for every completed capture that targets the input surface, so that frames the
+     * encoder skips can be counted.
+     */
+    public void onFrameCaptured(long timestampNs) {
+        mStats.onFrameCaptured(timestampNs);
+    }
+
+    /**
+     * Ends the recording. The encoder flushes the frames it holds and the file is committed on
+     * the muxer thread, which then calls the {@link Callback}. The camera should stop rendering
+     * into the input surface first.
+     */
+    public void stop() {
+        if (0 != mStopTimeNs) {
+            return;
+        }
+        mStopTimeNs = System.nanoTime();
+        mEncoder.signalEndOfInputStream();
+    }
+
+    /**
+     * Waits for the muxer thread to finish.
+     *
+     * @return false if it is still running after the timeout
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        mMuxerThread.join(timeoutMs);
+        return !mMuxerThread.isAlive();
+    }
+
+    /**
+     * Moves the encoded frames into the muxer until the end of the stream, on the muxer thread.
+     */
+    private void drain() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        int track = -1;
+        Exception failure = null;
+        try {
+            while (true) {
+                int index = mEncoder.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                    long stopTimeNs = mStopTimeNs;
+                    if (0 != stopTimeNs
+                            && System.nanoTime() - stopTimeNs > STOP_TIMEOUT_MS * 1000000) {
+                        Log.w(TAG, "The encoder didn't flush in time");
+                        break;
+                    }
+                    continue;
+                }
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // The format carries the codec configuration, which the muxer needs before
+                    // the first frame.
+                    track = mMuxer.addTrack(mEncoder.getOutputFormat());
+                    mMuxer.start();
+                    continue;
+                }
+                if (index < 0) {
+                    continue;
+                }
+                ByteBuffer buffer = mEncoder.getOutputBuffer(index);
+                boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+                if (!config && info.size > 0 && track >= 0) {
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    mMuxer.writeSampleData(track, buffer, info);
+                    mStats.onFrameEncoded(info.presentationTimeUs, info.size);
+                }
+                mEncoder.releaseOutputBuffer(index, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        mStats.onEndOfStream();
+        try {
+            mEncoder.stop();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to stop the encoder", e);
+        }
+        mEncoder.release();
+        mInputSurface.release();
+        if (track >= 0) {
+            try {
+                mMuxer.stop();
+            } catch (RuntimeException e) {
+                // Thrown when no frame was written.
+                if (null == failure) {
+                    failure = e;
+                }
+            }
+        }
+        mMuxer.release();
+        if (null == failure && track < 0) {
+            failure = new IllegalStateException("No frame was recorded");
+        }
+        if (null == failure) {
+            try {
+                mOutput.commit(mOutput.getWriteFile().length());
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (null != failure) {
+            mOutput.abort();
+        }
+        Callback callback = mCallback;
+        if (null != callback) {
+            if (null == failure) {
+                callback.onRecordingFinished(mOutput, mStats);
+            } else {
+                callback.onRecordingFailed(mOutput, failure);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mStats.toString();
+    }
+
+}
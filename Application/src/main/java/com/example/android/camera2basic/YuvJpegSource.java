@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a {@link FrameSource#FORMAT_YUV_420_888} frame to JPEG for an {@link ImageSaver}, with
+ * a {@link JpegEncoder}. The encoding happens in {@link #getBuffer()}, so it starts on the thread
+ * saving the image. A thumbnail is encoded from the same frame right after, for the Exif segment,
+ * so it never has to be decoded back from the JPEG.
+ */
+class YuvJpegSource implements ImageSaver.Source {
+
+    /**
+     * Thumbnails are an eighth of the frame in each dimension.
+     */
+    static final int THUMBNAIL_SCALE_SHIFT = 3;
+
+    /**
+     * The YUV frame
+     */
+    private final FrameSource.Frame mFrame;
+
+    private final JpegEncoder mEncoder;
+
+    /**
+     * The thumbnail encoded along with the frame, or null
+     */
+    private byte[] mThumbnail;
+
+    public YuvJpegSource(FrameSource.Frame frame, JpegEncoder encoder) {
+        mFrame = frame;
+        mEncoder = encoder;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() throws InterruptedException {
+        JpegEncoder.Frame frame = new JpegEncoder.Frame(mFrame.getWidth(), mFrame.getHeight(),
+                mFrame.getPlane(0), mFrame.getPlane(1), mFrame.getPlane(2));
+        byte[] jpeg = mEncoder.encode(frame, 0);
+        mThumbnail = mEncoder.encode(frame, THUMBNAIL_SCALE_SHIFT);
+        return ByteBuffer.wrap(jpeg);
+    }
+
+    /**
+     * Returns the thumbnail encoded by {@link #getBuffer()}, or null before it.
+     */
+    public byte[] getThumbnail() {
+        return mThumbnail;
+    }
+
+    @Override
+    public void close() {
+        mFrame.close();
+    }
+
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+/**
+ * A fixed-size ring of the most recent frames for zero shutter lag capture.
+ *
+ * Frames and their capture results arrive separately and in no particular order; they are paired
+ * by sensor timestamp. When the ring is full the entry with the oldest timestamp is evicted and its
+ * frame closed, so at most {@code capacity} frames are ever held.
+ */
+class ZslRingBuffer<T extends ZslRingBuffer.Frame> {
+
+    /**
+     * A buffered frame, such as an {@link android.media.Image}.
+     */
+    interface Frame {
+
+        /**
+         * Returns the sensor timestamp of the frame, in nanoseconds.
+         */
+        long getTimestamp();
+
+        /**
+         * Releases the frame. Called when the frame is evicted from the ring.
+         */
+        void close();
+
+    }
+
+    /**
+     * A frame and what its capture result said about it. Either half may arrive first.
+     */
+    private static class Entry<T> {
+
+        long timestamp;
+
+        T frame;
+
+        boolean hasResult;
+
+        boolean focused;
+
+        boolean exposed;
+
+        boolean isEmpty() {
+            return null == frame && !hasResult;
+        }
+
+        boolean isComplete() {
+            return null != frame && hasResult;
+        }
+
+    }
+
+    private final Entry<T>[] mEntries;
+
+    @SuppressWarnings("unchecked")
+    public ZslRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        mEntries = (Entry<T>[]) new Entry<?>[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mEntries[i] = new Entry<>();
+        }
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * Adds a frame, pairing it with its capture result if that has already arrived.
+     */
+    public synchronized void addFrame(T frame) {
+        Entry<T> entry = find(frame.getTimestamp());
+        if (null == entry) {
+            entry = claim(frame.getTimestamp());
+        } else if (null != entry.frame) {
+            entry.frame.close();
+        }
+        entry.frame = frame;
+    }
+
+    /**
+     * Adds the capture result of the frame with the given timestamp.
+     *
+     * @param timestamp The sensor timestamp of the frame, in nanoseconds
+     * @param focused   Whether auto-focus had locked or settled on the frame
+     * @param exposed   Whether auto-exposure had converged for the frame
+     */
+    public synchronized void addResult(long timestamp, boolean focused, boolean exposed) {
+        Entry<T> entry = find(timestamp);
+        if (null == entry) {
+            entry = claim(timestamp);
+        }
+        entry.hasResult = true;
+        entry.focused = focused;
+        entry.exposed = exposed;
+    }
+
+    /**
+     * Removes and returns the best frame to save for a shutter press happening now: the newest
+     * frame that was both focused and exposed, or failing that the newest exposed frame, or
+     * failing that the newest frame that has a result at all. The caller becomes responsible for
+     * closing the frame.
+     *
+     * @return The selected frame, or null if no frame has been paired with its result yet
+     */
+    public synchronized T select() {
+        Entry<T> best = null;
+        int bestScore = -1;
+        for (Entry<T> entry : mEntries) {
+            if (!entry.isComplete()) {
+                continue;
+            }
+            int score = (entry.exposed ? 2 : 0) + (entry.focused && entry.exposed ? 1 : 0);
+            if (score > bestScore || (score == bestScore && entry.timestamp > best.timestamp)) {
+                best = entry;
+                bestScore = score;
+            }
+        }
+        if (null == best) {
+            return null;
+        }
+        T frame = best.frame;
+        reset(best);
+        return frame;
+    }
+
+    /**
+     * Returns the number of entries that have both a frame and a result.
+     */
+    public synchronized int getCompleteCount() {
+        int count = 0;
+        for (Entry<T> entry : mEntries) {
+            if (entry.isComplete()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes and removes every buffered frame.
+     */
+    public synchronized void clear() {
+        for (Entry<T> entry : mEntries) {
+            if (null != entry.frame) {
+                entry.frame.close();
+            }
+            reset(entry);
+        }
+    }
+
+    private Entry<T> find(long timestamp) {
+        for (Entry<T> entry : mEntries) {
+            if (!entry.isEmpty() && entry.timestamp == timestamp) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes a slot for a new timestamp: an empty one if there is any, or else the one with the
+     * oldest timestamp, evicting what was in it.
+     */
+    private Entry<T> claim(long timestamp) {
+        Entry<T> entry = null;
+        for (Entry<T> candidate : mEntries) {
+            if (candidate.isEmpty()) {
+                entry = candidate;
+                break;
+            }
+            if (null == entry || candidate.timestamp < entry.timestamp) {
+                entry = candidate;
+            }
+        }
+        if (null != entry.frame) {
+            entry.frame.close();
+        }
+        reset(entry);
+        entry.timestamp = timestamp;
+        return entry;
+    }
+
+    private static void reset(Entry<?> entry) {
+        entry.frame = null;
+        entry.hasResult = false;
+        entry.focused = false;
+        entry.exposed = false;
+        entry.timestamp = 0;
+    }
+
+}
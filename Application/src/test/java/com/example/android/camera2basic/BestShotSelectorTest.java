@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link BestShotSelector} and {@link BurstFrameScorer}.
+ */
+public class BestShotSelectorTest {
+
+    private static final int WIDTH = 640;
+
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void keepsTheBestFramesAndReleasesTheRest() {
+        BestShotSelector<Integer> selector = new BestShotSelector<>(3);
+        double[] scores = {5, 1, 9, 3, 7, 2, 8};
+        List<Integer> released = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            Integer rejected = selector.offer(i, scores[i]);
+            if (null != rejected) {
+                released.add(rejected);
+            }
+            assertTrue(selector.size() <= 3);
+        }
+        assertEquals(7, selector.getOfferedCount());
+        List<BestShotSelector.Candidate<Integer>> kept = selector.drain();
+        assertEquals(3, kept.size());
+        assertEquals(2, (int) kept.get(0).getFrame());
+        assertEquals(6, (int) kept.get(1).getFrame());
+        assertEquals(4, (int) kept.get(2).getFrame());
+        assertEquals(9, kept.get(0).getScore(), 0);
+        assertEquals(4, released.size());
+        assertEquals(0, selector.size());
+        assertEquals(0, selector.getOfferedCount());
+    }
+
+    @Test
+    public void tiesGoToTheEarlierFrame() {
+        BestShotSelector<String> selector = new BestShotSelector<>(1);
+        assertNull(selector.offer("first", 1));
+        assertEquals("second", selector.offer("second", 1));
+        assertEquals("first", selector.drain().get(0).getFrame());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptySelection() {
+        new BestShotSelector<Object>(0);
+    }
+
+    @Test
+    public void blurLowersTheScore() {
+        ByteBuffer sharp = texture(0);
+        ByteBuffer blurred = blur(sharp);
+        BurstFrameScorer scorer = new BurstFrameScorer(320);
+        double sharpScore = scorer.score(sharp, WIDTH, HEIGHT, WIDTH, 1);
+        scorer.reset();
+        double blurredScore = scorer.score(blurred, WIDTH, HEIGHT, WIDTH, 1);
+        assertTrue(sharpScore + " <= " + blurredScore, sharpScore > blurredScore);
+    }
+
+    @Test
+    public void motionLowersTheScore() {
+        BurstFrameScorer scorer = new BurstFrameScorer(320);
+        ByteBuffer still = texture(0);
+        scorer.score(still, WIDTH, HEIGHT, WIDTH, 1);
+        double stillScore = scorer.score(still, WIDTH, HEIGHT, WIDTH, 1);
+        assertEquals(0, scorer.getMotion(), 0);
+        scorer.score(texture(1), WIDTH, HEIGHT, WIDTH, 1);
+        assertTrue(scorer.getMotion() > 0);
+        scorer.reset();
+        scorer.score(still, WIDTH, HEIGHT, WIDTH, 1);
+        double movedScore = scorer.score(texture(1), WIDTH, HEIGHT, WIDTH, 1);
+        assertTrue(stillScore + " <= " + movedScore, stillScore > movedScore);
+    }
+
+    @Test
+    public void downscaleAveragesBlocksAndHonorsStrides() {
+        // A 4x2 plane with a pixel stride of 2 and padded rows
+        ByteBuffer plane = ByteBuffer.wrap(new byte[]{
+                10, 0, 20, 0, 30, 0, 40, 0, -1, -1,
+                30, 0, 40, 0, 50, 0, 60, 0, -1, -1});
+        byte[] out = new byte[2];
+        BurstFrameScorer.downscale(plane, 10, 2, 2, 2, 1, new byte[7], new int[2], out);
+        assertEquals(25, out[0]);
+        assertEquals(45, out[1]);
+    }
+
+    @Test
+    public void kernelsMatchHandComputedValues() {
+        byte[] flat = new byte[9];
+        assertEquals(0, BurstFrameScorer.laplacianVariance(flat, 3, 3), 0);
+        byte[] dot = new byte[25];
+        dot[12] = 10;
+        // The Laplacian of the 3x3 inner pixels is -40 once and 10 four times, so its mean is 0.
+        assertEquals((1600 + 4 * 100) / 9.0, BurstFrameScorer.laplacianVariance(dot, 5, 5),
+                1e-9);
+        byte[] other = new byte[25];
+        assertEquals(10 / 25.0, BurstFrameScorer.meanAbsoluteDifference(dot, other, 25), 1e-9);
+    }
+
+    /**
+     * Returns a noisy pattern, shifted right by {@code shift} pixels.
+     */
+    private static ByteBuffer texture(int shift) {
+        Random random = new Random(0);
+        byte[] noise = new byte[WIDTH + 16];
+        random.nextBytes(noise);
+        ByteBuffer plane = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int source = x - shift + 8 + (y * 7) % 8;
+                plane.put((byte) (((x - shift) / 8 + y / 8) % 2 == 0 ? noise[source] & 0x7f
+                        : 128 + (noise[source] & 0x7f)));
+            }
+        }
+        plane.clear();
+        return plane;
+    }
+
+    /**
+     * Returns a copy of the plane with a 5x5 box blur.
+     */
+    private static ByteBuffer blur(ByteBuffer plane) {
+        ByteBuffer blurred = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -2; dy <= 2; dy++) {
+                    for (int dx = -2; dx <= 2; dx++) {
+                        int sx = x + dx;
+                        int sy = y + dy;
+                        if (sx >= 0 && sx < WIDTH && sy >= 0 && sy < HEIGHT) {
+                            sum += plane.get(sy * WIDTH + sx) & 0xff;
+                            count++;
+                        }
+                    }
+                }
+                blurred.put((byte) (sum / count));
+            }
+        }
+        blurred.clear();
+        return blurred;
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.graphics.ImageFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for saving and loading a {@link CameraCapabilityIndex}.
+ */
+public class CameraCapabilityIndexTest {
+
+    private static final String FINGERPRINT = "vendor/device:7.1.1/NMF26F/1234:user/release-keys";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("capabilities", ".bin");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void roundTrips() throws IOException {
+        newIndex().write(mFile);
+        CameraCapabilityIndex index = CameraCapabilityIndex.read(mFile, FINGERPRINT);
+        assertNotNull(index);
+        assertEquals(FINGERPRINT, index.getFingerprint());
+        assertEquals(2, index.getCameras().size());
+        CameraCapabilityIndex.Camera back = index.getCameras().get(0);
+        assertEquals("0", back.id);
+        assertEquals(1, back.facing);
+        assertEquals(90, back.sensorOrientation);
+        assertTrue(back.flashSupported);
+        assertEquals(3, back.streams.size());
+        assertEquals(50000000L, back.getMinFrameDurationNs(ImageFormat.JPEG, 4032, 3024));
+        assertEquals(33333333L, back.getMinFrameDurationNs(
+                CameraCapabilityIndex.FORMAT_SURFACE_TEXTURE, 1920, 1080));
+        assertEquals(0, back.getMinFrameDurationNs(ImageFormat.JPEG, 1, 1));
+        assertArrayEquals(new int[] {15, 30, 30, 30}, back.fpsRanges);
+        assertEquals(10, back.thumbnailSizes.length);
+        CameraCapabilityIndex.Camera front = index.getCameras().get(1);
+        assertEquals(-1, front.facing);
+        assertFalse(front.flashSupported);
+        assertTrue(front.streams.isEmpty());
+        assertEquals(0, front.fpsRanges.length);
+        assertEquals(0, front.thumbnailSizes.length);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void choosesThumbnailSize() {
+        CameraCapabilityIndex.Camera back = newIndex().getCameras().get(0);
+        // The smallest 4:3 thumbnail that is wide enough
+        assertEquals(4, back.chooseThumbnailSize(4032, 3024, 256));
+        assertEquals(2, back.chooseThumbnailSize(4032, 3024, 100));
+        // None is wide enough, so the largest 4:3 one
+        assertEquals(6, back.chooseThumbnailSize(4032, 3024, 1024));
+        // The only 16:9 one, even though it is narrower than asked for
+        assertEquals(8, back.chooseThumbnailSize(1920, 1080, 512));
+        CameraCapabilityIndex.Camera front = newIndex().getCameras().get(1);
+        assertEquals(-1, front.chooseThumbnailSize(4032, 3024, 256));
+    }
+
+    @Test
+    public void missingFileReadsAsNull() {
+        assertNull(CameraCapabilityIndex.read(mFile, FINGERPRINT));
+    }
+
+    @Test
+    public void otherBuildReadsAsNull() throws IOException {
+        newIndex().write(mFile);
+        assertNull(CameraCapabilityIndex.read(mFile, FINGERPRINT + "-ota"));
+    }
+
+    @Test
+    public void damagedFileReadsAsNull() throws IOException {
+        newIndex().write(mFile);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 5);
+        } finally {
+            file.close();
+        }
+        assertNull(CameraCapabilityIndex.read(mFile, FINGERPRINT));
+    }
+
+    private static CameraCapabilityIndex newIndex() {
+        List<CameraCapabilityIndex.Camera> cameras = new ArrayList<>();
+        cameras.add(new CameraCapabilityIndex.Camera("0", 1, 90, true, Arrays.asList(
+                new CameraCapabilityIndex.Stream(ImageFormat.JPEG, 4032, 3024, 50000000L),
+                new CameraCapabilityIndex.Stream(ImageFormat.YUV_420_888, 4032, 3024, 50000000L),
+                new CameraCapabilityIndex.Stream(CameraCapabilityIndex.FORMAT_SURFACE_TEXTURE,
+                        1920, 1080, 33333333L)), new int[] {15, 30, 30, 30},
+                new int[] {0, 0, 160, 120, 320, 240, 512, 384, 320, 180}));
+        cameras.add(new CameraCapabilityIndex.Camera("1", -1, 270, false,
+                new ArrayList<CameraCapabilityIndex.Stream>(), new int[0], new int[0]));
+        return new CameraCapabilityIndex(FINGERPRINT, cameras);
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for {@link CameraLifecycle} against a fake camera that takes a while to open and to
+ * close.
+ */
+public class CameraLifecycleTest {
+
+    private static final long OPEN_DELAY_MS = 50;
+
+    private static final long CLOSE_DELAY_MS = 200;
+
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * A camera that opens on a thread of its own after {@link #OPEN_DELAY_MS} and blocks for
+     * {@link #CLOSE_DELAY_MS} when closed.
+     */
+    private class FakeDriver implements CameraLifecycle.Driver {
+
+        final AtomicInteger opens = new AtomicInteger();
+
+        final AtomicInteger closes = new AtomicInteger();
+
+        final AtomicBoolean busy = new AtomicBoolean();
+
+        volatile boolean overlapped;
+
+        volatile Throwable openError;
+
+        @Override
+        public void open() {
+            opens.incrementAndGet();
+            enter();
+            new Thread() {
+                @Override
+                public void run() {
+                    pause(OPEN_DELAY_MS);
+                    busy.set(false);
+                    if (null != openError) {
+                        mLifecycle.onOpenFailed(openError);
+                    } else {
+                        mLifecycle.onOpened();
+                    }
+                }
+            }.start();
+        }
+
+        @Override
+        public void close() {
+            closes.incrementAndGet();
+            enter();
+            pause(CLOSE_DELAY_MS);
+            busy.set(false);
+        }
+
+        private void enter() {
+            if (!busy.compareAndSet(false, true)) {
+                overlapped = true;
+            }
+        }
+
+    }
+
+    private ExecutorService mExecutor;
+
+    private FakeDriver mDriver;
+
+    private CameraLifecycle mLifecycle;
+
+    @Before
+    public void setUp() {
+        mExecutor = Executors.newSingleThreadExecutor();
+        mDriver = new FakeDriver();
+        mLifecycle = new CameraLifecycle(mDriver, mExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        assertFalse("open and close overlapped", mDriver.overlapped);
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void opensAndCloses() throws Exception {
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(CameraLifecycle.State.OPEN, mLifecycle.getState());
+        mLifecycle.requestClose().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(CameraLifecycle.State.CLOSED, mLifecycle.getState());
+        assertEquals(1, mDriver.opens.get());
+        assertEquals(1, mDriver.closes.get());
+    }
+
+    @Test
+    public void repeatedRequestsAreIdempotent() throws Exception {
+        Future<Void> first = mLifecycle.requestOpen();
+        assertSame(first, mLifecycle.requestOpen());
+        first.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(mLifecycle.requestOpen().isDone());
+        Future<Void> close = mLifecycle.requestClose();
+        assertSame(close, mLifecycle.requestClose());
+        close.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(mLifecycle.requestClose().isDone());
+        assertEquals(1, mDriver.opens.get());
+        assertEquals(1, mDriver.closes.get());
+    }
+
+    @Test
+    public void closeDoesNotBlockTheCaller() throws Exception {
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        long startNs = System.nanoTime();
+        Future<Void> close = mLifecycle.requestClose();
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs);
+        assertTrue("requestClose took " + elapsedMs + "ms", elapsedMs < CLOSE_DELAY_MS / 2);
+        assertFalse(close.isDone());
+        close.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void pauseAndResumeWhileOpeningCoalesce() throws Exception {
+        Future<Void> open = mLifecycle.requestOpen();
+        Future<Void> close = mLifecycle.requestClose();
+        Future<Void> reopen = mLifecycle.requestOpen();
+        assertSame(open, reopen);
+        open.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(close.isCancelled());
+        assertEquals(CameraLifecycle.State.OPEN, mLifecycle.getState());
+        assertEquals(1, mDriver.opens.get());
+        assertEquals(0, mDriver.closes.get());
+    }
+
+    @Test
+    public void closeWhileOpeningClosesOnceOpen() throws Exception {
+        Future<Void> open = mLifecycle.requestOpen();
+        mLifecycle.requestClose().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(open.isCancelled());
+        expectCancelled(open);
+        assertEquals(CameraLifecycle.State.CLOSED, mLifecycle.getState());
+        assertEquals(1, mDriver.closes.get());
+    }
+
+    @Test
+    public void resumeWhileClosingReopensAfterwards() throws Exception {
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Future<Void> close = mLifecycle.requestClose();
+        Future<Void> open = mLifecycle.requestOpen();
+        open.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(close.isDone());
+        assertFalse(close.isCancelled());
+        assertEquals(CameraLifecycle.State.OPEN, mLifecycle.getState());
+        assertEquals(2, mDriver.opens.get());
+        assertEquals(1, mDriver.closes.get());
+    }
+
+    @Test
+    public void resumeAndPauseWhileClosingStayClosed() throws Exception {
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Future<Void> close = mLifecycle.requestClose();
+        Future<Void> open = mLifecycle.requestOpen();
+        mLifecycle.requestClose();
+        close.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(open.isCancelled());
+        assertEquals(CameraLifecycle.State.CLOSED, mLifecycle.getState());
+        assertEquals(1, mDriver.opens.get());
+    }
+
+    @Test
+    public void failedOpenIsReportedAndCleanedUp() throws Exception {
+        mDriver.openError = new IllegalStateException("camera in use");
+        Future<Void> open = mLifecycle.requestOpen();
+        try {
+            open.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(mDriver.openError, e.getCause());
+        }
+        mLifecycle.requestClose().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(CameraLifecycle.State.CLOSED, mLifecycle.getState());
+        assertEquals(1, mDriver.closes.get());
+    }
+
+    @Test
+    public void lostCameraIsClosed() throws Exception {
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        mLifecycle.onLost(new IllegalStateException("disconnected"));
+        mLifecycle.requestClose().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(1, mDriver.closes.get());
+        mLifecycle.requestOpen().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(2, mDriver.opens.get());
+    }
+
+    private static void expectCancelled(Future<Void> future) throws Exception {
+        try {
+            future.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (CancellationException e) {
+            // Expected
+        }
+    }
+
+    private static void pause(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for writing and exporting a {@link CaptureJournal}.
+ */
+public class CaptureJournalTest {
+
+    private static final long FRAME_NS = 16666666;
+
+    private static final int RECORDS_PER_FILE = 10;
+
+    private static final int FILE_BYTES =
+            CaptureJournal.HEADER_SIZE + RECORDS_PER_FILE * CaptureJournal.RECORD_SIZE;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        // The journal makes its own directory.
+        mDir = new File(mTemporaryFolder.getRoot(), "journal");
+    }
+
+    @Test
+    public void exportsRecordsAsCsv() throws IOException {
+        CaptureJournal journal = new CaptureJournal(mDir, FILE_BYTES, 4);
+        journal.record(1000, 7, 8000000, FRAME_NS, 400, 2.5f, 2, 2, 2, 0);
+        journal.record(1000 + FRAME_NS, 8, 8000000, FRAME_NS, 800, Float.NaN, -1, 5, -1, 1);
+        journal.close();
+        StringWriter out = new StringWriter();
+        assertEquals(2, CaptureJournal.exportCsv(mDir, out));
+        assertEquals("timestamp_ns,frame_number,exposure_time_ns,frame_duration_ns,sensitivity,"
+                + "focus_distance,af_state,ae_state,awb_state,lens_state\n"
+                + "1000,7,8000000,16666666,400,2.5,2,2,2,0\n"
+                + "16667666,8,8000000,16666666,800,NaN,-1,5,-1,1\n", out.toString());
+    }
+
+    @Test
+    public void rotatesAndKeepsTheNewestFiles() throws IOException {
+        CaptureJournal journal = new CaptureJournal(mDir, FILE_BYTES, 3);
+        int records = 5 * RECORDS_PER_FILE + 4;
+        for (int i = 0; i < records; i++) {
+            journal.record(i * FRAME_NS, i, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        journal.close();
+        assertEquals(records, journal.getRecordCount());
+        List<File> files = CaptureJournal.listFiles(mDir);
+        assertEquals(3, files.size());
+        for (File file : files) {
+            assertEquals(FILE_BYTES, file.length());
+        }
+        // Two full files and the partial last one remain.
+        String[] lines = export().split("\n");
+        assertEquals(1 + 2 * RECORDS_PER_FILE + 4, lines.length);
+        assertTrue(lines[1].startsWith((records - 2 * RECORDS_PER_FILE - 4) * FRAME_NS + ","));
+        assertTrue(lines[lines.length - 1].startsWith((records - 1) * FRAME_NS + ","));
+    }
+
+    @Test
+    public void reopeningAppendsToTheLastFile() throws IOException {
+        CaptureJournal first = new CaptureJournal(mDir, FILE_BYTES, 2);
+        first.record(1, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+        first.close();
+        CaptureJournal second = new CaptureJournal(mDir, FILE_BYTES, 2);
+        second.record(2, 2, 0, 0, 0, 0, 0, 0, 0, 0);
+        second.close();
+        assertEquals(1, CaptureJournal.listFiles(mDir).size());
+        String[] lines = export().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[1].startsWith("1,"));
+        assertTrue(lines[2].startsWith("2,"));
+    }
+
+    @Test
+    public void reopeningAFullFileStartsANewOne() throws IOException {
+        CaptureJournal first = new CaptureJournal(mDir, FILE_BYTES, 2);
+        for (int i = 0; i < RECORDS_PER_FILE; i++) {
+            first.record(i, i, 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        first.close();
+        CaptureJournal second = new CaptureJournal(mDir, FILE_BYTES, 2);
+        second.record(RECORDS_PER_FILE, RECORDS_PER_FILE, 0, 0, 0, 0, 0, 0, 0, 0);
+        second.close();
+        // A third journal continues the second file; the first is still kept.
+        CaptureJournal third = new CaptureJournal(mDir, FILE_BYTES, 2);
+        third.record(RECORDS_PER_FILE + 1, RECORDS_PER_FILE + 1, 0, 0, 0, 0, 0, 0, 0, 0);
+        third.close();
+        assertEquals(2, CaptureJournal.listFiles(mDir).size());
+        assertEquals(1 + RECORDS_PER_FILE + 2, export().split("\n").length);
+    }
+
+    @Test
+    public void fileOfAnotherSizeIsNotAppendedTo() throws IOException {
+        CaptureJournal first = new CaptureJournal(mDir, FILE_BYTES, 2);
+        first.record(1, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+        first.close();
+        CaptureJournal second = new CaptureJournal(mDir, FILE_BYTES * 2, 2);
+        second.record(2, 2, 0, 0, 0, 0, 0, 0, 0, 0);
+        second.close();
+        List<File> files = CaptureJournal.listFiles(mDir);
+        assertEquals(2, files.size());
+        assertEquals(FILE_BYTES, files.get(0).length());
+        assertEquals(3, export().split("\n").length);
+    }
+
+    @Test
+    public void unclosedJournalReadsUpToTheLastRecord() throws IOException {
+        CaptureJournal journal = new CaptureJournal(mDir, FILE_BYTES, 2);
+        journal.record(1, 1, 0, 0, 0, 0, 0, 0, 0, 0);
+        journal.record(2, 2, 0, 0, 0, 0, 0, 0, 0, 0);
+        // Not closed, as if the app died. The mapping is still visible to readers.
+        assertEquals(3, export().split("\n").length);
+    }
+
+    @Test(expected = IOException.class)
+    public void foreignFileFailsToExport() throws IOException {
+        assertTrue(mDir.mkdirs());
+        RandomAccessFile file = new RandomAccessFile(new File(mDir, "journal_00000000.bin"),
+                "rw");
+        try {
+            file.setLength(FILE_BYTES);
+        } finally {
+            file.close();
+        }
+        export();
+    }
+
+    private String export() throws IOException {
+        StringWriter out = new StringWriter();
+        CaptureJournal.exportCsv(mDir, out);
+        return out.toString();
+    }
+
+}
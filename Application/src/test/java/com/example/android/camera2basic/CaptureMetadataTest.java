@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the XMP written by {@link CaptureMetadata}.
+ */
+public class CaptureMetadataTest {
+
+    @Test
+    public void writesTheMetadataOfTheStill() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.record(1000, 41, 8000000, 400, 2.5f);
+        metadata.record(2000, 42, 10000000, 800, Float.NaN);
+        String xmp = metadata.toXmp(1000);
+        assertTrue(xmp, xmp.contains("app:SensorTimestamp=\"1000\""));
+        assertTrue(xmp, xmp.contains("app:FrameNumber=\"41\""));
+        assertTrue(xmp, xmp.contains("exif:ExposureTime=\"1/125\""));
+        assertTrue(xmp, xmp.contains("app:FocusDistance=\"2.5000\""));
+        assertTrue(xmp, xmp.contains("<rdf:li>400</rdf:li>"));
+        xmp = metadata.toXmp(2000);
+        assertTrue(xmp, xmp.contains("exif:ExposureTime=\"1/100\""));
+        assertFalse(xmp, xmp.contains("FocusDistance"));
+    }
+
+    @Test
+    public void unknownStillGetsNothing() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.record(1000, 1, 0, 0, Float.NaN);
+        assertNull(metadata.getSegments(999));
+        assertNotNull(metadata.getSegments(1000));
+    }
+
+    @Test
+    public void waitsForTheCaptureResult() throws InterruptedException {
+        final CaptureMetadata metadata = new CaptureMetadata();
+        Thread camera = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                metadata.record(1000, 1, 0, 0, Float.NaN);
+            }
+        };
+        camera.start();
+        try {
+            assertNotNull(metadata.awaitSegments(1000, 10000));
+        } finally {
+            camera.join();
+        }
+    }
+
+    @Test
+    public void stopsWaitingForAResultThatDoesNotCome() throws InterruptedException {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.record(1000, 1, 0, 0, Float.NaN);
+        long start = System.nanoTime();
+        assertNull(metadata.awaitSegments(999, 50));
+        assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+    }
+
+    @Test
+    public void forgetsOldFrames() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        for (int i = 0; i <= CaptureMetadata.CAPACITY; i++) {
+            metadata.record(i, i, 0, 0, Float.NaN);
+        }
+        assertNull(metadata.toXmp(0));
+        assertNotNull(metadata.toXmp(1));
+    }
+
+    @Test
+    public void operatorAndLocationApplyToEveryStill() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.setOperatorId("R&D <\"lab\">");
+        metadata.setLocation(-33.8568, 151.2153);
+        String xmp = metadata.toXmp(5);
+        assertTrue(xmp, xmp.contains("app:OperatorId=\"R&amp;D &lt;&quot;lab&quot;&gt;\""));
+        assertTrue(xmp, xmp.contains("exif:GPSLatitude=\"33,51.408000S\""));
+        assertTrue(xmp, xmp.contains("exif:GPSLongitude=\"151,12.918000E\""));
+        assertFalse(xmp, xmp.contains("FrameNumber"));
+        metadata.setOperatorId(null);
+        metadata.clearLocation();
+        assertNull(metadata.toXmp(5));
+    }
+
+    @Test
+    public void segmentIsAnXmpApp1() {
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.record(7, 7, 0, 0, Float.NaN);
+        ByteBuffer segment = metadata.getSegments(7)[0];
+        assertEquals(0xFF, segment.get(0) & 0xFF);
+        assertEquals(0xE1, segment.get(1) & 0xFF);
+        assertEquals(segment.remaining() - 2, segment.getShort(2) & 0xFFFF);
+    }
+
+    @Test
+    public void rationalsAreReduced() {
+        assertEquals("1/30", CaptureMetadata.rational(33333333, 999999990));
+        assertEquals("3/2", CaptureMetadata.rational(1500000000, 1000000000));
+    }
+
+}
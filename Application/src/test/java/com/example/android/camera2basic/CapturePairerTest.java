@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link CapturePairer} using synthetic frames and results.
+ */
+public class CapturePairerTest {
+
+    @Test
+    public void pairsInEitherOrder() {
+        CapturePairer<FakeFrame, String> pairer = new CapturePairer<>(2);
+        FakeFrame first = new FakeFrame(100);
+        assertNull(pairer.addFrame(first));
+        assertSame(first, pairer.addResult(100, "a"));
+        assertNull(pairer.addResult(200, "b"));
+        assertEquals("b", pairer.addFrame(new FakeFrame(200)));
+        assertEquals(0, pairer.getFrameCount());
+        assertEquals(0, pairer.getResultCount());
+        assertFalse(first.mClosed);
+    }
+
+    @Test
+    public void laterResultDropsFramesWithoutOne() {
+        CapturePairer<FakeFrame, String> pairer = new CapturePairer<>(2);
+        FakeFrame orphan = new FakeFrame(100);
+        pairer.addFrame(orphan);
+        assertNull(pairer.addResult(200, "b"));
+        assertTrue(orphan.mClosed);
+        assertEquals(0, pairer.getFrameCount());
+    }
+
+    @Test
+    public void laterFrameDropsResultsWithoutOne() {
+        CapturePairer<FakeFrame, String> pairer = new CapturePairer<>(2);
+        pairer.addResult(100, "a");
+        FakeFrame frame = new FakeFrame(200);
+        assertNull(pairer.addFrame(frame));
+        assertEquals(0, pairer.getResultCount());
+        assertSame(frame, pairer.addResult(200, "b"));
+    }
+
+    @Test
+    public void holdsNoMoreThanCapacity() {
+        CapturePairer<FakeFrame, String> pairer = new CapturePairer<>(1);
+        pairer.addResult(100, "a");
+        pairer.addResult(200, "b");
+        assertEquals(1, pairer.getResultCount());
+        // Frames only come in order, but a repeated timestamp replaces the frame held.
+        FakeFrame first = new FakeFrame(300);
+        FakeFrame second = new FakeFrame(300);
+        pairer.addFrame(first);
+        pairer.addFrame(second);
+        assertTrue(first.mClosed);
+        assertFalse(second.mClosed);
+        assertEquals(1, pairer.getFrameCount());
+    }
+
+    @Test
+    public void clearClosesEverything() {
+        CapturePairer<FakeFrame, String> pairer = new CapturePairer<>(2);
+        FakeFrame frame = new FakeFrame(100);
+        pairer.addFrame(frame);
+        pairer.addResult(50, "a");
+        pairer.clear();
+        assertTrue(frame.mClosed);
+        assertEquals(0, pairer.getFrameCount());
+        assertEquals(0, pairer.getResultCount());
+        assertNull(pairer.addResult(100, "b"));
+    }
+
+    private static class FakeFrame implements CapturePairer.Frame {
+
+        private final long mTimestamp;
+
+        private boolean mClosed;
+
+        FakeFrame(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static com.example.android.camera2basic.CaptureStateMachine.Action;
+import static com.example.android.camera2basic.CaptureStateMachine.State;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for {@link CaptureStateMachine}, replaying sequences of AF and AE states.
+ */
+public class CaptureStateMachineTest {
+
+    private static final int UNKNOWN = CaptureStateMachine.UNKNOWN;
+
+    // CaptureResult values not mirrored by CaptureStateMachine
+    private static final int AF_ACTIVE_SCAN = 3;
+    private static final int AE_SEARCHING = 1;
+
+    private static final int AF_LOCKED = CaptureStateMachine.AF_STATE_FOCUSED_LOCKED;
+    private static final int AE_CONVERGED = CaptureStateMachine.AE_STATE_CONVERGED;
+    private static final int AE_PRECAPTURE = CaptureStateMachine.AE_STATE_PRECAPTURE;
+
+    /**
+     * Time between two capture results at 30 fps, in nanoseconds
+     */
+    private static final long FRAME_NS = 33333333L;
+
+    private final CaptureStateMachine mMachine = new CaptureStateMachine();
+
+    private long mNowNs = 1000000000L;
+
+    @Test
+    public void capturesOnceFocusLocksWithExposureConverged() {
+        assertEquals(Action.LOCK_FOCUS, mMachine.start(mNowNs));
+        assertEquals(Action.NONE, result(AF_ACTIVE_SCAN, AE_CONVERGED));
+        assertEquals(Action.NONE, result(AF_ACTIVE_SCAN, AE_CONVERGED));
+        assertEquals(Action.CAPTURE, result(AF_LOCKED, AE_CONVERGED));
+        assertEquals(State.PICTURE_TAKEN, mMachine.getState());
+        assertEquals(Action.NONE, result(AF_LOCKED, AE_CONVERGED));
+        assertEquals(Action.UNLOCK, mMachine.onCaptureDone(mNowNs));
+        assertEquals(State.PREVIEW, mMachine.getState());
+        assertEquals(3 * FRAME_NS,
+                mMachine.getMeanTransitionLatencyNs(State.WAITING_LOCK, State.PICTURE_TAKEN));
+    }
+
+    @Test
+    public void runsPrecaptureWhenExposureIsNotConverged() {
+        mMachine.start(mNowNs);
+        assertEquals(Action.RUN_PRECAPTURE, result(AF_LOCKED, AE_SEARCHING));
+        assertEquals(Action.NONE, result(AF_LOCKED, AE_SEARCHING));
+        assertEquals(Action.NONE, result(AF_LOCKED, AE_PRECAPTURE));
+        assertEquals(State.WAITING_NON_PRECAPTURE, mMachine.getState());
+        assertEquals(Action.NONE, result(AF_LOCKED, AE_PRECAPTURE));
+        assertEquals(Action.CAPTURE, result(AF_LOCKED, AE_CONVERGED));
+    }
+
+    @Test
+    public void capturesRightAwayWithoutAutoFocus() {
+        mMachine.start(mNowNs);
+        assertEquals(Action.CAPTURE, result(UNKNOWN, UNKNOWN));
+    }
+
+    @Test
+    public void focusThatNeverLocksTimesOut() {
+        mMachine.start(mNowNs);
+        int frames = 0;
+        Action action;
+        do {
+            action = result(AF_ACTIVE_SCAN, AE_CONVERGED);
+            frames++;
+        } while (action == Action.NONE && frames < 1000);
+        assertEquals(Action.RUN_PRECAPTURE, action);
+        assertEquals(1, mMachine.getTimeoutCount(State.WAITING_LOCK));
+        assertEquals(mMachine.getTimeoutMs(State.WAITING_LOCK),
+                frames * FRAME_NS / 1000000, FRAME_NS / 1000000);
+    }
+
+    @Test
+    public void captureThatNeverCompletesTimesOut() {
+        mMachine.setTimeout(State.PICTURE_TAKEN, 100);
+        mMachine.start(mNowNs);
+        result(AF_LOCKED, AE_CONVERGED);
+        assertEquals(Action.NONE, mMachine.onTick(mNowNs + 99000000L));
+        assertEquals(Action.UNLOCK, mMachine.onTick(mNowNs + 100000000L));
+        assertEquals(State.PREVIEW, mMachine.getState());
+    }
+
+    @Test
+    public void ignoresStartWhileBusy() {
+        mMachine.start(mNowNs);
+        assertEquals(Action.NONE, mMachine.start(mNowNs));
+        mMachine.reset(mNowNs);
+        assertEquals(Action.LOCK_FOCUS, mMachine.start(mNowNs));
+    }
+
+    private Action result(int afState, int aeState) {
+        mNowNs += FRAME_NS;
+        return mMachine.onResult(afState, aeState, mNowNs);
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for {@link CaptureStorage}.
+ */
+public class CaptureStorageTest {
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private CaptureStorage mStorage;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = mTemporaryFolder.newFolder("captures");
+        mStorage = new CaptureStorage(mRoot, CaptureStorage.SET_LENGTH);
+    }
+
+    @Test
+    public void namesAreUniqueAndMonotonic() throws IOException {
+        long previous = 0;
+        for (int i = 0; i < 10; i++) {
+            // Repeated and decreasing timestamps must still produce new names.
+            CaptureStorage.Output output = mStorage.newOutput(i < 5 ? 1000 : 10, "jpg");
+            assertTrue(output.getId() > previous);
+            previous = output.getId();
+        }
+    }
+
+    @Test
+    public void shardsFillUpInOrder() throws IOException {
+        Set<File> shards = new HashSet<>();
+        for (int i = 0; i < CaptureStorage.FILES_PER_SHARD + 1; i++) {
+            shards.add(mStorage.newOutput(i, "jpg").getFile().getParentFile());
+        }
+        assertEquals(2, shards.size());
+    }
+
+    @Test
+    public void reservedFileIsTruncatedAndIndexed() throws IOException {
+        mStorage.reserve(1, 1024 * 1024);
+        CaptureStorage.Output output = mStorage.newOutput(42, "jpg");
+        assertFalse(output.getWriteFile().equals(output.getFile()));
+        new ImageSaver(new BufferSource(ByteBuffer.allocateDirect(1000)), output,
+                new ByteBufferPool(4096, 1)).run();
+        assertFalse(output.getWriteFile().exists());
+        assertEquals(1000, output.getFile().length());
+        CaptureIndex.Entry entry = mStorage.getIndex().get(output.getId());
+        assertNotNull(entry);
+        assertEquals(1000, entry.length);
+    }
+
+    @Test
+    public void capturesDoNotWaitForSlowReservations() throws Exception {
+        final CountDownLatch allocating = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CaptureStorage storage = new CaptureStorage(mRoot,
+                new CaptureStorage.Preallocator() {
+                    @Override
+                    public void preallocate(RandomAccessFile file, long length)
+                            throws IOException {
+                        allocating.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        file.setLength(length);
+                    }
+                });
+        Thread reserver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    storage.reserve(1, 1024);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        reserver.start();
+        assertTrue(allocating.await(5, TimeUnit.SECONDS));
+        // The file being allocated is neither handed out nor recovered.
+        CaptureStorage.Output output = storage.newOutput(1, "jpg");
+        assertFalse(output.getWriteFile().getName().startsWith(".reserved_"));
+        assertEquals(0, storage.recover());
+        release.countDown();
+        reserver.join();
+        assertTrue(storage.newOutput(2, "jpg").getWriteFile().getName()
+                .startsWith(".reserved_"));
+    }
+
+    @Test
+    public void unusedReservationsAreDeleted() throws IOException {
+        mStorage.reserve(2, 1024);
+        File reserved = mStorage.newOutput(1, "jpg").getWriteFile();
+        mStorage.releaseReservations();
+        assertTrue(reserved.exists());
+        assertEquals(1, reserved.getParentFile().list().length);
+    }
+
+    @Test
+    public void unfinishedCaptureIsNotVisible() throws IOException {
+        CaptureStorage.Output output = mStorage.newOutput(7, "jpg");
+        // The app dies while the capture is being written.
+        assertTrue(output.getWriteFile().createNewFile());
+        assertFalse(output.getFile().exists());
+        assertTrue(output.getWriteFile().getName().startsWith("."));
+    }
+
+    @Test
+    public void failedSaveLeavesNothing() throws IOException {
+        CaptureStorage.Output output = mStorage.newOutput(7, "jpg");
+        new ImageSaver(new ImageSaver.Source() {
+            @Override
+            public ByteBuffer getBuffer() throws InterruptedException {
+                throw new InterruptedException();
+            }
+
+            @Override
+            public void close() {
+            }
+        }, output, new ByteBufferPool(4096, 1)).run();
+        // Cleared so the interruption doesn't leak into other tests
+        assertTrue(Thread.interrupted());
+        assertFalse(output.getFile().exists());
+        assertFalse(output.getWriteFile().exists());
+        assertEquals(0, mStorage.getIndex().size());
+    }
+
+    @Test
+    public void saveThatThrowsLeavesNothing() throws IOException {
+        CaptureStorage.Output output = mStorage.newOutput(7, "jpg");
+        final boolean[] closed = new boolean[1];
+        try {
+            new ImageSaver(new ImageSaver.Source() {
+                @Override
+                public ByteBuffer getBuffer() {
+                    throw new IllegalStateException("Image is already closed");
+                }
+
+                @Override
+                public void close() {
+                    closed[0] = true;
+                }
+            }, output, new ByteBufferPool(4096, 1)).run();
+            fail();
+        } catch (IllegalStateException expected) {
+            // The save fails like it would on the save queue.
+        }
+        assertTrue(closed[0]);
+        assertFalse(output.getWriteFile().exists());
+        // Once released, the write file is no longer protected from recovery.
+        assertTrue(output.getWriteFile().createNewFile());
+        assertEquals(1, mStorage.recover());
+    }
+
+    @Test
+    public void recoveryDeletesWhatEarlierRunsLeft() throws IOException {
+        CaptureStorage.Output orphan = mStorage.newOutput(1, "jpg");
+        assertTrue(orphan.getWriteFile().createNewFile());
+        mStorage.reserve(1, 1024);
+        CaptureStorage.Output saved = mStorage.newOutput(2, "jpg");
+        new ImageSaver(new BufferSource(ByteBuffer.allocateDirect(10)), saved,
+                new ByteBufferPool(4096, 1)).run();
+        mStorage.reserve(1, 1024);
+
+        // A new run over the same files, with captures of its own in flight
+        CaptureStorage storage = new CaptureStorage(mRoot, CaptureStorage.SET_LENGTH);
+        CaptureStorage.Output inFlight = storage.newOutput(3, "jpg");
+        assertTrue(inFlight.getWriteFile().createNewFile());
+        storage.reserve(1, 1024);
+        CaptureStorage.Output reserved = storage.newOutput(4, "jpg");
+
+        // The orphan and the unused reservation of the first run
+        assertEquals(2, storage.recover());
+        assertFalse(orphan.getWriteFile().exists());
+        assertTrue(saved.getFile().exists());
+        assertTrue(inFlight.getWriteFile().exists());
+        assertTrue(reserved.getWriteFile().exists());
+        assertEquals(0, storage.recover());
+    }
+
+    @Test
+    public void recoveryIndexesEarlierRunsAndNamesComeAfterThem() throws IOException {
+        CaptureStorage.Output first = save(mStorage, 5000, 10);
+        CaptureStorage.Output second = save(mStorage, 6000, 20);
+
+        // The device rebooted, so the sensor timestamps start over.
+        CaptureStorage storage = new CaptureStorage(mRoot, CaptureStorage.SET_LENGTH);
+        assertEquals(0, storage.recover());
+        List<CaptureIndex.Entry> entries = storage.getIndex().getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(first.getId(), entries.get(0).id);
+        assertEquals(second.getFile(), entries.get(1).file);
+        assertEquals(20, entries.get(1).length);
+        CaptureStorage.Output third = save(storage, 1, 30);
+        assertTrue(third.getId() > second.getId());
+        assertEquals(third.getId(), storage.getIndex().getLatest().id);
+        // Recovering again doesn't index anything twice.
+        storage.recover();
+        assertEquals(3, storage.getIndex().size());
+    }
+
+    private static CaptureStorage.Output save(CaptureStorage storage, long timestampNs,
+                                              int length) throws IOException {
+        CaptureStorage.Output output = storage.newOutput(timestampNs, "jpg");
+        new ImageSaver(new BufferSource(ByteBuffer.allocateDirect(length)), output,
+                new ByteBufferPool(4096, 1)).run();
+        return output;
+    }
+
+    private static class BufferSource implements ImageSaver.Source {
+
+        private final ByteBuffer mBuffer;
+
+        BufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            return mBuffer;
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link DngWriter}. The files are read back with a minimal TIFF parser.
+ */
+public class DngWriterTest {
+
+    private static final int WIDTH = 40;
+
+    private static final int HEIGHT = 30;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("raw", ".dng");
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void writesContiguousPixels() throws IOException {
+        ByteBuffer pixels = pixels(WIDTH * 2, true);
+        DngWriter writer = newWriter();
+        long length = write(writer, pixels, WIDTH * 2);
+        ByteBuffer file = read();
+        assertEquals(length, file.limit());
+        assertPixels(file, tags(file));
+    }
+
+    @Test
+    public void skipsRowPadding() throws IOException {
+        // Padded rows, starting past the beginning of the buffer
+        ByteBuffer pixels = pixels(WIDTH * 2 + 24, false);
+        long length = write(newWriter(), pixels, WIDTH * 2 + 24);
+        ByteBuffer file = read();
+        assertEquals(length, file.limit());
+        assertPixels(file, tags(file));
+    }
+
+    @Test
+    public void writesMetadata() throws IOException {
+        DngWriter writer = newWriter();
+        writer.setCfaArrangement(DngWriter.CFA_BGGR);
+        writer.setBlackLevel(64, 65, 66, 67);
+        writer.setWhiteLevel(1023);
+        writer.setColorMatrix(new float[]{1, -0.5f, 0, 0, 1, 0, 0, 0.25f, 1}, 21);
+        writer.setAsShotNeutral(0.5f, 1, 0.75f);
+        writer.setOrientation(90);
+        write(writer, pixels(WIDTH * 2, true), WIDTH * 2);
+        ByteBuffer file = read();
+        Map<Integer, Integer> tags = tags(file);
+
+        assertEquals(WIDTH, readLong(file, tags.get(256)));
+        assertEquals(HEIGHT, readLong(file, tags.get(257)));
+        assertEquals(32803, file.getShort(tags.get(262) + 8) & 0xffff);
+        assertEquals(6, file.getShort(tags.get(274) + 8));
+        assertEquals(0x00010102, file.getInt(tags.get(33422) + 8));
+        assertEquals(1023, readLong(file, tags.get(50717)));
+        assertEquals(21, file.getShort(tags.get(50778) + 8));
+
+        int blackLevel = file.getInt(tags.get(50714) + 8);
+        assertEquals(64, file.getInt(blackLevel));
+        assertEquals(67, file.getInt(blackLevel + 12));
+
+        int matrix = file.getInt(tags.get(50721) + 8);
+        assertEquals(-0.5, (double) file.getInt(matrix + 8) / file.getInt(matrix + 12), 1e-4);
+        assertEquals(0.25, (double) file.getInt(matrix + 56) / file.getInt(matrix + 60), 1e-4);
+
+        int neutral = file.getInt(tags.get(50728) + 8);
+        assertEquals(0.75, (double) file.getInt(neutral + 16) / file.getInt(neutral + 20), 1e-4);
+
+        int model = file.getInt(tags.get(50708) + 8);
+        assertEquals('T', file.get(model));
+    }
+
+    private DngWriter newWriter() {
+        DngWriter writer = new DngWriter(WIDTH, HEIGHT);
+        writer.setCamera("Test", "Camera");
+        return writer;
+    }
+
+    /**
+     * Fills a direct buffer with a sample pattern. Bytes outside the rows are set to 0xff.
+     */
+    private static ByteBuffer pixels(int rowStride, boolean atStart) {
+        int offset = atStart ? 0 : 16;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(offset + rowStride * HEIGHT)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            buffer.put((byte) 0xff);
+        }
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                buffer.putShort(offset + y * rowStride + x * 2, sample(x, y));
+            }
+        }
+        buffer.position(offset);
+        return buffer;
+    }
+
+    private static short sample(int x, int y) {
+        return (short) (y * 1000 + x);
+    }
+
+    private long write(DngWriter writer, ByteBuffer pixels, int rowStride) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            long length = writer.write(channel, pixels, rowStride);
+            assertEquals(length, channel.position());
+            return length;
+        } finally {
+            file.close();
+        }
+    }
+
+    private ByteBuffer read() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) file.length())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            file.getChannel().read(buffer);
+            buffer.flip();
+            return buffer;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns the offset of the IFD entry of every tag, and checks that tags are in order.
+     */
+    private static Map<Integer, Integer> tags(ByteBuffer file) {
+        assertEquals('I', file.get(0));
+        assertEquals('I', file.get(1));
+        assertEquals(42, file.getShort(2));
+        int ifd = file.getInt(4);
+        int count = file.getShort(ifd) & 0xffff;
+        Map<Integer, Integer> tags = new HashMap<>();
+        int previous = -1;
+        for (int i = 0; i < count; i++) {
+            int entry = ifd + 2 + i * 12;
+            int tag = file.getShort(entry) & 0xffff;
+            assertTrue(tag > previous);
+            previous = tag;
+            tags.put(tag, entry);
+        }
+        assertEquals(0, file.getInt(ifd + 2 + count * 12));
+        return tags;
+    }
+
+    private static int readLong(ByteBuffer file, int entry) {
+        return file.getInt(entry + 8);
+    }
+
+    private static void assertPixels(ByteBuffer file, Map<Integer, Integer> tags) {
+        int offset = readLong(file, tags.get(273));
+        assertEquals(WIDTH * HEIGHT * 2, readLong(file, tags.get(279)));
+        assertEquals(file.limit(), offset + WIDTH * HEIGHT * 2);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(sample(x, y), file.getShort(offset + (y * WIDTH + x) * 2));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the policies of {@link FileCommitter}.
+ */
+public class FileCommitterTest {
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mRoot;
+
+    private CaptureStorage mStorage;
+
+    private final List<Long> mCommitted = Collections.synchronizedList(new ArrayList<Long>());
+
+    private final ImageSaver.Callback mCallback = new ImageSaver.Callback() {
+        @Override
+        public void onImageSaved(CaptureStorage.Output output, long length) {
+            assertTrue(output.getFile().exists());
+            mCommitted.add(output.getId());
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        // The storage makes its own directory.
+        mRoot = new File(mTemporaryFolder.getRoot(), "captures");
+        mStorage = new CaptureStorage(mRoot, CaptureStorage.SET_LENGTH);
+    }
+
+    @Test
+    public void noneCommitsRightAway() throws IOException {
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.NONE);
+        mStorage.setCommitter(committer);
+        CaptureStorage.Output output = write(1);
+        output.commit(3, mCallback);
+        assertEquals(Collections.singletonList(output.getId()), mCommitted);
+        assertFalse(output.getWriteFile().exists());
+        assertEquals(0, committer.getSyncCount());
+    }
+
+    @Test
+    public void perFileSyncsEachCapture() throws IOException {
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.PER_FILE);
+        mStorage.setCommitter(committer);
+        for (int i = 0; i < 3; i++) {
+            save(i);
+        }
+        assertEquals(3, committer.getSyncCount());
+        assertEquals(3, mCommitted.size());
+    }
+
+    @Test
+    public void groupWaitsUntilFull() throws IOException {
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.GROUP, 3, 60000);
+        mStorage.setCommitter(committer);
+        CaptureStorage.Output first = write(1);
+        first.commit(3, mCallback);
+        write(2).commit(3, mCallback);
+        // Written but not visible yet
+        assertTrue(mCommitted.isEmpty());
+        assertFalse(first.getFile().exists());
+        assertTrue(first.getWriteFile().exists());
+        assertEquals(2, committer.getPendingCount());
+        write(3).commit(3, mCallback);
+        // The full group goes to the commit thread; flushing waits for it.
+        assertEquals(0, committer.getPendingCount());
+        committer.flush();
+        assertEquals(3, mCommitted.size());
+        assertEquals(3, committer.getSyncCount());
+        assertEquals(3, mStorage.getIndex().size());
+    }
+
+    @Test
+    public void groupCommitsAfterTheDelay() throws Exception {
+        mStorage.setCommitter(new FileCommitter(FileCommitter.Policy.GROUP, 100, 20));
+        final CountDownLatch committed = new CountDownLatch(2);
+        ImageSaver.Callback callback = new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(CaptureStorage.Output output, long length) {
+                committed.countDown();
+            }
+        };
+        write(1).commit(3, callback);
+        write(2).commit(3, callback);
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void savingDoesNotWaitForTheGroup() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch committed = new CountDownLatch(2);
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.GROUP, 2, 60000);
+        mStorage.setCommitter(committer);
+        ImageSaver.Callback callback = new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(CaptureStorage.Output output, long length) {
+                try {
+                    // Holds up the commit thread, as a slow flush would.
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                committed.countDown();
+            }
+        };
+        write(1).commit(3, callback);
+        write(2).commit(3, callback);
+        // Returned while the group is still being committed
+        assertEquals(2, committed.getCount());
+        release.countDown();
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void flushCommitsTheRest() throws IOException {
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.GROUP, 100, 60000);
+        mStorage.setCommitter(committer);
+        write(1).commit(3, mCallback);
+        committer.flush();
+        assertEquals(1, mCommitted.size());
+        committer.flush();
+        assertEquals(1, committer.getCommitCount());
+    }
+
+    @Test
+    public void captureThatCannotBeSyncedIsDropped() throws IOException {
+        FileCommitter committer = new FileCommitter(FileCommitter.Policy.GROUP, 2, 60000);
+        mStorage.setCommitter(committer);
+        CaptureStorage.Output lost = write(1);
+        assertTrue(lost.getWriteFile().delete());
+        lost.commit(3, mCallback);
+        CaptureStorage.Output kept = write(2);
+        kept.commit(3, mCallback);
+        committer.flush();
+        assertEquals(Collections.singletonList(kept.getId()), mCommitted);
+        assertFalse(lost.getFile().exists());
+        assertTrue(committer.toString().contains("failed=1"));
+    }
+
+    /**
+     * Names a capture and writes three bytes to its write file.
+     */
+    private CaptureStorage.Output write(long timestampNs) throws IOException {
+        CaptureStorage.Output output = mStorage.newOutput(timestampNs, "jpg");
+        FileOutputStream out = new FileOutputStream(output.getWriteFile());
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+        return output;
+    }
+
+    private void save(long timestampNs) throws IOException {
+        ImageSaver saver = new ImageSaver(new ImageSaver.Source() {
+            @Override
+            public ByteBuffer getBuffer() {
+                return ByteBuffer.allocateDirect(3);
+            }
+
+            @Override
+            public void close() {
+            }
+        }, mStorage.newOutput(timestampNs, "jpg"), new ByteBufferPool(1024, 1));
+        saver.setCallback(mCallback);
+        saver.run();
+    }
+
+}
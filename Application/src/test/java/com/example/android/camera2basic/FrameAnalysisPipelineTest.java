@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link FrameAnalysisPipeline} and the analyzers that come with it.
+ */
+public class FrameAnalysisPipelineTest {
+
+    private static final int WIDTH = 64;
+
+    private static final int HEIGHT = 48;
+
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void slowAnalyzersOnlySeeTheLatestFrame() throws Exception {
+        final List<Long> seen = Collections.synchronizedList(new ArrayList<Long>());
+        final CountDownLatch lastFrame = new CountDownLatch(1);
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(mExecutor);
+        FrameAnalyzer slow = new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                seen.add(frame.getTimestampNs());
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (frame.getTimestampNs() == 99) {
+                    lastFrame.countDown();
+                }
+            }
+        };
+        pipeline.addAnalyzer("slow", slow);
+        ByteBuffer plane = plane(WIDTH, 0);
+        for (long i = 0; i < 100; i++) {
+            pipeline.offer(i, WIDTH, HEIGHT, plane, WIDTH, 1);
+            Thread.sleep(1);
+        }
+        assertTrue(lastFrame.await(5, TimeUnit.SECONDS));
+        // The last frame is counted once the analyzer returns.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (pipeline.getAnalyzedCount() + pipeline.getDroppedCount() < 100
+                && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+
+        assertEquals(100, pipeline.getOfferedCount());
+        assertEquals(seen.size(), pipeline.getAnalyzedCount());
+        assertEquals(100, pipeline.getAnalyzedCount() + pipeline.getDroppedCount());
+        assertTrue(seen.size() < 50);
+        for (int i = 1; i < seen.size(); i++) {
+            assertTrue(seen.get(i) > seen.get(i - 1));
+        }
+        assertEquals(seen.size(), pipeline.getTiming(slow).getCount());
+    }
+
+    @Test
+    public void copiesPaddedAndInterleavedPlanes() throws Exception {
+        final ByteBuffer[] copy = new ByteBuffer[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        FrameAnalysisPipeline pipeline = new FrameAnalysisPipeline(mExecutor);
+        pipeline.addAnalyzer("copy", new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                ByteBuffer luma = frame.getLuma();
+                copy[0] = ByteBuffer.allocate(luma.remaining());
+                copy[0].put(luma).flip();
+                done.countDown();
+            }
+        });
+        // Two bytes per sample and eight bytes of padding per row
+        int rowStride = WIDTH * 2 + 8;
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                plane.put(y * rowStride + x * 2, (byte) (x + y));
+            }
+        }
+        pipeline.offer(0, WIDTH, HEIGHT, plane, rowStride, 2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(WIDTH * HEIGHT, copy[0].remaining());
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals((byte) (x + y), copy[0].get(y * WIDTH + x));
+            }
+        }
+    }
+
+    @Test
+    public void computesLumaHistogram() {
+        LumaHistogramAnalyzer analyzer = new LumaHistogramAnalyzer();
+        ByteBuffer luma = ByteBuffer.allocate(WIDTH * HEIGHT);
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            luma.put((byte) (i % 2 == 0 ? 10 : 200));
+        }
+        luma.flip();
+        analyzer.analyze(frame(luma));
+        int[] histogram = analyzer.getHistogram();
+        assertEquals(WIDTH * HEIGHT / 2, histogram[10]);
+        assertEquals(WIDTH * HEIGHT / 2, histogram[200]);
+        assertEquals(105f, analyzer.getMean(), 1e-3f);
+    }
+
+    @Test
+    public void sharpEdgesScoreHigherThanBlur() {
+        SharpnessAnalyzer analyzer = new SharpnessAnalyzer();
+        analyzer.analyze(frame(plane(WIDTH, 0)));
+        double sharp = analyzer.getSharpness();
+        analyzer.analyze(frame(plane(WIDTH, 1)));
+        double blurred = analyzer.getSharpness();
+        assertTrue(sharp > blurred * 4);
+
+        ByteBuffer flat = ByteBuffer.allocate(WIDTH * HEIGHT);
+        analyzer.analyze(frame(flat));
+        assertEquals(0, analyzer.getSharpness(), 1e-9);
+    }
+
+    private static FrameAnalyzer.Frame frame(ByteBuffer luma) {
+        return new FrameAnalyzer.Frame(new ByteBufferPool(luma.capacity(), 1), luma, WIDTH,
+                HEIGHT, 0);
+    }
+
+    /**
+     * A checkerboard of 8x8 squares, softened by a box blur of the given radius.
+     */
+    private static ByteBuffer plane(int rowStride, int blurRadius) {
+        int[] board = new int[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                board[y * WIDTH + x] = ((x / 8 + y / 8) & 1) == 0 ? 30 : 220;
+            }
+        }
+        ByteBuffer plane = ByteBuffer.allocate(rowStride * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int count = 0;
+                for (int dy = -blurRadius; dy <= blurRadius; dy++) {
+                    for (int dx = -blurRadius; dx <= blurRadius; dx++) {
+                        int sx = Math.max(0, Math.min(WIDTH - 1, x + dx));
+                        int sy = Math.max(0, Math.min(HEIGHT - 1, y + dy));
+                        sum += board[sy * WIDTH + sx];
+                        count++;
+                    }
+                }
+                plane.put(y * rowStride + x, (byte) (sum / count));
+            }
+        }
+        return plane;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link FrameIntervalMonitor}.
+ */
+public class FrameIntervalMonitorTest {
+
+    /**
+     * 30 frames per second
+     */
+    private static final long FRAME_NS = 33333333;
+
+    private static final long START_NS = 123456789000L;
+
+    @Test
+    public void steadyFramesHaveNoJitter() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor(3);
+        for (int i = 0; i < 100; i++) {
+            monitor.onFrame(START_NS + i * FRAME_NS);
+        }
+        assertEquals(FRAME_NS, monitor.getExpectedIntervalNs());
+        assertEquals(98, monitor.getJitter().getCount());
+        assertEquals(0, monitor.getJitter().getMaxUs());
+        assertEquals(0, monitor.getSkippedFrames());
+    }
+
+    @Test
+    public void intervalsAfterASnapshotAreCountedApart() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor(3);
+        long timestamp = START_NS;
+        for (int i = 0; i < 10; i++) {
+            monitor.onFrame(timestamp += FRAME_NS);
+        }
+        monitor.onSnapshot();
+        // The snapshot stalls the sensor for one frame.
+        monitor.onFrame(timestamp += 2 * FRAME_NS);
+        for (int i = 0; i < 10; i++) {
+            monitor.onFrame(timestamp += FRAME_NS);
+        }
+        assertEquals(3, monitor.getSnapshotJitter().getCount());
+        assertEquals(1, monitor.getSnapshotSkippedFrames());
+        assertTrue(monitor.getSnapshotJitter().getMaxUs() >= FRAME_NS / 1000 - 1);
+        assertEquals(0, monitor.getSkippedFrames());
+        assertEquals(0, monitor.getJitter().getMaxUs());
+        assertEquals(FRAME_NS, monitor.getExpectedIntervalNs());
+    }
+
+    @Test
+    public void timestampsThatDoNotAdvanceAreIgnored() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor(3);
+        monitor.onFrame(START_NS);
+        monitor.onFrame(START_NS + FRAME_NS);
+        monitor.onFrame(START_NS + FRAME_NS);
+        monitor.onFrame(START_NS);
+        monitor.onFrame(START_NS + 2 * FRAME_NS);
+        assertEquals(1, monitor.getJitter().getCount());
+        assertEquals(0, monitor.getSkippedFrames());
+    }
+
+    @Test
+    public void restartForgetsTheLastFrame() {
+        FrameIntervalMonitor monitor = new FrameIntervalMonitor(3);
+        monitor.onFrame(START_NS);
+        monitor.onFrame(START_NS + FRAME_NS);
+        monitor.onFrame(START_NS + 2 * FRAME_NS);
+        monitor.restart();
+        // The gap while the session was rebuilt is not a skipped frame.
+        monitor.onFrame(START_NS + 60 * FRAME_NS);
+        monitor.onFrame(START_NS + 61 * FRAME_NS);
+        assertEquals(2, monitor.getJitter().getCount());
+        assertEquals(0, monitor.getSkippedFrames());
+    }
+
+}
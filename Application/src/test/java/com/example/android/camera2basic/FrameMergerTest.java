@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link FrameMerger}, on synthetic frames with known motion and noise.
+ */
+public class FrameMergerTest {
+
+    private static final int WIDTH = 320;
+
+    private static final int HEIGHT = 240;
+
+    /**
+     * Pixels this close to the edges are not checked, since moved frames don't cover them.
+     */
+    private static final int MARGIN = 16;
+
+    private final ForkJoinPool mPool = new ForkJoinPool(4);
+
+    @After
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Test
+    public void alignFindsTheMotionOfEachFrame() {
+        int[][] shifts = {{0, 0}, {4, -2}, {-6, 8}, {10, 4}, {-12, -10}};
+        List<FrameMerger.Input> inputs = new ArrayList<>();
+        Random random = new Random(1);
+        for (int[] shift : shifts) {
+            inputs.add(new FrameMerger.Input(frame(shift[0], shift[1], 1, 6, random, null), 1));
+        }
+        int[][] offsets = FrameMerger.align(inputs, 0);
+        for (int i = 0; i < shifts.length; i++) {
+            assertArrayEquals("frame " + i, shifts[i], offsets[i]);
+        }
+    }
+
+    @Test
+    public void mergingAStackReducesNoise() {
+        int[][] shifts = {{0, 0}, {2, 2}, {-4, 0}, {6, -2}, {0, 4}, {-2, -6}, {8, 8}, {-8, 2}};
+        List<FrameMerger.Input> inputs = new ArrayList<>();
+        Random random = new Random(2);
+        for (int[] shift : shifts) {
+            inputs.add(new FrameMerger.Input(frame(shift[0], shift[1], 1, 10, random, null), 1));
+        }
+        JpegEncoder.Frame merged = new FrameMerger(mPool).merge(inputs, 0);
+        JpegEncoder.Frame clean = frame(0, 0, 1, 0, random, null);
+        double before = rmsError(inputs.get(0).frame, clean);
+        double after = rmsError(merged, clean);
+        assertTrue(before + " -> " + after, after < before / 2);
+        assertEquals(128, merged.u.buffer.get(WIDTH / 4 + HEIGHT / 4 * (WIDTH / 2)) & 0xff, 2);
+    }
+
+    @Test
+    public void shorterExposuresRecoverClippedHighlights() {
+        Random random = new Random(3);
+        List<FrameMerger.Input> inputs = new ArrayList<>();
+        // The highlight is clipped at the reference exposure but not at a quarter of it.
+        int[] highlight = {200, 40, 280, 100};
+        inputs.add(new FrameMerger.Input(frame(0, 0, 1, 0, random, highlight), 4));
+        inputs.add(new FrameMerger.Input(frame(0, 0, 0.25, 0, random, highlight), 1));
+        JpegEncoder.Frame merged = new FrameMerger(mPool).merge(inputs, 0);
+        JpegEncoder.Frame reference = inputs.get(0).frame;
+        assertEquals(255, level(reference, 220, 70));
+        assertEquals(255, level(reference, 260, 70));
+        int dimmer = level(merged, 220, 70);
+        int brighter = level(merged, 260, 70);
+        assertTrue(dimmer + " vs " + brighter, brighter - dimmer > 8);
+        assertTrue(String.valueOf(brighter), brighter < 255);
+        // The shadows look like the reference.
+        assertEquals(level(reference, 100, 150), level(merged, 100, 150), 3);
+    }
+
+    @Test
+    public void movingSubjectsDoNotLeaveGhosts() {
+        Random random = new Random(4);
+        List<FrameMerger.Input> inputs = new ArrayList<>();
+        inputs.add(new FrameMerger.Input(frame(0, 0, 1, 2, random, null), 1));
+        for (int i = 0; i < 3; i++) {
+            JpegEncoder.Frame frame = frame(0, 0, 1, 2, random, null);
+            // A dark subject that is only there in the other frames
+            for (int y = 100; y < 140; y++) {
+                for (int x = 100; x < 140; x++) {
+                    frame.y.buffer.put(y * WIDTH + x, (byte) 0);
+                }
+            }
+            inputs.add(new FrameMerger.Input(frame, 1));
+        }
+        JpegEncoder.Frame merged = new FrameMerger(mPool).merge(inputs, 0);
+        assertEquals(level(inputs.get(0).frame, 120, 120), level(merged, 120, 120), 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsFramesOfDifferentSizes() {
+        List<FrameMerger.Input> inputs = new ArrayList<>();
+        inputs.add(new FrameMerger.Input(frame(0, 0, 1, 0, new Random(), null), 1));
+        JpegEncoder.Frame small = new JpegEncoder.Frame(128, 128,
+                new JpegEncoder.Plane(ByteBuffer.allocate(128 * 128), 128, 1),
+                new JpegEncoder.Plane(ByteBuffer.allocate(64 * 64), 64, 1),
+                new JpegEncoder.Plane(ByteBuffer.allocate(64 * 64), 64, 1));
+        inputs.add(new FrameMerger.Input(small, 1));
+        new FrameMerger(mPool).merge(inputs, 0);
+    }
+
+    /**
+     * Renders a textured scene, moved so that the scene point at (x, y) lands on pixel
+     * (x + dx, y + dy), with Gaussian noise of the given standard deviation in luma levels.
+     *
+     * @param exposure  Multiplies the linear light of the scene
+     * @param highlight A rectangle (left, top, right, bottom) of the scene brighter than white,
+     *                  one and a half times on the left half and three times on the right, or
+     *                  null
+     */
+    private static JpegEncoder.Frame frame(int dx, int dy, double exposure, double noise,
+                                           Random random, int[] highlight) {
+        ByteBuffer y = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                int sx = column - dx;
+                int sy = row - dy;
+                double linear = scene(sx, sy);
+                if (null != highlight && sx >= highlight[0] && sx < highlight[2]
+                        && sy >= highlight[1] && sy < highlight[3]) {
+                    linear = sx < (highlight[0] + highlight[2]) / 2 ? 1.5 : 3;
+                }
+                double level = 255 * Math.pow(Math.min(1, linear * exposure), 1 / 2.2)
+                        + random.nextGaussian() * noise;
+                y.put((byte) Math.max(0, Math.min(255, Math.round(level))));
+            }
+        }
+        y.clear();
+        ByteBuffer u = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        ByteBuffer v = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 4);
+        for (int i = 0; i < WIDTH * HEIGHT / 4; i++) {
+            u.put((byte) 128);
+            v.put((byte) 128);
+        }
+        u.clear();
+        v.clear();
+        return new JpegEncoder.Frame(WIDTH, HEIGHT, new JpegEncoder.Plane(y, WIDTH, 1),
+                new JpegEncoder.Plane(u, WIDTH / 2, 1), new JpegEncoder.Plane(v, WIDTH / 2, 1));
+    }
+
+    /**
+     * Linear light of the scene: blocks of random brightness on a gradient.
+     */
+    private static double scene(int x, int y) {
+        int hash = ((x + 2400) / 24 * 73856093) ^ ((y + 2400) / 24 * 19349663);
+        int block = (hash >>> 8) & 7;
+        return 0.05 + 0.06 * block + 0.15 * Math.max(0, Math.min(WIDTH, x)) / WIDTH;
+    }
+
+    private static int level(JpegEncoder.Frame frame, int x, int y) {
+        return frame.y.buffer.get(y * frame.y.rowStride + x) & 0xff;
+    }
+
+    private static double rmsError(JpegEncoder.Frame frame, JpegEncoder.Frame clean) {
+        double sum = 0;
+        int count = 0;
+        for (int y = MARGIN; y < HEIGHT - MARGIN; y++) {
+            for (int x = MARGIN; x < WIDTH - MARGIN; x++) {
+                double error = level(frame, x, y) - level(clean, x, y);
+                sum += error * error;
+                count++;
+            }
+        }
+        return Math.sqrt(sum / count);
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the {@link ImageSaveQueue.Backpressure} policies, using one worker that is held
+ * busy until the test releases it.
+ */
+public class ImageSaveQueueTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void blockWaitsForRoomAndSavesEverything() throws Exception {
+        final ImageSaveQueue queue = new ImageSaveQueue(1, 1, ImageSaveQueue.Backpressure.BLOCK);
+        FakeJob busy = new FakeJob(true);
+        FakeJob queued = new FakeJob(false);
+        final FakeJob blocked = new FakeJob(false);
+        assertTrue(queue.submit(busy));
+        assertTrue(busy.mStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(queue.submit(queued));
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.submit(blocked);
+                submitted.countDown();
+            }
+        });
+        submitter.start();
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+
+        busy.mRelease.countDown();
+        assertTrue(submitted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        drain(queue);
+        assertTrue(queued.mRan);
+        assertTrue(blocked.mRan);
+        assertEquals(3, queue.getCompletedCount());
+        assertEquals(0, queue.getDroppedCount());
+    }
+
+    @Test
+    public void dropOldestDiscardsTheOldestWaitingImage() throws Exception {
+        ImageSaveQueue queue = new ImageSaveQueue(1, 1, ImageSaveQueue.Backpressure.DROP_OLDEST);
+        FakeJob busy = new FakeJob(true);
+        FakeJob oldest = new FakeJob(false);
+        FakeJob newest = new FakeJob(false);
+        assertTrue(queue.submit(busy));
+        assertTrue(busy.mStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(queue.submit(oldest));
+        assertTrue(queue.submit(newest));
+        assertTrue(oldest.mDiscarded);
+        assertEquals(1, queue.getDroppedCount());
+
+        busy.mRelease.countDown();
+        drain(queue);
+        assertFalse(oldest.mRan);
+        assertTrue(newest.mRan);
+        assertEquals(2, queue.getCompletedCount());
+    }
+
+    @Test
+    public void failFastDiscardsTheNewImage() throws Exception {
+        ImageSaveQueue queue = new ImageSaveQueue(1, 1, ImageSaveQueue.Backpressure.FAIL_FAST);
+        FakeJob busy = new FakeJob(true);
+        FakeJob queued = new FakeJob(false);
+        FakeJob rejected = new FakeJob(false);
+        assertTrue(queue.submit(busy));
+        assertTrue(busy.mStarted.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(queue.submit(queued));
+        assertFalse(queue.submit(rejected));
+        assertTrue(rejected.mDiscarded);
+        assertEquals(1, queue.getDroppedCount());
+
+        busy.mRelease.countDown();
+        drain(queue);
+        assertTrue(queued.mRan);
+        assertFalse(rejected.mRan);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    public void shutDownQueueDiscardsNewImages() throws Exception {
+        ImageSaveQueue queue = new ImageSaveQueue(1, 1, ImageSaveQueue.Backpressure.BLOCK);
+        queue.shutdown();
+        FakeJob job = new FakeJob(false);
+        assertFalse(queue.submit(job));
+        assertTrue(job.mDiscarded);
+    }
+
+    @Test
+    public void failedJobIsNoLongerPending() throws Exception {
+        ImageSaveQueue queue = new ImageSaveQueue(1, 1, ImageSaveQueue.Backpressure.FAIL_FAST);
+        assertTrue(queue.submit(new ImageSaveQueue.Job() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Image is already closed");
+            }
+
+            @Override
+            public void discard() {
+            }
+        }));
+        drain(queue);
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    private static void drain(ImageSaveQueue queue) throws InterruptedException {
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * A job that records whether it ran or was discarded, and optionally waits to be released.
+     */
+    private static class FakeJob implements ImageSaveQueue.Job {
+
+        final CountDownLatch mStarted = new CountDownLatch(1);
+
+        final CountDownLatch mRelease;
+
+        volatile boolean mRan;
+
+        volatile boolean mDiscarded;
+
+        FakeJob(boolean hold) {
+            mRelease = new CountDownLatch(hold ? 1 : 0);
+        }
+
+        @Override
+        public void run() {
+            mStarted.countDown();
+            try {
+                mRelease.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mRan = true;
+        }
+
+        @Override
+        public void discard() {
+            mDiscarded = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link ImageSaver}.
+ */
+public class ImageSaverTest {
+
+    private static final int FRAME_SIZE = 4 * 1024 * 1024;
+
+    private static final int FRAME_COUNT = 50;
+
+    /**
+     * Average bytes per frame we tolerate as measurement noise (JIT, safepoints). Anything
+     * proportional to the frame size would be orders of magnitude above this.
+     */
+    private static final long ALLOCATION_SLACK_PER_FRAME = 64;
+
+    private File mFile;
+
+    private ByteBufferPool mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("image", ".jpg");
+        mPool = new ByteBufferPool(64 * 1024, 2);
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void savesBytesAndClosesSource() throws IOException {
+        byte[] bytes = new byte[300 * 1024];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+        }
+        FakeSource source = new FakeSource(ByteBuffer.wrap(bytes));
+        new ImageSaver(source, mFile, mPool).run();
+        assertTrue(source.mClosed);
+        assertArrayEquals(bytes, readFile());
+    }
+
+    @Test
+    public void splicesSegmentsIntoJpeg() throws IOException {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDB, 0, 2, 9, 9};
+        FakeSource source = new FakeSource(ByteBuffer.wrap(jpeg));
+        ImageSaver saver = new ImageSaver(source, mFile, mPool);
+        saver.setSegments(new ByteBuffer[]{JpegSplicer.appSegment(1, new byte[]{7})});
+        saver.run();
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0, 3, 7,
+                (byte) 0xFF, (byte) 0xDB, 0, 2, 9, 9}, readFile());
+    }
+
+    @Test
+    public void buildsSegmentsOnceTheBytesAreReady() throws IOException {
+        byte[] jpeg = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xDB, 0, 2, 9, 9};
+        final FakeSource source = new FakeSource(ByteBuffer.wrap(jpeg));
+        ImageSaver saver = new ImageSaver(source, mFile, mPool);
+        saver.setSegments(new ImageSaver.Segments() {
+            @Override
+            public ByteBuffer[] get() {
+                assertTrue(source.mRead);
+                return new ByteBuffer[]{JpegSplicer.appSegment(1, new byte[]{7})};
+            }
+        });
+        saver.run();
+        assertArrayEquals(new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE1, 0, 3, 7,
+                (byte) 0xFF, (byte) 0xDB, 0, 2, 9, 9}, readFile());
+    }
+
+    @Test
+    public void savesOtherBytesWithoutSegments() throws IOException {
+        byte[] bytes = {1, 2, 3};
+        ImageSaver saver = new ImageSaver(new FakeSource(ByteBuffer.wrap(bytes)), mFile, mPool);
+        saver.setSegments(new ByteBuffer[]{JpegSplicer.appSegment(1, new byte[]{7})});
+        saver.run();
+        assertArrayEquals(bytes, readFile());
+    }
+
+    @Test
+    public void directBufferWriteDoesNotAllocate() throws Exception {
+        assertNoPerFrameAllocation(ByteBuffer.allocateDirect(FRAME_SIZE));
+    }
+
+    @Test
+    public void stagedWriteDoesNotAllocate() throws Exception {
+        assertNoPerFrameAllocation(ByteBuffer.allocate(FRAME_SIZE));
+        assertEquals(1, mPool.getAllocatedCount());
+    }
+
+    private void assertNoPerFrameAllocation(ByteBuffer frame) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            // Warm up so that class loading and JIT compilation are not counted.
+            writeFrames(frame, channel, FRAME_COUNT);
+            long before = allocatedBytes();
+            writeFrames(frame, channel, FRAME_COUNT);
+            long allocated = allocatedBytes() - before;
+            assertTrue("Allocated " + allocated + " bytes",
+                    allocated < ALLOCATION_SLACK_PER_FRAME * FRAME_COUNT);
+            assertEquals(FRAME_SIZE, channel.size());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeFrames(ByteBuffer frame, FileChannel channel, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            frame.clear();
+            channel.position(0);
+            ImageSaver.write(frame, channel, mPool);
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * A stand-in for a JPEG {@link android.media.Image}.
+     */
+    private static class FakeSource implements ImageSaver.Source {
+
+        private final ByteBuffer mBuffer;
+
+        private boolean mRead;
+
+        private boolean mClosed;
+
+        FakeSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public ByteBuffer getBuffer() {
+            mRead = true;
+            return mBuffer;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+    }
+
+}
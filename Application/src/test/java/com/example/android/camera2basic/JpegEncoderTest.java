@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for {@link JpegEncoder}. The output is decoded with {@link ImageIO} and compared to
+ * the colors of the frame.
+ */
+public class JpegEncoderTest {
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(3);
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void encodesGrayscale() throws Exception {
+        JpegEncoder.Frame frame = frame(96, 64, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return x * 2 + y;
+            }
+        }, 128, 128);
+        BufferedImage image = decode(new JpegEncoder(95, 1, mExecutor).encode(frame, 0));
+        assertEquals(96, image.getWidth());
+        assertEquals(64, image.getHeight());
+        for (int y = 0; y < 64; y += 7) {
+            for (int x = 0; x < 96; x += 5) {
+                assertColor(image.getRGB(x, y), x * 2 + y, x * 2 + y, x * 2 + y, 4);
+            }
+        }
+    }
+
+    @Test
+    public void convertsChroma() throws Exception {
+        JpegEncoder.Frame frame = frame(40, 24, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return 100;
+            }
+        }, 90, 170);
+        BufferedImage image = decode(new JpegEncoder(95, 1, mExecutor).encode(frame, 0));
+        // JFIF YCbCr to RGB
+        int r = (int) Math.round(100 + 1.402 * (170 - 128));
+        int g = (int) Math.round(100 - 0.344136 * (90 - 128) - 0.714136 * (170 - 128));
+        int b = (int) Math.round(100 + 1.772 * (90 - 128));
+        assertColor(image.getRGB(20, 12), r, g, b, 4);
+    }
+
+    @Test
+    public void stripsDoNotChangeTheImage() throws Exception {
+        // Odd sizes leave partial MCUs on the right and at the bottom.
+        JpegEncoder.Frame frame = frame(203, 157, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return (x * x + y * 3) & 0xff;
+            }
+        }, 110, 140);
+        byte[] single = new JpegEncoder(85, 1, mExecutor).encode(frame, 0);
+        byte[] striped = new JpegEncoder(85, 4, mExecutor).encode(frame, 0);
+        assertTrue(indexOfMarker(striped, 0xdd) > 0);
+        assertTrue(indexOfMarker(striped, 0xd0) > 0);
+        assertEquals(-1, indexOfMarker(single, 0xdd));
+        BufferedImage expected = decode(single);
+        BufferedImage actual = decode(striped);
+        for (int y = 0; y < 157; y++) {
+            for (int x = 0; x < 203; x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void scalesDown() throws Exception {
+        JpegEncoder.Frame frame = frame(640, 480, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return x < 320 ? 40 : 200;
+            }
+        }, 128, 128);
+        BufferedImage image = decode(new JpegEncoder(90, 2, mExecutor).encode(frame, 3));
+        assertEquals(80, image.getWidth());
+        assertEquals(60, image.getHeight());
+        assertColor(image.getRGB(10, 30), 40, 40, 40, 4);
+        assertColor(image.getRGB(70, 30), 200, 200, 200, 4);
+    }
+
+    @Test
+    public void lowerQualityIsSmaller() throws Exception {
+        JpegEncoder.Frame frame = frame(128, 128, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return (x ^ y) & 0xff;
+            }
+        }, 128, 128);
+        int high = new JpegEncoder(95, 1, mExecutor).encode(frame, 0).length;
+        int low = new JpegEncoder(30, 1, mExecutor).encode(frame, 0).length;
+        assertTrue(low < high);
+    }
+
+    @Test
+    public void interruptionWaitsForEveryStrip() throws Exception {
+        JpegEncoder.Frame frame = frame(1024, 1024, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return (x * y) & 0xff;
+            }
+        }, 100, 150);
+        // The strips start late, so the encoder is still waiting for them when interrupted.
+        RecordingExecutor executor = new RecordingExecutor(mExecutor, 200);
+        Thread.currentThread().interrupt();
+        try {
+            new JpegEncoder(95, 4, executor).encode(frame, 0);
+            fail("Expected an InterruptedException");
+        } catch (InterruptedException e) {
+            // Expected
+        } finally {
+            Thread.interrupted();
+        }
+        executor.assertAllCompleted();
+    }
+
+    @Test
+    public void failureWaitsForEveryStrip() throws Exception {
+        JpegEncoder.Frame complete = frame(512, 512, new Pattern() {
+            @Override
+            public int luma(int x, int y) {
+                return x & 0xff;
+            }
+        }, 128, 128);
+        // The bottom rows are missing, so the last strip fails while the others still run.
+        ByteBuffer luma = complete.y.buffer.duplicate();
+        luma.limit(luma.capacity() / 2);
+        JpegEncoder.Frame frame = new JpegEncoder.Frame(512, 512,
+                new JpegEncoder.Plane(luma, complete.y.rowStride, 1), complete.u, complete.v);
+        RecordingExecutor executor = new RecordingExecutor(mExecutor, 0);
+        try {
+            new JpegEncoder(95, 4, executor).encode(frame, 0);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+        executor.assertAllCompleted();
+    }
+
+    /**
+     * Keeps the tasks it runs, optionally after a delay, to check that none is left running or
+     * cancelled.
+     */
+    private static class RecordingExecutor implements Executor {
+
+        private final Executor mExecutor;
+
+        private final long mDelayMs;
+
+        private final List<Future<?>> mTasks = new CopyOnWriteArrayList<>();
+
+        RecordingExecutor(Executor executor, long delayMs) {
+            mExecutor = executor;
+            mDelayMs = delayMs;
+        }
+
+        @Override
+        public void execute(final Runnable runnable) {
+            mTasks.add((Future<?>) runnable);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(mDelayMs);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    runnable.run();
+                }
+            });
+        }
+
+        void assertAllCompleted() {
+            assertTrue(mTasks.size() > 0);
+            for (Future<?> task : mTasks) {
+                assertTrue(task.isDone());
+                assertFalse(task.isCancelled());
+            }
+        }
+
+    }
+
+    private interface Pattern {
+
+        int luma(int x, int y);
+
+    }
+
+    /**
+     * Lays the frame out like a semi-planar YUV_420_888 image: padded luma rows, and chroma
+     * planes that share one buffer with interleaved samples.
+     */
+    private static JpegEncoder.Frame frame(int width, int height, Pattern pattern, int u, int v) {
+        int rowStride = width + 16;
+        ByteBuffer luma = ByteBuffer.allocate(rowStride * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                luma.put(y * rowStride + x, (byte) Math.min(255, pattern.luma(x, y)));
+            }
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int chromaStride = chromaWidth * 2 + 8;
+        ByteBuffer chroma = ByteBuffer.allocateDirect(chromaStride * chromaHeight);
+        for (int y = 0; y < chromaHeight; y++) {
+            for (int x = 0; x < chromaWidth; x++) {
+                chroma.put(y * chromaStride + x * 2, (byte) v);
+                chroma.put(y * chromaStride + x * 2 + 1, (byte) u);
+            }
+        }
+        ByteBuffer uBuffer = chroma.duplicate();
+        uBuffer.position(1);
+        return new JpegEncoder.Frame(width, height,
+                new JpegEncoder.Plane(luma, rowStride, 1),
+                new JpegEncoder.Plane(uBuffer, chromaStride, 2),
+                new JpegEncoder.Plane(chroma.duplicate(), chromaStride, 2));
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+        assertNotNull(image);
+        return image;
+    }
+
+    private static void assertColor(int rgb, int r, int g, int b, int tolerance) {
+        String message = String.format("Expected %d,%d,%d but was %06x", r, g, b, rgb & 0xffffff);
+        assertTrue(message, Math.abs(((rgb >> 16) & 0xff) - clamp(r)) <= tolerance);
+        assertTrue(message, Math.abs(((rgb >> 8) & 0xff) - clamp(g)) <= tolerance);
+        assertTrue(message, Math.abs((rgb & 0xff) - clamp(b)) <= tolerance);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static int indexOfMarker(byte[] jpeg, int marker) {
+        for (int i = 0; i + 1 < jpeg.length; i++) {
+            if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == marker) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
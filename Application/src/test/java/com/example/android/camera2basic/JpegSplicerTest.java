@@ -0,0 +1,330 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * JVM tests for {@link JpegSplicer}, including a fuzz test over corrupted JPEG headers.
+ */
+public class JpegSplicerTest {
+
+    private static final int FUZZ_ITERATIONS = 3000;
+
+    private File mFile;
+
+    private RandomAccessFile mOutput;
+
+    private ByteBufferPool mPool;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("spliced", ".jpg");
+        mOutput = new RandomAccessFile(mFile, "rw");
+        mPool = new ByteBufferPool(4 * 1024, 2);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mOutput.close();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Test
+    public void insertsAfterLeadingAppSegments() throws Exception {
+        byte[] jpeg = jpeg();
+        int insertion = 2 + 18 + 12;
+        assertEquals(insertion, JpegSplicer.findInsertionPoint(ByteBuffer.wrap(jpeg)));
+        ByteBuffer segment = JpegSplicer.appSegment(11, new byte[]{1, 2, 3});
+        byte[] expected = concat(Arrays.copyOf(jpeg, insertion),
+                new byte[]{(byte) 0xFF, (byte) 0xEB, 0, 5, 1, 2, 3},
+                Arrays.copyOfRange(jpeg, insertion, jpeg.length));
+        assertArrayEquals(expected, splice(ByteBuffer.wrap(jpeg), segment));
+        assertArrayEquals(expected, splice(direct(jpeg), segment));
+        // The segment can be reused.
+        assertEquals(0, segment.position());
+    }
+
+    @Test
+    public void honorsThePositionOfTheBuffer() throws Exception {
+        byte[] jpeg = jpeg();
+        ByteBuffer buffer = ByteBuffer.allocate(jpeg.length + 5);
+        buffer.position(5);
+        buffer.put(jpeg).position(5);
+        ByteBuffer segment = JpegSplicer.appSegment(2, new byte[0]);
+        byte[] spliced = splice(buffer, segment);
+        assertEquals(jpeg.length + 4, spliced.length);
+        assertEquals(jpeg.length + 5, buffer.position());
+    }
+
+    @Test
+    public void splicedEncoderOutputStillDecodes() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        byte[] jpeg;
+        try {
+            jpeg = new JpegEncoder(90, 1, executor).encode(gray(48, 32), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+        String packet = "<x:xmpmeta xmlns:x=\"adobe:ns:meta/\"/>";
+        byte[] spliced = splice(direct(jpeg), JpegSplicer.xmpSegment(packet));
+        assertEquals(jpeg.length + 4 + 29 + packet.length(), spliced.length);
+        assertTrue(new String(spliced, "ISO-8859-1").contains("http://ns.adobe.com/xap/1.0/\0"
+                + packet));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(spliced));
+        assertNotNull(image);
+        assertEquals(48, image.getWidth());
+        assertEquals(32, image.getHeight());
+    }
+
+    @Test
+    public void leavesOtherBytesUnwritten() throws Exception {
+        ByteBuffer png = ByteBuffer.wrap(new byte[]{(byte) 0x89, 'P', 'N', 'G', 0, 0});
+        FileChannel channel = mOutput.getChannel();
+        assertFalse(JpegSplicer.write(png, new ByteBuffer[]{JpegSplicer.appSegment(1,
+                new byte[1])}, channel, mPool));
+        assertEquals(0, channel.size());
+        assertEquals(0, png.position());
+    }
+
+    @Test
+    public void exifSegmentRecordsTheOrientation() {
+        int[] degrees = {0, 90, 180, 270};
+        int[] expected = {1, 6, 3, 8};
+        for (int i = 0; i < degrees.length; i++) {
+            ByteBuffer segment = JpegSplicer.exifSegment(degrees[i]);
+            assertEquals(0xFFE1, segment.getShort(0) & 0xFFFF);
+            assertEquals(segment.remaining() - 2, segment.getShort(2));
+            assertEquals('E', segment.get(4));
+            // The TIFF header starts after "Exif\0\0"; IFD0 follows it with a single entry.
+            assertEquals('M', segment.get(10));
+            assertEquals(42, segment.getShort(12));
+            assertEquals(1, segment.getShort(18));
+            assertEquals(0x0112, segment.getShort(20));
+            assertEquals(expected[i], segment.getShort(28));
+        }
+    }
+
+    @Test
+    public void exifSegmentLeavesOutAThumbnailThatDoesNotFit() {
+        ByteBuffer segment = JpegSplicer.exifSegment(0, new byte[JpegSplicer.MAX_PAYLOAD]);
+        assertEquals(JpegSplicer.exifSegment(0), segment);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exifSegmentRejectsOtherAngles() {
+        JpegSplicer.exifSegment(45);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOversizedPayload() {
+        JpegSplicer.appSegment(1, new byte[JpegSplicer.MAX_PAYLOAD + 1]);
+    }
+
+    @Test
+    public void splicingDoesNotCopyTheImage() throws Exception {
+        byte[] header = jpeg();
+        ByteBuffer frame = ByteBuffer.allocateDirect(1024 * 1024);
+        frame.put(header);
+        ByteBuffer[] segments = {JpegSplicer.appSegment(1, new byte[256])};
+        FileChannel channel = mOutput.getChannel();
+        for (int i = 0; i < 20; i++) {
+            frame.clear();
+            channel.position(0);
+            JpegSplicer.write(frame, segments, channel, mPool);
+        }
+        long before = allocatedBytes();
+        for (int i = 0; i < 20; i++) {
+            frame.clear();
+            channel.position(0);
+            JpegSplicer.write(frame, segments, channel, mPool);
+        }
+        long allocated = (allocatedBytes() - before) / 20;
+        assertTrue("Allocated " + allocated + " bytes per frame", allocated < 4096);
+        assertEquals(frame.capacity() + 260, channel.size());
+    }
+
+    /**
+     * Corrupts the header of a JPEG in random ways. Finding the insertion point must either fail
+     * with an {@link IOException} or point inside the buffer past the SOI marker, and a splice
+     * must then keep every original byte.
+     */
+    @Test
+    public void fuzzCorruptedHeaders() throws Exception {
+        Random random = new Random(23);
+        byte[] original = jpeg();
+        ByteBuffer segment = JpegSplicer.appSegment(1, new byte[]{'f', 'u', 'z', 'z'});
+        int spliced = 0;
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] jpeg = mutate(original, random);
+            ByteBuffer buffer = random.nextBoolean() ? ByteBuffer.wrap(jpeg) : direct(jpeg);
+            int insertion;
+            try {
+                insertion = JpegSplicer.findInsertionPoint(buffer);
+            } catch (IOException e) {
+                assertFalse(JpegSplicer.write(buffer, new ByteBuffer[]{segment},
+                        truncated(), mPool));
+                assertEquals(0, mOutput.length());
+                continue;
+            } catch (RuntimeException e) {
+                throw new AssertionError("Iteration " + i + ": " + e);
+            }
+            assertTrue(insertion >= 2 && insertion < jpeg.length);
+            byte[] output = splice(buffer, segment);
+            byte[] expected = concat(Arrays.copyOf(jpeg, insertion), bytesOf(segment),
+                    Arrays.copyOfRange(jpeg, insertion, jpeg.length));
+            if (!Arrays.equals(expected, output)) {
+                fail("Iteration " + i + " lost bytes");
+            }
+            spliced++;
+        }
+        // The mutations should leave plenty of well-formed headers to splice into.
+        assertTrue("Spliced " + spliced, spliced > FUZZ_ITERATIONS / 10);
+    }
+
+    private static byte[] mutate(byte[] original, Random random) {
+        switch (random.nextInt(4)) {
+            case 0: {
+                byte[] jpeg = original.clone();
+                for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+                    // Mostly the header, where the splicer looks.
+                    jpeg[random.nextInt(40)] = (byte) random.nextInt(256);
+                }
+                return jpeg;
+            }
+            case 1:
+                return Arrays.copyOf(original, random.nextInt(original.length + 1));
+            case 2: {
+                byte[] jpeg = original.clone();
+                // A segment length that points anywhere
+                int at = random.nextBoolean() ? 4 : 22;
+                jpeg[at] = (byte) random.nextInt(256);
+                jpeg[at + 1] = (byte) random.nextInt(256);
+                return jpeg;
+            }
+            default: {
+                byte[] jpeg = new byte[random.nextInt(64)];
+                random.nextBytes(jpeg);
+                if (jpeg.length >= 2 && random.nextBoolean()) {
+                    jpeg[0] = (byte) 0xFF;
+                    jpeg[1] = (byte) 0xD8;
+                }
+                return jpeg;
+            }
+        }
+    }
+
+    /**
+     * Returns a small JPEG header: SOI, a JFIF APP0, an APP1, a DQT and a few bytes of scan.
+     */
+    private static byte[] jpeg() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        byte[] app0 = {(byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0,
+                1, 0, 0};
+        out.write(app0, 0, app0.length);
+        byte[] app1 = {(byte) 0xFF, (byte) 0xE1, 0, 10, 'E', 'x', 'i', 'f', 0, 0, 'M', 'M'};
+        out.write(app1, 0, app1.length);
+        byte[] dqt = {(byte) 0xFF, (byte) 0xDB, 0, 4, 0, 1};
+        out.write(dqt, 0, dqt.length);
+        byte[] scan = {(byte) 0xFF, (byte) 0xDA, 0, 2, 0x12, 0x34, (byte) 0xFF, (byte) 0xD9};
+        out.write(scan, 0, scan.length);
+        return out.toByteArray();
+    }
+
+    private static JpegEncoder.Frame gray(int width, int height) {
+        ByteBuffer y = ByteBuffer.allocate(width * height);
+        for (int i = 0; i < width * height; i++) {
+            y.put(i, (byte) (i % width * 4));
+        }
+        ByteBuffer chroma = ByteBuffer.allocate(width * height / 4);
+        Arrays.fill(chroma.array(), (byte) 128);
+        return new JpegEncoder.Frame(width, height, new JpegEncoder.Plane(y, width, 1),
+                new JpegEncoder.Plane(chroma, width / 2, 1),
+                new JpegEncoder.Plane(chroma, width / 2, 1));
+    }
+
+    private byte[] splice(ByteBuffer jpeg, ByteBuffer segment) throws Exception {
+        FileChannel channel = truncated();
+        assertTrue(JpegSplicer.write(jpeg, new ByteBuffer[]{segment}, channel, mPool));
+        byte[] bytes = new byte[(int) channel.size()];
+        mOutput.seek(0);
+        mOutput.readFully(bytes);
+        return bytes;
+    }
+
+    private FileChannel truncated() throws IOException {
+        FileChannel channel = mOutput.getChannel();
+        channel.truncate(0);
+        channel.position(0);
+        return channel;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+}
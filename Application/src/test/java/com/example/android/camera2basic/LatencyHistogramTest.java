@@ -0,0 +1,74 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for the bucketing of {@link LatencyHistogram} and the stages of
+ * {@link CaptureMetrics}.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void everyValueFallsWithinItsBucket() {
+        int previous = -1;
+        for (long us = 0; us < 1 << 20; us += 1 + us / 7) {
+            int bucket = LatencyHistogram.bucketOf(us);
+            assertTrue(bucket >= previous);
+            assertTrue(us <= LatencyHistogram.upperBoundOf(bucket));
+            if (bucket > 0) {
+                assertTrue(us > LatencyHistogram.upperBoundOf(bucket - 1));
+            }
+            previous = bucket;
+        }
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesAreWithinAQuarter() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int ms = 1; ms <= 100; ms++) {
+            histogram.record(ms * 1000000L);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(50500, histogram.getMeanUs());
+        assertEquals(100000, histogram.getMaxUs());
+        long p50 = histogram.getPercentileUs(50);
+        assertTrue(p50 >= 50000 && p50 <= 62500);
+        assertEquals(100000, histogram.getPercentileUs(100));
+        histogram.reset();
+        assertEquals(0, histogram.getPercentileUs(50));
+    }
+
+    @Test
+    public void stagesAreMeasuredFromTheShutter() {
+        CaptureMetrics metrics = new CaptureMetrics();
+        metrics.mark(CaptureMetrics.Stage.IMAGE_SAVED, 5000000);
+        assertEquals(0, metrics.getHistogram(CaptureMetrics.Stage.IMAGE_SAVED).getCount());
+        metrics.mark(CaptureMetrics.Stage.SHUTTER, 10000000);
+        metrics.mark(CaptureMetrics.Stage.AF_TRIGGERED, 12000000);
+        metrics.mark(CaptureMetrics.Stage.IMAGE_SAVED, 310000000);
+        assertEquals(2000, metrics.getHistogram(CaptureMetrics.Stage.AF_TRIGGERED).getMaxUs());
+        assertEquals(300000, metrics.getHistogram(CaptureMetrics.Stage.IMAGE_SAVED).getMaxUs());
+        assertEquals(0, metrics.getHistogram(CaptureMetrics.Stage.SHUTTER).getCount());
+    }
+
+}
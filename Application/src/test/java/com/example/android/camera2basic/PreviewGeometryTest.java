@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for {@link PreviewGeometry}. The transformation is checked against the sequence of
+ * {@link android.graphics.Matrix} operations it replaces, composed here by hand.
+ */
+public class PreviewGeometryTest {
+
+    private static final float EPSILON = 1e-3f;
+
+    @Test
+    public void fitsToAspectRatio() {
+        int[] out = new int[2];
+        PreviewGeometry.fitToAspectRatio(1080, 1920, 3, 4, out);
+        assertArrayEquals(new int[]{1080, 1440}, out);
+        PreviewGeometry.fitToAspectRatio(1920, 1080, 4, 3, out);
+        assertArrayEquals(new int[]{1440, 1080}, out);
+        PreviewGeometry.fitToAspectRatio(1920, 1080, 0, 0, out);
+        assertArrayEquals(new int[]{1920, 1080}, out);
+    }
+
+    @Test
+    public void transformMatchesMatrixOperations() {
+        int[][] cases = {{1920, 1080, 1440, 1080}, {2560, 1440, 1920, 1080}, {800, 600, 640, 480}};
+        float[] values = new float[9];
+        for (int[] c : cases) {
+            for (int rotation = 0; rotation < 4; rotation++) {
+                PreviewGeometry.getTransform(c[0], c[1], c[2], c[3], rotation, values);
+                assertArrayEquals(reference(c[0], c[1], c[2], c[3], rotation), values, EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void upsideDownTransformFlipsTheView() {
+        float[] values = new float[9];
+        PreviewGeometry.getTransform(100, 200, 640, 480, 2, values);
+        assertEquals(100 - 10, values[PreviewGeometry.MSCALE_X] * 10
+                + values[PreviewGeometry.MTRANS_X], EPSILON);
+        assertEquals(200 - 20, values[PreviewGeometry.MSCALE_Y] * 20
+                + values[PreviewGeometry.MTRANS_Y], EPSILON);
+    }
+
+    /**
+     * setRectToRect(FILL), postScale and postRotate as done by the original configureTransform.
+     */
+    private static float[] reference(int viewWidth, int viewHeight, int previewWidth,
+                                     int previewHeight, int rotation) {
+        float centerX = viewWidth / 2f;
+        float centerY = viewHeight / 2f;
+        float[] m = identity();
+        if (1 == rotation || 3 == rotation) {
+            float left = centerX - previewHeight / 2f;
+            float top = centerY - previewWidth / 2f;
+            m = new float[]{
+                    (float) previewHeight / viewWidth, 0, left,
+                    0, (float) previewWidth / viewHeight, top,
+                    0, 0, 1};
+            float scale = Math.max(
+                    (float) viewHeight / previewHeight,
+                    (float) viewWidth / previewWidth);
+            m = multiply(about(new float[]{scale, 0, 0, 0, scale, 0, 0, 0, 1}, centerX, centerY),
+                    m);
+            m = multiply(rotate(90 * (rotation - 2), centerX, centerY), m);
+        } else if (2 == rotation) {
+            m = multiply(rotate(180, centerX, centerY), m);
+        }
+        return m;
+    }
+
+    private static float[] rotate(double degrees, float px, float py) {
+        float sin = (float) Math.sin(Math.toRadians(degrees));
+        float cos = (float) Math.cos(Math.toRadians(degrees));
+        return about(new float[]{cos, -sin, 0, sin, cos, 0, 0, 0, 1}, px, py);
+    }
+
+    private static float[] about(float[] m, float px, float py) {
+        float[] toOrigin = {1, 0, -px, 0, 1, -py, 0, 0, 1};
+        float[] back = {1, 0, px, 0, 1, py, 0, 0, 1};
+        return multiply(back, multiply(m, toOrigin));
+    }
+
+    private static float[] identity() {
+        return new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+    }
+
+    private static float[] multiply(float[] a, float[] b) {
+        float[] out = new float[9];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                float sum = 0;
+                for (int i = 0; i < 3; i++) {
+                    sum += a[row * 3 + i] * b[i * 3 + col];
+                }
+                out[row * 3 + col] = sum;
+            }
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for {@link PreviewGovernor}, driven by synthetic frame traces.
+ */
+public class PreviewGovernorTest {
+
+    /**
+     * 30 frames per second
+     */
+    private static final long FRAME_NS = 33333333;
+
+    private static final long SECOND_NS = 1000000000L;
+
+    private static final long START_NS = 123456789000L;
+
+    private static final int COOL = 300;
+
+    private static final int WARM = 400;
+
+    private static final int HOT = 430;
+
+    private final FakeSignals mSignals = new FakeSignals();
+
+    private PreviewGovernor mGovernor;
+
+    private long mTimestampNs;
+
+    @Before
+    public void setUp() {
+        mGovernor = new PreviewGovernor(Arrays.asList(
+                new PreviewGovernor.Level(1920, 1080, 30, 30),
+                new PreviewGovernor.Level(1280, 720, 30, 30),
+                new PreviewGovernor.Level(1280, 720, 15, 15)), mSignals);
+        mTimestampNs = START_NS;
+        mSignals.temperature = COOL;
+    }
+
+    @Test
+    public void steadyPreviewStaysAtTheTop() {
+        run(60, 0);
+        assertEquals(0, mGovernor.getLevelIndex());
+        assertEquals(0, mGovernor.getChangeCount());
+    }
+
+    @Test
+    public void droppedFramesStepDownOneLevelAtATime() {
+        run(7, 10);
+        assertEquals(1, mGovernor.getLevelIndex());
+        run(7, 10);
+        assertEquals(2, mGovernor.getLevelIndex());
+        run(30, 10);
+        assertEquals(2, mGovernor.getLevelIndex());
+    }
+
+    @Test
+    public void stallingStreamStepsDown() {
+        long end = mTimestampNs + 7 * SECOND_NS;
+        while (mTimestampNs < end) {
+            mTimestampNs += 400000000L;
+            mGovernor.onFrame(mTimestampNs);
+        }
+        assertEquals(1, mGovernor.getLevelIndex());
+    }
+
+    @Test
+    public void savingBacklogStepsDown() {
+        mSignals.queueDepth = PreviewGovernor.QUEUE_HIGH;
+        run(7, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        // Draining the queue alone is not enough while frames are being dropped.
+        mSignals.queueDepth = 0;
+        run(30, 10);
+        assertEquals(2, mGovernor.getLevelIndex());
+    }
+
+    @Test
+    public void temperatureHasHysteresis() {
+        mSignals.temperature = HOT;
+        run(7, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        // Below the hot threshold but not yet cool: the level holds.
+        mSignals.temperature = WARM;
+        run(60, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        mSignals.temperature = COOL;
+        run(8, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        run(4, 0);
+        assertEquals(0, mGovernor.getLevelIndex());
+    }
+
+    @Test
+    public void failedStepUpDoublesTheHold() {
+        mSignals.temperature = HOT;
+        run(7, 0);
+        mSignals.temperature = COOL;
+        run(12, 0);
+        assertEquals(0, mGovernor.getLevelIndex());
+        assertEquals(PreviewGovernor.UP_HOLD_NS, mGovernor.getUpHoldNs());
+
+        mSignals.temperature = HOT;
+        run(5, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        assertEquals(2 * PreviewGovernor.UP_HOLD_NS, mGovernor.getUpHoldNs());
+
+        mSignals.temperature = COOL;
+        run(12, 0);
+        assertEquals(1, mGovernor.getLevelIndex());
+        run(10, 0);
+        assertEquals(0, mGovernor.getLevelIndex());
+    }
+
+    @Test
+    public void restartWaitsForThePreviewToSettle() {
+        run(10, 0);
+        mGovernor.restart();
+        // The gap while the session was rebuilt is not a stall.
+        mTimestampNs += 3 * SECOND_NS;
+        run(30, 0);
+        assertEquals(0, mGovernor.getChangeCount());
+    }
+
+    @Test
+    public void ladderStepsDownInAreaThenFrameRate() {
+        int[] widths = {640, 1920, 960, 1280, 320, 1600, 1024};
+        int[] heights = {360, 1080, 540, 720, 180, 900, 576};
+        int[] fpsRanges = {15, 30, 30, 30, 15, 15, 7, 15};
+        List<PreviewGovernor.Level> levels =
+                PreviewGovernor.buildLadder(widths, heights, fpsRanges);
+        assertEquals("[1920x1080@[30,30], 1600x900@[30,30], 1280x720@[30,30], "
+                + "1024x576@[30,30], 640x360@[30,30], 640x360@[15,15]]", levels.toString());
+    }
+
+    @Test
+    public void ladderWithoutFrameRatesOnlyChangesSize() {
+        List<PreviewGovernor.Level> levels = PreviewGovernor.buildLadder(
+                new int[] {1280, 320}, new int[] {720, 180}, new int[0]);
+        assertEquals("[1280x720@[0,0]]", levels.toString());
+    }
+
+    /**
+     * Feeds frames at 30 frames per second.
+     *
+     * @param seconds   How long to feed frames for
+     * @param dropEvery Every this many frames one is dropped, or 0 to drop none
+     */
+    private void run(int seconds, int dropEvery) {
+        long end = mTimestampNs + seconds * SECOND_NS;
+        int frame = 0;
+        while (mTimestampNs < end) {
+            frame++;
+            mTimestampNs += dropEvery > 0 && frame % dropEvery == 0 ? 2 * FRAME_NS : FRAME_NS;
+            mGovernor.onFrame(mTimestampNs);
+        }
+    }
+
+    private static class FakeSignals implements PreviewGovernor.Signals {
+
+        int queueDepth;
+
+        int temperature;
+
+        @Override
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        @Override
+        public int getTemperature() {
+            return temperature;
+        }
+
+    }
+
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link ReplayFrameSource}, including a replay through a {@link CapturePipeline}.
+ */
+public class ReplayFrameSourceTest {
+
+    private static final int WIDTH = 64;
+
+    private static final int HEIGHT = 48;
+
+    /**
+     * Fast enough that the tests don't wait long, slow enough for a loaded machine
+     */
+    private static final double FRAME_RATE = 200;
+
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    private ReplayFrameSource mSource;
+
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mTemporaryFolder.newFolder("replay");
+        mExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (null != mSource) {
+            mSource.close();
+            assertTrue(mSource.awaitTermination(TIMEOUT_MS));
+        }
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void replaysStillsWithTheirMetadata() throws Exception {
+        writeRecording("0.yuv,yuv,64,48,2,2,16666666,100", "1.yuv,yuv,64,48,4,3,33333333,400");
+        RecordingCallback callback = new RecordingCallback();
+        mSource = new ReplayFrameSource(mDir, FRAME_RATE, 4);
+        start(callback, FrameSource.FORMAT_YUV_420_888, false);
+        mSource.capture(3);
+        long lastTimestampNs = 0;
+        for (int i = 0; i < 3; i++) {
+            FrameSource.Frame frame = callback.stills.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            assertNotNull(frame);
+            assertEquals(FrameSource.FORMAT_YUV_420_888, frame.getFormat());
+            assertEquals(WIDTH, frame.getWidth());
+            assertEquals(HEIGHT, frame.getHeight());
+            assertEquals(3, frame.getPlaneCount());
+            assertEquals(WIDTH, frame.getPlane(0).rowStride);
+            assertEquals(WIDTH * HEIGHT, frame.getPlane(0).buffer.remaining());
+            assertEquals(WIDTH / 2 * HEIGHT / 2, frame.getPlane(2).buffer.remaining());
+            assertTrue(frame.getTimestampNs() > lastTimestampNs);
+            lastTimestampNs = frame.getTimestampNs();
+            frame.close();
+        }
+        boolean sawSecondFrame = false;
+        FrameSource.Result result;
+        while (null != (result = callback.results.poll())) {
+            if (result.sensitivity == 400) {
+                sawSecondFrame = true;
+                assertEquals(4, result.afState);
+                assertEquals(3, result.aeState);
+                assertEquals(33333333L, result.exposureTimeNs);
+            }
+        }
+        assertTrue(sawSecondFrame);
+        assertEquals(3, mSource.getStillCount());
+        assertEquals(0, mSource.getHeldStillCount());
+    }
+
+    @Test
+    public void stillsBeyondMaxImagesAreDropped() throws Exception {
+        writeRecording("0.yuv,yuv,64,48,2,2,16666666,100");
+        RecordingCallback callback = new RecordingCallback();
+        mSource = new ReplayFrameSource(mDir, FRAME_RATE, 2);
+        start(callback, FrameSource.FORMAT_YUV_420_888, false);
+        mSource.capture(5);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (mSource.getStillCount() + mSource.getDroppedStillCount() < 5
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(2, mSource.getStillCount());
+        assertEquals(3, mSource.getDroppedStillCount());
+        assertEquals(2, mSource.getHeldStillCount());
+    }
+
+    @Test
+    public void pipelineSavesReplayedStills() throws Exception {
+        writeRecording("0.yuv,yuv,64,48,2,2,16666666,100", "1.jpg,jpeg,64,48,2,2,16666666,100");
+        final int stills = 4;
+        final CountDownLatch saved = new CountDownLatch(stills);
+        CaptureStorage storage = new CaptureStorage(new File(mDir, "captures"),
+                CaptureStorage.SET_LENGTH);
+        FrameAnalysisPipeline analysis = new FrameAnalysisPipeline(mExecutor);
+        final CountDownLatch analyzed = new CountDownLatch(1);
+        analysis.addAnalyzer("count", new FrameAnalyzer() {
+            @Override
+            public void analyze(Frame frame) {
+                analyzed.countDown();
+            }
+        });
+        ImageSaveQueue queue = new ImageSaveQueue(2, 4, ImageSaveQueue.Backpressure.BLOCK);
+        final CapturePipeline pipeline = new CapturePipeline(storage, queue,
+                new JpegEncoder(90, 2, mExecutor), new ByteBufferPool(64 * 1024, 2), analysis);
+        pipeline.setCallback(new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(CaptureStorage.Output output, long length) {
+                saved.countDown();
+            }
+        });
+        RecordingCallback callback = new RecordingCallback() {
+            @Override
+            public void onPreviewFrame(FrameSource.Frame frame) {
+                pipeline.analyze(frame);
+            }
+
+            @Override
+            public void onStillImage(FrameSource.Frame frame) {
+                assertNotNull(pipeline.save(frame));
+            }
+        };
+        mSource = new ReplayFrameSource(mDir, FRAME_RATE, 4);
+        start(callback, FrameSource.FORMAT_YUV_420_888, true);
+        mSource.capture(stills);
+        assertTrue(saved.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(analyzed.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        queue.shutdown();
+        assertTrue(queue.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(0, queue.getDroppedCount());
+        List<CaptureIndex.Entry> entries = storage.getIndex().getEntries();
+        assertEquals(stills, entries.size());
+        for (CaptureIndex.Entry entry : entries) {
+            RandomAccessFile file = new RandomAccessFile(entry.file, "r");
+            try {
+                // Only the YUV frames are stills here, so every file was encoded by the pipeline.
+                assertEquals(0xFFD8, file.readUnsignedShort());
+            } finally {
+                file.close();
+            }
+        }
+        assertEquals(0, mSource.getHeldStillCount());
+    }
+
+    @Test
+    public void missingFramesFailToOpen() throws Exception {
+        writeRecording("0.yuv,yuv,64,48,2,2,16666666,100");
+        assertTrue(new File(mDir, "0.yuv").delete());
+        RecordingCallback callback = new RecordingCallback();
+        mSource = new ReplayFrameSource(mDir, FRAME_RATE, 4);
+        mSource.open(callback);
+        assertNotNull(callback.errors.poll(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(callback.opened.await(0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Opens {@link #mSource} and starts the repeating request.
+     */
+    private void start(RecordingCallback callback, int stillFormat, boolean analysis)
+            throws Exception {
+        mSource.open(callback);
+        assertTrue(callback.opened.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        mSource.createSession(stillFormat, analysis);
+        mSource.setRepeating(true);
+    }
+
+    /**
+     * Writes frames of random-looking content and an index with the given lines.
+     */
+    private void writeRecording(String... lines) throws IOException {
+        StringBuilder index = new StringBuilder(
+                "file,format,width,height,af_state,ae_state,exposure_time_ns,sensitivity\n");
+        for (String line : lines) {
+            index.append(line).append('\n');
+            String name = line.substring(0, line.indexOf(','));
+            byte[] data = new byte[WIDTH * HEIGHT * 3 / 2];
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i * 31 + name.hashCode());
+            }
+            if (name.endsWith(".jpg")) {
+                data[0] = (byte) 0xFF;
+                data[1] = (byte) 0xD8;
+            }
+            write(new File(mDir, name), data);
+        }
+        write(new File(mDir, ReplayFrameSource.INDEX_NAME), index.toString().getBytes("UTF-8"));
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class RecordingCallback implements FrameSource.Callback {
+
+        final CountDownLatch opened = new CountDownLatch(1);
+
+        final BlockingQueue<Exception> errors = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<FrameSource.Result> results = new LinkedBlockingQueue<>();
+
+        final BlockingQueue<FrameSource.Frame> stills = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public void onError(Exception e) {
+            errors.add(e);
+        }
+
+        @Override
+        public void onCaptureResult(FrameSource.Result result) {
+            results.add(result);
+        }
+
+        @Override
+        public void onPreviewFrame(FrameSource.Frame frame) {
+        }
+
+        @Override
+        public void onStillImage(FrameSource.Frame frame) {
+            stills.add(frame);
+        }
+
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link ThumbnailCache}.
+ */
+public class ThumbnailCacheTest {
+
+    @Rule
+    public final TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        // The cache makes its own directory.
+        mDir = new File(mTemporaryFolder.getRoot(), "thumbnails");
+    }
+
+    @Test
+    public void servesFromMemoryThenDisk() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000, 150);
+        byte[] first = thumbnail(1, 100);
+        byte[] second = thumbnail(2, 100);
+        cache.put(1, first);
+        assertSame(first, cache.get(1));
+        // Only one fits in memory, so the first is read back from disk.
+        cache.put(2, second);
+        assertEquals(100, cache.getMemoryBytes());
+        byte[] read = cache.get(1);
+        assertArrayEquals(first, read);
+        assertTrue(read != first);
+        assertNull(cache.get(3));
+        assertFalse(cache.contains(3));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFromDisk() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 300, 1000);
+        cache.put(1, thumbnail(1, 100));
+        cache.put(2, thumbnail(2, 100));
+        cache.put(3, thumbnail(3, 100));
+        cache.get(1);
+        cache.put(4, thumbnail(4, 100));
+        assertTrue(cache.contains(1));
+        assertFalse(cache.contains(2));
+        assertNull(cache.get(2));
+        assertFalse(new File(mDir, "2.jpg").exists());
+        assertEquals(300, cache.getDiskBytes());
+        assertEquals(3, cache.getCount());
+    }
+
+    @Test
+    public void replacingKeepsTheCountsRight() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000, 1000);
+        cache.put(1, thumbnail(1, 100));
+        cache.put(1, thumbnail(1, 40));
+        assertEquals(40, cache.getDiskBytes());
+        assertEquals(40, cache.getMemoryBytes());
+        assertEquals(1, cache.getCount());
+    }
+
+    @Test
+    public void reopensWithTheSameOrder() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000, 1000);
+        cache.put(1, thumbnail(1, 100));
+        cache.put(2, thumbnail(2, 100));
+        cache.put(3, thumbnail(3, 100));
+        // Modification times may be coarse, so the order is set explicitly.
+        assertTrue(new File(mDir, "1.jpg").setLastModified(3000000));
+        assertTrue(new File(mDir, "2.jpg").setLastModified(1000000));
+        assertTrue(new File(mDir, "3.jpg").setLastModified(2000000));
+        assertTrue(new File(mDir, "9.tmp").createNewFile());
+        ThumbnailCache reopened = new ThumbnailCache(mDir, 200, 1000);
+        assertEquals(2, reopened.getCount());
+        assertFalse(reopened.contains(2));
+        assertArrayEquals(thumbnail(1, 100), reopened.get(1));
+        assertFalse(new File(mDir, "9.tmp").exists());
+    }
+
+    @Test
+    public void missingFileIsAMiss() throws IOException {
+        ThumbnailCache cache = new ThumbnailCache(mDir, 1000, 50);
+        cache.put(1, thumbnail(1, 100));
+        assertTrue(new File(mDir, "1.jpg").delete());
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getDiskBytes());
+        assertFalse(cache.contains(1));
+    }
+
+    private static byte[] thumbnail(int seed, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (seed * 31 + i);
+        }
+        return bytes;
+    }
+
+}
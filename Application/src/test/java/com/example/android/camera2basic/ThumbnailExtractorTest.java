@@ -0,0 +1,230 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link ThumbnailExtractor}.
+ */
+public class ThumbnailExtractorTest {
+
+    private static final byte[] THUMBNAIL = {(byte) 0xFF, (byte) 0xD8, 1, 2, 3, (byte) 0xFF,
+            (byte) 0xD9};
+
+    @Test
+    public void findsThumbnailInEitherByteOrder() {
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            ByteBuffer thumbnail = ThumbnailExtractor.find(ByteBuffer.wrap(jpeg(order,
+                    THUMBNAIL)));
+            assertNotNull(order.toString(), thumbnail);
+            assertArrayEquals(THUMBNAIL, bytesOf(thumbnail));
+        }
+    }
+
+    @Test
+    public void readsTheThumbnailOfAFile() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        byte[] thumbnail;
+        try {
+            thumbnail = new JpegEncoder(80, 1, executor).encode(gray(32, 24), 0);
+        } finally {
+            executor.shutdownNow();
+        }
+        File file = File.createTempFile("exif", ".jpg");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(jpeg(ByteOrder.BIG_ENDIAN, thumbnail));
+                // The scan of a large image, which is never read
+                out.write(new byte[1024 * 1024]);
+            } finally {
+                out.close();
+            }
+            byte[] read = ThumbnailExtractor.read(file);
+            assertArrayEquals(thumbnail, read);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(read));
+            assertEquals(32, image.getWidth());
+            assertEquals(24, image.getHeight());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void findsTheThumbnailOfAStillEncodedFromYuv() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        byte[] still;
+        byte[] thumbnail;
+        try {
+            JpegEncoder encoder = new JpegEncoder(80, 2, executor);
+            still = encoder.encode(gray(256, 192), 0);
+            thumbnail = encoder.encode(gray(256, 192), YuvJpegSource.THUMBNAIL_SCALE_SHIFT);
+        } finally {
+            executor.shutdownNow();
+        }
+        File file = File.createTempFile("yuv", ".jpg");
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                assertTrue(JpegSplicer.write(ByteBuffer.wrap(still),
+                        new ByteBuffer[]{JpegSplicer.exifSegment(90, thumbnail)},
+                        out.getChannel(), new ByteBufferPool(4096, 1)));
+            } finally {
+                out.close();
+            }
+            byte[] read = ThumbnailExtractor.read(file);
+            assertArrayEquals(thumbnail, read);
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(read));
+            assertEquals(32, image.getWidth());
+            assertEquals(24, image.getHeight());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void exifWithoutThumbnailHasNone() {
+        byte[] jpeg = jpeg(ByteOrder.BIG_ENDIAN, THUMBNAIL);
+        // Zero the offset of IFD1.
+        int nextIfd = 2 + 4 + 6 + 8 + 2 + 12;
+        Arrays.fill(jpeg, nextIfd, nextIfd + 4, (byte) 0);
+        assertNull(ThumbnailExtractor.find(ByteBuffer.wrap(jpeg)));
+    }
+
+    @Test
+    public void otherBytesHaveNone() {
+        assertNull(ThumbnailExtractor.find(ByteBuffer.wrap(new byte[0])));
+        assertNull(ThumbnailExtractor.find(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8,
+                (byte) 0xFF, (byte) 0xDB, 0, 2})));
+        assertNull(ThumbnailExtractor.find(ByteBuffer.wrap("GIF89a".getBytes())));
+    }
+
+    /**
+     * Corrupts the Exif segment in random ways. Extraction must return null or a slice that lies
+     * within the image and starts like a JPEG, without throwing.
+     */
+    @Test
+    public void fuzzCorruptedExif() {
+        Random random = new Random(24);
+        byte[] original = jpeg(ByteOrder.LITTLE_ENDIAN, THUMBNAIL);
+        int found = 0;
+        for (int i = 0; i < 5000; i++) {
+            byte[] jpeg = original.clone();
+            if (random.nextInt(4) == 0) {
+                jpeg = Arrays.copyOf(jpeg, random.nextInt(jpeg.length + 1));
+            } else {
+                for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+                    jpeg[random.nextInt(jpeg.length)] = (byte) random.nextInt(256);
+                }
+            }
+            ByteBuffer thumbnail;
+            try {
+                thumbnail = ThumbnailExtractor.find(ByteBuffer.wrap(jpeg));
+            } catch (RuntimeException e) {
+                throw new AssertionError("Iteration " + i + ": " + e);
+            }
+            if (null != thumbnail) {
+                assertTrue(thumbnail.remaining() >= 2 && thumbnail.remaining() <= jpeg.length);
+                assertEquals((byte) 0xFF, thumbnail.get(0));
+                assertEquals((byte) 0xD8, thumbnail.get(1));
+                found++;
+            }
+        }
+        assertTrue("Found " + found, found > 1000);
+    }
+
+    /**
+     * Returns the start of a JPEG with an Exif segment: IFD0 with an orientation, and IFD1
+     * pointing to {@code thumbnail}.
+     */
+    private static byte[] jpeg(ByteOrder order, byte[] thumbnail) {
+        int tiffLength = 8 + (2 + 12 + 4) + (2 + 2 * 12 + 4) + thumbnail.length;
+        ByteBuffer tiff = ByteBuffer.allocate(tiffLength).order(order);
+        tiff.put(order == ByteOrder.BIG_ENDIAN ? (byte) 'M' : (byte) 'I');
+        tiff.put(tiff.get(0));
+        tiff.putShort((short) 42).putInt(8);
+        // IFD0: the orientation, then the offset of IFD1
+        int ifd1 = 8 + 2 + 12 + 4;
+        tiff.putShort((short) 1);
+        tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) 1)
+                .putShort((short) 0);
+        tiff.putInt(ifd1);
+        // IFD1: where the thumbnail is and how long it is
+        int thumbnailOffset = ifd1 + 2 + 2 * 12 + 4;
+        tiff.putShort((short) 2);
+        tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(thumbnailOffset);
+        tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+        tiff.putInt(0);
+        tiff.put(thumbnail);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0xFF);
+        out.write(0xD8);
+        int length = 2 + 6 + tiffLength;
+        out.write(0xFF);
+        out.write(0xE1);
+        out.write(length >> 8);
+        out.write(length);
+        byte[] exif = {'E', 'x', 'i', 'f', 0, 0};
+        out.write(exif, 0, exif.length);
+        out.write(tiff.array(), 0, tiffLength);
+        byte[] dqt = {(byte) 0xFF, (byte) 0xDB, 0, 2};
+        out.write(dqt, 0, dqt.length);
+        return out.toByteArray();
+    }
+
+    private static JpegEncoder.Frame gray(int width, int height) {
+        ByteBuffer y = ByteBuffer.allocate(width * height);
+        ByteBuffer chroma = ByteBuffer.allocate(width * height / 4);
+        Arrays.fill(y.array(), (byte) 100);
+        Arrays.fill(chroma.array(), (byte) 128);
+        return new JpegEncoder.Frame(width, height, new JpegEncoder.Plane(y, width, 1),
+                new JpegEncoder.Plane(chroma, width / 2, 1),
+                new JpegEncoder.Plane(chroma, width / 2, 1));
+    }
+
+    private static byte[] bytesOf(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JVM tests for {@link VideoEncoderStats}.
+ */
+public class VideoEncoderStatsTest {
+
+    /**
+     * 30 frames per second
+     */
+    private static final long FRAME_NS = 33333333;
+
+    private static final long START_NS = 123456789000L;
+
+    @Test
+    public void countsFramesQueuedInTheEncoder() {
+        VideoEncoderStats stats = new VideoEncoderStats();
+        for (int i = 0; i < 5; i++) {
+            stats.onFrameCaptured(timestampNs(i));
+        }
+        assertEquals(5, stats.getQueueDepth());
+        stats.onFrameEncoded(timestampNs(0) / 1000, 1000);
+        stats.onFrameEncoded(timestampNs(1) / 1000, 1000);
+        assertEquals(3, stats.getQueueDepth());
+        assertEquals(5, stats.getMaxQueueDepth());
+        assertEquals(0, stats.getDroppedFrames());
+        assertEquals(2, stats.getEncodedFrames());
+        assertEquals(2000, stats.getEncodedBytes());
+    }
+
+    @Test
+    public void framesSkippedByTheEncoderAreDropped() {
+        VideoEncoderStats stats = new VideoEncoderStats();
+        for (int i = 0; i < 10; i++) {
+            stats.onFrameCaptured(timestampNs(i));
+        }
+        stats.onFrameEncoded(timestampNs(0) / 1000, 100);
+        stats.onFrameEncoded(timestampNs(3) / 1000, 100);
+        stats.onFrameEncoded(timestampNs(4) / 1000, 100);
+        assertEquals(2, stats.getDroppedFrames());
+        assertEquals(5, stats.getQueueDepth());
+        stats.onFrameEncoded(timestampNs(8) / 1000, 100);
+        stats.onEndOfStream();
+        assertEquals(6, stats.getDroppedFrames());
+        assertEquals(0, stats.getQueueDepth());
+        assertEquals(10, stats.getCapturedFrames());
+        assertEquals(4, stats.getEncodedFrames());
+    }
+
+    @Test
+    public void unmatchedFramesDoNotPileUp() {
+        VideoEncoderStats stats = new VideoEncoderStats();
+        int count = VideoEncoderStats.MAX_PENDING + 10;
+        for (int i = 0; i < count; i++) {
+            stats.onFrameCaptured(timestampNs(i));
+        }
+        assertEquals(VideoEncoderStats.MAX_PENDING, stats.getQueueDepth());
+        assertEquals(10, stats.getDroppedFrames());
+    }
+
+    private static long timestampNs(int frame) {
+        return START_NS + frame * FRAME_NS;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * JVM tests for {@link ZslRingBuffer} using synthetic frames and results.
+ */
+public class ZslRingBufferTest {
+
+    @Test
+    public void pairsFramesAndResultsInEitherOrder() {
+        ZslRingBuffer<FakeFrame> buffer = new ZslRingBuffer<>(4);
+        buffer.addFrame(new FakeFrame(100));
+        buffer.addResult(200, true, true);
+        assertEquals(0, buffer.getCompleteCount());
+        buffer.addResult(100, true, true);
+        FakeFrame frame = new FakeFrame(200);
+        buffer.addFrame(frame);
+        assertEquals(2, buffer.getCompleteCount());
+        assertSame(frame, buffer.select());
+        assertEquals(1, buffer.getCompleteCount());
+    }
+
+    @Test
+    public void evictsOldestAndClosesIt() {
+        ZslRingBuffer<FakeFrame> buffer = new ZslRingBuffer<>(3);
+        FakeFrame[] frames = new FakeFrame[5];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new FakeFrame(i * 33);
+            buffer.addFrame(frames[i]);
+            buffer.addResult(i * 33, true, true);
+        }
+        assertTrue(frames[0].mClosed);
+        assertTrue(frames[1].mClosed);
+        assertFalse(frames[2].mClosed);
+        assertEquals(3, buffer.getCompleteCount());
+        assertSame(frames[4], buffer.select());
+        assertFalse(frames[4].mClosed);
+    }
+
+    @Test
+    public void prefersFocusedAndExposedFrames() {
+        ZslRingBuffer<FakeFrame> buffer = new ZslRingBuffer<>(4);
+        FakeFrame good = add(buffer, 1, true, true);
+        FakeFrame exposedOnly = add(buffer, 2, false, true);
+        FakeFrame neither = add(buffer, 3, false, false);
+        assertSame(good, buffer.select());
+        assertSame(exposedOnly, buffer.select());
+        assertSame(neither, buffer.select());
+        assertNull(buffer.select());
+    }
+
+    @Test
+    public void freedSlotIsReusedBeforeEvicting() {
+        ZslRingBuffer<FakeFrame> buffer = new ZslRingBuffer<>(2);
+        FakeFrame older = add(buffer, 1, true, true);
+        add(buffer, 2, true, true);
+        buffer.select();
+        add(buffer, 3, true, true);
+        assertFalse(older.mClosed);
+    }
+
+    @Test
+    public void clearClosesEverything() {
+        ZslRingBuffer<FakeFrame> buffer = new ZslRingBuffer<>(2);
+        FakeFrame a = add(buffer, 1, true, true);
+        FakeFrame b = new FakeFrame(2);
+        buffer.addFrame(b);
+        buffer.clear();
+        assertTrue(a.mClosed);
+        assertTrue(b.mClosed);
+        assertNull(buffer.select());
+    }
+
+    private static FakeFrame add(ZslRingBuffer<FakeFrame> buffer, long timestamp,
+                                 boolean focused, boolean exposed) {
+        FakeFrame frame = new FakeFrame(timestamp);
+        buffer.addResult(timestamp, focused, exposed);
+        buffer.addFrame(frame);
+        return frame;
+    }
+
+    private static class FakeFrame implements ZslRingBuffer.Frame {
+
+        private final long mTimestamp;
+
+        private boolean mClosed;
+
+        FakeFrame(long timestamp) {
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+        }
+
+    }
+
+}
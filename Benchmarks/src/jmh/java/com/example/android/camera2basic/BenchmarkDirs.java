@@ -0,0 +1,67 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The directories benchmarks write their files into.
+ *
+ * Files go to the directory named by the benchmark.dir system property when it is set. Otherwise
+ * they go to /dev/shm when it exists, so the numbers reflect the code rather than the disk of the
+ * machine running the benchmark, or to java.io.tmpdir.
+ */
+final class BenchmarkDirs {
+
+    private BenchmarkDirs() {
+    }
+
+    /**
+     * Creates a new directory for a benchmark.
+     *
+     * @param name    The name of the benchmark, which the directory is named after
+     * @param ramDisk Whether /dev/shm may be used. Benchmarks that measure the disk pass false.
+     */
+    static File create(String name, boolean ramDisk) throws IOException {
+        String dir = System.getProperty("benchmark.dir");
+        File shm = new File("/dev/shm");
+        File root = null != dir ? new File(dir)
+                : ramDisk && shm.isDirectory() ? shm
+                : new File(System.getProperty("java.io.tmpdir"));
+        File created = new File(root, name + "-" + System.nanoTime());
+        if (!created.mkdirs()) {
+            throw new IOException("Failed to create " + created);
+        }
+        return created;
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     */
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+}
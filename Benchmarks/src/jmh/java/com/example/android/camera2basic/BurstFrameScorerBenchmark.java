@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks scoring a 12 megapixel burst frame with {@link BurstFrameScorer}, and its kernels on
+ * their own. Compare with -XX:-UseSuperWord to see what vectorization buys.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BurstFrameScorerBenchmark {
+
+    private static final int WIDTH = 4032;
+
+    private static final int HEIGHT = 3024;
+
+    @Param({"320", "640"})
+    public int scoringWidth;
+
+    private ByteBuffer mLuma;
+
+    private BurstFrameScorer mScorer;
+
+    private byte[] mScaled;
+
+    private byte[] mPrevious;
+
+    private int mScaledWidth;
+
+    private int mScaledHeight;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        byte[] pixels = new byte[WIDTH * HEIGHT];
+        random.nextBytes(pixels);
+        mLuma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        mLuma.put(pixels);
+        mLuma.clear();
+        mScorer = new BurstFrameScorer(scoringWidth);
+        int factor = (WIDTH + scoringWidth - 1) / scoringWidth;
+        mScaledWidth = WIDTH / factor;
+        mScaledHeight = HEIGHT / factor;
+        mScaled = new byte[mScaledWidth * mScaledHeight];
+        mPrevious = new byte[mScaledWidth * mScaledHeight];
+        BurstFrameScorer.downscale(mLuma, WIDTH, 1, factor, mScaledWidth, mScaledHeight,
+                new byte[WIDTH], new int[mScaledWidth], mScaled);
+        random.nextBytes(mPrevious);
+    }
+
+    @Benchmark
+    public double score() {
+        return mScorer.score(mLuma, WIDTH, HEIGHT, WIDTH, 1);
+    }
+
+    @Benchmark
+    public double laplacianVariance() {
+        return BurstFrameScorer.laplacianVariance(mScaled, mScaledWidth, mScaledHeight);
+    }
+
+    @Benchmark
+    public double meanAbsoluteDifference() {
+        return BurstFrameScorer.meanAbsoluteDifference(mScaled, mPrevious, mScaled.length);
+    }
+
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recording the metadata of a frame in a {@link CaptureJournal}, which the camera
+ * thread does for every frame. Rotating to a new file is included, once every file's worth of
+ * records.
+ *
+ * Files go to /dev/shm when it exists. Set the benchmark.dir system property to use another
+ * directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureJournalBenchmark {
+
+    private static final int FILE_BYTES = 4 * 1024 * 1024;
+
+    private File mDir;
+
+    private CaptureJournal mJournal;
+
+    private long mFrameNumber;
+
+    @Setup
+    public void setUp() throws IOException {
+        String dir = System.getProperty("benchmark.dir");
+        File root = null != dir ? new File(dir)
+                : new File("/dev/shm").isDirectory() ? new File("/dev/shm")
+                : new File(System.getProperty("java.io.tmpdir"));
+        mDir = new File(root, "CaptureJournalBenchmark-" + System.nanoTime());
+        mJournal = new CaptureJournal(mDir, FILE_BYTES, 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mJournal.close();
+        File[] files = mDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    @Benchmark
+    public void record() {
+        mFrameNumber++;
+        mJournal.record(mFrameNumber * 16666666L, mFrameNumber, 8000000L, 16666666L, 400, 2.5f,
+                2, 2, 2, 0);
+    }
+
+}
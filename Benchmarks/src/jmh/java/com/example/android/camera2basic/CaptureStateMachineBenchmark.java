@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the capture sequence as driven by the camera thread, from the shutter to the preview
+ * being resumed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CaptureStateMachineBenchmark {
+
+    private static final int AE_STATE_SEARCHING = 1;
+
+    private final CaptureStateMachine mMachine = new CaptureStateMachine();
+
+    private long mNowNs;
+
+    @Setup
+    public void setUp() {
+        // Measure the transitions driven by results only.
+        for (CaptureStateMachine.State state : CaptureStateMachine.State.values()) {
+            mMachine.setTimeout(state, 0);
+        }
+    }
+
+    @Benchmark
+    public void focusedAndConverged(Blackhole blackhole) {
+        blackhole.consume(mMachine.start(tick()));
+        blackhole.consume(mMachine.onResult(CaptureStateMachine.AF_STATE_FOCUSED_LOCKED,
+                CaptureStateMachine.AE_STATE_CONVERGED, tick()));
+        blackhole.consume(mMachine.onCaptureDone(tick()));
+    }
+
+    @Benchmark
+    public void withPrecapture(Blackhole blackhole) {
+        blackhole.consume(mMachine.start(tick()));
+        blackhole.consume(mMachine.onResult(CaptureStateMachine.AF_STATE_FOCUSED_LOCKED,
+                AE_STATE_SEARCHING, tick()));
+        blackhole.consume(mMachine.onResult(CaptureStateMachine.AF_STATE_FOCUSED_LOCKED,
+                CaptureStateMachine.AE_STATE_PRECAPTURE, tick()));
+        blackhole.consume(mMachine.onResult(CaptureStateMachine.AF_STATE_FOCUSED_LOCKED,
+                CaptureStateMachine.AE_STATE_CONVERGED, tick()));
+        blackhole.consume(mMachine.onCaptureDone(tick()));
+    }
+
+    @Benchmark
+    public void repeatingResultWhileWaiting(Blackhole blackhole) {
+        // Most results arrive while the machine waits and change nothing.
+        if (mMachine.getState() != CaptureStateMachine.State.WAITING_LOCK) {
+            mMachine.start(tick());
+        }
+        blackhole.consume(mMachine.onResult(CaptureStateMachine.UNKNOWN,
+                CaptureStateMachine.UNKNOWN, tick()));
+    }
+
+    /**
+     * Advances a fake clock by a frame.
+     */
+    private long tick() {
+        mNowNs += 33000000L;
+        return mNowNs;
+    }
+
+}
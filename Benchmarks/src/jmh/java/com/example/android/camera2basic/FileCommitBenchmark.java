@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks saving a burst of JPEGs into a {@link CaptureStorage} under each policy of
+ * {@link FileCommitter}: how long the saving thread is busy, and how long until every capture of
+ * the burst is in place.
+ *
+ * Syncing is free on a RAM disk, so unlike the other benchmarks the files go to java.io.tmpdir.
+ * Set the benchmark.dir system property to use a directory on the disk to measure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileCommitBenchmark {
+
+    private static final int BURST_SIZE = 10;
+
+    private static final int IMAGE_SIZE = 1024 * 1024;
+
+    @Param({"NONE", "PER_FILE", "GROUP"})
+    public FileCommitter.Policy policy;
+
+    private File mDir;
+
+    private CaptureStorage mStorage;
+
+    private FileCommitter mCommitter;
+
+    private ImageSaver.Source mSource;
+
+    private ByteBufferPool mBufferPool;
+
+    private long mTimestampNs;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = BenchmarkDirs.create("FileCommitBenchmark", false);
+        byte[] bytes = new byte[IMAGE_SIZE];
+        new Random(0).nextBytes(bytes);
+        final ByteBuffer image = ByteBuffer.allocateDirect(IMAGE_SIZE);
+        image.put(bytes).flip();
+        mSource = new ImageSaver.Source() {
+            @Override
+            public ByteBuffer getBuffer() {
+                image.rewind();
+                return image;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        mBufferPool = new ByteBufferPool(256 * 1024, 2);
+        mStorage = new CaptureStorage(mDir, CaptureStorage.SET_LENGTH);
+        // The group is never committed by age, only by size and by the flush at the end.
+        mCommitter = new FileCommitter(policy, BURST_SIZE, TimeUnit.HOURS.toMillis(1));
+        mStorage.setCommitter(mCommitter);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkDirs.delete(mDir);
+    }
+
+    /**
+     * Deletes the captures of each burst, so a run doesn't fill up the disk.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteCaptures() {
+        mCommitter.flush();
+        List<CaptureIndex.Entry> entries = mStorage.getIndex().getEntries();
+        for (CaptureIndex.Entry entry
+                : entries.subList(Math.max(0, entries.size() - BURST_SIZE), entries.size())) {
+            //noinspection ResultOfMethodCallIgnored
+            entry.file.delete();
+        }
+    }
+
+    /**
+     * Saves a burst on the calling thread, which is all a save worker waits for.
+     */
+    @Benchmark
+    public void saveBurst() throws IOException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            mTimestampNs += 33000000L;
+            new ImageSaver(mSource, mStorage.newOutput(mTimestampNs, "jpg"), mBufferPool).run();
+        }
+    }
+
+    /**
+     * Saves a burst and waits until all of it is in place.
+     */
+    @Benchmark
+    public void saveBurstDurably() throws IOException {
+        saveBurst();
+        mCommitter.flush();
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link FrameMerger} on a stack of eight noisy, slightly moved 12 megapixel frames
+ * laid out like semi-planar YUV_420_888 images, on pools of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FrameMergerBenchmark {
+
+    private static final int WIDTH = 4032;
+
+    private static final int HEIGHT = 3024;
+
+    private static final int FRAMES = 8;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private ForkJoinPool mPool;
+
+    private FrameMerger mMerger;
+
+    private List<FrameMerger.Input> mInputs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        mInputs = new ArrayList<>(FRAMES);
+        for (int i = 0; i < FRAMES; i++) {
+            int shiftX = 2 * random.nextInt(5);
+            int shiftY = 2 * random.nextInt(5);
+            ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int sx = x + shiftX;
+                    int sy = y + shiftY;
+                    luma.put((byte) ((sx / 16 + sy / 12) % 200 + random.nextInt(16)));
+                }
+            }
+            ByteBuffer chroma = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 2);
+            for (int j = 0; j < WIDTH * HEIGHT / 2; j++) {
+                chroma.put((byte) (128 + random.nextInt(4)));
+            }
+            luma.clear();
+            chroma.clear();
+            ByteBuffer u = chroma.duplicate();
+            u.position(1);
+            JpegEncoder.Frame frame = new JpegEncoder.Frame(WIDTH, HEIGHT,
+                    new JpegEncoder.Plane(luma, WIDTH, 1),
+                    new JpegEncoder.Plane(u, WIDTH, 2),
+                    new JpegEncoder.Plane(chroma, WIDTH, 2));
+            mInputs.add(new FrameMerger.Input(frame, i == FRAMES - 1 ? 0.25 : 1));
+        }
+        mPool = new ForkJoinPool(threads);
+        mMerger = new FrameMerger(mPool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mPool.shutdownNow();
+    }
+
+    @Benchmark
+    public JpegEncoder.Frame merge() {
+        return mMerger.merge(mInputs, 0);
+    }
+
+    @Benchmark
+    public int[][] align() {
+        return FrameMerger.align(mInputs, 0);
+    }
+
+}
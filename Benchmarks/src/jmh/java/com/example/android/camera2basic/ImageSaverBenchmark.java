@@ -0,0 +1,154 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks saving a JPEG through {@link ImageSaver} and naming it with {@link CaptureStorage},
+ * and the cost of splicing an XMP segment into it with {@link JpegSplicer}.
+ *
+ * Files go to /dev/shm when it exists, so the numbers reflect the save path rather than the disk
+ * of the machine running the benchmark. Set the benchmark.dir system property to use another
+ * directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ImageSaverBenchmark {
+
+    /**
+     * Size of the encoded image, in bytes
+     */
+    @Param({"1048576", "4194304"})
+    public int imageSize;
+
+    /**
+     * Whether the image is in a direct buffer, like the plane of an Image, or on the heap, like
+     * a software encoded JPEG
+     */
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private File mDir;
+
+    private ByteBuffer mImage;
+
+    private ImageSaver.Source mSource;
+
+    private ByteBufferPool mBufferPool;
+
+    private File mFile;
+
+    private CaptureStorage mStorage;
+
+    private long mTimestampNs;
+
+    private ByteBuffer[] mSegments;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = BenchmarkDirs.create("ImageSaverBenchmark", true);
+        byte[] bytes = new byte[imageSize];
+        new Random(0).nextBytes(bytes);
+        // The random bytes follow an SOI marker and a JFIF segment, so there is somewhere to
+        // splice into.
+        byte[] header = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0, 0, 16, 'J', 'F', 'I',
+                'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0, (byte) 0xFF, (byte) 0xDB};
+        System.arraycopy(header, 0, bytes, 0, header.length);
+        mImage = direct ? ByteBuffer.allocateDirect(imageSize) : ByteBuffer.allocate(imageSize);
+        mImage.put(bytes).flip();
+        mSource = new ImageSaver.Source() {
+            @Override
+            public ByteBuffer getBuffer() {
+                mImage.rewind();
+                return mImage;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        mBufferPool = new ByteBufferPool(256 * 1024, 2);
+        mFile = new File(mDir, "image.jpg");
+        mStorage = new CaptureStorage(new File(mDir, "storage"), CaptureStorage.SET_LENGTH);
+        CaptureMetadata metadata = new CaptureMetadata();
+        metadata.record(1, 1, 8000000L, 400, 2.5f);
+        metadata.setLocation(37.422, -122.084);
+        mSegments = metadata.getSegments(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkDirs.delete(mDir);
+    }
+
+    /**
+     * Deletes each capture once it is saved, so a run doesn't fill up the memory behind /dev/shm.
+     */
+    @TearDown(Level.Invocation)
+    public void deleteCapture() {
+        CaptureIndex.Entry latest = mStorage.getIndex().getLatest();
+        if (null != latest) {
+            //noinspection ResultOfMethodCallIgnored
+            latest.file.delete();
+        }
+    }
+
+    /**
+     * Writes the image over the same file each time.
+     */
+    @Benchmark
+    public void save() {
+        new ImageSaver(mSource, mFile, mBufferPool).run();
+    }
+
+    /**
+     * Writes the image over the same file each time, with an XMP segment spliced in.
+     */
+    @Benchmark
+    public void saveWithMetadata() {
+        ImageSaver saver = new ImageSaver(mSource, mFile, mBufferPool);
+        saver.setSegments(mSegments);
+        saver.run();
+    }
+
+    /**
+     * Names a new capture and writes the image into it.
+     */
+    @Benchmark
+    public void saveToStorage() throws IOException {
+        mTimestampNs += 33000000L;
+        new ImageSaver(mSource, mStorage.newOutput(mTimestampNs, "jpg"), mBufferPool).run();
+    }
+
+}
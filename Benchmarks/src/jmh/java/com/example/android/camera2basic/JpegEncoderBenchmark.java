@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link JpegEncoder} on a 12 megapixel frame laid out like a semi-planar
+ * YUV_420_888 image, with one thread per strip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JpegEncoderBenchmark {
+
+    private static final int WIDTH = 4032;
+
+    private static final int HEIGHT = 3024;
+
+    @Param({"1", "2", "4", "8"})
+    public int strips;
+
+    @Param({"95", "75"})
+    public int quality;
+
+    private ExecutorService mExecutor;
+
+    private JpegEncoder mEncoder;
+
+    private JpegEncoder.Frame mFrame;
+
+    @Setup
+    public void setUp() {
+        // Smooth gradients with some noise compress about as well as a photo.
+        Random random = new Random(0);
+        ByteBuffer luma = ByteBuffer.allocateDirect(WIDTH * HEIGHT);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma.put((byte) ((x / 16 + y / 12) + random.nextInt(16)));
+            }
+        }
+        ByteBuffer chroma = ByteBuffer.allocateDirect(WIDTH * HEIGHT / 2);
+        for (int i = 0; i < WIDTH * HEIGHT / 2; i++) {
+            chroma.put((byte) (128 + (i % WIDTH) / 64 + random.nextInt(4)));
+        }
+        luma.clear();
+        chroma.clear();
+        ByteBuffer u = chroma.duplicate();
+        u.position(1);
+        mFrame = new JpegEncoder.Frame(WIDTH, HEIGHT,
+                new JpegEncoder.Plane(luma, WIDTH, 1),
+                new JpegEncoder.Plane(u, WIDTH, 2),
+                new JpegEncoder.Plane(chroma, WIDTH, 2));
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, strips - 1));
+        mEncoder = new JpegEncoder(quality, strips, mExecutor);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public byte[] encode() throws InterruptedException {
+        return mEncoder.encode(mFrame, 0);
+    }
+
+    /**
+     * A 504x378 thumbnail of the same frame
+     */
+    @Benchmark
+    public byte[] encodeThumbnail() throws InterruptedException {
+        return mEncoder.encode(mFrame, 3);
+    }
+
+}
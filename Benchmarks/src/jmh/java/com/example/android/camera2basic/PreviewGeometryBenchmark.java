@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import android.util.Size;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the size selection and layout math run while the camera is opened and the preview
+ * is laid out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PreviewGeometryBenchmark {
+
+    /**
+     * The preview sizes of a typical back camera, as returned by StreamConfigurationMap
+     */
+    private final Size[] mChoices = {
+            new Size(4032, 3024), new Size(4000, 3000), new Size(3840, 2160),
+            new Size(3264, 2448), new Size(2560, 1440), new Size(2048, 1536),
+            new Size(1920, 1440), new Size(1920, 1080), new Size(1600, 1200),
+            new Size(1440, 1080), new Size(1280, 960), new Size(1280, 720),
+            new Size(1024, 768), new Size(800, 600), new Size(720, 480),
+            new Size(640, 480), new Size(352, 288), new Size(320, 240),
+            new Size(176, 144)};
+
+    private final Size mAspectRatio = new Size(4032, 3024);
+
+    private final CompareSizesByArea mComparator = new CompareSizesByArea();
+
+    private final float[] mTransformValues = new float[9];
+
+    private final int[] mMeasured = new int[2];
+
+    private int mRotation;
+
+    @Benchmark
+    public Size chooseOptimalSize() {
+        return PreviewGeometry.chooseOptimalSize(mChoices, 1920, 1080, 1920, 1080, mAspectRatio);
+    }
+
+    @Benchmark
+    public Size chooseLargestWithAspectRatio() {
+        return PreviewGeometry.chooseLargestWithAspectRatio(mChoices, mAspectRatio);
+    }
+
+    @Benchmark
+    public Size maxByArea() {
+        return Collections.max(Arrays.asList(mChoices), mComparator);
+    }
+
+    @Benchmark
+    public int compareSizesByArea() {
+        return mComparator.compare(mChoices[7], mChoices[9]);
+    }
+
+    @Benchmark
+    public float[] transform() {
+        // Cycle through the rotations so every branch is measured.
+        mRotation = (mRotation + 1) & 3;
+        PreviewGeometry.getTransform(1080, 1440, 1440, 1080, mRotation, mTransformValues);
+        return mTransformValues;
+    }
+
+    @Benchmark
+    public int[] fitToAspectRatio() {
+        PreviewGeometry.fitToAspectRatio(1080, 1920, 3, 4, mMeasured);
+        return mMeasured;
+    }
+
+}
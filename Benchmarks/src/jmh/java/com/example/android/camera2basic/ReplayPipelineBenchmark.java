@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.camera2basic;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load tests the path that saves and analyzes frames, {@link CapturePipeline}, with stills and
+ * preview frames played by a {@link ReplayFrameSource} at a camera frame rate.
+ *
+ * Each invocation takes a still on every frame it can for two seconds, and waits until every one
+ * of them is saved or dropped. A pipeline that keeps up takes a little over two seconds; the
+ * replay statistics printed after each iteration tell how many frames were skipped or dropped on
+ * the way.
+ *
+ * Files go to /dev/shm when it exists. Set the benchmark.dir system property to use another
+ * directory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ReplayPipelineBenchmark {
+
+    private static final int WIDTH = 1920;
+
+    private static final int HEIGHT = 1080;
+
+    /**
+     * Size of the JPEG stills, in bytes
+     */
+    private static final int JPEG_SIZE = 1024 * 1024;
+
+    /**
+     * Number of distinct frames in the recording
+     */
+    private static final int RECORDED_FRAMES = 4;
+
+    private static final int MAX_IMAGES = 5;
+
+    private static final int SAVE_WORKER_COUNT = 2;
+
+    private static final int SAVE_QUEUE_CAPACITY = 8;
+
+    @Param({"30", "60", "120"})
+    public int frameRate;
+
+    /**
+     * Whether stills come encoded, or as YUV to be encoded by the pipeline
+     */
+    @Param({"jpeg", "yuv"})
+    public String stillFormat;
+
+    private File mDir;
+
+    private File mRecording;
+
+    private ExecutorService mExecutor;
+
+    private ReplayFrameSource mSource;
+
+    private ImageSaveQueue mSaveQueue;
+
+    private final AtomicLong mSavedCount = new AtomicLong();
+
+    @Setup
+    public void setUp() throws IOException {
+        mDir = BenchmarkDirs.create("ReplayPipelineBenchmark", true);
+        mRecording = new File(mDir, "recording");
+        if (!mRecording.mkdir()) {
+            throw new IOException("Failed to create " + mRecording);
+        }
+        writeRecording();
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Setup(Level.Iteration)
+    public void startReplay() throws Exception {
+        mSavedCount.set(0);
+        mSaveQueue = new ImageSaveQueue(SAVE_WORKER_COUNT, SAVE_QUEUE_CAPACITY,
+                ImageSaveQueue.Backpressure.BLOCK);
+        FrameAnalysisPipeline analysis = new FrameAnalysisPipeline(mExecutor);
+        analysis.addAnalyzer("luma", new LumaHistogramAnalyzer());
+        analysis.addAnalyzer("sharpness", new SharpnessAnalyzer());
+        final CapturePipeline pipeline = new CapturePipeline(
+                new CaptureStorage(new File(mDir, "captures"), CaptureStorage.SET_LENGTH),
+                mSaveQueue, new JpegEncoder(90, 4, mExecutor), new ByteBufferPool(256 * 1024, 2),
+                analysis);
+        pipeline.setCallback(new ImageSaver.Callback() {
+            @Override
+            public void onImageSaved(CaptureStorage.Output output, long length) {
+                mSavedCount.incrementAndGet();
+                //noinspection ResultOfMethodCallIgnored
+                output.getFile().delete();
+            }
+        });
+        final CountDownLatch opened = new CountDownLatch(1);
+        mSource = new ReplayFrameSource(mRecording, frameRate, MAX_IMAGES);
+        mSource.open(new FrameSource.Callback() {
+            @Override
+            public void onOpened() {
+                opened.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                e.printStackTrace();
+            }
+
+            @Override
+            public void onCaptureResult(FrameSource.Result result) {
+            }
+
+            @Override
+            public void onPreviewFrame(FrameSource.Frame frame) {
+                pipeline.analyze(frame);
+            }
+
+            @Override
+            public void onStillImage(FrameSource.Frame frame) {
+                pipeline.save(frame);
+            }
+        });
+        if (!opened.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("Failed to open " + mRecording);
+        }
+        mSource.createSession("yuv".equals(stillFormat) ? FrameSource.FORMAT_YUV_420_888
+                : FrameSource.FORMAT_JPEG, true);
+        mSource.setRepeating(true);
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopReplay() throws InterruptedException {
+        mSource.close();
+        mSource.awaitTermination(10000);
+        mSaveQueue.shutdown();
+        mSaveQueue.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mExecutor.shutdown();
+        BenchmarkDirs.delete(mDir);
+    }
+
+    /**
+     * Captures two seconds of stills and waits for all of them to be saved or dropped.
+     */
+    @Benchmark
+    public long captureStills() throws InterruptedException {
+        // Encoded stills alternate with the YUV preview frames of the recording.
+        int stills = "jpeg".equals(stillFormat) ? frameRate : 2 * frameRate;
+        mSource.capture(stills);
+        while (mSavedCount.get() + mSource.getDroppedStillCount() + mSaveQueue.getDroppedCount()
+                < stills) {
+            Thread.sleep(1);
+        }
+        return mSavedCount.get();
+    }
+
+    /**
+     * Writes YUV preview frames and, for JPEG stills, encoded frames alternating with them.
+     */
+    private void writeRecording() throws IOException {
+        Random random = new Random(0);
+        StringBuilder index = new StringBuilder(
+                "file,format,width,height,af_state,ae_state,exposure_time_ns,sensitivity\n");
+        for (int i = 0; i < RECORDED_FRAMES; i++) {
+            byte[] yuv = new byte[WIDTH * HEIGHT * 3 / 2];
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    yuv[y * WIDTH + x] = (byte) ((x / 16 + y / 12 + i) % 200
+                            + random.nextInt(16));
+                }
+            }
+            for (int j = WIDTH * HEIGHT; j < yuv.length; j++) {
+                yuv[j] = (byte) (128 + random.nextInt(4));
+            }
+            String name = i + ".yuv";
+            write(new File(mRecording, name), yuv);
+            index.append(name).append(",yuv,").append(WIDTH).append(',').append(HEIGHT)
+                    .append(",2,2,16666666,100\n");
+            if ("jpeg".equals(stillFormat)) {
+                byte[] jpeg = new byte[JPEG_SIZE];
+                random.nextBytes(jpeg);
+                jpeg[0] = (byte) 0xFF;
+                jpeg[1] = (byte) 0xD8;
+                name = i + ".jpg";
+                write(new File(mRecording, name), jpeg);
+                index.append(name).append(",jpeg,").append(WIDTH).append(',').append(HEIGHT)
+                        .append(",2,2,16666666,100\n");
+            }
+        }
+        write(new File(mRecording, ReplayFrameSource.INDEX_NAME),
+                index.toString().getBytes("UTF-8"));
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+}